@@ -88,6 +88,7 @@ public class ImageVideoActivity extends AppCompatActivity implements PermissionH
     private int mTimeUnitIndex = INDEX_TIME_UNIT_SECOND;
     private static final int DEFAULT_IMAGE_INTERVAL_VALUE = 2;
     private static final int MIN_IMAGE_INTERVAL_MILLIS = 40;// 小于40毫秒会严重掉帧
+    private static final int PREFETCH_IMAGE_COUNT = 2;// 提前加载后面几张图片
     private int mImageIntervalValue = DEFAULT_IMAGE_INTERVAL_VALUE;
     private int mImageIntervalMills;
     // request_code 不能与其它重复
@@ -439,6 +440,7 @@ public class ImageVideoActivity extends AppCompatActivity implements PermissionH
         }
         mCurrentIndexTV.setText((mImageIndex + 1) + "/" + mImageList.size());
         mWeImageVideoView.setImagePath(mImageList.get(mImageIndex));
+        prefetchNextImages(mImageIndex);
     }
 
     private void playFirstImage() {
@@ -446,6 +448,7 @@ public class ImageVideoActivity extends AppCompatActivity implements PermissionH
 
         mCurrentIndexTV.setText((mImageIndex + 1) + "/" + mImageList.size());
         mWeImageVideoView.setImagePath(mImageList.get(0));
+        prefetchNextImages(0);
     }
 
     private void playNextImage() {
@@ -457,6 +460,16 @@ public class ImageVideoActivity extends AppCompatActivity implements PermissionH
         }
         mCurrentIndexTV.setText((mImageIndex + 1) + "/" + mImageList.size());
         mWeImageVideoView.setImagePath(mImageList.get(mImageIndex));
+        prefetchNextImages(mImageIndex);
+    }
+
+    private void prefetchNextImages(int index) {
+        int count = Math.min(PREFETCH_IMAGE_COUNT, mImageList.size() - 1);
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            paths[i] = mImageList.get((index + 1 + i) % mImageList.size());
+        }
+        mWeImageVideoView.prefetchImagePaths(paths);
     }
 
     private void record() {
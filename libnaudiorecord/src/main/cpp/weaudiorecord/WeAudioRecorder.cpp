@@ -2,11 +2,17 @@
 // Created by WTZ on 2020/4/15.
 //
 
+#include <time.h>
+#include <errno.h>
 #include <AndroidLog.h>
 #include "WeAudioRecorder.h"
 
+#define VIDMK_STOP_WAIT_WORK_MAX_MS 1000
+
 WeAudioRecorder::WeAudioRecorder(OnPCMDataCall *onPcmDataCall) {
     this->onPCMDataCall = onPcmDataCall;
+    pthread_mutex_init(&workMutex, NULL);
+    pthread_cond_init(&workCond, NULL);
 }
 
 WeAudioRecorder::~WeAudioRecorder() {
@@ -14,6 +20,9 @@ WeAudioRecorder::~WeAudioRecorder() {
 
     delete onPCMDataCall;// 既然在构造函数里创建，就要在析构里销毁，不要放在 release 里
     onPCMDataCall = NULL;
+
+    pthread_cond_destroy(&workCond);
+    pthread_mutex_destroy(&workMutex);
 }
 
 bool WeAudioRecorder::init() {
@@ -66,10 +75,10 @@ bool WeAudioRecorder::start() {
         return false;
     }
 
-    isRecording = true;
     recordBuffer = new DoubleBuffer(VIDMK_DOUBLE_BUFFER_ELEM_COUNT);
+    _setRecording(true);
     if (!enqueueReceiveBuffer()) {
-        isRecording = false;
+        _setRecording(false);
         return false;
     }
 
@@ -88,10 +97,10 @@ bool WeAudioRecorder::resume() {
         return false;
     }
 
-    isRecording = true;
+    _setRecording(true);
     if (enqueueFailed) {
         if (!enqueueReceiveBuffer()) {
-            isRecording = false;
+            _setRecording(false);
             return false;
         }
     }
@@ -120,6 +129,23 @@ void WeAudioRecorder::callbackData() {
     }
 }
 
+bool WeAudioRecorder::beginWork() {
+    pthread_mutex_lock(&workMutex);
+    bool canWork = isRecording;
+    if (canWork) {
+        isWorking = true;
+    }
+    pthread_mutex_unlock(&workMutex);
+    return canWork;
+}
+
+void WeAudioRecorder::endWork() {
+    pthread_mutex_lock(&workMutex);
+    isWorking = false;
+    pthread_cond_broadcast(&workCond);
+    pthread_mutex_unlock(&workMutex);
+}
+
 void WeAudioRecorder::pause() {
     if (LOG_DEBUG) {
         LOGW(LOG_TAG, "pause initOpenSLSuccess=%d", initOpenSLSuccess);
@@ -128,7 +154,7 @@ void WeAudioRecorder::pause() {
         return;
     }
 
-    isRecording = false;
+    _setRecording(false);
     _setRecordState(SL_RECORDSTATE_PAUSED);
 }
 
@@ -136,22 +162,11 @@ void WeAudioRecorder::stop() {
     if (LOG_DEBUG) {
         LOGW(LOG_TAG, "stop initOpenSLSuccess=%d", initOpenSLSuccess);
     }
-    isRecording = false;
+    _setRecording(false);
 
     if (initOpenSLSuccess) {
         _setRecordState(SL_RECORDSTATE_STOPPED);
-
-        int sleepCount = 0;
-        while (!workFinished) {
-            if (sleepCount > 100) {// 最多睡眠 1000 ms
-                break;
-            }
-            sleepCount++;
-            usleep(10 * 1000);// 每次睡眠 10 ms
-        }
-        if (LOG_DEBUG) {
-            LOGW(LOG_TAG, "Record stopped after sleep %d ms", sleepCount * 10);
-        }
+        _waitWorkFinished(VIDMK_STOP_WAIT_WORK_MAX_MS);
 
         int ret = (*bufferQueueItf)->Clear(bufferQueueItf);
         if (ret != SL_RESULT_SUCCESS) {
@@ -178,15 +193,14 @@ void recordCallback(SLAndroidSimpleBufferQueueItf bq, void *context) {
         LOGE("_WeAudioRecorder", "recordCallback cast context to WeAudioRecorder result is NULL")
         return;
     }
-    if (!recorder->isRecording) {
+    if (!recorder->beginWork()) {
         LOGW("_WeAudioRecorder", "recordCallback recorder isRecording=false")
         return;
     }
 
-    recorder->workFinished = false;
     recorder->callbackData();
     recorder->enqueueReceiveBuffer();
-    recorder->workFinished = true;
+    recorder->endWork();
 }
 
 SLuint32 WeAudioRecorder::transformSampleRate(int sampleRateInHz) {
@@ -422,6 +436,44 @@ bool WeAudioRecorder::_setRecordState(SLuint32 state) {
     return true;
 }
 
+void WeAudioRecorder::_setRecording(bool recording) {
+    pthread_mutex_lock(&workMutex);
+    isRecording = recording;
+    pthread_mutex_unlock(&workMutex);
+}
+
+void WeAudioRecorder::_waitWorkFinished(int maxWaitMs) {
+    struct timespec begin;
+    clock_gettime(CLOCK_MONOTONIC, &begin);
+
+    // pthread_cond_timedwait 默认按 CLOCK_REALTIME 计算截止时间
+    struct timespec deadline;
+    clock_gettime(CLOCK_REALTIME, &deadline);
+    deadline.tv_sec += maxWaitMs / 1000;
+    deadline.tv_nsec += (long) (maxWaitMs % 1000) * 1000000;
+    if (deadline.tv_nsec >= 1000000000) {
+        deadline.tv_sec++;
+        deadline.tv_nsec -= 1000000000;
+    }
+
+    pthread_mutex_lock(&workMutex);
+    int ret = 0;
+    while (isWorking && ret != ETIMEDOUT) {
+        ret = pthread_cond_timedwait(&workCond, &workMutex, &deadline);
+    }
+    bool isTimeout = isWorking;
+    pthread_mutex_unlock(&workMutex);
+
+    struct timespec end;
+    clock_gettime(CLOCK_MONOTONIC, &end);
+    long costUs = (end.tv_sec - begin.tv_sec) * 1000000 + (end.tv_nsec - begin.tv_nsec) / 1000;
+    if (isTimeout) {
+        LOGE(LOG_TAG, "Record callback still working after wait %ld us", costUs);
+    } else if (LOG_DEBUG) {
+        LOGW(LOG_TAG, "Record stopped after wait %ld us", costUs);
+    }
+}
+
 void WeAudioRecorder::_destroyOpenSL() {
     if (LOG_DEBUG) {
         LOGW(LOG_TAG, "_destroyOpenSL initOpenSLSuccess=%d", initOpenSLSuccess);
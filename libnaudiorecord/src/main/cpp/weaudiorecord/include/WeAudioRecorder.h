@@ -7,6 +7,7 @@
 
 
 #include <stddef.h>
+#include <pthread.h>
 #include "OnPCMDataCall.h"
 #include "DoubleBuffer.h"
 
@@ -47,10 +48,14 @@ private:
     // 用于接收数据的 buffer
     DoubleBuffer *recordBuffer = NULL;
 
+    // 录音回调运行在 OpenSL 的线程中，停止时需等待正在执行的回调结束才能释放资源
+    bool isRecording = false;
+    bool isWorking = false;
+    pthread_mutex_t workMutex;
+    pthread_cond_t workCond;
+
 public:
     const char *LOG_TAG = "_WeAudioRecorder";
-    bool isRecording = false;
-    bool workFinished = true;
 
 public:
     WeAudioRecorder(OnPCMDataCall *onPcmDataCall);
@@ -75,6 +80,16 @@ public:
 
     void callbackData();
 
+    /**
+     * 录音回调开始处理数据前调用，已停止录音时返回 false，此时不能再处理数据
+     */
+    bool beginWork();
+
+    /**
+     * 录音回调处理完数据后调用，唤醒等待回调结束的 stop
+     */
+    void endWork();
+
     void pause();
 
     void stop();
@@ -98,6 +113,13 @@ private:
 
     bool _setRecordState(SLuint32 state);
 
+    void _setRecording(bool recording);
+
+    /**
+     * 等待正在执行的录音回调结束，回调结束后立即返回，最多等待 maxWaitMs 毫秒
+     */
+    void _waitWorkFinished(int maxWaitMs);
+
     /**
      * 确保在退出应用时销毁所有对象。
      * 对象应按照与创建时相反的顺序销毁，因为销毁具有依赖对象的对象并不安全。
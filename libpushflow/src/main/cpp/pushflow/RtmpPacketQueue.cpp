@@ -47,6 +47,7 @@ void RtmpPacketQueue::putPacket(RTMPPacket *packet) {
     pthread_mutex_lock(&mutex);
 
     queue.push(packet);
+    enqueueTimes.push(getMonotonicTimeNs());
     if (LOG_REPEAT_DEBUG) {
         LOGD(LOG_TAG, "putAVpacket current size：%d", queue.size());
     }
@@ -55,7 +56,7 @@ void RtmpPacketQueue::putPacket(RTMPPacket *packet) {
     pthread_mutex_unlock(&mutex);
 }
 
-RTMPPacket *RtmpPacketQueue::getPacket() {
+RTMPPacket *RtmpPacketQueue::getPacket(int64_t *enqueueTimeNs) {
     pthread_mutex_lock(&mutex);
 
     RTMPPacket *packet = NULL;
@@ -64,6 +65,10 @@ RTMPPacket *RtmpPacketQueue::getPacket() {
         if (!queue.empty()) {
             packet = queue.front();
             queue.pop();
+            if (enqueueTimeNs != NULL) {
+                *enqueueTimeNs = enqueueTimes.front();
+            }
+            enqueueTimes.pop();
             break;
         } else if (!productDataComplete) {
             pthread_cond_wait(&condition, &mutex);
@@ -99,6 +104,9 @@ void RtmpPacketQueue::clearQueue() {
         RTMPPacket_Free(packet);
     }
     packet = NULL;
+    while (!enqueueTimes.empty()) {
+        enqueueTimes.pop();
+    }
 
     pthread_mutex_unlock(&mutex);
     if (LOG_DEBUG) {
@@ -106,6 +114,13 @@ void RtmpPacketQueue::clearQueue() {
     }
 }
 
+int64_t RtmpPacketQueue::getMonotonicTimeNs() {
+    // 与 Java 层 System.nanoTime() 使用同一时钟
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
 void RtmpPacketQueue::releaseQueue() {
     clearQueue();
     std::queue<RTMPPacket *> empty;
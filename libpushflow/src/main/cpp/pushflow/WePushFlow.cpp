@@ -7,6 +7,7 @@
 WePushFlow::WePushFlow(OnStartPushResultListener *startListener, OnPushDisconnectCall *disconnectCall) {
     this->onStartPushResultListener = startListener;
     this->onPushDisconnectCall = disconnectCall;
+    pthread_mutex_init(&statsMutex, NULL);
 }
 
 WePushFlow::~WePushFlow() {
@@ -19,6 +20,7 @@ WePushFlow::~WePushFlow() {
     onStartPushResultListener = NULL;
     delete onPushDisconnectCall;
     onPushDisconnectCall = NULL;
+    pthread_mutex_destroy(&statsMutex);
 }
 
 void WePushFlow::setPushUrl(char *url) {
@@ -128,9 +130,15 @@ void WePushFlow::handleOnStartPushFailed(char *error) {
 
 void WePushFlow::_loopPush() {
     while (!isShouldExit) {
-        packet = queue->getPacket();
+        int64_t enqueueTimeNs = 0;
+        packet = queue->getPacket(&enqueueTimeNs);
         if (packet != NULL) {
+            bool isVideo = packet->m_packetType == RTMP_PACKET_TYPE_VIDEO;
             int result = RTMP_SendPacket(rtmp, packet, 1);
+            if (isVideo && enqueueTimeNs > 0) {
+                recordSendLatency(
+                        (int) ((RtmpPacketQueue::getMonotonicTimeNs() - enqueueTimeNs) / 1000000));
+            }
             RTMPPacket_Free(packet);
             free(packet);
             packet = NULL;
@@ -154,6 +162,29 @@ void WePushFlow::_loopPush() {
     }
 }
 
+void WePushFlow::recordSendLatency(int latencyMills) {
+    pthread_mutex_lock(&statsMutex);
+    sendLatencies[sendLatencyWritePos] = latencyMills;
+    sendLatencyWritePos = (sendLatencyWritePos + 1) % SEND_LATENCY_CAPACITY;
+    if (sendLatencyCount < SEND_LATENCY_CAPACITY) {
+        sendLatencyCount++;
+    }
+    pthread_mutex_unlock(&statsMutex);
+}
+
+int WePushFlow::drainSendLatencies(int *out, int maxCount) {
+    pthread_mutex_lock(&statsMutex);
+    int count = sendLatencyCount < maxCount ? sendLatencyCount : maxCount;
+    // 从最旧的开始取
+    int readPos = (sendLatencyWritePos - sendLatencyCount + SEND_LATENCY_CAPACITY) % SEND_LATENCY_CAPACITY;
+    for (int i = 0; i < count; i++) {
+        out[i] = sendLatencies[(readPos + i) % SEND_LATENCY_CAPACITY];
+    }
+    sendLatencyCount -= count;
+    pthread_mutex_unlock(&statsMutex);
+    return count;
+}
+
 void WePushFlow::freeRTMP() {
     if (rtmp == NULL) {
         return;
@@ -165,6 +165,21 @@ Java_com_wtz_libpushflow_WePushFlow_nativePushAudioData(JNIEnv *env, jobject thi
     env->ReleaseByteArrayElements(data, dataJbyte, 0);
 }
 
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_wtz_libpushflow_WePushFlow_nativeDrainSendLatencies(JNIEnv *env, jobject thiz,
+                                                             jintArray out_mills) {
+    if (pWePushFlow == NULL) {
+        LOGE(LOG_TAG, "invoke nativeDrainSendLatencies but pWePushFlow == NULL");
+        return 0;
+    }
+
+    jint *outJint = env->GetIntArrayElements(out_mills, NULL);
+    int count = pWePushFlow->drainSendLatencies(outJint, env->GetArrayLength(out_mills));
+    env->ReleaseIntArrayElements(out_mills, outJint, 0);
+    return count;
+}
+
 extern "C"
 JNIEXPORT void JNICALL
 Java_com_wtz_libpushflow_WePushFlow_nativeSetStopFlag(JNIEnv *env, jobject thiz) {
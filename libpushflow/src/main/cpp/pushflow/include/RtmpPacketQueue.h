@@ -7,6 +7,8 @@
 
 #include "queue"
 #include <pthread.h>
+#include <stdint.h>
+#include <time.h>
 #include "AndroidLog.h"
 
 extern "C"
@@ -23,6 +25,7 @@ private:
     bool productDataComplete = false;
 
     std::queue<RTMPPacket *> queue;
+    std::queue<int64_t> enqueueTimes;// 与 queue 一一对应的入队时间，用于统计发送延时
     pthread_mutex_t mutex;
     pthread_cond_t condition;
 
@@ -50,12 +53,17 @@ public:
 
     void putPacket(RTMPPacket *packet);
 
-    RTMPPacket *getPacket();
+    /**
+     * @param enqueueTimeNs 不为空时返回此包的入队时间，单位：纳秒
+     */
+    RTMPPacket *getPacket(int64_t *enqueueTimeNs = NULL);
 
     int getQueueSize();
 
     void clearQueue();
 
+    static int64_t getMonotonicTimeNs();
+
 private:
     void releaseQueue();
 
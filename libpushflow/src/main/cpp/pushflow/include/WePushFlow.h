@@ -46,6 +46,13 @@ private:
     bool isShouldCallDisconnect = false;
     bool isShouldExit = false;
 
+    // 视频包从入队到发送完成的耗时，单位：毫秒，满了覆盖最旧的，等待 Java 层取走统计
+    static const int SEND_LATENCY_CAPACITY = 1024;
+    int sendLatencies[SEND_LATENCY_CAPACITY];
+    int sendLatencyWritePos = 0;
+    int sendLatencyCount = 0;
+    pthread_mutex_t statsMutex;
+
 public:
     pthread_t pushThread;
     bool isPushThreadStarted = false;
@@ -77,11 +84,20 @@ public:
 
     void stopPush();
 
+    /**
+     * 取走已记录的视频包发送延时
+     *
+     * @return 实际取走的个数
+     */
+    int drainSendLatencies(int *out, int maxCount);
+
 private:
     void handleOnStartPushFailed(char *error);
 
     void freeRTMP();
 
+    void recordSendLatency(int latencyMills);
+
 };
 
 
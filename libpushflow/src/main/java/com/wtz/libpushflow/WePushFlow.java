@@ -33,6 +33,8 @@ public class WePushFlow {
 
     private native void nativePushAudioData(byte[] data, int dataLength);
 
+    private native int nativeDrainSendLatencies(int[] outMills);
+
     private native void nativeSetStopFlag();
 
     private native void nativeStopPush();
@@ -242,6 +244,18 @@ public class WePushFlow {
         nativePushAudioData(data, dataLength);
     }
 
+    /**
+     * 取走推流线程记录的视频包发送延时（从入队到 RTMP_SendPacket 完成），单位：毫秒
+     *
+     * @return 实际取走的个数
+     */
+    public int drainSendLatencies(int[] outMills) {
+        if (isReleased || outMills == null) {
+            return 0;
+        }
+        return nativeDrainSendLatencies(outMills);
+    }
+
     public void stopPush() {
         nativeSetStopFlag();// 设置停止标志位立即执行，不进消息队列
 
@@ -0,0 +1,51 @@
+//
+// libvideomaker native 接口
+//
+
+#include <jni.h>
+#include "AndroidLog.h"
+#include "YuvConverter.h"
+
+#define LOG_TAG "WeVideoMakerJNI"
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_wtz_libvideomaker_encoder_WeYuvConverter_nativeIsNeonSupported(JNIEnv *env, jclass clazz) {
+    return YuvConverter::isNeonSupported();
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_wtz_libvideomaker_encoder_WeYuvConverter_nativeSetNeonEnabled(JNIEnv *env, jclass clazz,
+                                                                       jboolean enabled) {
+    YuvConverter::setNeonEnabled(enabled);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_wtz_libvideomaker_encoder_WeYuvConverter_nativeRgbaToYuv420(JNIEnv *env, jclass clazz,
+                                                                     jobject src, jint width,
+                                                                     jint height, jint src_stride,
+                                                                     jboolean flip_vertical,
+                                                                     jobject dst, jint dst_offset,
+                                                                     jint dst_stride,
+                                                                     jint dst_slice_height,
+                                                                     jint format) {
+    uint8_t *srcData = static_cast<uint8_t *>(env->GetDirectBufferAddress(src));
+    uint8_t *dstData = static_cast<uint8_t *>(env->GetDirectBufferAddress(dst));
+    if (srcData == NULL || dstData == NULL) {
+        LOGE(LOG_TAG, "nativeRgbaToYuv420: src or dst is not a direct buffer");
+        return -1;
+    }
+    jlong srcCapacity = env->GetDirectBufferCapacity(src);
+    jlong dstCapacity = env->GetDirectBufferCapacity(dst);
+    if (srcCapacity < (jlong) src_stride * height
+        || dstCapacity < dst_offset + (jlong) YuvConverter::getYuv420Size(dst_stride, dst_slice_height)) {
+        LOGE(LOG_TAG, "nativeRgbaToYuv420: buffer too small, src=%lld dst=%lld",
+             (long long) srcCapacity, (long long) dstCapacity);
+        return -1;
+    }
+
+    return YuvConverter::rgbaToYuv420(srcData, width, height, src_stride, flip_vertical,
+                                      dstData + dst_offset, dst_stride, dst_slice_height, format);
+}
@@ -0,0 +1,194 @@
+//
+// RGBA 转 YUV420（I420 / NV12）
+//
+// BT.601 limited range:
+// Y = ((66 * R + 129 * G + 25 * B + 128) >> 8) + 16
+// U = ((-38 * R - 74 * G + 112 * B + 128) >> 8) + 128
+// V = ((112 * R - 94 * G - 18 * B + 128) >> 8) + 128
+// 色度取 2x2 像素平均值 (sum + 2) >> 2，NEON 与纯 C 实现结果逐字节一致；
+// 宽或高为奇数时最后一列或一行没有相邻像素，按重复边缘像素取平均
+//
+
+#include <stddef.h>
+#include "YuvConverter.h"
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#define HAVE_NEON 1
+#include <arm_neon.h>
+#else
+#define HAVE_NEON 0
+#endif
+
+bool YuvConverter::neonEnabled = true;
+
+bool YuvConverter::isNeonSupported() {
+    return HAVE_NEON == 1;
+}
+
+void YuvConverter::setNeonEnabled(bool enabled) {
+    neonEnabled = enabled;
+}
+
+int YuvConverter::getYuv420Size(int dstStride, int dstSliceHeight) {
+    // 色度平面为 (stride + 1) / 2 列、(sliceHeight + 1) / 2 行，I420 和 NV12 大小相同，偶数时即 3 / 2
+    return dstStride * dstSliceHeight + ((dstStride + 1) & ~1) * ((dstSliceHeight + 1) / 2);
+}
+
+static inline uint8_t clampToByte(int value) {
+    return (uint8_t) (value < 0 ? 0 : (value > 255 ? 255 : value));
+}
+
+static inline uint8_t rgbToY(int r, int g, int b) {
+    return (uint8_t) (((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+}
+
+void YuvConverter::convertRowPairScalar(const uint8_t *row0, const uint8_t *row1, int startX, int width,
+                                        uint8_t *y0, uint8_t *y1, uint8_t *u, uint8_t *v, int uvStep) {
+    for (int x = startX; x < width; x += 2) {
+        // 奇数宽的最后一列重复使用本列像素
+        bool hasRight = x + 1 < width;
+        const uint8_t *p00 = row0 + x * 4;
+        const uint8_t *p01 = hasRight ? p00 + 4 : p00;
+        const uint8_t *p10 = row1 + x * 4;
+        const uint8_t *p11 = hasRight ? p10 + 4 : p10;
+
+        y0[x] = rgbToY(p00[0], p00[1], p00[2]);
+        y1[x] = rgbToY(p10[0], p10[1], p10[2]);
+        if (hasRight) {
+            y0[x + 1] = rgbToY(p01[0], p01[1], p01[2]);
+            y1[x + 1] = rgbToY(p11[0], p11[1], p11[2]);
+        }
+
+        int r = (p00[0] + p01[0] + p10[0] + p11[0] + 2) >> 2;
+        int g = (p00[1] + p01[1] + p10[1] + p11[1] + 2) >> 2;
+        int b = (p00[2] + p01[2] + p10[2] + p11[2] + 2) >> 2;
+        int uvIndex = (x >> 1) * uvStep;
+        u[uvIndex] = clampToByte(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+        v[uvIndex] = clampToByte(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+    }
+}
+
+#if HAVE_NEON
+
+static inline uint8x16_t neonRgbaToY(const uint8x16x4_t &p) {
+    const uint8x8_t kR = vdup_n_u8(66);
+    const uint8x8_t kG = vdup_n_u8(129);
+    const uint8x8_t kB = vdup_n_u8(25);
+
+    uint16x8_t lo = vmull_u8(vget_low_u8(p.val[0]), kR);
+    lo = vmlal_u8(lo, vget_low_u8(p.val[1]), kG);
+    lo = vmlal_u8(lo, vget_low_u8(p.val[2]), kB);
+
+    uint16x8_t hi = vmull_u8(vget_high_u8(p.val[0]), kR);
+    hi = vmlal_u8(hi, vget_high_u8(p.val[1]), kG);
+    hi = vmlal_u8(hi, vget_high_u8(p.val[2]), kB);
+
+    // vrshrn 即 (x + 128) >> 8
+    uint8x16_t y = vcombine_u8(vrshrn_n_u16(lo, 8), vrshrn_n_u16(hi, 8));
+    return vqaddq_u8(y, vdupq_n_u8(16));
+}
+
+static inline int16x8_t neonAverage2x2(uint8x16_t row0, uint8x16_t row1) {
+    uint16x8_t sum = vaddq_u16(vpaddlq_u8(row0), vpaddlq_u8(row1));
+    return vreinterpretq_s16_u16(vrshrq_n_u16(sum, 2));// (sum + 2) >> 2
+}
+
+int YuvConverter::convertRowPairNeon(const uint8_t *row0, const uint8_t *row1, int width,
+                                     uint8_t *y0, uint8_t *y1, uint8_t *u, uint8_t *v, bool interleaveUV) {
+    const int16x8_t k128 = vdupq_n_s16(128);
+    int x = 0;
+    for (; x + 16 <= width; x += 16) {
+        uint8x16x4_t p0 = vld4q_u8(row0 + x * 4);
+        uint8x16x4_t p1 = vld4q_u8(row1 + x * 4);
+
+        vst1q_u8(y0 + x, neonRgbaToY(p0));
+        vst1q_u8(y1 + x, neonRgbaToY(p1));
+
+        int16x8_t r = neonAverage2x2(p0.val[0], p1.val[0]);
+        int16x8_t g = neonAverage2x2(p0.val[1], p1.val[1]);
+        int16x8_t b = neonAverage2x2(p0.val[2], p1.val[2]);
+
+        int16x8_t uu = vmulq_n_s16(b, 112);
+        uu = vmlsq_n_s16(uu, r, 38);
+        uu = vmlsq_n_s16(uu, g, 74);
+        int16x8_t vv = vmulq_n_s16(r, 112);
+        vv = vmlsq_n_s16(vv, g, 94);
+        vv = vmlsq_n_s16(vv, b, 18);
+
+        // vrshr 即 (x + 128) >> 8，算术右移
+        uint8x8_t u8 = vqmovun_s16(vaddq_s16(vrshrq_n_s16(uu, 8), k128));
+        uint8x8_t v8 = vqmovun_s16(vaddq_s16(vrshrq_n_s16(vv, 8), k128));
+
+        if (interleaveUV) {
+            uint8x8x2_t uv;
+            uv.val[0] = u8;
+            uv.val[1] = v8;
+            vst2_u8(u + x, uv);
+        } else {
+            vst1_u8(u + (x >> 1), u8);
+            vst1_u8(v + (x >> 1), v8);
+        }
+    }
+    return x;
+}
+
+#else
+
+int YuvConverter::convertRowPairNeon(const uint8_t *row0, const uint8_t *row1, int width,
+                                     uint8_t *y0, uint8_t *y1, uint8_t *u, uint8_t *v, bool interleaveUV) {
+    return 0;
+}
+
+#endif
+
+int YuvConverter::rgbaToYuv420(const uint8_t *src, int width, int height, int srcStride, bool flipVertical,
+                               uint8_t *dst, int dstStride, int dstSliceHeight, int format) {
+    if (src == NULL || dst == NULL || width <= 0 || height <= 0
+        || srcStride < width * 4 || dstStride < width || dstSliceHeight < height
+        || (format != YUV_FORMAT_I420 && format != YUV_FORMAT_NV12)) {
+        return -1;
+    }
+
+    bool isNV12 = format == YUV_FORMAT_NV12;
+    uint8_t *yPlane = dst;
+    uint8_t *uPlane = dst + dstStride * dstSliceHeight;
+    uint8_t *vPlane;
+    int uvStride;
+    int uvStep;
+    if (isNV12) {
+        uvStride = (dstStride + 1) & ~1;
+        vPlane = uPlane + 1;
+        uvStep = 2;
+    } else {
+        uvStride = (dstStride + 1) / 2;
+        vPlane = uPlane + uvStride * ((dstSliceHeight + 1) / 2);
+        uvStep = 1;
+    }
+
+    bool useNeon = HAVE_NEON && neonEnabled;
+    for (int row = 0; row < height; row += 2) {
+        // 奇数高的最后一行与自己配对，两行写同一个 Y 行
+        bool hasNext = row + 1 < height;
+        const uint8_t *row0;
+        const uint8_t *row1;
+        if (flipVertical) {
+            row0 = src + (height - 1 - row) * srcStride;
+            row1 = hasNext ? row0 - srcStride : row0;
+        } else {
+            row0 = src + row * srcStride;
+            row1 = hasNext ? row0 + srcStride : row0;
+        }
+        uint8_t *y0 = yPlane + row * dstStride;
+        uint8_t *y1 = hasNext ? y0 + dstStride : y0;
+        uint8_t *u = uPlane + (row >> 1) * uvStride;
+        uint8_t *v = vPlane + (row >> 1) * uvStride;
+
+        int done = 0;
+        if (useNeon) {
+            done = convertRowPairNeon(row0, row1, width, y0, y1, u, v, isNV12);
+        }
+        // NEON 处理不完的尾部以及不支持 NEON 时用纯 C 实现
+        convertRowPairScalar(row0, row1, done, width, y0, y1, u, v, uvStep);
+    }
+    return getYuv420Size(dstStride, dstSliceHeight);
+}
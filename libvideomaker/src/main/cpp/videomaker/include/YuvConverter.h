@@ -0,0 +1,58 @@
+//
+// RGBA 转 YUV420（I420 / NV12），BT.601 limited range，色度取 2x2 平均
+//
+
+#ifndef VIDEOMAKER_YUVCONVERTER_H
+#define VIDEOMAKER_YUVCONVERTER_H
+
+#include <stdint.h>
+
+#define YUV_FORMAT_I420 0
+#define YUV_FORMAT_NV12 1
+
+class YuvConverter {
+
+public:
+    /**
+     * 当前编译的库是否带 NEON 实现
+     */
+    static bool isNeonSupported();
+
+    /**
+     * 是否使用 NEON 实现，默认开启，关闭后使用纯 C 实现，用于对比结果和性能
+     */
+    static void setNeonEnabled(bool enabled);
+
+    /**
+     * @param src          RGBA 数据
+     * @param width        图像宽，奇数时色度最后一列按重复边缘像素计算
+     * @param height       图像高，奇数时色度最后一行按重复边缘像素计算
+     * @param srcStride    RGBA 每行字节数
+     * @param flipVertical 是否上下翻转（glReadPixels 读出的数据原点在左下角）
+     * @param dst          输出缓冲区
+     * @param dstStride    Y 平面每行字节数，不小于 width
+     * @param dstSliceHeight Y 平面行数，不小于 height
+     * @param format       YUV_FORMAT_I420 或 YUV_FORMAT_NV12
+     * @return 写入的字节数，参数错误返回 -1
+     */
+    static int rgbaToYuv420(const uint8_t *src, int width, int height, int srcStride, bool flipVertical,
+                            uint8_t *dst, int dstStride, int dstSliceHeight, int format);
+
+    /**
+     * 输出缓冲区所需的最小字节数：Y 平面 dstStride * dstSliceHeight，
+     * 之后的色度平面 I420 每行 (dstStride + 1) / 2 字节、NV12 每行 (dstStride + 1) & ~1 字节，共 (dstSliceHeight + 1) / 2 行
+     */
+    static int getYuv420Size(int dstStride, int dstSliceHeight);
+
+private:
+    static bool neonEnabled;
+
+    static void convertRowPairScalar(const uint8_t *row0, const uint8_t *row1, int startX, int width,
+                                     uint8_t *y0, uint8_t *y1, uint8_t *u, uint8_t *v, int uvStep);
+
+    static int convertRowPairNeon(const uint8_t *row0, const uint8_t *row1, int width,
+                                  uint8_t *y0, uint8_t *y1, uint8_t *u, uint8_t *v, bool interleaveUV);
+
+};
+
+#endif //VIDEOMAKER_YUVCONVERTER_H
@@ -22,6 +22,10 @@ public class WeCamera implements AcceleFocusListener.OnFocusListener {
     private static final int DEFAULT_SUFACE_HEIGHT = 720;
     private int[] mPreviewSize = new int[2];
 
+    // 期望的预览帧率，小于等于 0 时使用最小帧率最大的范围
+    private int mTargetFps;
+    private int[] mPreviewFpsRange = new int[2];
+
     public WeCamera(SurfaceTexture surfaceTexture, Context context) {
         this.mSurfaceTexture = surfaceTexture;
         mAccelerationListener = AcceleFocusListener.getInstance(context);
@@ -70,8 +74,26 @@ public class WeCamera implements AcceleFocusListener.OnFocusListener {
         return mPreviewSize;
     }
 
+    /**
+     * 设置期望的预览帧率，下次打开相机时生效，如 60、120 用于高帧率录制，
+     * 实际帧率受设备支持的预览帧率范围限制，可通过 {@link #getPreviewMaxFps()} 获取
+     */
+    public void setTargetPreviewFps(int fps) {
+        this.mTargetFps = fps;
+    }
+
+    /**
+     * 获取当前预览帧率范围的上限，单位：帧每秒
+     */
+    public int getPreviewMaxFps() {
+        return mPreviewFpsRange[1] / 1000;
+    }
+
     private void setPreviewFPS(Camera.Parameters parameters) {
         List<int[]> fpsRanges = parameters.getSupportedPreviewFpsRange();
+        if (mTargetFps > 0 && setTargetPreviewFPS(parameters, fpsRanges)) {
+            return;
+        }
         int maxIndex = 0;
         int maxFps = 0;
         int[] fpsArray;
@@ -85,9 +107,44 @@ public class WeCamera implements AcceleFocusListener.OnFocusListener {
         }
         fpsArray = fpsRanges.get(maxIndex);
         parameters.setPreviewFpsRange(fpsArray[0], fpsArray[1]);
+        mPreviewFpsRange[0] = fpsArray[0];
+        mPreviewFpsRange[1] = fpsArray[1];
         LogUtils.w(TAG, "setPreviewFPS:" + (fpsArray[0] / 1000.0f) + "~" + (fpsArray[1] / 1000.0f));
     }
 
+    /**
+     * 在上限不低于期望帧率的范围中选择下限最高的，下限相同时选择上限较小的；
+     * 都达不到期望帧率时选择上限最高的
+     */
+    private boolean setTargetPreviewFPS(Camera.Parameters parameters, List<int[]> fpsRanges) {
+        int target = mTargetFps * 1000;
+        int[] selected = null;
+        int[] highest = null;
+        for (int[] range : fpsRanges) {
+            if (highest == null || range[1] > highest[1] || (range[1] == highest[1] && range[0] > highest[0])) {
+                highest = range;
+            }
+            if (range[1] < target) {
+                continue;
+            }
+            if (selected == null || range[0] > selected[0] || (range[0] == selected[0] && range[1] < selected[1])) {
+                selected = range;
+            }
+        }
+        if (selected == null) {
+            selected = highest;
+        }
+        if (selected == null) {
+            return false;
+        }
+        parameters.setPreviewFpsRange(selected[0], selected[1]);
+        mPreviewFpsRange[0] = selected[0];
+        mPreviewFpsRange[1] = selected[1];
+        LogUtils.w(TAG, "setPreviewFPS target " + mTargetFps + ":" + (selected[0] / 1000.0f)
+                + "~" + (selected[1] / 1000.0f));
+        return true;
+    }
+
     private void setPicAndPreviewSize(Camera.Parameters parameters, int surfaceWidth, int surfaceHeight) {
         if (surfaceWidth <= 0) {
             surfaceWidth = DEFAULT_SUFACE_WIDTH;
@@ -10,21 +10,24 @@ import android.util.AttributeSet;
 
 import com.wtz.libvideomaker.egl.WeGLSurfaceView;
 import com.wtz.libvideomaker.egl.WeGLRenderer;
+import com.wtz.libvideomaker.renderer.FrameTapRenderer;
 import com.wtz.libvideomaker.renderer.OnScreenRenderer;
-import com.wtz.libvideomaker.renderer.filters.FilterRenderer;
-import com.wtz.libvideomaker.renderer.filters.GrayFilterRenderer;
-import com.wtz.libvideomaker.renderer.filters.ReverseFilterRenderer;
+import com.wtz.libvideomaker.renderer.filters.FusedFilterRenderer;
 import com.wtz.libvideomaker.renderer.filters.WatermarkRenderer;
+import com.wtz.libvideomaker.renderer.filters.WeColorOp;
+import com.wtz.libvideomaker.renderer.graph.WeRenderGraph;
+import com.wtz.libvideomaker.renderer.graph.WeRenderNode;
 import com.wtz.libvideomaker.renderer.origins.CameraRenderer;
 import com.wtz.libvideomaker.utils.LogUtils;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
-        CameraRenderer.OnSharedTextureChangedListener, CameraRenderer.SurfaceTextureListener,
-        FilterRenderer.OnFilterTextureChangedListener, WatermarkRenderer.OnMarkTextureChangedListener {
+        CameraRenderer.SurfaceTextureListener {
     private static final String TAG = WeCameraView.class.getSimpleName();
 
     private static final int RENDER_FPS = 30;//大部分摄像头最高30fps，FPS过高会导致部分低端机型渲染闪屏
@@ -40,16 +43,23 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
 
     private WeCamera mCamera;
     private int mCameraId = Camera.CameraInfo.CAMERA_FACING_BACK;
+    private int mTargetFps;// 高帧率模式期望的预览帧率，0 表示默认
+
+    private static final String NODE_CAMERA = "camera";
+    private static final String NODE_FILTER = "filter";
+    private static final String NODE_WATERMARK = "watermark";
+    private static final String NODE_SCREEN = "screen";
+    private static final String NODE_TAP = "tap";
 
     private CameraRenderer mCameraRenderer;
-    private FilterRenderer mFilterRenderer;
-    private FilterRenderer mGrayFilterRenderer;
-    private FilterRenderer mReverseFilterRenderer;
+    private FusedFilterRenderer mFilterRenderer;
     private WatermarkRenderer mWatermarkRenderer;
     private OnScreenRenderer mOnScreenRenderer;
+    private FrameTapRenderer mFrameTapRenderer;
+    private WeRenderGraph mRenderGraph;
 
     public enum PictureRenderType {
-        NORMAL, GRAY, COLOR_REVERSE
+        NORMAL, GRAY, COLOR_REVERSE, LUMINANCE
     }
 
     public interface OnCameraSizeChangedListener {
@@ -76,25 +86,25 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
 
         mCameraRenderer = new CameraRenderer(context, this);
         mCameraRenderer.setClearScreenOnDraw(false);//
-        mCameraRenderer.setSharedTextureChangedListener(this);
-
-        mGrayFilterRenderer = new GrayFilterRenderer(context);
-        mGrayFilterRenderer.setFilterTextureChangedListener(this);
-        mReverseFilterRenderer = new ReverseFilterRenderer(context);
-        mReverseFilterRenderer.setFilterTextureChangedListener(this);
-
+        mFilterRenderer = new FusedFilterRenderer(context);
         mWatermarkRenderer = new WatermarkRenderer(context);
-        mWatermarkRenderer.setMarkTextureChangedListener(this);
-        mWatermarkRenderer.setExternalTextureId(mCameraRenderer.getSharedTextureId());
-
         mOnScreenRenderer = new OnScreenRenderer(context, TAG);
-        mOnScreenRenderer.setExternalTextureId(mWatermarkRenderer.getMarkTextureId());
+
+        // 相机 -> [滤镜] -> 水印 -> 上屏，滤镜按需插入或移除；
+        // 水印的输出会共享给录制、推流线程，独占一份离屏渲染目标
+        mRenderGraph = new WeRenderGraph(TAG);
+        mRenderGraph.addNode(new WeRenderNode(NODE_CAMERA, WeRenderNode.Type.SOURCE, mCameraRenderer));
+        WeRenderNode watermarkNode = new WeRenderNode(NODE_WATERMARK, WeRenderNode.Type.OVERLAY,
+                mWatermarkRenderer, NODE_CAMERA);
+        watermarkNode.setOutputShared(true);
+        mRenderGraph.addNode(watermarkNode);
+        mRenderGraph.addNode(new WeRenderNode(NODE_SCREEN, WeRenderNode.Type.SINK,
+                mOnScreenRenderer, NODE_WATERMARK));
     }
 
     public void setClearScreenOnDraw(boolean clearScreen) {
         mCameraRenderer.setClearScreenOnDraw(clearScreen);
-        mGrayFilterRenderer.setClearScreenOnDraw(clearScreen);
-        mReverseFilterRenderer.setClearScreenOnDraw(clearScreen);
+        mFilterRenderer.setClearScreenOnDraw(clearScreen);
         mWatermarkRenderer.setClearScreenOnDraw(clearScreen);
         mOnScreenRenderer.setClearScreenOnDraw(clearScreen);
     }
@@ -112,24 +122,37 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
     }
 
     public void setPictureRenderType(PictureRenderType type) {
-        switch (type) {
-            case NORMAL:
-                mFilterRenderer = null;
-                break;
-
-            case GRAY:
-                mFilterRenderer = mGrayFilterRenderer;
-                break;
-
-            case COLOR_REVERSE:
-                mFilterRenderer = mReverseFilterRenderer;
-                break;
+        setPictureRenderTypes(type);
+    }
+
+    /**
+     * 叠加多种画面效果，按顺序依次作用；各效果合并成一次绘制，叠加多个不会增加整帧读写次数
+     */
+    public void setPictureRenderTypes(PictureRenderType... types) {
+        List<WeColorOp> ops = new ArrayList<>();
+        for (PictureRenderType type : types) {
+            switch (type) {
+                case GRAY:
+                    ops.add(WeColorOp.GRAY);
+                    break;
+
+                case COLOR_REVERSE:
+                    ops.add(WeColorOp.REVERSE);
+                    break;
+
+                case LUMINANCE:
+                    ops.add(WeColorOp.LUMINANCE);
+                    break;
+            }
         }
-        if (mFilterRenderer == null) {
-            mWatermarkRenderer.setExternalTextureId(mCameraRenderer.getSharedTextureId());
-        } else {
-            mFilterRenderer.setExternalTextureId(mCameraRenderer.getSharedTextureId());
-            mWatermarkRenderer.setExternalTextureId(mFilterRenderer.getFilterTextureId());
+        if (ops.isEmpty()) {
+            mRenderGraph.removeNode(NODE_FILTER);
+            return;
+        }
+        mFilterRenderer.setColorOps(ops.toArray(new WeColorOp[0]));
+        if (!mRenderGraph.hasNode(NODE_FILTER)) {
+            mRenderGraph.insertNode(new WeRenderNode(NODE_FILTER, WeRenderNode.Type.FILTER,
+                    mFilterRenderer), NODE_CAMERA);
         }
     }
 
@@ -153,36 +176,67 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
         mWatermarkRenderer.changeTextMarkPosition(corner, marginX, marginY);
     }
 
-    public void setSaveImageDir(String imageDir) {
-        LogUtils.d(TAG, "setSaveImageDir: " + imageDir);
-        this.mSaveImageDir = imageDir;
-    }
-
-    @Override
-    protected String getExternalLogTag() {
-        return TAG;
+    /**
+     * 设置期望的预览帧率，用于高帧率录制（如 60、120），同时按此帧率渲染预览，传 0 恢复默认。
+     * 相机已打开时会重新打开以生效，实际帧率可通过 {@link #getPreviewMaxFps()} 获取。
+     */
+    public void setTargetPreviewFps(int fps) {
+        LogUtils.w(TAG, "setTargetPreviewFps " + fps);
+        mTargetFps = fps;
+        setRenderFps(fps > 0 ? fps : RENDER_FPS);
+        if (mCamera != null) {
+            mCamera.setTargetPreviewFps(fps);
+            startCamera(mCameraId);
+        }
     }
 
-    @Override
-    public void onSharedTextureChanged(int textureID) {
-        if (mFilterRenderer != null) {
-            mFilterRenderer.setExternalTextureId(textureID);
+    /**
+     * 获取相机实际的预览帧率上限，相机未打开时返回 0
+     */
+    public int getPreviewMaxFps() {
+        WeCamera camera = mCamera;
+        return camera != null ? camera.getPreviewMaxFps() : 0;
+    }
+
+    /**
+     * 持续取得缩小后的预览画面，用于人脸、场景检测等分析，如 320x240、10fps。
+     * 取的是滤镜之后、水印之前的画面，按比例缩放到不超过 maxWidth x maxHeight；
+     * 回调在工作线程中，处理不过来时丢帧，不影响预览。传 null 停止
+     *
+     * @param fps 每秒最多回调的帧数
+     */
+    public synchronized void setFrameTap(int maxWidth, int maxHeight, int fps,
+                                         FrameTapRenderer.OnFrameTapListener listener) {
+        LogUtils.w(TAG, "setFrameTap " + maxWidth + "x" + maxHeight + " " + fps + "fps " + listener);
+        if (listener == null) {
+            if (mFrameTapRenderer != null) {
+                mFrameTapRenderer.setOnFrameTapListener(null);
+                mRenderGraph.removeNode(NODE_TAP);
+                mFrameTapRenderer = null;
+            }
+            return;
+        }
+        if (mFrameTapRenderer == null) {
+            mFrameTapRenderer = new FrameTapRenderer(getContext(), TAG, maxWidth, maxHeight, fps);
+            mFrameTapRenderer.setOnFrameTapListener(listener);
+            // 接在相机后面，插入滤镜时会随之改接到滤镜后面
+            mRenderGraph.addNode(new WeRenderNode(NODE_TAP, WeRenderNode.Type.SINK,
+                    mFrameTapRenderer, mRenderGraph.hasNode(NODE_FILTER) ? NODE_FILTER : NODE_CAMERA));
         } else {
-            mWatermarkRenderer.setExternalTextureId(textureID);
+            mFrameTapRenderer.setOutputSize(maxWidth, maxHeight);
+            mFrameTapRenderer.setFps(fps);
+            mFrameTapRenderer.setOnFrameTapListener(listener);
         }
     }
 
-    @Override
-    public void onFilterTextureChanged(FilterRenderer renderer, int textureID) {
-        if (mFilterRenderer != renderer) {
-            return;
-        }
-        mWatermarkRenderer.setExternalTextureId(mFilterRenderer.getFilterTextureId());
+    public void setSaveImageDir(String imageDir) {
+        LogUtils.d(TAG, "setSaveImageDir: " + imageDir);
+        this.mSaveImageDir = imageDir;
     }
 
     @Override
-    public void onMarkTextureChanged(int textureID) {
-        mOnScreenRenderer.setExternalTextureId(textureID);
+    protected String getExternalLogTag() {
+        return TAG;
     }
 
     @Override
@@ -193,17 +247,14 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
     @Override
     public void onEGLContextCreated() {
         LogUtils.d(TAG, "onEGLContextCreated");
-        mCameraRenderer.onEGLContextCreated();
-        mGrayFilterRenderer.onEGLContextCreated();
-        mReverseFilterRenderer.onEGLContextCreated();
-        mWatermarkRenderer.onEGLContextCreated();
-        mOnScreenRenderer.onEGLContextCreated();
+        mRenderGraph.onEGLContextCreated();
     }
 
     @Override
     public void onSurfaceTextureCreated(SurfaceTexture surfaceTexture) {
         LogUtils.d(TAG, "onEGLContextCreated");
         mCamera = new WeCamera(surfaceTexture, getContext());
+        mCamera.setTargetPreviewFps(mTargetFps);
         int[] size = mCamera.startPreview(mCameraId, mCameraViewWidth, mCameraViewHeight);
         if (size != null) {
             mCameraRenderer.initCameraParams(mCameraId, size[0], size[1]);
@@ -260,11 +311,7 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
     @Override
     public void onSurfaceChanged(int width, int height) {
         LogUtils.d(TAG, "onSurfaceChanged " + width + "x" + height);
-        mCameraRenderer.onSurfaceChanged(width, height);
-        mGrayFilterRenderer.onSurfaceChanged(width, height);
-        mReverseFilterRenderer.onSurfaceChanged(width, height);
-        mWatermarkRenderer.onSurfaceChanged(width, height);
-        mOnScreenRenderer.onSurfaceChanged(width, height);
+        mRenderGraph.onSurfaceChanged(width, height);
 
         int[] size = mCamera.fitSurfaceSize(width, height);
         if (size != null) {
@@ -289,12 +336,7 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
 
     @Override
     public void onDrawFrame() {
-        mCameraRenderer.onDrawFrame();
-        if (mFilterRenderer != null) {
-            mFilterRenderer.onDrawFrame();
-        }
-        mWatermarkRenderer.onDrawFrame();
-        mOnScreenRenderer.onDrawFrame();
+        mRenderGraph.onDrawFrame();
         if (isTakingPhoto) {
             isTakingPhoto = false;
             mOnScreenRenderer.takePhoto(getPhotoPathName());
@@ -313,11 +355,7 @@ public class WeCameraView extends WeGLSurfaceView implements WeGLRenderer,
             mCamera.stopPreview();
             mCamera = null;
         }
-        mCameraRenderer.onEGLContextToDestroy();
-        mGrayFilterRenderer.onEGLContextToDestroy();
-        mReverseFilterRenderer.onEGLContextToDestroy();
-        mWatermarkRenderer.onEGLContextToDestroy();
-        mOnScreenRenderer.onEGLContextToDestroy();
+        mRenderGraph.onEGLContextToDestroy();
     }
 
     public void release() {
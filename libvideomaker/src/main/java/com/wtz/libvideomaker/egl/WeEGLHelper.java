@@ -4,6 +4,7 @@ import android.opengl.EGL14;
 import android.view.Surface;
 
 import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.WeShaderRegistry;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGL11;
@@ -55,6 +56,7 @@ public class WeEGLHelper {
 
     private EGL10 mEGL;
     private EGLDisplay mEGLDisplay;
+    private EGLConfig mEGLConfig;
     private EGLContext mEGLContext;
     private EGLSurface mEGLSurface;
 
@@ -63,6 +65,22 @@ public class WeEGLHelper {
     }
 
     public void initEGL(Surface surface, EGLContext shareContext) {
+        initEGL(surface, 0, 0, shareContext);
+    }
+
+    /**
+     * 创建离屏 pbuffer 类型的 EGLSurface，用于没有输入 Surface 时在 GPU 上渲染后读回像素
+     */
+    public void initEGL(int pbufferWidth, int pbufferHeight, EGLContext shareContext) {
+        if (pbufferWidth <= 0 || pbufferHeight <= 0) {
+            throw new IllegalArgumentException(exceptionPrefix() + "illegal pbuffer size "
+                    + pbufferWidth + "x" + pbufferHeight);
+        }
+        initEGL(null, pbufferWidth, pbufferHeight, shareContext);
+    }
+
+    private void initEGL(Surface surface, int pbufferWidth, int pbufferHeight, EGLContext shareContext) {
+        boolean isPbuffer = surface == null;
         // Get an EGL instance
         mEGL = (EGL10) EGLContext.getEGL();
 
@@ -84,39 +102,19 @@ public class WeEGLHelper {
         // window - 用于屏上（onscreen）渲染
         // pbuffer - 用于离屏（offscreen）渲染
         // pixmap - 离屏渲染，但本地渲染 API 也可以访问
-        // 这里我们选择 window 类型
-        int[] configAttributes = new int[]{
-                EGL10.EGL_RED_SIZE, 8,/* Color buffer 中 R 分量的颜色位数 */
-                EGL10.EGL_GREEN_SIZE, 8,/* Color buffer 中 G 分量的颜色位数 */
-                EGL10.EGL_BLUE_SIZE, 8,/* Color buffer 中 B 分量的颜色位数 */
-                EGL10.EGL_ALPHA_SIZE, 8,/* Color buffer 中 A 分量的颜色位数 */
-                EGL10.EGL_DEPTH_SIZE, 8,/* Depth(深度) buffer 中 Z 的位数 */
-                EGL10.EGL_STENCIL_SIZE, 8,/* Stencil(模板) buffer 个数 */
-                // EGL_RENDERABLE_TYPE 要与 eglCreateContext 设置的 EGL_CONTEXT_CLIENT_VERSION 版本一致，
-                // 否则创建 Context 失败会报 EGL_BAD_CONFIG
-                EGL10.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,/* OpenGL ES 2.0 版本 */
-                EGL10.EGL_SURFACE_TYPE, EGL10.EGL_WINDOW_BIT,/* EGL 窗口支持的类型 */
-                EGL10.EGL_NONE/* EGL 的 attr_list 以 EGL_NONE 结束 */
-        };
-        int[] configNumArray = new int[1];// 用来获取对应属性的配置数量
-        // 设置上述属性
-        if (!mEGL.eglChooseConfig(mEGLDisplay, configAttributes, null, 0,
-                configNumArray)) {
-            throw new IllegalArgumentException(exceptionPrefix() + "eglChooseConfig failed");
+        // 这里有 Surface 时选择 window 类型，否则选择同时支持 pbuffer 和 window 的类型，
+        // 离屏渲染时附加输出还要用同一个配置创建 WindowSurface，不支持 window 会报 EGL_BAD_MATCH
+        EGLConfig[] configs = chooseConfigs(isPbuffer
+                ? EGL10.EGL_PBUFFER_BIT | EGL10.EGL_WINDOW_BIT : EGL10.EGL_WINDOW_BIT);
+        if (configs == null && isPbuffer) {
+            LogUtils.w(TAG, mExternalTag + "no pbuffer config supports window, renditions unavailable");
+            configs = chooseConfigs(EGL10.EGL_PBUFFER_BIT);
         }
-
-        // 得到对应属性的配置数量
-        int configsNum = configNumArray[0];
-        if (configsNum <= 0) {
+        if (configs == null) {
             throw new IllegalArgumentException(exceptionPrefix() + "No configs match configAttributes");
         }
 
-        // 得到对应属性的配置
-        EGLConfig[] configs = new EGLConfig[configsNum];
-        if (!mEGL.eglChooseConfig(mEGLDisplay, configAttributes, configs, configsNum,
-                configNumArray)) {
-            throw new IllegalArgumentException(exceptionPrefix() + "eglChooseConfig#2 failed");
-        }
+        mEGLConfig = configs[0];
 
         // 创建 EGLContext，使用主流 EGL 2.0 版本
         int[] versionList = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE};
@@ -132,9 +130,20 @@ public class WeEGLHelper {
             mEGLContext = null;
             throw new RuntimeException(exceptionPrefix() + "create EGLContext failed: " + getEglErrorString(mEGL.eglGetError()));
         }
+        WeShaderRegistry.getInstance().onContextCreated(mEGLContext, shareContext);
 
-        // 创建 WindowSurface
-        mEGLSurface = mEGL.eglCreateWindowSurface(mEGLDisplay, configs[0], surface, null);
+        if (isPbuffer) {
+            // 创建 PbufferSurface
+            int[] surfaceAttributes = {
+                    EGL10.EGL_WIDTH, pbufferWidth,
+                    EGL10.EGL_HEIGHT, pbufferHeight,
+                    EGL10.EGL_NONE
+            };
+            mEGLSurface = mEGL.eglCreatePbufferSurface(mEGLDisplay, configs[0], surfaceAttributes);
+        } else {
+            // 创建 WindowSurface
+            mEGLSurface = mEGL.eglCreateWindowSurface(mEGLDisplay, configs[0], surface, null);
+        }
         if (mEGLSurface == null || mEGLSurface == EGL10.EGL_NO_SURFACE) {
             if (mEGL.eglGetError() == EGL10.EGL_BAD_NATIVE_WINDOW) {
                 LogUtils.e(TAG, mExternalTag + "createWindowSurface returned EGL_BAD_NATIVE_WINDOW.");
@@ -155,19 +164,104 @@ public class WeEGLHelper {
                 + ", display=" + mEGLDisplay + ", context=" + mEGLContext + ", surface=" + mEGLSurface);
     }
 
+    /**
+     * @param surfaceType EGL_SURFACE_TYPE 的取值
+     * @return 没有符合的配置时返回 null
+     */
+    private EGLConfig[] chooseConfigs(int surfaceType) {
+        int[] configAttributes = new int[]{
+                EGL10.EGL_RED_SIZE, 8,/* Color buffer 中 R 分量的颜色位数 */
+                EGL10.EGL_GREEN_SIZE, 8,/* Color buffer 中 G 分量的颜色位数 */
+                EGL10.EGL_BLUE_SIZE, 8,/* Color buffer 中 B 分量的颜色位数 */
+                EGL10.EGL_ALPHA_SIZE, 8,/* Color buffer 中 A 分量的颜色位数 */
+                EGL10.EGL_DEPTH_SIZE, 8,/* Depth(深度) buffer 中 Z 的位数 */
+                EGL10.EGL_STENCIL_SIZE, 8,/* Stencil(模板) buffer 个数 */
+                // EGL_RENDERABLE_TYPE 要与 eglCreateContext 设置的 EGL_CONTEXT_CLIENT_VERSION 版本一致，
+                // 否则创建 Context 失败会报 EGL_BAD_CONFIG
+                EGL10.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,/* OpenGL ES 2.0 版本 */
+                EGL10.EGL_SURFACE_TYPE, surfaceType,/* EGL 窗口支持的类型 */
+                EGL10.EGL_NONE/* EGL 的 attr_list 以 EGL_NONE 结束 */
+        };
+        int[] configNumArray = new int[1];// 用来获取对应属性的配置数量
+        // 设置上述属性
+        if (!mEGL.eglChooseConfig(mEGLDisplay, configAttributes, null, 0,
+                configNumArray)) {
+            throw new IllegalArgumentException(exceptionPrefix() + "eglChooseConfig failed");
+        }
+
+        // 得到对应属性的配置数量
+        int configsNum = configNumArray[0];
+        if (configsNum <= 0) {
+            return null;
+        }
+
+        // 得到对应属性的配置
+        EGLConfig[] configs = new EGLConfig[configsNum];
+        if (!mEGL.eglChooseConfig(mEGLDisplay, configAttributes, configs, configsNum,
+                configNumArray)) {
+            throw new IllegalArgumentException(exceptionPrefix() + "eglChooseConfig#2 failed");
+        }
+        return configs;
+    }
+
     public EGLContext getSharedEGLContext() {
         return mEGLContext;
     }
 
+    /**
+     * 用同一个 EGLContext 和配置再创建一个 WindowSurface，用于同一渲染线程向多个 Surface 输出
+     *
+     * @return 创建失败返回 null
+     */
+    public EGLSurface createWindowSurface(Surface surface) {
+        if (mEGL == null || surface == null) {
+            return null;
+        }
+        EGLSurface eglSurface = mEGL.eglCreateWindowSurface(mEGLDisplay, mEGLConfig, surface, null);
+        if (eglSurface == null || eglSurface == EGL10.EGL_NO_SURFACE) {
+            LogUtils.e(TAG, mExternalTag + "createWindowSurface error:" + getEglErrorString(mEGL.eglGetError()));
+            return null;
+        }
+        return eglSurface;
+    }
+
+    public void destroySurface(EGLSurface eglSurface) {
+        if (mEGL == null || eglSurface == null || eglSurface == mEGLSurface) {
+            return;
+        }
+        if (!mEGL.eglDestroySurface(mEGLDisplay, eglSurface)) {
+            LogUtils.e(TAG, mExternalTag + "eglDestroySurface error:" + getEglErrorString(mEGL.eglGetError()));
+        }
+    }
+
+    /**
+     * 切换当前绘制的 Surface，传 null 表示切回 initEGL 时创建的 Surface
+     */
+    public boolean makeCurrent(EGLSurface eglSurface) {
+        if (mEGL == null) {
+            return false;
+        }
+        EGLSurface target = eglSurface != null ? eglSurface : mEGLSurface;
+        if (!mEGL.eglMakeCurrent(mEGLDisplay, target, target, mEGLContext)) {
+            LogUtils.e(TAG, mExternalTag + "eglMakeCurrent error:" + getEglErrorString(mEGL.eglGetError()));
+            return false;
+        }
+        return true;
+    }
+
     /**
      * 将 Surface 缓冲区数据送给 FrameBuffer 显示
      */
     public int swapBuffers() {
+        return swapBuffers(mEGLSurface);
+    }
+
+    public int swapBuffers(EGLSurface eglSurface) {
         if (mEGL == null) {
             throw new IllegalStateException(
                     exceptionPrefix() + "invoke swapBuffers() but EGL instance is null!");
         }
-        if (!mEGL.eglSwapBuffers(mEGLDisplay, mEGLSurface)) {
+        if (!mEGL.eglSwapBuffers(mEGLDisplay, eglSurface)) {
             LogUtils.e(TAG, mExternalTag + "eglSwapBuffers error: " + getEglErrorString(mEGL.eglGetError()));
             return mEGL.eglGetError();
         }
@@ -192,8 +286,10 @@ public class WeEGLHelper {
             }
             mEGLSurface = null;
         }
+        mEGLConfig = null;
 
         if (mEGLContext != null) {
+            WeShaderRegistry.getInstance().onContextDestroyed(mEGLContext);
             if (!mEGL.eglDestroyContext(mEGLDisplay, mEGLContext)) {
                 LogUtils.e(TAG, mExternalTag + "eglDestroyContext error:" + getEglErrorString(mEGL.eglGetError()));
             }
@@ -0,0 +1,28 @@
+package com.wtz.libvideomaker.egl;
+
+import android.view.Surface;
+
+/**
+ * 附加输出：由其它 WeGLThread 在绘制完自己的画面后，在同一线程中接着绘制到此输出的 Surface 上，
+ * 用于一次渲染同时输出多种分辨率（如本地录制高分辨率、推流低分辨率）。
+ * <p>
+ * 各方法都在宿主渲染线程中回调，渲染器的 onEGLContextCreated 等回调也在宿主的 EGL 环境中执行。
+ */
+public interface WeGLRendition {
+
+    Surface getRenditionSurface();
+
+    int getRenditionWidth();
+
+    int getRenditionHeight();
+
+    WeGLRenderer getRenditionRenderer();
+
+    /**
+     * 每帧 eglSwapBuffers 成功后回调
+     *
+     * @param swapStartNs 调用 eglSwapBuffers 的时刻，单位：纳秒
+     */
+    void onRenditionFrameSwapped(long swapStartNs);
+
+}
@@ -1,5 +1,6 @@
 package com.wtz.libvideomaker.egl;
 
+import android.opengl.GLES20;
 import android.view.Surface;
 
 import com.wtz.libvideomaker.utils.LogUtils;
@@ -7,6 +8,10 @@ import com.wtz.libvideomaker.utils.LogUtils;
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGL11;
 import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLSurface;
+
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -27,20 +32,33 @@ public abstract class WeGLThread extends Thread {
     // 在 MI 4LTE Android 4.4.4 上测试 eglSwapBuffers 本身耗时约 0 或 10 ms，其中 10 ms 占比 20%
     // 在 HUAWEI DUA-AL00 Android 8.1.0 上测试 eglSwapBuffers 本身耗时约 2-5 ms
     private static final int INSTRUCTIONS_TIME_MILLS = 3;
-    private int mFrameIntervalMills;// 期望 1 秒 mFPS 帧包括指令耗时在内的总间隔
+    private volatile int mFrameIntervalMills;// 期望 1 秒 mFPS 帧包括指令耗时在内的总间隔
     private long mNextFrameStartTime;
     private int mRenderInterval;
+    // 渲染节拍统计：连续渲染模式下的周期数和超出帧间隔（没有剩余时间可等待）的周期数
+    private volatile long mRenderTicks;
+    private volatile long mDeadlineMisses;
 
     private int mWidth;
     private int mHeight;
 
-    private boolean isShouldExit;
-    private boolean isExited;
+    private volatile boolean isShouldExit;
+    private boolean isExited;// 与 mOnExitedListener 一起由 this 锁保护，保证退出回调只执行一次
+    private volatile boolean isPaused;
     private boolean isSurfaceChanged;
     private boolean isFirstDraw = true;
 
     private OnExitedListener mOnExitedListener;
 
+    // 附加输出：主画面提交后在本线程中依次绘制，增删请求先放入待处理队列，由渲染线程在帧间处理
+    private final Object mRenditionLock = new Object();
+    private final List<RenditionTarget> mRenditions = new ArrayList<>();// 只由渲染线程修改
+    private final List<WeGLRendition> mPendingAddRenditions = new ArrayList<>();
+    private final List<WeGLRendition> mPendingRemoveRenditions = new ArrayList<>();
+    private final List<OnRenditionRemovedListener> mPendingRemoveListeners = new ArrayList<>();
+    private volatile int mRenditionCount;// 已添加和待添加的附加输出数量
+    private boolean isRenditionClosed;// 渲染线程退出后不再接受附加输出
+
     protected abstract EGLContext getEGLContext();
 
     protected abstract Surface getSurface();
@@ -93,23 +111,47 @@ public abstract class WeGLThread extends Thread {
         }
 
         while (!isShouldExit) {
+            applyPendingRenditions();
+            if (isPaused) {
+                if (mRenditionCount == 0) {
+                    waitWhilePaused();
+                    continue;
+                }
+                // 主画面暂停时附加输出继续出帧
+                drawRenditions();
+                applyRenderMode();
+                continue;
+            }
             if (isSurfaceChanged) {
                 isSurfaceChanged = false;
                 onSurfaceChanged();
                 onDraw();// 解决脏模式下当surface大小改变时不多画一次就不能正确绘制的问题
                 swap();
+                drawRenditions();
                 // 这里不需要等待，可以走到下一个循环直接画第二次
             } else {
-                onDraw();
-                swap();
+                if (shouldDrawFrame()) {
+                    onDraw();
+                    swap();
+                }
+                // 抽帧只针对主画面，附加输出按渲染节拍每个周期都出帧，与暂停时一致
+                drawRenditions();
                 applyRenderMode();
             }
         }
     }
 
+    /**
+     * 是否离屏渲染，是则不需要 Surface，使用 onWindowResize 设置的大小创建 pbuffer
+     */
+    protected boolean isOffscreen() {
+        return false;
+    }
+
     private boolean initEgl() {
-        Surface surface = getSurface();
-        if (surface == null) {
+        boolean offscreen = isOffscreen();
+        Surface surface = offscreen ? null : getSurface();
+        if (!offscreen && surface == null) {
             LogUtils.e(TAG, mExternalTag + "initEgl getSurface is null");
             return false;
         }
@@ -120,7 +162,11 @@ public abstract class WeGLThread extends Thread {
         }
 
         mEglHelper = new WeEGLHelper(mExternalTag);
-        mEglHelper.initEGL(surface, getEGLContext());
+        if (offscreen) {
+            mEglHelper.initEGL(mWidth, mHeight, getEGLContext());
+        } else {
+            mEglHelper.initEGL(surface, getEGLContext());
+        }
         renderer.onEGLContextCreated();
         return true;
     }
@@ -154,10 +200,34 @@ public abstract class WeGLThread extends Thread {
         }
     }
 
+    /**
+     * 每个渲染周期开始时回调，返回 false 则跳过本周期主画面的绘制和提交，用于按比例抽帧；
+     * 附加输出不受影响，仍然每个周期绘制
+     */
+    protected boolean shouldDrawFrame() {
+        return true;
+    }
+
+    /**
+     * 销毁 EGL 环境前在渲染线程中回调，在渲染器之前，用于释放子类自己的 GL 资源
+     */
+    protected void onEGLContextToDestroy() {
+    }
+
+    /**
+     * 每帧 eglSwapBuffers 成功后在渲染线程中回调
+     *
+     * @param swapStartNs 调用 eglSwapBuffers 的时刻，单位：纳秒
+     */
+    protected void onFrameSwapped(long swapStartNs) {
+    }
+
     private void swap() {
+        long swapStartNs = System.nanoTime();
         int ret = mEglHelper.swapBuffers();
         switch (ret) {
             case EGL10.EGL_SUCCESS:
+                onFrameSwapped(swapStartNs);
                 break;
             case EGL11.EGL_CONTEXT_LOST:
                 LogUtils.e(TAG, mExternalTag + "Tid=" + android.os.Process.myTid() + " EGL context lost!");
@@ -174,6 +244,214 @@ public abstract class WeGLThread extends Thread {
         }
     }
 
+    /**
+     * 添加附加输出，可在任意线程调用，渲染线程在下一帧开始前创建其 EGLSurface
+     */
+    public void addRendition(WeGLRendition rendition) {
+        if (rendition == null) {
+            return;
+        }
+        synchronized (mRenditionLock) {
+            if (isRenditionClosed || mPendingAddRenditions.contains(rendition) || findRendition(rendition) >= 0) {
+                return;
+            }
+            mPendingAddRenditions.add(rendition);
+            mRenditionCount++;
+        }
+        wakeUp();
+    }
+
+    /**
+     * 移除附加输出，渲染线程销毁其 EGLSurface 后回调 listener，此后才可以释放该输出的 Surface
+     */
+    public void removeRendition(WeGLRendition rendition, OnRenditionRemovedListener listener) {
+        boolean removedNow = false;
+        synchronized (mRenditionLock) {
+            if (mPendingAddRenditions.remove(rendition)) {
+                mRenditionCount--;
+                removedNow = true;
+            } else if (isRenditionClosed || findRendition(rendition) < 0) {
+                removedNow = true;
+            } else {
+                mPendingRemoveRenditions.add(rendition);
+                mPendingRemoveListeners.add(listener);
+            }
+        }
+        if (removedNow) {
+            if (listener != null) {
+                listener.onRemoved(rendition);
+            }
+            return;
+        }
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        Object lock = mRenderLock;
+        if (lock != null) {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private int findRendition(WeGLRendition rendition) {
+        synchronized (mRenditions) {
+            for (int i = 0; i < mRenditions.size(); i++) {
+                if (mRenditions.get(i).rendition == rendition) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void applyPendingRenditions() {
+        List<WeGLRendition> toAdd = null;
+        List<WeGLRendition> toRemove = null;
+        List<OnRenditionRemovedListener> listeners = null;
+        synchronized (mRenditionLock) {
+            if (!mPendingAddRenditions.isEmpty()) {
+                toAdd = new ArrayList<>(mPendingAddRenditions);
+                mPendingAddRenditions.clear();
+            }
+            if (!mPendingRemoveRenditions.isEmpty()) {
+                toRemove = new ArrayList<>(mPendingRemoveRenditions);
+                listeners = new ArrayList<>(mPendingRemoveListeners);
+                mPendingRemoveRenditions.clear();
+                mPendingRemoveListeners.clear();
+            }
+        }
+
+        if (toRemove != null) {
+            for (int i = 0; i < toRemove.size(); i++) {
+                int index = findRendition(toRemove.get(i));
+                if (index >= 0) {
+                    RenditionTarget target;
+                    synchronized (mRenditions) {
+                        target = mRenditions.remove(index);
+                    }
+                    destroyRenditionTarget(target);
+                }
+                if (listeners.get(i) != null) {
+                    listeners.get(i).onRemoved(toRemove.get(i));
+                }
+            }
+        }
+
+        if (toAdd != null) {
+            for (WeGLRendition rendition : toAdd) {
+                RenditionTarget target = createRenditionTarget(rendition);
+                if (target != null) {
+                    synchronized (mRenditions) {
+                        mRenditions.add(target);
+                    }
+                } else {
+                    synchronized (mRenditionLock) {
+                        mRenditionCount--;
+                    }
+                }
+            }
+        }
+    }
+
+    private RenditionTarget createRenditionTarget(WeGLRendition rendition) {
+        WeGLRenderer renderer = rendition.getRenditionRenderer();
+        EGLSurface eglSurface = mEglHelper.createWindowSurface(rendition.getRenditionSurface());
+        if (renderer == null || eglSurface == null) {
+            LogUtils.e(TAG, mExternalTag + "addRendition failed: renderer " + renderer + ", surface " + eglSurface);
+            mEglHelper.destroySurface(eglSurface);
+            return null;
+        }
+        RenditionTarget target = new RenditionTarget(rendition, renderer, eglSurface);
+        if (mEglHelper.makeCurrent(eglSurface)) {
+            renderer.onEGLContextCreated();
+            renderer.onSurfaceChanged(rendition.getRenditionWidth(), rendition.getRenditionHeight());
+        }
+        mEglHelper.makeCurrent(null);
+        restoreMainViewport();
+        LogUtils.w(TAG, mExternalTag + "rendition added " + rendition.getRenditionWidth()
+                + "x" + rendition.getRenditionHeight());
+        return target;
+    }
+
+    private void destroyRenditionTarget(RenditionTarget target) {
+        if (mEglHelper.makeCurrent(target.eglSurface)) {
+            target.renderer.onEGLContextToDestroy();
+        }
+        mEglHelper.makeCurrent(null);
+        restoreMainViewport();
+        mEglHelper.destroySurface(target.eglSurface);
+        synchronized (mRenditionLock) {
+            mRenditionCount--;
+        }
+        LogUtils.w(TAG, mExternalTag + "rendition removed");
+    }
+
+    /**
+     * 把刚绘制的画面依次输出到附加 Surface 上：各渲染器绘制的是同一个共享纹理，
+     * 按各自分辨率缩放，相当于一次纹理拷贝，不会重复执行采集和滤镜
+     */
+    private void drawRenditions() {
+        if (mRenditions.isEmpty()) {
+            return;
+        }
+        for (RenditionTarget target : mRenditions) {
+            if (!mEglHelper.makeCurrent(target.eglSurface)) {
+                continue;
+            }
+            // 视口是上下文状态，各输出和主画面共用一个上下文，绘制前设置为本输出的大小
+            GLES20.glViewport(0, 0, target.rendition.getRenditionWidth(),
+                    target.rendition.getRenditionHeight());
+            target.renderer.onDrawFrame();
+            if (target.isFirstDraw) {
+                target.isFirstDraw = false;
+                target.renderer.onDrawFrame();
+            }
+            long swapStartNs = System.nanoTime();
+            if (mEglHelper.swapBuffers(target.eglSurface) == EGL10.EGL_SUCCESS) {
+                target.rendition.onRenditionFrameSwapped(swapStartNs);
+            }
+        }
+        mEglHelper.makeCurrent(null);
+        restoreMainViewport();
+    }
+
+    /**
+     * 切回主画面后恢复主画面的视口，主画面的渲染器只在尺寸变化时设置视口
+     */
+    private void restoreMainViewport() {
+        if (mWidth > 0 && mHeight > 0) {
+            GLES20.glViewport(0, 0, mWidth, mHeight);
+        }
+    }
+
+    private void releaseRenditions() {
+        List<OnRenditionRemovedListener> listeners;
+        List<WeGLRendition> removed;
+        synchronized (mRenditionLock) {
+            removed = new ArrayList<>(mPendingRemoveRenditions);
+            listeners = new ArrayList<>(mPendingRemoveListeners);
+            mPendingRemoveRenditions.clear();
+            mPendingRemoveListeners.clear();
+            mRenditionCount -= mPendingAddRenditions.size();
+            mPendingAddRenditions.clear();
+        }
+        if (mEglHelper != null) {
+            synchronized (mRenditions) {
+                for (RenditionTarget target : mRenditions) {
+                    destroyRenditionTarget(target);
+                }
+                mRenditions.clear();
+            }
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            if (listeners.get(i) != null) {
+                listeners.get(i).onRemoved(removed.get(i));
+            }
+        }
+    }
+
     private void applyRenderMode() {
         if (getRenderMode() == WeGLRenderer.RENDERMODE_WHEN_DIRTY) {
             synchronized (mRenderLock) {
@@ -189,8 +467,10 @@ public abstract class WeGLThread extends Thread {
             } else {
                 mRenderInterval = mFrameIntervalMills - (int) (System.currentTimeMillis() - mNextFrameStartTime);
             }
+            mRenderTicks++;
             if (mRenderInterval <= 0) {
                 // LogUtils.e(TAG, mExternalTag + "Render too slow!!! " + mRenderInterval + "ms");
+                mDeadlineMisses++;
             } else {
                 try {
                     Thread.sleep(mRenderInterval);
@@ -202,6 +482,60 @@ public abstract class WeGLThread extends Thread {
         }
     }
 
+    private void waitWhilePaused() {
+        synchronized (mRenderLock) {
+            while (isPaused && !isShouldExit && mRenditionCount == 0) {
+                try {
+                    mRenderLock.wait();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        // 恢复后重新计算帧间隔，避免把暂停时长当作上一帧的耗时
+        mNextFrameStartTime = 0;
+    }
+
+    /**
+     * 暂停渲染，不再绘制和提交帧，EGL 环境保持不变
+     */
+    public void onPause() {
+        isPaused = true;
+    }
+
+    /**
+     * 恢复渲染，并立即唤醒渲染线程绘制下一帧
+     */
+    public void onResume() {
+        Object lock = mRenderLock;
+        if (lock == null) {
+            isPaused = false;
+            return;
+        }
+        synchronized (lock) {
+            isPaused = false;
+            lock.notifyAll();
+        }
+    }
+
+    public boolean isPaused() {
+        return isPaused;
+    }
+
+    /**
+     * 连续渲染模式下已经历的渲染周期数，与 {@link #getDeadlineMisses()} 一起用于计算超时比例
+     */
+    public long getRenderTicks() {
+        return mRenderTicks;
+    }
+
+    /**
+     * 绘制和提交耗时超出帧间隔的渲染周期数
+     */
+    public long getDeadlineMisses() {
+        return mDeadlineMisses;
+    }
+
     public void requestRender() {
         synchronized (mRenderLock) {
             mRenderLock.notifyAll();
@@ -212,19 +546,48 @@ public abstract class WeGLThread extends Thread {
         void onExited(WeGLThread glThread);
     }
 
+    public interface OnRenditionRemovedListener {
+        void onRemoved(WeGLRendition rendition);
+    }
+
+    private static class RenditionTarget {
+        WeGLRendition rendition;
+        WeGLRenderer renderer;
+        EGLSurface eglSurface;
+        boolean isFirstDraw = true;
+
+        RenditionTarget(WeGLRendition rendition, WeGLRenderer renderer, EGLSurface eglSurface) {
+            this.rendition = rendition;
+            this.renderer = renderer;
+            this.eglSurface = eglSurface;
+        }
+    }
+
     public void requestExit(OnExitedListener listener) {
-        this.mOnExitedListener = listener;
-        if (isExited) {
-            if (mOnExitedListener != null) {
-                mOnExitedListener.onExited(this);
+        synchronized (this) {
+            this.mOnExitedListener = listener;
+            if (!isExited) {
+                isShouldExit = true;
+                listener = null;
             }
+        }
+        if (listener != null) {
+            listener.onExited(this);
         } else {
-            isShouldExit = true;
-            requestRender();
+            wakeUp();
         }
     }
 
     private void release() {
+        synchronized (mRenditionLock) {
+            isRenditionClosed = true;
+        }
+        releaseRenditions();
+
+        if (mEglHelper != null) {
+            onEGLContextToDestroy();
+        }
+
         WeGLRenderer renderer = getRenderer();
         if (renderer != null) {
             renderer.onEGLContextToDestroy();
@@ -237,9 +600,13 @@ public abstract class WeGLThread extends Thread {
 
         mRenderLock = null;
 
-        isExited = true;
-        if (mOnExitedListener != null) {
-            mOnExitedListener.onExited(this);
+        OnExitedListener listener;
+        synchronized (this) {
+            isExited = true;
+            listener = mOnExitedListener;
+        }
+        if (listener != null) {
+            listener.onExited(this);
         }
     }
 
@@ -1,68 +1,109 @@
 package com.wtz.libvideomaker.egl;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.text.TextUtils;
 import android.view.Surface;
 
+import com.wtz.libvideomaker.encoder.WeAudioInputStage;
+import com.wtz.libvideomaker.encoder.WeBufferInputFeeder;
+import com.wtz.libvideomaker.encoder.WeEncoderProfile;
+import com.wtz.libvideomaker.encoder.WePreRollBuffer;
+import com.wtz.libvideomaker.encoder.WeYuvConverter;
+import com.wtz.libvideomaker.storage.WeStorageWriter;
+import com.wtz.libvideomaker.utils.LatencyTracer;
 import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.WeLifecycle;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
 
 import javax.microedition.khronos.egl.EGLContext;
 
 public abstract class WeGLVideoEncoder {
 
     private static final String TAG = "WeGLVideoEncoder";
+
+    // 开始编码失败的错误码
+    public static final int ERROR_INIT_MUXER = 1;
+    public static final int ERROR_INIT_VIDEO_ENCODER = 2;
+    public static final int ERROR_START_CODECS = 3;
+
     private String mExternalTag;
 
     private WeakReference<WeGLVideoEncoder> mWeakReference;
 
     // 渲染线程
-    private WeGLThread mGLThread;
-    private boolean isGLThreadExiting;
+    private volatile WeGLThread mGLThread;
     private EGLContext mShareContext;
     private Surface mSurface;
     private WeGLRenderer mRenderer;
     private int mRenderMode = WeGLRenderer.RENDERMODE_CONTINUOUSLY;
     private int mRenderFps = 0;
-
-    // 媒体封装器
-    private MediaMuxer mMediaMuxer;
+    // 附加输出：由本编码器的渲染线程在主画面之后同步绘制，如低分辨率推流
+    private final List<WeGLRendition> mRenditions = new ArrayList<>();
+
+    // 媒体封装器，样本在独立线程中写入文件
+    private volatile WeStorageWriter mMuxerWriter;
+    private OnStorageListener mOnStorageListener;
+    private OnEncodeErrorListener mOnEncodeErrorListener;
+    private volatile String mLastStorageStats;
     private boolean isVideoTrackAdded;
     private boolean isAudioTrackAdded;
     private boolean isMuxerStarted;
 
+    // 预录环形缓冲区，用于保存最近一段时间的音视频
+    private volatile WePreRollBuffer mPreRollBuffer;
+
+    // 编码参数配置，为空时使用默认配置
+    private WeEncoderProfile mEncoderProfile;
+
+    // 采集模式：高帧率时渲染节拍和编码帧率随采集帧率调整；延时摄影时每 N 帧只编码一帧，时间戳压缩为 1/N
+    private int mCaptureFps;
+    private int mTimeLapseInterval = 1;
+    private volatile int mActiveTimeLapseInterval = 1;
+    private long mTimeLapseBasePtsUs = -1;// 只在视频编码线程中访问
+
     // 视频编码线程
     private MediaEncodeThread mVideoEncodeThread;
-    private boolean isVideoEncThreadExiting;
-    private static final int MEDIA_FRAME_RATE = 30;// 一般摄像头预览最大 30 帧每秒
-    private static final int I_FRAME_INTERVAL = 1;// 设置关键帧间隔为 1 秒
     private MediaCodec mVideoEncoder;
     private MediaFormat mVideoFormat;
     private MediaCodec.BufferInfo mVideoBufInfo;
     private long mEncodeTimeMills;
+    // 运行中的码率比例，由质量调节器设置，相对编码参数中的码率
+    private float mVideoBitrateScale = 1f;
+    // 视频帧从提交到编码输出的平滑耗时，编码器跟不上时持续增大
+    private volatile long mEncodeLagUs;
+
+    // ByteBuffer 输入：Surface 输入不可用时，离屏渲染后读回画面转换成 YUV 送入编码器
+    private boolean isForceBufferInput;
+    private volatile boolean isBufferInput;
+    private WeYuvConverter.YuvFormat mInputYuvFormat;
+    private volatile WeBufferInputFeeder mBufferInputFeeder;
 
     // 音频编码线程
     private MediaEncodeThread mAudioEncodeThread;
-    private boolean isAudioEncThreadExiting;
     private boolean needEncodeAudio;
     private boolean isAudioEncoderStarted;
     private int mAudioSampleRate;
     private int mAudioChannelNums;
     private int mAudioBitsPerSample;
-    private int mAudioBytesPerSecond;
     private int mPcmMaxBytesPerCallback;
-    private long mAudioPts;
+    private static final int AUDIO_INPUT_BUFFER_MILLS = 1000;// 编码器来不及处理时最多缓存的音频时长
+    private volatile WeAudioInputStage mAudioInputStage;// 音频编码器的输入只在此线程中调用
     private MediaCodec mAudioEncoder;
     private MediaFormat mAudioFormat;
     private MediaCodec.BufferInfo mAudioBufInfo;
@@ -70,12 +111,34 @@ public abstract class WeGLVideoEncoder {
     // 接口调度线程
     private Handler mWorkHandler;
     private HandlerThread mWorkThread;
-    private boolean isRecording;
+    private WeLifecycle mLifecycle;
     private boolean isReleased;
 
+    // 暂停录制：编码器和封装器保持不变，恢复后视频时间戳扣除暂停时长
+    private volatile boolean isPaused;
+    private long mPauseStartUs;
+    private volatile long mPtsShiftUs;// 累计暂停时长
+    private volatile long mPtsShiftBeforeUs;// 最近一次恢复前的累计暂停时长
+    private volatile long mPtsShiftBoundaryUs;// 最近一次恢复的时刻，在此之后采集的帧使用 mPtsShiftUs
+
+    // 预热：预览期间提前创建并配置好编码器、编码 Surface 及其渲染线程，缩短开始录制的耗时
+    private boolean isKeepWarm;// 停止录制后是否通过 reset/configure 复用编码器并重新预热
+    private boolean isWarmedUp;
+    private String mWarmMimeType;
+    private WeEncoderProfile mWarmProfile;
+    private int mWarmCaptureFps;
+    private int[] mWarmAudioParams;
+    private int mVideoWidth;
+    private int mVideoHeight;
+    private long mStartRequestTimeNs;
+    private volatile long mFirstFrameLatencyMills = -1;
+
     private static final int HANDLE_START_ENCODE = 0;
     private static final int HANDLE_STOP_ENCODE = 1;
     private static final int HANDLE_RELEASE = 2;
+    private static final int HANDLE_PAUSE_ENCODE = 3;
+    private static final int HANDLE_RESUME_ENCODE = 4;
+    private static final int HANDLE_WARM_UP = 5;
     private static final String PARAMS_EGL_CONTEXT = "egl_context";
     private static final String PARAMS_SAVE_PATH = "save_path";
     private static final String PARAMS_MIME_TYPE = "mime_type";
@@ -91,6 +154,7 @@ public abstract class WeGLVideoEncoder {
 
     public WeGLVideoEncoder() {
         mExternalTag = getExternalLogTag() + ": ";
+        mLifecycle = new WeLifecycle(getExternalLogTag() + " encoder");
         mWorkThread = new HandlerThread("WeGLVideoEncoder");
         mWorkThread.start();
         mWorkHandler = new Handler(mWorkThread.getLooper()) {
@@ -110,6 +174,18 @@ public abstract class WeGLVideoEncoder {
                     case HANDLE_RELEASE:
                         handleRelease();
                         break;
+
+                    case HANDLE_PAUSE_ENCODE:
+                        handlePauseEncode();
+                        break;
+
+                    case HANDLE_RESUME_ENCODE:
+                        handleResumeEncode();
+                        break;
+
+                    case HANDLE_WARM_UP:
+                        handleWarmUp(msg);
+                        break;
                 }
             }
         };
@@ -145,16 +221,335 @@ public abstract class WeGLVideoEncoder {
         this.mAudioSampleRate = sampleRate;
         this.mAudioChannelNums = channelNums;
         this.mAudioBitsPerSample = bitsPerSample;
-        mAudioBytesPerSecond = mAudioSampleRate * mAudioChannelNums * mAudioBitsPerSample / 8;
         this.mPcmMaxBytesPerCallback = pcmMaxBytesPerCallback;
     }
 
+    /**
+     * 设置编码参数，下次开始录制或预热时生效。
+     * 开始编码前会按设备编码能力校验，不支持的参数自动降级，设置了 profile 时以其视频编码格式为准。
+     */
+    public void setEncoderProfile(WeEncoderProfile profile) {
+        // 保存副本，避免外部修改影响正在使用的配置
+        this.mEncoderProfile = profile != null ? new WeEncoderProfile(profile) : null;
+    }
+
+    /**
+     * 设置采集帧率，用于高帧率录制（如 60、120），下次开始录制或预热时生效：
+     * 渲染节拍和编码器 KEY_FRAME_RATE 同时调整，未指定码率时码率按帧率等比例缩放。
+     * 应与相机实际的预览帧率一致，传 0 恢复默认。
+     */
+    public void setCaptureFps(int fps) {
+        LogUtils.w(TAG, mExternalTag + "setCaptureFps " + fps);
+        this.mCaptureFps = Math.max(0, fps);
+    }
+
+    public int getCaptureFps() {
+        return mCaptureFps;
+    }
+
+    /**
+     * 设置延时摄影，下次开始录制时生效：每 frameInterval 个渲染帧只编码一帧，
+     * 输出时间戳压缩为原来的 1/frameInterval，按正常速度播放即为快进效果，编码和存储负载同比降低。
+     * 延时摄影不录制声音，传 1 或更小的值关闭。
+     */
+    public void setTimeLapseInterval(int frameInterval) {
+        LogUtils.w(TAG, mExternalTag + "setTimeLapseInterval " + frameInterval);
+        this.mTimeLapseInterval = Math.max(1, frameInterval);
+    }
+
+    /**
+     * 添加附加输出，本编码器的渲染线程运行（录制中或已预热）时，每帧画面提交后接着绘制到该输出上，
+     * 渲染线程重建时自动重新添加。录制暂停时附加输出继续出帧，渲染线程退出后附加输出停止出帧。
+     */
+    public void addRendition(WeGLRendition rendition) {
+        synchronized (mRenditions) {
+            if (mRenditions.contains(rendition)) {
+                return;
+            }
+            mRenditions.add(rendition);
+        }
+        WeGLThread glThread = mGLThread;
+        if (glThread != null) {
+            glThread.addRendition(rendition);
+        }
+    }
+
+    /**
+     * 移除附加输出，渲染线程不再使用该输出的 Surface 后回调 listener
+     */
+    public void removeRendition(WeGLRendition rendition, WeGLThread.OnRenditionRemovedListener listener) {
+        synchronized (mRenditions) {
+            mRenditions.remove(rendition);
+        }
+        WeGLThread glThread = mGLThread;
+        if (glThread != null) {
+            glThread.removeRendition(rendition, listener);
+        } else if (listener != null) {
+            listener.onRemoved(rendition);
+        }
+    }
+
+    /**
+     * 设置是否强制使用 ByteBuffer 输入，下次开始录制或预热时生效。
+     * 默认使用 Surface 输入，编码器配置 Surface 输入失败时会自动改用 ByteBuffer 输入。
+     */
+    public void setForceBufferInput(boolean forceBufferInput) {
+        this.isForceBufferInput = forceBufferInput;
+    }
+
+    /**
+     * 当前编码器是否使用 ByteBuffer 输入
+     */
+    public boolean isBufferInput() {
+        return isBufferInput;
+    }
+
+    /**
+     * 开启或关闭预录缓存，开启后编码输出会同时缓存最近 maxDurationMills 时长的内容，
+     * 可通过 {@link #savePreRoll(String, WePreRollBuffer.OnSaveListener)} 随时导出。
+     * 开启时 startEncode 的 savePath 可以为空，此时只缓存不写文件。
+     *
+     * @param maxDurationMills 最多缓存的时长，单位：毫秒，小于等于 0 表示关闭
+     * @param maxBytes         缓存占用内存的硬上限，单位：字节
+     */
+    public void setPreRoll(int maxDurationMills, int maxBytes) {
+        if (maxDurationMills <= 0 || maxBytes <= 0) {
+            mPreRollBuffer = null;
+            return;
+        }
+        mPreRollBuffer = new WePreRollBuffer(maxDurationMills, maxBytes);
+    }
+
+    /**
+     * 在后台线程把预录缓存导出为 mp4，编码继续进行
+     *
+     * @return 是否已开始导出
+     */
+    public boolean savePreRoll(String savePath, WePreRollBuffer.OnSaveListener listener) {
+        WePreRollBuffer buffer = mPreRollBuffer;
+        if (buffer == null) {
+            LogUtils.e(TAG, mExternalTag + "savePreRoll but pre-roll is not enabled!");
+            return false;
+        }
+        return buffer.saveTo(savePath, listener);
+    }
+
+    /**
+     * 预热编码器：在预览期间提前创建并配置好音视频编码器、编码输入 Surface，
+     * 并启动暂停状态的编码渲染线程（完成 EGL 环境创建和着色器编译）。
+     * 之后以相同参数调用 startEncode 时直接复用，只需创建封装器和启动编码器。
+     * 音频参数需要在预热前设置好。
+     */
+    public void warmUp(EGLContext context, String mimeType, int videoWidth, int videoHeight) {
+        if (isReleased) {
+            LogUtils.e(TAG, mExternalTag + "warmUp but this encoder is already released!");
+            return;
+        }
+        mWorkHandler.removeMessages(HANDLE_WARM_UP);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put(PARAMS_EGL_CONTEXT, context);
+        params.put(PARAMS_MIME_TYPE, mimeType);
+        params.put(PARAMS_VIDEO_WIDTH, videoWidth);
+        params.put(PARAMS_VIDEO_HEIGHT, videoHeight);
+
+        Message msg = mWorkHandler.obtainMessage(HANDLE_WARM_UP);
+        msg.obj = params;
+        mWorkHandler.sendMessage(msg);
+    }
+
+    /**
+     * 设置停止录制后是否保持预热：编码器不释放，通过 reset/configure 重新配置并预热，供下次录制复用
+     */
+    public void setKeepWarm(boolean keepWarm) {
+        this.isKeepWarm = keepWarm;
+    }
+
+    /**
+     * 获取最近一次从调用 startEncode 到输出第一帧视频编码数据的耗时，单位：毫秒，-1 表示还未输出
+     */
+    public long getTimeToFirstFrameMills() {
+        return mFirstFrameLatencyMills;
+    }
+
+    private void handleWarmUp(Message msg) {
+        if (mLifecycle.isActive()) {
+            LogUtils.w(TAG, mExternalTag + "No need to warm up: it's already recording!");
+            return;
+        }
+
+        Map<String, Object> params = (Map<String, Object>) msg.obj;
+        EGLContext context = (EGLContext) params.get(PARAMS_EGL_CONTEXT);
+        String mimeType = (String) params.get(PARAMS_MIME_TYPE);
+        int videoWidth = (int) params.get(PARAMS_VIDEO_WIDTH);
+        int videoHeight = (int) params.get(PARAMS_VIDEO_HEIGHT);
+        LogUtils.w(TAG, mExternalTag + "handleWarmUp mimeType=" + mimeType +
+                ", video size=" + videoWidth + "x" + videoHeight);
+
+        if (isWarmedUp) {
+            if (isWarmMatched(context, mimeType, videoWidth, videoHeight)) {
+                return;
+            }
+            releaseWarmedUp();
+        }
+
+        if (context == null || TextUtils.isEmpty(mimeType) || videoWidth <= 0 || videoHeight <= 0) {
+            LogUtils.e(TAG, mExternalTag + "warmUp arguments is illegal");
+            return;
+        }
+        mRenderer = getRenderer();
+        if (mRenderer == null) {
+            LogUtils.e(TAG, mExternalTag + "warmUp but the render from getRenderer is null");
+            return;
+        }
+        mShareContext = context;
+
+        long startTime = System.nanoTime();
+        if (!initVideoEncoder(mimeType, videoWidth, videoHeight)) {
+            releaseOnGLThreadExit();
+            return;
+        }
+        needEncodeAudio = initAudioEncoder();
+        startGLThread(true);
+
+        isWarmedUp = true;
+        mWarmMimeType = mimeType;
+        mWarmProfile = mEncoderProfile;
+        mWarmCaptureFps = mCaptureFps;
+        mWarmAudioParams = getAudioParams();
+        LogUtils.w(TAG, mExternalTag + "handleWarmUp done, audio " + needEncodeAudio
+                + ", cost " + (System.nanoTime() - startTime) / 1000000 + "ms");
+    }
+
+    private int[] getAudioParams() {
+        return new int[]{mAudioSampleRate, mAudioChannelNums, mAudioBitsPerSample, mPcmMaxBytesPerCallback};
+    }
+
+    private boolean isWarmMatched(EGLContext context, String mimeType, int videoWidth, int videoHeight) {
+        return isWarmedUp && context == mShareContext && TextUtils.equals(mimeType, mWarmMimeType)
+                && videoWidth == mVideoWidth && videoHeight == mVideoHeight
+                && Objects.equals(mWarmProfile, mEncoderProfile) && mWarmCaptureFps == mCaptureFps && mTimeLapseInterval <= 1
+                && (!isForceBufferInput || isBufferInput) && Arrays.equals(mWarmAudioParams, getAudioParams());
+    }
+
+    /**
+     * 停止录制后重新配置编码器并启动暂停状态的渲染线程
+     */
+    private boolean rewarm(EGLContext shareContext, String mimeType) {
+        if (!Objects.equals(mWarmProfile, mEncoderProfile) || mWarmCaptureFps != mCaptureFps || mActiveTimeLapseInterval > 1) {
+            // 编码参数已改变，不能复用
+            return false;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                mVideoEncoder.reset();
+            } else {
+                mVideoEncoder.stop();
+            }
+            mVideoEncoder.configure(mVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            if (!isBufferInput) {
+                mSurface = mVideoEncoder.createInputSurface();
+            }
+
+            if (needEncodeAudio) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    mAudioEncoder.reset();
+                } else {
+                    mAudioEncoder.stop();
+                }
+                mAudioEncoder.configure(mAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            }
+        } catch (Exception e) {
+            LogUtils.e(TAG, mExternalTag + "rewarm exception: " + e.toString());
+            e.printStackTrace();
+            return false;
+        }
+
+        mShareContext = shareContext;
+        mRenderer = getRenderer();
+        startGLThread(true);
+        isWarmedUp = true;
+        mWarmMimeType = mimeType;
+        mWarmAudioParams = getAudioParams();
+        return true;
+    }
+
+    private void releaseWarmedUp() {
+        LogUtils.w(TAG, mExternalTag + "releaseWarmedUp");
+        isWarmedUp = false;
+        mWarmMimeType = null;
+        mWarmProfile = null;
+        mWarmCaptureFps = 0;
+        mWarmAudioParams = null;
+        waitThreadsExit();
+        releaseOnGLThreadExit();
+        releaseCodecs();
+        mVideoFormat = null;
+        mVideoBufInfo = null;
+        mAudioFormat = null;
+        mAudioBufInfo = null;
+        needEncodeAudio = false;
+    }
+
+    private void startGLThread(boolean paused) {
+        if (mWeakReference == null) {
+            mWeakReference = new WeakReference<>(this);
+        }
+        WeGLThread glThread = new GLThread(mWeakReference, getExternalLogTag());
+        if (mCaptureFps > 0) {
+            glThread.setRenderFps(mCaptureFps);
+        } else if (mRenderFps > 0) {
+            glThread.setRenderFps(mRenderFps);
+        }
+        glThread.onWindowResize(mVideoWidth, mVideoHeight);
+        mGLThread = glThread;
+        synchronized (mRenditions) {
+            for (WeGLRendition rendition : mRenditions) {
+                glThread.addRendition(rendition);
+            }
+        }
+        if (paused) {
+            // 预热时只初始化 EGL 环境和渲染器，恢复前不提交任何帧
+            mGLThread.onPause();
+        }
+        mGLThread.start();
+    }
+
+    private boolean startCodecs() {
+        try {
+            mVideoEncoder.start();
+            mEncodeLagUs = 0;
+            if (mVideoBitrateScale < 1f) {
+                applyVideoBitrate();
+            }
+            if (isBufferInput) {
+                mBufferInputFeeder = new WeBufferInputFeeder(mVideoEncoder, mVideoWidth, mVideoHeight, mInputYuvFormat);
+                mBufferInputFeeder.start();
+            }
+            if (needEncodeAudio) {
+                mAudioEncoder.start();
+                // 每次开始编码都重新创建，时间戳从 0 开始
+                mAudioInputStage = new WeAudioInputStage(mAudioEncoder, mAudioSampleRate,
+                        mAudioChannelNums, mAudioBitsPerSample, AUDIO_INPUT_BUFFER_MILLS);
+                mAudioInputStage.start();
+                isAudioEncoderStarted = true;
+            }
+        } catch (Exception e) {
+            LogUtils.e(TAG, mExternalTag + "startCodecs exception: " + e.toString());
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
     public void startEncode(EGLContext context, String savePath, String mimeType, int videoWidth, int videoHeight) {
         if (isReleased) {
             LogUtils.e(TAG, mExternalTag + "startEncode but this encoder is already released!");
             return;
         }
         mWorkHandler.removeMessages(HANDLE_START_ENCODE);// 以最新设置为准
+        mStartRequestTimeNs = System.nanoTime();
+        mFirstFrameLatencyMills = -1;
 
         Map<String, Object> params = new HashMap<>();
         params.put(PARAMS_EGL_CONTEXT, context);
@@ -173,11 +568,11 @@ public abstract class WeGLVideoEncoder {
     }
 
     private void handleStartEncode(Message msg) {
-        if (isRecording) {
+        if (mLifecycle.isActive()) {
             LogUtils.e(TAG, "Can't start encoder again: it's already recording!");
             return;
         }
-        isRecording = true;
+        mLifecycle.moveTo(WeLifecycle.State.STARTING);
 
         Map<String, Object> params = (Map<String, Object>) msg.obj;
         EGLContext context = (EGLContext) params.get(PARAMS_EGL_CONTEXT);
@@ -197,6 +592,22 @@ public abstract class WeGLVideoEncoder {
                                    int channelNums, int bitsPerSample) {
         LogUtils.w(TAG, mExternalTag + "handleStartEncode mimeType=" + mimeType +
                 ", video size=" + videoWidth + "x" + videoHeight);
+        boolean isWarm = isWarmMatched(context, mimeType, videoWidth, videoHeight);
+        if (isWarmedUp && !isWarm) {
+            LogUtils.w(TAG, mExternalTag + "warmed up encoder not matched, release it");
+            releaseWarmedUp();
+        }
+        isWarmedUp = false;
+        mWarmMimeType = mimeType;// 停止后保持预热时沿用
+        mWarmProfile = mEncoderProfile;
+        mWarmCaptureFps = mCaptureFps;
+        mActiveTimeLapseInterval = mTimeLapseInterval;
+        mTimeLapseBasePtsUs = -1;
+        isPaused = false;
+        mPtsShiftUs = 0;
+        mPtsShiftBeforeUs = 0;
+        mPtsShiftBoundaryUs = 0;
+
         this.mShareContext = context;
         if (mShareContext == null) {
             throw new IllegalArgumentException("EGLContext can't be null!");
@@ -211,24 +622,45 @@ public abstract class WeGLVideoEncoder {
             throw new RuntimeException("The render from getRenderer can't be null!");
         }
 
-        if (!initMuxer(savePath)) {
-            return;
+        WePreRollBuffer preRollBuffer = mPreRollBuffer;
+        if (preRollBuffer != null) {
+            preRollBuffer.clear();
+        }
+        if (preRollBuffer == null || !TextUtils.isEmpty(savePath)) {
+            if (!initMuxer(savePath)) {
+                handleStartFailed(ERROR_INIT_MUXER, "init muxer failed: " + savePath);
+                return;
+            }
         }
 
-        if (!initVideoEncoder(mimeType, videoWidth, videoHeight)) {
-            return;
+        if (!isWarm) {
+            if (!initVideoEncoder(mimeType, videoWidth, videoHeight)) {
+                handleStartFailed(ERROR_INIT_VIDEO_ENCODER, "init video encoder failed: " + mimeType
+                        + " " + videoWidth + "x" + videoHeight);
+                return;
+            }
+            needEncodeAudio = initAudioEncoder();
+            if (needEncodeAudio && mActiveTimeLapseInterval > 1) {
+                // 延时摄影的声音没有意义，不编码音频
+                releaseCodec(mAudioEncoder);
+                mAudioEncoder = null;
+                mAudioFormat = null;
+                needEncodeAudio = false;
+            }
         }
+        LogUtils.w(TAG, "needEncodeAudio " + needEncodeAudio + ", isWarm " + isWarm
+                + ", captureFps " + mCaptureFps + ", timeLapse " + mActiveTimeLapseInterval);
 
-        needEncodeAudio = initAudioEncoder();
-        LogUtils.w(TAG, "needEncodeAudio " + needEncodeAudio);
+        if (!startCodecs()) {
+            handleStartFailed(ERROR_START_CODECS, "start codecs failed");
+            return;
+        }
 
-        mWeakReference = new WeakReference<>(this);
-        mGLThread = new GLThread(mWeakReference, getExternalLogTag());
-        if (mRenderFps > 0) {
-            mGLThread.setRenderFps(mRenderFps);
+        if (isWarm) {
+            mGLThread.onResume();
+        } else {
+            startGLThread(false);
         }
-        mGLThread.onWindowResize(videoWidth, videoHeight);
-        mGLThread.start();
 
         mVideoEncodeThread = new MediaEncodeThread(mWeakReference, MediaEncodeThread.TYPE_VIDEO, "VideoEncodeThread");
         mVideoEncodeThread.start();
@@ -237,38 +669,137 @@ public abstract class WeGLVideoEncoder {
             mAudioEncodeThread = new MediaEncodeThread(mWeakReference, MediaEncodeThread.TYPE_AUDIO, "AudioEncodeThread");
             mAudioEncodeThread.start();
         }
+        mLifecycle.moveTo(WeLifecycle.State.RUNNING);
     }
 
-    private boolean initMuxer(String savePath) {
-        try {
-            mMediaMuxer = new MediaMuxer(savePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * 开始编码失败：释放本次已申请的写入线程、编码器和预热的渲染线程，回到 IDLE 后通知调用方
+     */
+    private void handleStartFailed(int code, String msg) {
+        LogUtils.e(TAG, mExternalTag + "handleStartFailed " + code + ": " + msg);
+        // 预热命中时渲染线程已存在，送数线程可能已启动，都需要先退出
+        waitThreadsExit();
+        releaseOnGLThreadExit();
+        mWarmMimeType = null;
+        mWarmProfile = null;
+        mWarmCaptureFps = 0;
+        mWarmAudioParams = null;
+        releaseOnMediaEncThreadExit();
+        mLifecycle.moveTo(WeLifecycle.State.IDLE);
+
+        OnEncodeErrorListener listener = mOnEncodeErrorListener;
+        if (listener != null) {
+            listener.onEncodeError(code, msg);
+        }
+    }
+
+    private boolean initMuxer(final String savePath) {
+        WeStorageWriter writer = new WeStorageWriter(savePath);
+        writer.setOnStorageLowListener(new WeStorageWriter.OnStorageLowListener() {
+            @Override
+            public void onStorageLow(String path, long availableBytes) {
+                // 在写入线程中回调，预留空间已释放，尽快停止以便正常写入文件头
+                LogUtils.e(TAG, mExternalTag + "storage low, stop encode: " + path);
+                stopEncode();
+                OnStorageListener listener = mOnStorageListener;
+                if (listener != null) {
+                    listener.onStorageLow(path, availableBytes);
+                }
+            }
+        });
+        if (!writer.prepare()) {
+            OnStorageListener listener = mOnStorageListener;
+            if (listener != null) {
+                listener.onStorageLow(savePath, WeStorageWriter.getAvailableBytes(savePath));
+            }
             return false;
         }
+        mMuxerWriter = writer;
         return true;
     }
 
     private boolean initVideoEncoder(String mimeType, int videoWidth, int videoHeight) {
-        mVideoFormat = MediaFormat.createVideoFormat(mimeType, videoWidth, videoHeight);
-        mVideoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        mVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoWidth * videoHeight * 4);// 设置码率
-        mVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, MEDIA_FRAME_RATE);
-        mVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+        mVideoWidth = videoWidth;
+        mVideoHeight = videoHeight;
+        WeEncoderProfile profile;
+        if (mEncoderProfile != null) {
+            profile = new WeEncoderProfile(mEncoderProfile);
+        } else {
+            profile = new WeEncoderProfile();
+            profile.setVideoCodec(WeEncoderProfile.VideoCodec.fromMimeType(mimeType));
+        }
+        if (mCaptureFps > 0) {
+            profile.setFrameRate(mCaptureFps);
+        }
+        profile = profile.resolveVideo(videoWidth, videoHeight);
+
+        if (isForceBufferInput || !initSurfaceInputEncoder(profile, videoWidth, videoHeight)) {
+            if (!initBufferInputEncoder(profile, videoWidth, videoHeight)) {
+                return false;
+            }
+        }
 
+        mVideoBufInfo = new MediaCodec.BufferInfo();
+        mEncodeTimeMills = 0;
+        return true;
+    }
+
+    private MediaCodec createVideoCodec(WeEncoderProfile profile) throws IOException {
+        if (profile.getVideoCodecName() != null) {
+            return MediaCodec.createByCodecName(profile.getVideoCodecName());
+        }
+        return MediaCodec.createEncoderByType(profile.getVideoMimeType());
+    }
+
+    private boolean initSurfaceInputEncoder(WeEncoderProfile profile, int videoWidth, int videoHeight) {
+        isBufferInput = false;
+        mVideoFormat = profile.createVideoFormat(videoWidth, videoHeight);
         try {
-            mVideoEncoder = MediaCodec.createEncoderByType(mimeType);
+            mVideoEncoder = createVideoCodec(profile);
             mVideoEncoder.configure(mVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             mSurface = mVideoEncoder.createInputSurface();
         } catch (Exception e) {
+            LogUtils.e(TAG, mExternalTag + "init surface input encoder exception: " + e.toString());
             e.printStackTrace();
+            // 部分设备 COLOR_FormatSurface 配置或创建输入 Surface 失败，释放后改用 ByteBuffer 输入
+            releaseCodec(mVideoEncoder);
             mVideoFormat = null;
             mVideoEncoder = null;
+            mSurface = null;
             return false;
         }
+        return true;
+    }
 
-        mVideoBufInfo = new MediaCodec.BufferInfo();
-        mEncodeTimeMills = 0;
+    private boolean initBufferInputEncoder(WeEncoderProfile profile, int videoWidth, int videoHeight) {
+        if ((videoWidth & 1) != 0 || (videoHeight & 1) != 0) {
+            LogUtils.e(TAG, mExternalTag + "buffer input needs even video size: " + videoWidth + "x" + videoHeight);
+            return false;
+        }
+        try {
+            mVideoEncoder = createVideoCodec(profile);
+            int colorFormat = WeYuvConverter.selectColorFormat(mVideoEncoder.getCodecInfo(), profile.getVideoMimeType());
+            mInputYuvFormat = WeYuvConverter.YuvFormat.fromColorFormat(colorFormat);
+            if (mInputYuvFormat == null) {
+                LogUtils.e(TAG, mExternalTag + "encoder " + mVideoEncoder.getName() + " has no supported YUV420 input format");
+                releaseCodec(mVideoEncoder);
+                mVideoEncoder = null;
+                return false;
+            }
+            mVideoFormat = profile.createVideoFormat(videoWidth, videoHeight, colorFormat);
+            mVideoEncoder.configure(mVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        } catch (Exception e) {
+            LogUtils.e(TAG, mExternalTag + "init buffer input encoder exception: " + e.toString());
+            e.printStackTrace();
+            releaseCodec(mVideoEncoder);
+            mVideoFormat = null;
+            mVideoEncoder = null;
+            mInputYuvFormat = null;
+            return false;
+        }
+        isBufferInput = true;
+        mSurface = null;
+        LogUtils.w(TAG, mExternalTag + "use buffer input " + mInputYuvFormat + ", neon " + WeYuvConverter.isNeonSupported());
         return true;
     }
 
@@ -279,24 +810,26 @@ public abstract class WeGLVideoEncoder {
             return false;
         }
 
-        String mimeType = MediaFormat.MIMETYPE_AUDIO_AAC;
-        mAudioFormat = MediaFormat.createAudioFormat(mimeType, mAudioSampleRate, mAudioChannelNums);
-        mAudioFormat.setInteger(MediaFormat.KEY_BIT_RATE, 96000);
-        mAudioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        mAudioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mPcmMaxBytesPerCallback);
+        WeEncoderProfile profile = mEncoderProfile != null ? mEncoderProfile : new WeEncoderProfile();
+        profile = profile.resolveAudio(mAudioSampleRate, mAudioChannelNums);
+        mAudioFormat = profile.createAudioFormat(mAudioSampleRate, mAudioChannelNums, mPcmMaxBytesPerCallback);
 
         try {
-            mAudioEncoder = MediaCodec.createEncoderByType(mimeType);
+            if (profile.getAudioCodecName() != null) {
+                mAudioEncoder = MediaCodec.createByCodecName(profile.getAudioCodecName());
+            } else {
+                mAudioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            }
             mAudioEncoder.configure(mAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        } catch (IOException e) {
+        } catch (Exception e) {
             e.printStackTrace();
+            releaseCodec(mAudioEncoder);
             mAudioFormat = null;
             mAudioEncoder = null;
             return false;
         }
 
         mAudioBufInfo = new MediaCodec.BufferInfo();
-        mAudioPts = 0;
         return true;
     }
 
@@ -309,6 +842,24 @@ public abstract class WeGLVideoEncoder {
         mGLThread.requestRender();
     }
 
+    public WeLifecycle.State getState() {
+        return mLifecycle.getState();
+    }
+
+    /**
+     * 最近一次开始录制的耗时（从处理开始请求到各线程启动），单位：毫秒
+     */
+    public long getLastStartLatencyMills() {
+        return mLifecycle.getLastStartLatencyMills();
+    }
+
+    /**
+     * 最近一次停止录制的耗时（从处理停止请求到各线程退出、资源释放完），单位：毫秒
+     */
+    public long getLastStopLatencyMills() {
+        return mLifecycle.getLastStopLatencyMills();
+    }
+
     /**
      * 获取当前已编码时长，单位：毫秒
      */
@@ -316,6 +867,151 @@ public abstract class WeGLVideoEncoder {
         return mEncodeTimeMills;
     }
 
+    /**
+     * 按比例调整视频码率（相对编码参数中的码率），编码中立即生效，不重建编码器，之后开始的编码也沿用
+     */
+    public void setVideoBitrateScale(float scale) {
+        mVideoBitrateScale = Math.max(0.1f, Math.min(1f, scale));
+        if (mLifecycle.isActive()) {
+            applyVideoBitrate();
+        }
+    }
+
+    private void applyVideoBitrate() {
+        MediaCodec codec = mVideoEncoder;
+        MediaFormat format = mVideoFormat;
+        if (codec == null || format == null || !format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            return;
+        }
+        int bitrate = (int) (format.getInteger(MediaFormat.KEY_BIT_RATE) * mVideoBitrateScale);
+        LogUtils.w(TAG, mExternalTag + "applyVideoBitrate " + bitrate);
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            codec.setParameters(params);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void recordEncodeLag(long ptsUs) {
+        long lagUs = System.nanoTime() / 1000 - ptsUs;
+        if (lagUs >= 0) {
+            mEncodeLagUs = (mEncodeLagUs * 7 + lagUs) / 8;
+        }
+    }
+
+    public long getEncodeLagMills() {
+        return mEncodeLagUs / 1000;
+    }
+
+    /**
+     * @see WeGLThread#getRenderTicks()
+     */
+    public long getRenderTicks() {
+        WeGLThread glThread = mGLThread;
+        return glThread != null ? glThread.getRenderTicks() : 0;
+    }
+
+    /**
+     * @see WeGLThread#getDeadlineMisses()
+     */
+    public long getRenderDeadlineMisses() {
+        WeGLThread glThread = mGLThread;
+        return glThread != null ? glThread.getDeadlineMisses() : 0;
+    }
+
+    /**
+     * 暂停录制，不再送入图像和声音，编码器和封装器保持运行，恢复后输出的视频是连续的
+     */
+    public void pauseEncode() {
+        if (isReleased) {
+            LogUtils.e(TAG, mExternalTag + "pauseEncode but this encoder is already released!");
+            return;
+        }
+        mWorkHandler.removeMessages(HANDLE_RESUME_ENCODE);
+        mWorkHandler.sendEmptyMessage(HANDLE_PAUSE_ENCODE);
+    }
+
+    public void resumeEncode() {
+        if (isReleased) {
+            LogUtils.e(TAG, mExternalTag + "resumeEncode but this encoder is already released!");
+            return;
+        }
+        mWorkHandler.removeMessages(HANDLE_PAUSE_ENCODE);
+        mWorkHandler.sendEmptyMessage(HANDLE_RESUME_ENCODE);
+    }
+
+    /**
+     * 获取本次录制因编码器来不及处理而丢弃的音频采样数
+     */
+    public long getDroppedAudioSamples() {
+        WeAudioInputStage stage = mAudioInputStage;
+        return stage != null ? stage.getDroppedSamples() : 0;
+    }
+
+    public boolean isPaused() {
+        return isPaused;
+    }
+
+    private void handlePauseEncode() {
+        LogUtils.w(TAG, mExternalTag + "handlePauseEncode");
+        if (!mLifecycle.isActive() || isPaused) {
+            return;
+        }
+        isPaused = true;
+        mPauseStartUs = System.nanoTime() / 1000;
+        if (mGLThread != null) {
+            mGLThread.onPause();
+        }
+    }
+
+    private void handleResumeEncode() {
+        LogUtils.w(TAG, mExternalTag + "handleResumeEncode");
+        if (!mLifecycle.isActive() || !isPaused) {
+            return;
+        }
+        // Surface 输入的帧时间戳与 System.nanoTime() 同一时钟，扣除暂停时长即可连续；
+        // 音频时间戳按送入的数据量累加，暂停期间不送数据，天然连续。
+        long nowUs = System.nanoTime() / 1000;
+        mPtsShiftBeforeUs = mPtsShiftUs;
+        mPtsShiftBoundaryUs = nowUs;
+        mPtsShiftUs = mPtsShiftBeforeUs + (nowUs - mPauseStartUs);
+        isPaused = false;
+
+        if (mVideoEncoder != null) {
+            // 请求立即输出关键帧，恢复后第一帧即可独立解码
+            try {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                mVideoEncoder.setParameters(params);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (mGLThread != null) {
+            mGLThread.onResume();
+        }
+    }
+
+    private long getVideoPtsShiftUs(long ptsUs) {
+        return ptsUs >= mPtsShiftBoundaryUs ? mPtsShiftUs : mPtsShiftBeforeUs;
+    }
+
+    /**
+     * 延时摄影时以第一帧为起点把时间间隔压缩为 1/N，在视频编码线程中调用
+     */
+    private long compressTimeLapsePts(long ptsUs) {
+        int interval = mActiveTimeLapseInterval;
+        if (interval <= 1) {
+            return ptsUs;
+        }
+        if (mTimeLapseBasePtsUs < 0) {
+            mTimeLapseBasePtsUs = ptsUs;
+        }
+        return mTimeLapseBasePtsUs + (ptsUs - mTimeLapseBasePtsUs) / interval;
+    }
+
     public void stopEncode() {
         if (isReleased) {
             LogUtils.e(TAG, mExternalTag + "stopEncode but this encoder is already released!");
@@ -328,57 +1024,78 @@ public abstract class WeGLVideoEncoder {
 
     private void handleStopEncode() {
         LogUtils.w(TAG, mExternalTag + "handleStopEncode");
-        if (!isRecording) {
+        if (!mLifecycle.isActive()) {
             LogUtils.w(TAG, "No need to stop encoder again: it's already stopped!");
             return;
         }
-        isRecording = false;
+        mLifecycle.moveTo(WeLifecycle.State.STOPPING);
+        isPaused = false;
 
-        isGLThreadExiting = false;
+        EGLContext shareContext = mShareContext;
+        String mimeType = mWarmMimeType;
+        waitThreadsExit();
+        releaseOnGLThreadExit();
+        mVideoEncodeThread = null;
+        mAudioEncodeThread = null;
+        isAudioEncoderStarted = false;
+        releaseAudioInputStage();
+        if (isKeepWarm && !isReleased && mVideoEncoder != null) {
+            releaseMuxer();
+            if (rewarm(shareContext, mimeType)) {
+                resetAudioParams();
+                mEncodeTimeMills = 0;
+                LogUtils.w(TAG, mExternalTag + "encoder kept warm for next record");
+                mLifecycle.moveTo(WeLifecycle.State.IDLE);
+                return;
+            }
+        }
+        releaseOnMediaEncThreadExit();
+        mLifecycle.moveTo(WeLifecycle.State.IDLE);
+    }
+
+    private void waitThreadsExit() {
+        int threadCount = (mGLThread != null ? 1 : 0) + (mVideoEncodeThread != null ? 1 : 0)
+                + (mAudioEncodeThread != null ? 1 : 0);
+        final CountDownLatch exitLatch = new CountDownLatch(threadCount);
         if (mGLThread != null) {
-            isGLThreadExiting = true;
             mGLThread.requestExit(new WeGLThread.OnExitedListener() {
                 @Override
                 public void onExited(WeGLThread glThread) {
                     LogUtils.w(TAG, mExternalTag + "mGLThread onExited: " + glThread.hashCode());
-                    isGLThreadExiting = false;
+                    exitLatch.countDown();
                 }
             });
         }
 
-        isVideoEncThreadExiting = false;
         if (mVideoEncodeThread != null) {
-            isVideoEncThreadExiting = true;
             mVideoEncodeThread.requestExit(new OnThreadExitedListener() {
                 @Override
                 public void onExited(Thread thread) {
                     LogUtils.w(TAG, mExternalTag + "mVideoEncodeThread onExited: " + thread.hashCode());
-                    isVideoEncThreadExiting = false;
+                    exitLatch.countDown();
                 }
             });
         }
 
-        isAudioEncThreadExiting = false;
         if (mAudioEncodeThread != null) {
-            isAudioEncThreadExiting = true;
             mAudioEncodeThread.requestExit(new OnThreadExitedListener() {
                 @Override
                 public void onExited(Thread thread) {
                     LogUtils.w(TAG, mExternalTag + "mAudioEncodeThread onExited: " + thread.hashCode());
-                    isAudioEncThreadExiting = false;
+                    exitLatch.countDown();
                 }
             });
         }
 
-        while (isGLThreadExiting || isVideoEncThreadExiting || isAudioEncThreadExiting) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        WeLifecycle.awaitExit(exitLatch, mExternalTag + "encoder");
+
+        // 渲染线程已退出，不会再有新的读回帧，送数线程需在编码器停止前退出
+        WeBufferInputFeeder feeder = mBufferInputFeeder;
+        mBufferInputFeeder = null;
+        if (feeder != null) {
+            feeder.quit();
+            LogUtils.w(TAG, mExternalTag + "buffer input dropped frames: " + feeder.getDroppedFrames());
         }
-        releaseOnGLThreadExit();
-        releaseOnMediaEncThreadExit();
     }
 
     private void releaseOnGLThreadExit() {
@@ -394,49 +1111,73 @@ public abstract class WeGLVideoEncoder {
         mVideoEncodeThread = null;
         mAudioEncodeThread = null;
 
-        if (mVideoEncoder != null) {
-            try {
-                mVideoEncoder.stop();
-                mVideoEncoder.release();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            mVideoEncoder = null;
-        }
-        if (mAudioEncoder != null) {
-            try {
-                mAudioEncoder.stop();
-                mAudioEncoder.release();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            mAudioEncoder = null;
-        }
-        if (mMediaMuxer != null) {
-            try {
-                mMediaMuxer.stop();// 在停止时才会写入视频头信息
-                mMediaMuxer.release();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            mMediaMuxer = null;
-        }
+        // 送数线程需在编码器停止前退出
+        isAudioEncoderStarted = false;
+        releaseAudioInputStage();
+        releaseCodecs();
+        releaseMuxer();
         mVideoFormat = null;
         mVideoBufInfo = null;
         mAudioFormat = null;
         mAudioBufInfo = null;
 
         needEncodeAudio = false;
-        isAudioEncoderStarted = false;
+        resetAudioParams();
+        mEncodeTimeMills = 0;
+    }
+
+    private void releaseAudioInputStage() {
+        WeAudioInputStage stage = mAudioInputStage;
+        mAudioInputStage = null;
+        if (stage != null) {
+            LogUtils.w(TAG, mExternalTag + "audio input dropped samples: " + stage.getDroppedSamples());
+            stage.quit();
+        }
+    }
+
+    private void releaseCodecs() {
+        releaseCodec(mVideoEncoder);
+        mVideoEncoder = null;
+        isBufferInput = false;
+        mInputYuvFormat = null;
+        releaseCodec(mAudioEncoder);
+        mAudioEncoder = null;
+    }
+
+    private void releaseCodec(MediaCodec codec) {
+        if (codec == null) {
+            return;
+        }
+        try {
+            // 预热后未启动的编码器 stop 可能抛异常，不影响后续 release
+            codec.stop();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        try {
+            codec.release();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void releaseMuxer() {
+        if (mMuxerWriter != null) {
+            mMuxerWriter.stopAndRelease();
+            mLastStorageStats = mMuxerWriter.getStatsSummary();
+            LogUtils.w(TAG, mExternalTag + "storage writer: " + mLastStorageStats);
+            mMuxerWriter = null;
+        }
         isMuxerStarted = false;
         isVideoTrackAdded = false;
         isAudioTrackAdded = false;
+    }
 
+    private void resetAudioParams() {
         mAudioSampleRate = 0;
         mAudioChannelNums = 0;
         mAudioBitsPerSample = 0;
         mPcmMaxBytesPerCallback = 0;
-        mEncodeTimeMills = 0;
     }
 
     public void release() {
@@ -454,6 +1195,10 @@ public abstract class WeGLVideoEncoder {
 
     private void handleRelease() {
         handleStopEncode();
+        if (isWarmedUp) {
+            releaseWarmedUp();
+        }
+        mLifecycle.moveTo(WeLifecycle.State.RELEASED);
 
         mWorkHandler.removeCallbacksAndMessages(null);
         try {
@@ -467,6 +1212,44 @@ public abstract class WeGLVideoEncoder {
         return TAG + " tid=" + android.os.Process.myTid() + " ";
     }
 
+    /**
+     * 设置存储空间监听：开始录制时空间不足，或录制中空间即将用完而自动停止时回调
+     */
+    public void setOnStorageListener(OnStorageListener listener) {
+        this.mOnStorageListener = listener;
+    }
+
+    /**
+     * 获取最近一次录制文件的写入统计：平均和最大写入耗时、慢写次数、队列峰值、丢弃样本数等
+     */
+    public String getStorageWriteStats() {
+        WeStorageWriter writer = mMuxerWriter;
+        return writer != null ? writer.getStatsSummary() : mLastStorageStats;
+    }
+
+    /**
+     * 设置编码错误监听：开始编码失败时，已释放本次申请的资源并回到 IDLE 状态后回调
+     */
+    public void setOnEncodeErrorListener(OnEncodeErrorListener listener) {
+        this.mOnEncodeErrorListener = listener;
+    }
+
+    public interface OnEncodeErrorListener {
+        /**
+         * 在编码内部线程中回调
+         *
+         * @param code 见 ERROR_ 开头的常量
+         */
+        void onEncodeError(int code, String msg);
+    }
+
+    public interface OnStorageListener {
+        /**
+         * 可能在编码内部线程中回调
+         */
+        void onStorageLow(String path, long availableBytes);
+    }
+
     public interface OnThreadExitedListener {
         void onExited(Thread thread);
     }
@@ -477,6 +1260,7 @@ public abstract class WeGLVideoEncoder {
     static class GLThread extends WeGLThread {
 
         private WeakReference<WeGLVideoEncoder> mWeakReference;
+        private long mFrameCount;
 
         public GLThread(WeakReference<WeGLVideoEncoder> reference, String externalTag) {
             super(externalTag);
@@ -523,6 +1307,46 @@ public abstract class WeGLVideoEncoder {
             return encoder.mRenderer;
         }
 
+        @Override
+        protected boolean shouldDrawFrame() {
+            WeGLVideoEncoder encoder = mWeakReference.get();
+            int interval = encoder != null ? encoder.mActiveTimeLapseInterval : 1;
+            if (interval <= 1) {
+                return true;
+            }
+            // 渲染帧率与相机帧率一致，即每 N 个相机帧编码一帧
+            return mFrameCount++ % interval == 0;
+        }
+
+        @Override
+        protected boolean isOffscreen() {
+            WeGLVideoEncoder encoder = mWeakReference.get();
+            return encoder != null && encoder.isBufferInput;
+        }
+
+        @Override
+        protected void onFrameSwapped(long swapStartNs) {
+            // 编码 Surface 上的帧以提交时刻作为 pts，记录下来用于对应编码输出的采集时间
+            LatencyTracer.getInstance().onEncoderFrameSwapped(LatencyTracer.Pipeline.RECORD, swapStartNs);
+
+            WeGLVideoEncoder encoder = mWeakReference.get();
+            WeBufferInputFeeder feeder = encoder != null ? encoder.mBufferInputFeeder : null;
+            if (feeder != null) {
+                // pbuffer 的 swap 不改变内容，这里读回的就是刚绘制的帧，时间戳与 Surface 输入保持一致
+                feeder.readback(swapStartNs / 1000);
+            }
+        }
+
+        @Override
+        protected void onEGLContextToDestroy() {
+            WeGLVideoEncoder encoder = mWeakReference.get();
+            WeBufferInputFeeder feeder = encoder != null ? encoder.mBufferInputFeeder : null;
+            if (feeder != null) {
+                // 未完成的 PBO 读回在这里收取，送数线程退出前还会送入编码器
+                feeder.releaseGL();
+            }
+        }
+
     }
 
     /**
@@ -538,15 +1362,15 @@ public abstract class WeGLVideoEncoder {
         private WeakReference<WeGLVideoEncoder> mWeakReference;
         private MediaCodec mEncoder;
         private MediaCodec.BufferInfo mBufInfo;
-        private MediaMuxer mMediaMuxer;
+        private WeStorageWriter mMuxerWriter;
 
         private int mOutputBufIndex;
         private int mTrackIndex = -1;
         private long mStartPts = 0;
 
         private boolean isMuxerStarted;
-        private boolean isShouldExit;
-        private boolean isExited;
+        private volatile boolean isShouldExit;
+        private boolean isExited;// 与 mOnExitedListener 一起由 this 锁保护，保证退出回调只执行一次
 
         private OnThreadExitedListener mOnExitedListener;
 
@@ -555,7 +1379,7 @@ public abstract class WeGLVideoEncoder {
             this.mMediaType = mediaType;
             this.mTag = tag;
 
-            mMediaMuxer = mWeakReference.get().mMediaMuxer;
+            mMuxerWriter = mWeakReference.get().mMuxerWriter;
             if (mMediaType == TYPE_VIDEO) {
                 mEncoder = mWeakReference.get().mVideoEncoder;
                 mBufInfo = mWeakReference.get().mVideoBufInfo;
@@ -585,15 +1409,7 @@ public abstract class WeGLVideoEncoder {
         }
 
         private void guardedRun() {
-            mEncoder.start();
-            if (mMediaType == TYPE_AUDIO) {
-                WeGLVideoEncoder master = mWeakReference.get();
-                if (master == null) {
-                    LogUtils.e(mTag, "WeGLVideoEncoder got from mWeakReference is null, so exit!");
-                    return;
-                }
-                master.isAudioEncoderStarted = true;
-            }
+            // 编码器已在调度线程中启动
             while (!isShouldExit) {
                 WeGLVideoEncoder master = mWeakReference.get();
                 if (master == null) {
@@ -602,8 +1418,9 @@ public abstract class WeGLVideoEncoder {
                     return;
                 }
 
-                if (mEncoder == null || mBufInfo == null || mMediaMuxer == null) {
-                    LogUtils.e(mTag, "mEncoder or mBufInfo or mMediaMuxer got from mWeakReference is null!");
+                WePreRollBuffer preRollBuffer = master.mPreRollBuffer;
+                if (mEncoder == null || mBufInfo == null || (mMuxerWriter == null && preRollBuffer == null)) {
+                    LogUtils.e(mTag, "mEncoder or mBufInfo or mMuxerWriter got from mWeakReference is null!");
                     return;
                 }
 
@@ -611,8 +1428,15 @@ public abstract class WeGLVideoEncoder {
                     mOutputBufIndex = mEncoder.dequeueOutputBuffer(mBufInfo, 0);
                     if (mOutputBufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                         LogUtils.w(mTag, "mOutputBufIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED");
-                        mTrackIndex = mMediaMuxer.addTrack(mEncoder.getOutputFormat());
-                        synchronized (mMediaMuxer) {
+                        if (preRollBuffer != null) {
+                            preRollBuffer.setTrackFormat(mMediaType == TYPE_VIDEO ? WePreRollBuffer.TRACK_VIDEO
+                                    : WePreRollBuffer.TRACK_AUDIO, mEncoder.getOutputFormat());
+                        }
+                        if (mMuxerWriter == null) {
+                            continue;
+                        }
+                        mTrackIndex = mMuxerWriter.addTrack(mEncoder.getOutputFormat());
+                        synchronized (mMuxerWriter) {
                             boolean otherTrackAdded;
                             boolean canStartMuxer = false;
                             if (mMediaType == TYPE_VIDEO) {
@@ -628,7 +1452,7 @@ public abstract class WeGLVideoEncoder {
                             LogUtils.w(mTag, "canStartMuxer " + canStartMuxer);
                             if (canStartMuxer) {
                                 // MediaMuxer.start() is called after addTrack and before writeSampleData
-                                mMediaMuxer.start();
+                                mMuxerWriter.startMuxer();
                                 isMuxerStarted = true;
                                 master.isMuxerStarted = true;
                             }
@@ -639,8 +1463,32 @@ public abstract class WeGLVideoEncoder {
                             outBuffer.position(mBufInfo.offset);
                             outBuffer.limit(mBufInfo.offset + mBufInfo.size);
 
-                            if (!isMuxerStarted) {
-                                synchronized (mMediaMuxer) {
+                            if (mMediaType == TYPE_VIDEO) {
+                                LatencyTracer.getInstance().onFrameEncoded(LatencyTracer.Pipeline.RECORD,
+                                        mBufInfo.presentationTimeUs);
+                                if ((mBufInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                                    master.recordEncodeLag(mBufInfo.presentationTimeUs);
+                                }
+                                mBufInfo.presentationTimeUs -= master.getVideoPtsShiftUs(mBufInfo.presentationTimeUs);
+                                if ((mBufInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                                    mBufInfo.presentationTimeUs = master.compressTimeLapsePts(mBufInfo.presentationTimeUs);
+                                }
+                            }
+
+                            if (preRollBuffer != null) {
+                                preRollBuffer.append(mMediaType == TYPE_VIDEO ? WePreRollBuffer.TRACK_VIDEO
+                                        : WePreRollBuffer.TRACK_AUDIO, outBuffer, mBufInfo);
+                            }
+
+                            if (mMuxerWriter == null) {
+                                if (mMediaType == TYPE_VIDEO) {
+                                    if (mStartPts == 0) {
+                                        mStartPts = mBufInfo.presentationTimeUs;
+                                    }
+                                    master.mEncodeTimeMills = (mBufInfo.presentationTimeUs - mStartPts) / 1000;
+                                }
+                            } else if (!isMuxerStarted) {
+                                synchronized (mMuxerWriter) {
                                     isMuxerStarted = master.isMuxerStarted;
                                 }
                             }
@@ -649,16 +1497,23 @@ public abstract class WeGLVideoEncoder {
                                     mStartPts = mBufInfo.presentationTimeUs;
                                 }
                                 mBufInfo.presentationTimeUs = mBufInfo.presentationTimeUs - mStartPts;
-                                mMediaMuxer.writeSampleData(mTrackIndex, outBuffer, mBufInfo);
+                                mMuxerWriter.writeSampleData(mTrackIndex, outBuffer, mBufInfo);
                                 if (mMediaType == TYPE_VIDEO) {
                                     // 只针对一个主 track 写时间就够了
                                     master.mEncodeTimeMills = mBufInfo.presentationTimeUs / 1000;
                                 }
                             }
 
+                            if (mMediaType == TYPE_VIDEO && master.mFirstFrameLatencyMills < 0
+                                    && (mBufInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                                master.mFirstFrameLatencyMills = (System.nanoTime() - master.mStartRequestTimeNs) / 1000000;
+                                LogUtils.w(mTag, "time to first encoded frame: " + master.mFirstFrameLatencyMills + "ms");
+                            }
+
                             mEncoder.releaseOutputBuffer(mOutputBufIndex, false);
                             mOutputBufIndex = mEncoder.dequeueOutputBuffer(mBufInfo, 0);
                         }
+
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -667,13 +1522,15 @@ public abstract class WeGLVideoEncoder {
         }
 
         public void requestExit(OnThreadExitedListener listener) {
-            this.mOnExitedListener = listener;
-            if (isExited) {
-                if (mOnExitedListener != null) {
-                    mOnExitedListener.onExited(this);
+            synchronized (this) {
+                this.mOnExitedListener = listener;
+                if (!isExited) {
+                    isShouldExit = true;
+                    return;
                 }
-            } else {
-                isShouldExit = true;
+            }
+            if (listener != null) {
+                listener.onExited(this);
             }
         }
 
@@ -681,39 +1538,29 @@ public abstract class WeGLVideoEncoder {
             // mEncoder 系列在这里只置空，具体回收交给外部主类释放
             mEncoder = null;
             mBufInfo = null;
-            mMediaMuxer = null;
+            mMuxerWriter = null;
             mWeakReference = null;
 
-            isExited = true;
-            if (mOnExitedListener != null) {
-                mOnExitedListener.onExited(this);
+            OnThreadExitedListener listener;
+            synchronized (this) {
+                isExited = true;
+                listener = mOnExitedListener;
+            }
+            if (listener != null) {
+                listener.onExited(this);
             }
         }
 
     }
 
     public void onAudioPCMDataCall(byte[] pcmData, int size) {
-        if (!needEncodeAudio || !isRecording || mAudioEncoder == null || !isAudioEncoderStarted
+        WeAudioInputStage stage = mAudioInputStage;
+        if (!needEncodeAudio || !mLifecycle.isActive() || isPaused || stage == null || !isAudioEncoderStarted
                 || pcmData == null || size <= 0) {
             return;
         }
         try {
-            // 获取输入 buffer，不超时等待
-            int inputBufferIndex = mAudioEncoder.dequeueInputBuffer(0);
-            if (inputBufferIndex < 0) {
-                LogUtils.e(TAG, "onAudioPCMDataCall dequeueInputBuffer failed ret=" + inputBufferIndex);
-                return;
-            }
-
-            // 成功获取输入 buffer后，填入要处理的数据
-            ByteBuffer inputBuffer = mAudioEncoder.getInputBuffers()[inputBufferIndex];
-            inputBuffer.clear();
-            inputBuffer.put(pcmData);
-
-            // 提交数据并释放输入 buffer
-            mAudioPts += (long) (1.0f * size / mAudioBytesPerSecond * 1000000);
-            mAudioEncoder.queueInputBuffer(
-                    inputBufferIndex, 0, size, mAudioPts, 0);
+            stage.write(pcmData, Math.min(size, pcmData.length));
         } catch (Exception e) {
             LogUtils.e(TAG, "onAudioPCMDataCall exception: " + e.toString());
             e.printStackTrace();
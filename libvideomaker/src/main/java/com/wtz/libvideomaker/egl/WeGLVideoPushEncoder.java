@@ -1,67 +1,86 @@
 package com.wtz.libvideomaker.egl;
 
 import android.media.MediaCodec;
-import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.text.TextUtils;
 import android.view.Surface;
 
+import com.wtz.libvideomaker.encoder.WeAudioInputStage;
+import com.wtz.libvideomaker.encoder.WeEncoderProfile;
+import com.wtz.libvideomaker.encoder.WeFrameSizeStats;
 import com.wtz.libvideomaker.utils.HexUtils;
+import com.wtz.libvideomaker.utils.LatencyTracer;
 import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.WeLifecycle;
 
-import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 
 import javax.microedition.khronos.egl.EGLContext;
 
 public abstract class WeGLVideoPushEncoder {
 
     private static final String TAG = "WeGLVideoPushEncoder";
+
+    // 开始编码失败的错误码，与 WeGLVideoEncoder 中的取值一致
+    public static final int ERROR_INIT_VIDEO_ENCODER = 2;
+
     private String mExternalTag;
 
     private WeakReference<WeGLVideoPushEncoder> mWeakReference;
     private OnEncodeDataListener mOnEncodeDataListener;
+    private OnEncodeErrorListener mOnEncodeErrorListener;
 
     // 渲染线程
-    private WeGLThread mGLThread;
-    private boolean isGLThreadExiting;
+    private volatile WeGLThread mGLThread;
     private EGLContext mShareContext;
     private Surface mSurface;
     private WeGLRenderer mRenderer;
     private int mRenderMode = WeGLRenderer.RENDERMODE_CONTINUOUSLY;
     private int mRenderFps = 0;
+    // 设置后不创建自己的渲染线程，作为附加输出由宿主编码器的渲染线程绘制
+    private WeGLVideoEncoder mRenditionHost;
+    private volatile WeGLVideoEncoder mActiveRenditionHost;// 本次推流实际使用的宿主
+    private Rendition mRendition;
+
+    // 编码参数配置，为空时使用默认配置
+    private WeEncoderProfile mEncoderProfile;
 
     // 视频编码线程
     private MediaEncodeThread mVideoEncodeThread;
-    private boolean isVideoEncThreadExiting;
-    private static final int MEDIA_FRAME_RATE = 30;// 一般摄像头预览最大 30 帧每秒
-    private static final int I_FRAME_INTERVAL = 1;// 设置关键帧间隔为 1 秒
     private MediaCodec mVideoEncoder;
     private MediaFormat mVideoFormat;
     private MediaCodec.BufferInfo mVideoBufInfo;
     private long mEncodeTimeMills;
+    // 运行中的码率比例，由质量调节器设置，相对编码参数中的码率
+    private float mVideoBitrateScale = 1f;
+    // 视频帧从提交到编码输出的平滑耗时，编码器跟不上时持续增大
+    private volatile long mEncodeLagUs;
+    // 视频帧大小统计，用于观察码率波动
+    private static final int FRAME_SIZE_STATS_WINDOW = 150;
+    private WeFrameSizeStats mFrameSizeStats = new WeFrameSizeStats(FRAME_SIZE_STATS_WINDOW);
     // for H.264(AVC)
     private byte[] mSPS;
     private byte[] mPPS;
 
     // 音频编码线程
     private MediaEncodeThread mAudioEncodeThread;
-    private boolean isAudioEncThreadExiting;
     private boolean needEncodeAudio;
     private boolean isAudioEncoderStarted;
     private int mAudioSampleRate;
     private int mAudioChannelNums;
     private int mAudioBitsPerSample;
-    private int mAudioBytesPerSecond;
     private int mPcmMaxBytesPerCallback;
-    private long mAudioPts;
+    private static final int AUDIO_INPUT_BUFFER_MILLS = 1000;// 编码器来不及处理时最多缓存的音频时长
+    private volatile WeAudioInputStage mAudioInputStage;// 音频编码器的输入只在此线程中调用
     private MediaCodec mAudioEncoder;
     private MediaFormat mAudioFormat;
     private MediaCodec.BufferInfo mAudioBufInfo;
@@ -69,7 +88,7 @@ public abstract class WeGLVideoPushEncoder {
     // 接口调度线程
     private Handler mWorkHandler;
     private HandlerThread mWorkThread;
-    private boolean isRecording;
+    private WeLifecycle mLifecycle;
     private boolean isReleased;
 
     private static final int HANDLE_START_ENCODE = 0;
@@ -89,6 +108,7 @@ public abstract class WeGLVideoPushEncoder {
 
     public WeGLVideoPushEncoder() {
         mExternalTag = getExternalLogTag() + ": ";
+        mLifecycle = new WeLifecycle(getExternalLogTag() + " push encoder");
         mWorkThread = new HandlerThread("WeGLVideoPushEncoder");
         mWorkThread.start();
         mWorkHandler = new Handler(mWorkThread.getLooper()) {
@@ -118,6 +138,13 @@ public abstract class WeGLVideoPushEncoder {
         this.mOnEncodeDataListener = listener;
     }
 
+    /**
+     * 设置编码错误监听：开始编码失败时，已释放本次申请的资源并回到 IDLE 状态后回调
+     */
+    public void setOnEncodeErrorListener(OnEncodeErrorListener listener) {
+        this.mOnEncodeErrorListener = listener;
+    }
+
     public void setRenderMode(int renderMode) {
         if ((WeGLRenderer.RENDERMODE_WHEN_DIRTY != renderMode)
                 && (renderMode != WeGLRenderer.RENDERMODE_CONTINUOUSLY)) {
@@ -147,10 +174,26 @@ public abstract class WeGLVideoPushEncoder {
         this.mAudioSampleRate = sampleRate;
         this.mAudioChannelNums = channelNums;
         this.mAudioBitsPerSample = bitsPerSample;
-        mAudioBytesPerSecond = mAudioSampleRate * mAudioChannelNums * mAudioBitsPerSample / 8;
         this.mPcmMaxBytesPerCallback = pcmMaxBytesPerCallback;
     }
 
+    /**
+     * 设置编码参数，下次开始推流时生效。
+     * RTMP 推流只支持 H.264 且不支持 B 帧，这两项会被强制修正。
+     */
+    public void setEncoderProfile(WeEncoderProfile profile) {
+        this.mEncoderProfile = profile != null ? new WeEncoderProfile(profile) : null;
+    }
+
+    /**
+     * 设置宿主编码器，下次开始推流时生效：不再创建独立的渲染线程，
+     * 由宿主的渲染线程在绘制完自己的画面后接着按本编码器的分辨率绘制一次，两路编码共用一次渲染。
+     * 宿主的渲染线程未运行时本编码器不会出帧，传 null 恢复使用独立渲染线程。
+     */
+    public void setRenditionHost(WeGLVideoEncoder host) {
+        this.mRenditionHost = host;
+    }
+
     protected void startEncode(EGLContext context, String mimeType, int videoWidth, int videoHeight) {
         if (isReleased) {
             LogUtils.e(TAG, mExternalTag + "startEncode but this encoder is already released!");
@@ -174,11 +217,11 @@ public abstract class WeGLVideoPushEncoder {
     }
 
     private void handleStartEncode(Message msg) {
-        if (isRecording) {
+        if (mLifecycle.isActive()) {
             LogUtils.e(TAG, "Can't start encoder again: it's already recording!");
             return;
         }
-        isRecording = true;
+        mLifecycle.moveTo(WeLifecycle.State.STARTING);
 
         Map<String, Object> params = (Map<String, Object>) msg.obj;
         EGLContext context = (EGLContext) params.get(PARAMS_EGL_CONTEXT);
@@ -198,7 +241,8 @@ public abstract class WeGLVideoPushEncoder {
         LogUtils.w(TAG, mExternalTag + "handleStartEncode mimeType=" + mimeType +
                 ", video size=" + videoWidth + "x" + videoHeight);
         this.mShareContext = context;
-        if (mShareContext == null) {
+        WeGLVideoEncoder host = mRenditionHost;
+        if (mShareContext == null && host == null) {
             throw new IllegalArgumentException("EGLContext can't be null!");
         }
 
@@ -212,6 +256,8 @@ public abstract class WeGLVideoPushEncoder {
         }
 
         if (!initVideoEncoder(mimeType, videoWidth, videoHeight)) {
+            handleStartFailed(ERROR_INIT_VIDEO_ENCODER, "init video encoder failed: " + mimeType
+                    + " " + videoWidth + "x" + videoHeight);
             return;
         }
 
@@ -219,12 +265,18 @@ public abstract class WeGLVideoPushEncoder {
         LogUtils.w(TAG, "needEncodeAudio " + needEncodeAudio);
 
         mWeakReference = new WeakReference<>(this);
-        mGLThread = new GLThread(mWeakReference, getExternalLogTag());
-        if (mRenderFps > 0) {
-            mGLThread.setRenderFps(mRenderFps);
+        if (host != null) {
+            mRendition = new Rendition(mWeakReference, videoWidth, videoHeight);
+            mActiveRenditionHost = host;
+            host.addRendition(mRendition);
+        } else {
+            mGLThread = new GLThread(mWeakReference, getExternalLogTag());
+            if (mRenderFps > 0) {
+                mGLThread.setRenderFps(mRenderFps);
+            }
+            mGLThread.onWindowResize(videoWidth, videoHeight);
+            mGLThread.start();
         }
-        mGLThread.onWindowResize(videoWidth, videoHeight);
-        mGLThread.start();
 
         mVideoEncodeThread = new MediaEncodeThread(mWeakReference, MediaEncodeThread.TYPE_VIDEO, "VideoEncodeThread");
         mVideoEncodeThread.start();
@@ -233,28 +285,54 @@ public abstract class WeGLVideoPushEncoder {
             mAudioEncodeThread = new MediaEncodeThread(mWeakReference, MediaEncodeThread.TYPE_AUDIO, "AudioEncodeThread");
             mAudioEncodeThread.start();
         }
+        mLifecycle.moveTo(WeLifecycle.State.RUNNING);
+    }
+
+    /**
+     * 开始编码失败：渲染和编码线程都还没有启动，释放已创建的编码器，回到 IDLE 后通知调用方
+     */
+    private void handleStartFailed(int code, String msg) {
+        LogUtils.e(TAG, mExternalTag + "handleStartFailed " + code + ": " + msg);
+        releaseAudioInputStage();
+        releaseOnGLThreadExit();
+        releaseOnMediaEncThreadExit();
+        mLifecycle.moveTo(WeLifecycle.State.IDLE);
+
+        OnEncodeErrorListener listener = mOnEncodeErrorListener;
+        if (listener != null) {
+            listener.onEncodeError(code, msg);
+        }
     }
 
     private boolean initVideoEncoder(String mimeType, int videoWidth, int videoHeight) {
-        mVideoFormat = MediaFormat.createVideoFormat(mimeType, videoWidth, videoHeight);
-        mVideoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        mVideoFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoWidth * videoHeight * 4);// 设置码率
-        mVideoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, MEDIA_FRAME_RATE);
-        mVideoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+        WeEncoderProfile profile = mEncoderProfile != null
+                ? new WeEncoderProfile(mEncoderProfile) : new WeEncoderProfile();
+        // 推流数据按 H.264 的 SPS/PPS 打包，且 RTMP 包未携带 CTS，不能有 B 帧
+        profile.setVideoCodec(WeEncoderProfile.VideoCodec.AVC);
+        profile.setMaxBFrames(0);
+        profile = profile.resolveVideo(videoWidth, videoHeight);
+        mVideoFormat = profile.createVideoFormat(videoWidth, videoHeight);
 
         try {
-            mVideoEncoder = MediaCodec.createEncoderByType(mimeType);
+            if (profile.getVideoCodecName() != null) {
+                mVideoEncoder = MediaCodec.createByCodecName(profile.getVideoCodecName());
+            } else {
+                mVideoEncoder = MediaCodec.createEncoderByType(profile.getVideoMimeType());
+            }
             mVideoEncoder.configure(mVideoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             mSurface = mVideoEncoder.createInputSurface();
         } catch (Exception e) {
             e.printStackTrace();
+            releaseCodec(mVideoEncoder);
             mVideoFormat = null;
             mVideoEncoder = null;
+            mSurface = null;
             return false;
         }
 
         mVideoBufInfo = new MediaCodec.BufferInfo();
         mEncodeTimeMills = 0;
+        mFrameSizeStats.reset();
         return true;
     }
 
@@ -265,24 +343,28 @@ public abstract class WeGLVideoPushEncoder {
             return false;
         }
 
-        String mimeType = MediaFormat.MIMETYPE_AUDIO_AAC;
-        mAudioFormat = MediaFormat.createAudioFormat(mimeType, mAudioSampleRate, mAudioChannelNums);
-        mAudioFormat.setInteger(MediaFormat.KEY_BIT_RATE, 96000);
-        mAudioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        mAudioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mPcmMaxBytesPerCallback);
+        WeEncoderProfile profile = mEncoderProfile != null ? mEncoderProfile : new WeEncoderProfile();
+        profile = profile.resolveAudio(mAudioSampleRate, mAudioChannelNums);
+        mAudioFormat = profile.createAudioFormat(mAudioSampleRate, mAudioChannelNums, mPcmMaxBytesPerCallback);
 
         try {
-            mAudioEncoder = MediaCodec.createEncoderByType(mimeType);
+            if (profile.getAudioCodecName() != null) {
+                mAudioEncoder = MediaCodec.createByCodecName(profile.getAudioCodecName());
+            } else {
+                mAudioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
+            }
             mAudioEncoder.configure(mAudioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        } catch (IOException e) {
+        } catch (Exception e) {
             e.printStackTrace();
+            releaseCodec(mAudioEncoder);
             mAudioFormat = null;
             mAudioEncoder = null;
             return false;
         }
 
         mAudioBufInfo = new MediaCodec.BufferInfo();
-        mAudioPts = 0;
+        mAudioInputStage = new WeAudioInputStage(mAudioEncoder, mAudioSampleRate,
+                mAudioChannelNums, mAudioBitsPerSample, AUDIO_INPUT_BUFFER_MILLS);
         return true;
     }
 
@@ -295,6 +377,24 @@ public abstract class WeGLVideoPushEncoder {
         mGLThread.requestRender();
     }
 
+    public WeLifecycle.State getState() {
+        return mLifecycle.getState();
+    }
+
+    /**
+     * 最近一次开始推流编码的耗时，单位：毫秒
+     */
+    public long getLastStartLatencyMills() {
+        return mLifecycle.getLastStartLatencyMills();
+    }
+
+    /**
+     * 最近一次停止推流编码的耗时（等待各线程退出并释放编码器），单位：毫秒
+     */
+    public long getLastStopLatencyMills() {
+        return mLifecycle.getLastStopLatencyMills();
+    }
+
     /**
      * 获取当前已编码时长，单位：毫秒
      */
@@ -302,6 +402,70 @@ public abstract class WeGLVideoPushEncoder {
         return mEncodeTimeMills;
     }
 
+    /**
+     * 按比例调整视频码率（相对编码参数中的码率），编码中立即生效，不重建编码器，之后开始的编码也沿用
+     */
+    public void setVideoBitrateScale(float scale) {
+        mVideoBitrateScale = Math.max(0.1f, Math.min(1f, scale));
+        if (mLifecycle.isActive()) {
+            applyVideoBitrate();
+        }
+    }
+
+    private void applyVideoBitrate() {
+        MediaCodec codec = mVideoEncoder;
+        MediaFormat format = mVideoFormat;
+        if (codec == null || format == null || !format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            return;
+        }
+        int bitrate = (int) (format.getInteger(MediaFormat.KEY_BIT_RATE) * mVideoBitrateScale);
+        LogUtils.w(TAG, mExternalTag + "applyVideoBitrate " + bitrate);
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            codec.setParameters(params);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void recordEncodeLag(long ptsUs) {
+        long lagUs = System.nanoTime() / 1000 - ptsUs;
+        if (lagUs >= 0) {
+            mEncodeLagUs = (mEncodeLagUs * 7 + lagUs) / 8;
+        }
+    }
+
+    public long getEncodeLagMills() {
+        return mEncodeLagUs / 1000;
+    }
+
+    /**
+     * 作为附加输出时返回宿主渲染线程的统计
+     *
+     * @see WeGLThread#getRenderTicks()
+     */
+    public long getRenderTicks() {
+        WeGLThread glThread = mGLThread;
+        if (glThread != null) {
+            return glThread.getRenderTicks();
+        }
+        WeGLVideoEncoder host = mActiveRenditionHost;
+        return host != null ? host.getRenderTicks() : 0;
+    }
+
+    /**
+     * @see WeGLThread#getDeadlineMisses()
+     */
+    public long getRenderDeadlineMisses() {
+        WeGLThread glThread = mGLThread;
+        if (glThread != null) {
+            return glThread.getDeadlineMisses();
+        }
+        WeGLVideoEncoder host = mActiveRenditionHost;
+        return host != null ? host.getRenderDeadlineMisses() : 0;
+    }
+
     public byte[] getSPS() {
         return mSPS;
     }
@@ -322,57 +486,70 @@ public abstract class WeGLVideoPushEncoder {
 
     private void handleStopEncode() {
         LogUtils.w(TAG, mExternalTag + "handleStopEncode");
-        if (!isRecording) {
+        if (!mLifecycle.isActive()) {
             LogUtils.w(TAG, "No need to stop encoder again: it's already stopped!");
             return;
         }
-        isRecording = false;
+        mLifecycle.moveTo(WeLifecycle.State.STOPPING);
 
-        isGLThreadExiting = false;
+        int waitCount = (mGLThread != null ? 1 : 0) + (mVideoEncodeThread != null ? 1 : 0)
+                + (mAudioEncodeThread != null ? 1 : 0)
+                + (mRendition != null && mActiveRenditionHost != null ? 1 : 0);
+        final CountDownLatch exitLatch = new CountDownLatch(waitCount);
         if (mGLThread != null) {
-            isGLThreadExiting = true;
             mGLThread.requestExit(new WeGLThread.OnExitedListener() {
                 @Override
                 public void onExited(WeGLThread glThread) {
                     LogUtils.w(TAG, mExternalTag + "mGLThread onExited: " + glThread.hashCode());
-                    isGLThreadExiting = false;
+                    exitLatch.countDown();
                 }
             });
         }
 
-        isVideoEncThreadExiting = false;
         if (mVideoEncodeThread != null) {
-            isVideoEncThreadExiting = true;
             mVideoEncodeThread.requestExit(new OnThreadExitedListener() {
                 @Override
                 public void onExited(Thread thread) {
                     LogUtils.w(TAG, mExternalTag + "mVideoEncodeThread onExited: " + thread.hashCode());
-                    isVideoEncThreadExiting = false;
+                    exitLatch.countDown();
                 }
             });
         }
 
-        isAudioEncThreadExiting = false;
         if (mAudioEncodeThread != null) {
-            isAudioEncThreadExiting = true;
             mAudioEncodeThread.requestExit(new OnThreadExitedListener() {
                 @Override
                 public void onExited(Thread thread) {
                     LogUtils.w(TAG, mExternalTag + "mAudioEncodeThread onExited: " + thread.hashCode());
-                    isAudioEncThreadExiting = false;
+                    exitLatch.countDown();
                 }
             });
         }
 
-        while (isGLThreadExiting || isVideoEncThreadExiting || isAudioEncThreadExiting) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        if (mRendition != null && mActiveRenditionHost != null) {
+            mActiveRenditionHost.removeRendition(mRendition, new WeGLThread.OnRenditionRemovedListener() {
+                @Override
+                public void onRemoved(WeGLRendition rendition) {
+                    LogUtils.w(TAG, mExternalTag + "rendition removed from host");
+                    exitLatch.countDown();
+                }
+            });
         }
+
+        WeLifecycle.awaitExit(exitLatch, mExternalTag + "push encoder");
+        releaseAudioInputStage();
         releaseOnGLThreadExit();
         releaseOnMediaEncThreadExit();
+        mLifecycle.moveTo(WeLifecycle.State.IDLE);
+    }
+
+    private void releaseAudioInputStage() {
+        WeAudioInputStage stage = mAudioInputStage;
+        mAudioInputStage = null;
+        if (stage != null) {
+            stage.quit();
+            LogUtils.w(TAG, mExternalTag + "audio input dropped samples: " + stage.getDroppedSamples());
+        }
     }
 
     private void releaseOnGLThreadExit() {
@@ -380,6 +557,8 @@ public abstract class WeGLVideoPushEncoder {
         mShareContext = null;
         mRenderer = null;
         mGLThread = null;
+        mRendition = null;
+        mActiveRenditionHost = null;
         mSurface = null;
     }
 
@@ -388,24 +567,10 @@ public abstract class WeGLVideoPushEncoder {
         mVideoEncodeThread = null;
         mAudioEncodeThread = null;
 
-        if (mVideoEncoder != null) {
-            try {
-                mVideoEncoder.stop();
-                mVideoEncoder.release();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            mVideoEncoder = null;
-        }
-        if (mAudioEncoder != null) {
-            try {
-                mAudioEncoder.stop();
-                mAudioEncoder.release();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            mAudioEncoder = null;
-        }
+        releaseCodec(mVideoEncoder);
+        mVideoEncoder = null;
+        releaseCodec(mAudioEncoder);
+        mAudioEncoder = null;
         mVideoFormat = null;
         mVideoBufInfo = null;
         mAudioFormat = null;
@@ -421,6 +586,23 @@ public abstract class WeGLVideoPushEncoder {
         mEncodeTimeMills = 0;
     }
 
+    private void releaseCodec(MediaCodec codec) {
+        if (codec == null) {
+            return;
+        }
+        try {
+            // 未启动的编码器 stop 可能抛异常，不影响后续 release
+            codec.stop();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        try {
+            codec.release();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     protected void release() {
         if (isReleased) {
             return;
@@ -436,6 +618,7 @@ public abstract class WeGLVideoPushEncoder {
 
     private void handleRelease() {
         handleStopEncode();
+        mLifecycle.moveTo(WeLifecycle.State.RELEASED);
 
         mWorkHandler.removeCallbacksAndMessages(null);
         try {
@@ -453,6 +636,15 @@ public abstract class WeGLVideoPushEncoder {
         void onExited(Thread thread);
     }
 
+    public interface OnEncodeErrorListener {
+        /**
+         * 在编码内部线程中回调
+         *
+         * @param code 见 ERROR_ 开头的常量
+         */
+        void onEncodeError(int code, String msg);
+    }
+
     public interface OnEncodeDataListener {
         void onVideoDataCall(byte[] data, int size, boolean isKeyframe);
 
@@ -511,6 +703,56 @@ public abstract class WeGLVideoPushEncoder {
             return encoder.mRenderer;
         }
 
+        @Override
+        protected void onFrameSwapped(long swapStartNs) {
+            // 编码 Surface 上的帧以提交时刻作为 pts，记录下来用于对应编码输出的采集时间
+            LatencyTracer.getInstance().onEncoderFrameSwapped(LatencyTracer.Pipeline.PUSH, swapStartNs);
+        }
+
+    }
+
+    /**
+     * 由宿主编码器渲染线程绘制的附加输出
+     */
+    static class Rendition implements WeGLRendition {
+
+        private WeakReference<WeGLVideoPushEncoder> mWeakReference;
+        private int mWidth;
+        private int mHeight;
+
+        public Rendition(WeakReference<WeGLVideoPushEncoder> reference, int width, int height) {
+            this.mWeakReference = reference;
+            this.mWidth = width;
+            this.mHeight = height;
+        }
+
+        @Override
+        public Surface getRenditionSurface() {
+            WeGLVideoPushEncoder encoder = mWeakReference.get();
+            return encoder != null ? encoder.mSurface : null;
+        }
+
+        @Override
+        public int getRenditionWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getRenditionHeight() {
+            return mHeight;
+        }
+
+        @Override
+        public WeGLRenderer getRenditionRenderer() {
+            WeGLVideoPushEncoder encoder = mWeakReference.get();
+            return encoder != null ? encoder.mRenderer : null;
+        }
+
+        @Override
+        public void onRenditionFrameSwapped(long swapStartNs) {
+            LatencyTracer.getInstance().onEncoderFrameSwapped(LatencyTracer.Pipeline.PUSH, swapStartNs);
+        }
+
     }
 
     /**
@@ -530,8 +772,8 @@ public abstract class WeGLVideoPushEncoder {
         private int mOutputBufIndex;
         private long mStartPts = 0;
 
-        private boolean isShouldExit;
-        private boolean isExited;
+        private volatile boolean isShouldExit;
+        private boolean isExited;// 与 mOnExitedListener 一起由 this 锁保护，保证退出回调只执行一次
         // For video avc
         private boolean isKeyframe;
 
@@ -576,12 +818,24 @@ public abstract class WeGLVideoPushEncoder {
 
         private void guardedRun() {
             mEncoder.start();
+            if (mMediaType == TYPE_VIDEO) {
+                WeGLVideoPushEncoder master = mWeakReference.get();
+                if (master != null) {
+                    master.mEncodeLagUs = 0;
+                    if (master.mVideoBitrateScale < 1f) {
+                        master.applyVideoBitrate();
+                    }
+                }
+            }
             if (mMediaType == TYPE_AUDIO) {
                 WeGLVideoPushEncoder master = mWeakReference.get();
                 if (master == null) {
                     LogUtils.e(mTag, "WeGLVideoPushEncoder got from mWeakReference is null, so exit!");
                     return;
                 }
+                if (master.mAudioInputStage != null) {
+                    master.mAudioInputStage.start();
+                }
                 master.isAudioEncoderStarted = true;
             } else {
                 isKeyframe = false;
@@ -622,6 +876,11 @@ public abstract class WeGLVideoPushEncoder {
 
                             if (mMediaType == TYPE_VIDEO) {
                                 isKeyframe = mBufInfo.flags == MediaCodec.BUFFER_FLAG_KEY_FRAME;
+                                LatencyTracer.getInstance().onFrameEncoded(LatencyTracer.Pipeline.PUSH,
+                                        mBufInfo.presentationTimeUs);
+                                if ((mBufInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                                    master.recordEncodeLag(mBufInfo.presentationTimeUs);
+                                }
                             }
 
                             if (mStartPts == 0) {
@@ -638,6 +897,10 @@ public abstract class WeGLVideoPushEncoder {
                                 mEncodeBytes = new byte[mEncodeSize];
                             }
                             outBuffer.get(mEncodeBytes, 0, mEncodeSize);
+                            if (mMediaType == TYPE_VIDEO
+                                    && master.mFrameSizeStats.record(mEncodeSize, isKeyframe)) {
+                                LogUtils.d(mTag, "video frame size: " + master.mFrameSizeStats.getLastSummary());
+                            }
                             mOnEncodeDataListener = master.mOnEncodeDataListener;
                             if (mOnEncodeDataListener != null) {
                                 if (mMediaType == TYPE_VIDEO) {
@@ -658,13 +921,15 @@ public abstract class WeGLVideoPushEncoder {
         }
 
         public void requestExit(OnThreadExitedListener listener) {
-            this.mOnExitedListener = listener;
-            if (isExited) {
-                if (mOnExitedListener != null) {
-                    mOnExitedListener.onExited(this);
+            synchronized (this) {
+                this.mOnExitedListener = listener;
+                if (!isExited) {
+                    isShouldExit = true;
+                    return;
                 }
-            } else {
-                isShouldExit = true;
+            }
+            if (listener != null) {
+                listener.onExited(this);
             }
         }
 
@@ -677,39 +942,45 @@ public abstract class WeGLVideoPushEncoder {
             mEncodeBytes = null;
             mOnEncodeDataListener = null;
 
-            isExited = true;
-            if (mOnExitedListener != null) {
-                mOnExitedListener.onExited(this);
+            OnThreadExitedListener listener;
+            synchronized (this) {
+                isExited = true;
+                listener = mOnExitedListener;
+            }
+            if (listener != null) {
+                listener.onExited(this);
             }
         }
 
     }
 
+    /**
+     * 获取最近一个统计窗口（{@value #FRAME_SIZE_STATS_WINDOW} 帧）的视频帧大小统计结果，
+     * 包括平均值、标准差、最大帧与平均值之比，可用于对比不同编码模式的码率波动
+     */
+    public String getFrameSizeSummary() {
+        return mFrameSizeStats.getLastSummary();
+    }
+
+    /**
+     * 获取本次推流因编码器来不及处理而丢弃的音频采样数
+     */
+    public long getDroppedAudioSamples() {
+        WeAudioInputStage stage = mAudioInputStage;
+        return stage != null ? stage.getDroppedSamples() : 0;
+    }
+
+    /**
+     * 只把数据写入环形缓冲区，不调用编码器，不会阻塞录音回调线程
+     */
     protected void onAudioPCMDataCall(byte[] pcmData, int size) {
-        if (!needEncodeAudio || !isRecording || mAudioEncoder == null || !isAudioEncoderStarted
+        if (!needEncodeAudio || !mLifecycle.isActive() || mAudioEncoder == null || !isAudioEncoderStarted
                 || pcmData == null || size <= 0) {
             return;
         }
-        try {
-            // 获取输入 buffer，不超时等待
-            int inputBufferIndex = mAudioEncoder.dequeueInputBuffer(10 * 1000);
-            if (inputBufferIndex < 0) {
-                LogUtils.e(TAG, "onAudioPCMDataCall dequeueInputBuffer failed ret=" + inputBufferIndex);
-                return;
-            }
-
-            // 成功获取输入 buffer后，填入要处理的数据
-            ByteBuffer inputBuffer = mAudioEncoder.getInputBuffers()[inputBufferIndex];
-            inputBuffer.clear();
-            inputBuffer.put(pcmData);
-
-            // 提交数据并释放输入 buffer
-            mAudioPts += (long) (1.0f * size / mAudioBytesPerSecond * 1000000);
-            mAudioEncoder.queueInputBuffer(
-                    inputBufferIndex, 0, size, mAudioPts, 0);
-        } catch (Exception e) {
-            LogUtils.e(TAG, "onAudioPCMDataCall exception: " + e.toString());
-            e.printStackTrace();
+        WeAudioInputStage stage = mAudioInputStage;
+        if (stage != null) {
+            stage.write(pcmData, Math.min(size, pcmData.length));
         }
     }
 
@@ -0,0 +1,222 @@
+package com.wtz.libvideomaker.encoder;
+
+import android.media.MediaCodec;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 音频编码输入环节：录音回调线程把 PCM 写入无锁环形缓冲区后立即返回，本线程独占音频编码器的所有输入调用，
+ * 按编码器输入 buffer 的容量分块送入编码器。
+ * <p>
+ * 1.环形缓冲区单生产者单消费者，生产者只推进写计数，消费者只推进读计数，双方都不加锁不等待，
+ * 不会因为编码器繁忙阻塞 OpenSL 等实时回调导致采集溢出；
+ * 2.时间戳由 64 位采样计数换算，不做浮点累加，长时间录制也不会漂移；
+ * 3.缓冲区满时丢弃新写入的数据（读位置只能由消费者推进，无法丢弃最旧的），
+ * 每次丢弃按（位置，字节数）记入缺口队列，本线程读到缺口处时把丢弃的采样数计入时间戳，
+ * 缺口之后的音频仍与视频对齐，多次丢弃互不影响。
+ */
+public class WeAudioInputStage extends Thread {
+    private static final String TAG = "WeAudioInputStage";
+
+    private static final long DEQUEUE_TIMEOUT_US = 10 * 1000;
+    private static final long IDLE_PARK_NS = 5 * 1000 * 1000;// 缓冲区为空时的轮询间隔，远小于一个 AAC 帧的时长
+    private static final int MAX_GAPS = 32;// 本线程没来得及处理的缺口数上限，满了以后写入的数据也丢弃
+
+    private MediaCodec mCodec;
+    private int mSampleRate;
+    private int mBytesPerFrame;// 每个采样帧（所有声道）的字节数
+
+    private final byte[] mRing;
+    private final AtomicLong mWriteCount = new AtomicLong();// 累计写入字节数，只由生产者修改
+    private final AtomicLong mReadCount = new AtomicLong();// 累计读取字节数，只由消费者修改
+
+    // 缺口队列，同样是单生产者单消费者：位置为丢弃发生时的写计数
+    private final long[] mGapPositions = new long[MAX_GAPS];
+    private final long[] mGapBytes = new long[MAX_GAPS];
+    private final AtomicLong mGapTail = new AtomicLong();// 只由生产者修改
+    private final AtomicLong mGapHead = new AtomicLong();// 只由消费者修改
+    // 生产者：还没有写入缺口队列的丢弃字节数，位置总是当前写计数，下次成功写入前入队
+    private long mPendingGapBytes;
+
+    private final AtomicLong mDroppedBytes = new AtomicLong();
+
+    private long mConsumedSamples;// 已送入编码器和已丢弃的采样数，用于计算时间戳，只由本线程访问
+    private volatile boolean isShouldExit;
+
+    /**
+     * @param ringMills 环形缓冲区可缓存的时长，单位：毫秒
+     */
+    public WeAudioInputStage(MediaCodec codec, int sampleRate, int channelNums, int bitsPerSample, int ringMills) {
+        super("AudioInputStage");
+        this.mCodec = codec;
+        this.mSampleRate = sampleRate;
+        this.mBytesPerFrame = channelNums * bitsPerSample / 8;
+        long ringFrames = Math.max(1, (long) sampleRate * ringMills / 1000);
+        mRing = new byte[(int) ringFrames * mBytesPerFrame];
+    }
+
+    /**
+     * 录音回调线程调用，只做内存拷贝，不加锁不等待；丢弃时只计数，不在回调线程打印日志
+     */
+    public void write(byte[] pcmData, int size) {
+        size -= size % mBytesPerFrame;
+        if (size <= 0) {
+            return;
+        }
+        long writeCount = mWriteCount.get();
+        int free = mRing.length - (int) (writeCount - mReadCount.get());
+        int toWrite = Math.min(size, free);
+        toWrite -= toWrite % mBytesPerFrame;
+
+        if (toWrite > 0 && mPendingGapBytes > 0) {
+            // 缺口必须先于其后的数据发布，消费者才不会把缺口前后的数据连在一起
+            if (offerGap(writeCount, mPendingGapBytes)) {
+                mPendingGapBytes = 0;
+            } else {
+                toWrite = 0;
+            }
+        }
+
+        if (toWrite > 0) {
+            int writePos = (int) (writeCount % mRing.length);
+            int first = Math.min(toWrite, mRing.length - writePos);
+            System.arraycopy(pcmData, 0, mRing, writePos, first);
+            if (first < toWrite) {
+                System.arraycopy(pcmData, first, mRing, 0, toWrite - first);
+            }
+            // 数据拷贝完成后再发布写计数
+            mWriteCount.lazySet(writeCount + toWrite);
+        }
+
+        int dropped = size - toWrite;
+        if (dropped > 0) {
+            mPendingGapBytes += dropped;
+            mDroppedBytes.addAndGet(dropped);
+        }
+    }
+
+    private boolean offerGap(long position, long bytes) {
+        long tail = mGapTail.get();
+        if (tail - mGapHead.get() >= MAX_GAPS) {
+            return false;
+        }
+        int index = (int) (tail % MAX_GAPS);
+        mGapPositions[index] = position;
+        mGapBytes[index] = bytes;
+        mGapTail.set(tail + 1);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        LogUtils.w(TAG, "input stage thread starting tid=" + android.os.Process.myTid());
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO);
+        while (!isShouldExit) {
+            try {
+                feed();
+            } catch (Exception e) {
+                LogUtils.e(TAG, "feed exception: " + e.toString());
+                if (isShouldExit) {
+                    break;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NS);
+            }
+        }
+        mCodec = null;
+        LogUtils.w(TAG, "input stage thread end tid=" + android.os.Process.myTid()
+                + ", dropped samples " + getDroppedSamples());
+    }
+
+    private void feed() {
+        // 先读写计数再读缺口队列：生产者先发布缺口再发布其后的数据，看到数据就一定能看到它前面的缺口
+        long writeCount = mWriteCount.get();
+        long readCount = mReadCount.get();
+        long gapHead = mGapHead.get();
+        long gapTail = mGapTail.get();
+        while (gapHead < gapTail) {
+            int index = (int) (gapHead % MAX_GAPS);
+            if (mGapPositions[index] > readCount) {
+                break;
+            }
+            mConsumedSamples += mGapBytes[index] / mBytesPerFrame;
+            gapHead++;
+            mGapHead.set(gapHead);
+        }
+
+        long readable = writeCount - readCount;
+        if (gapHead < gapTail) {
+            // 只读到下一个缺口处，之后的数据要先补上缺口的时长
+            readable = Math.min(readable, mGapPositions[(int) (gapHead % MAX_GAPS)] - readCount);
+        }
+        readable -= readable % mBytesPerFrame;
+        if (readable <= 0) {
+            LockSupport.parkNanos(this, IDLE_PARK_NS);
+            return;
+        }
+
+        int index = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+        if (index < 0) {
+            return;
+        }
+        ByteBuffer inputBuffer = mCodec.getInputBuffers()[index];
+        inputBuffer.clear();
+        int size = (int) Math.min(readable, inputBuffer.remaining());
+        size -= size % mBytesPerFrame;
+        if (size <= 0) {
+            // 输入 buffer 连一帧都放不下，不应该出现
+            mCodec.queueInputBuffer(index, 0, 0, getPtsUs(), 0);
+            return;
+        }
+
+        int readPos = (int) (readCount % mRing.length);
+        int first = Math.min(size, mRing.length - readPos);
+        inputBuffer.put(mRing, readPos, first);
+        if (first < size) {
+            inputBuffer.put(mRing, 0, size - first);
+        }
+        mCodec.queueInputBuffer(index, 0, size, getPtsUs(), 0);
+        mReadCount.lazySet(readCount + size);
+        mConsumedSamples += size / mBytesPerFrame;
+    }
+
+    private long getPtsUs() {
+        return mConsumedSamples * 1000000 / mSampleRate;
+    }
+
+    /**
+     * 通知线程退出并等待其结束，之后才可以停止编码器；线程没有启动过时直接返回
+     */
+    public void quit() {
+        isShouldExit = true;
+        if (!isAlive()) {
+            mCodec = null;
+            return;
+        }
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 获取因缓冲区溢出而丢弃的采样数
+     */
+    public long getDroppedSamples() {
+        return mDroppedBytes.get() / mBytesPerFrame;
+    }
+
+    /**
+     * 获取缓冲区中等待送入编码器的数据时长，单位：毫秒
+     */
+    public long getPendingMills() {
+        long pendingBytes = mWriteCount.get() - mReadCount.get();
+        return pendingBytes / mBytesPerFrame * 1000 / mSampleRate;
+    }
+
+}
@@ -0,0 +1,293 @@
+package com.wtz.libvideomaker.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+import android.os.Build;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.WePboReader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * 视频编码器 ByteBuffer 输入的送数线程，用于 Surface 输入不可用的设备。
+ * <p>
+ * 编码渲染线程每帧绘制完成后调用 {@link #readback(long)} 读回画面：
+ * GLES 3.0 上通过 {@link WePboReader} 读到两个轮流使用的 PBO 中，发起读回的一帧不等待，之后的帧里 GPU 完成后再拷到空闲的 RGBA 缓冲区；
+ * GLES 2.0 上直接 glReadPixels 到空闲的 RGBA 缓冲区。渲染线程不等待 GPU 和编码器，来不及处理时丢弃该帧；
+ * 本线程取出已读回的缓冲区，在 native 中转换成编码器需要的 YUV 布局后直接写入编码器输入 buffer。
+ */
+public class WeBufferInputFeeder extends Thread {
+    private static final String TAG = "WeBufferInputFeeder";
+
+    private static final int RGBA_BUFFER_COUNT = 2;
+    private static final int PBO_COUNT = 2;
+    private static final long DEQUEUE_TIMEOUT_US = 10 * 1000;
+    private static final String KEY_STRIDE = "stride";
+    private static final String KEY_SLICE_HEIGHT = "slice-height";
+
+    private MediaCodec mCodec;
+    private int mWidth;
+    private int mHeight;
+    private int mStride;
+    private int mSliceHeight;
+    private WeYuvConverter.YuvFormat mYuvFormat;
+
+    private final Object mLock = new Object();
+    private final ByteBuffer[] mRgbaBuffers = new ByteBuffer[RGBA_BUFFER_COUNT];
+    private final long[] mPtsUs = new long[RGBA_BUFFER_COUNT];
+    private final ArrayDeque<Integer> mFreeIndexes = new ArrayDeque<>();
+    private final ArrayDeque<Integer> mReadyIndexes = new ArrayDeque<>();
+
+    // 以下只在编码渲染线程中访问
+    private boolean isGLPrepared;
+    private WePboReader mPboReader;
+    private boolean isPboSupported;
+
+    private volatile long mDroppedFrames;
+    private long mConvertedFrames;
+    private long mConvertTotalNs;
+    private volatile boolean isShouldExit;
+
+    /**
+     * 需在编码器 start 之后创建，此时才能获取到编码器实际的输入行跨度和行数
+     */
+    public WeBufferInputFeeder(MediaCodec codec, int width, int height, WeYuvConverter.YuvFormat yuvFormat) {
+        super("BufferInputFeeder");
+        this.mCodec = codec;
+        this.mWidth = width;
+        this.mHeight = height;
+        this.mYuvFormat = yuvFormat;
+        this.mStride = width;
+        this.mSliceHeight = height;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                MediaFormat inputFormat = codec.getInputFormat();
+                if (inputFormat.containsKey(KEY_STRIDE)) {
+                    mStride = Math.max(width, inputFormat.getInteger(KEY_STRIDE));
+                }
+                if (inputFormat.containsKey(KEY_SLICE_HEIGHT)) {
+                    mSliceHeight = Math.max(height, inputFormat.getInteger(KEY_SLICE_HEIGHT));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        for (int i = 0; i < RGBA_BUFFER_COUNT; i++) {
+            mRgbaBuffers[i] = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+            mFreeIndexes.offer(i);
+        }
+        LogUtils.w(TAG, "created " + width + "x" + height + " " + yuvFormat
+                + ", stride=" + mStride + ", sliceHeight=" + mSliceHeight);
+    }
+
+    /**
+     * 编码渲染线程每帧绘制完成后调用，读回当前画面
+     *
+     * @param ptsUs 该帧的时间戳，与 Surface 输入时的帧时间戳同一时钟
+     * @return 是否已发起读回，GPU 或编码器来不及处理时丢弃该帧并返回 false
+     */
+    public boolean readback(long ptsUs) {
+        if (isShouldExit) {
+            return false;
+        }
+        if (!isGLPrepared) {
+            prepareGL();
+        }
+        if (isPboSupported) {
+            return readbackToPbo(ptsUs);
+        }
+
+        Integer index;
+        synchronized (mLock) {
+            index = mFreeIndexes.poll();
+        }
+        if (index == null) {
+            // 编码器来不及处理，丢帧而不阻塞渲染
+            mDroppedFrames++;
+            return false;
+        }
+
+        ByteBuffer buffer = mRgbaBuffers[index];
+        buffer.clear();
+        GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+        mPtsUs[index] = ptsUs;
+
+        synchronized (mLock) {
+            mReadyIndexes.offer(index);
+            mLock.notifyAll();
+        }
+        return true;
+    }
+
+    private void prepareGL() {
+        isGLPrepared = true;
+        mPboReader = new WePboReader(TAG, PBO_COUNT);
+        isPboSupported = mPboReader.prepare();
+        LogUtils.w(TAG, "prepareGL pbo=" + isPboSupported);
+    }
+
+    private boolean readbackToPbo(long ptsUs) {
+        // 先收取之前帧已完成的读回
+        collectPbos(false);
+        if (mPboReader.isFull()) {
+            // GPU 还没完成最早的读回，或者编码器还没空出 RGBA 缓冲区，丢帧而不阻塞渲染
+            mDroppedFrames++;
+            return false;
+        }
+        mPboReader.issueRead(mWidth, mHeight, ptsUs, null);
+        return true;
+    }
+
+    /**
+     * 按发起顺序收取已完成的读回，拷到空闲的 RGBA 缓冲区交给本线程转换
+     *
+     * @param isWait 为 false 时 GPU 未完成或没有空闲缓冲区就留到下一帧；为 true 时等待 GPU 完成，没有空闲缓冲区的丢弃
+     */
+    private void collectPbos(boolean isWait) {
+        while (mPboReader.pollOldest(isWait)) {
+            Integer index;
+            synchronized (mLock) {
+                index = mFreeIndexes.poll();
+            }
+            if (index == null) {
+                if (!isWait) {
+                    return;
+                }
+                mPboReader.finishOldest();
+                mDroppedFrames++;
+                continue;
+            }
+
+            ByteBuffer buffer = mRgbaBuffers[index];
+            buffer.clear();
+            ByteBuffer mapped = mPboReader.mapOldest();
+            if (mapped != null) {
+                buffer.put(mapped);
+                buffer.position(0);
+            }
+            long ptsUs = mPboReader.getOldestTimestamp();
+            mPboReader.finishOldest();
+
+            synchronized (mLock) {
+                if (mapped != null) {
+                    mPtsUs[index] = ptsUs;
+                    mReadyIndexes.offer(index);
+                    mLock.notifyAll();
+                } else {
+                    mFreeIndexes.offer(index);
+                    mDroppedFrames++;
+                }
+            }
+        }
+    }
+
+    /**
+     * 编码渲染线程销毁 EGL 环境前调用：等待未完成的读回交给本线程，并删除 PBO
+     */
+    public void releaseGL() {
+        if (!isPboSupported || mPboReader == null) {
+            return;
+        }
+        collectPbos(true);
+        mPboReader.release();
+        mPboReader = null;
+        isPboSupported = false;
+    }
+
+    @Override
+    public void run() {
+        LogUtils.w(TAG, "feeder thread starting tid=" + android.os.Process.myTid());
+        while (true) {
+            Integer index;
+            synchronized (mLock) {
+                while (mReadyIndexes.isEmpty() && !isShouldExit) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                index = mReadyIndexes.peek();
+            }
+            if (index == null) {
+                // 已通知退出且读回的帧都已送完
+                break;
+            }
+
+            try {
+                if (!feed(index)) {
+                    if (isShouldExit) {
+                        // 退出时编码器没有空闲输入 buffer 就不再等待，丢弃剩下的帧
+                        break;
+                    }
+                    continue;
+                }
+            } catch (Exception e) {
+                LogUtils.e(TAG, "feed exception: " + e.toString());
+                if (isShouldExit) {
+                    break;
+                }
+            }
+
+            synchronized (mLock) {
+                mReadyIndexes.poll();
+                mFreeIndexes.offer(index);
+            }
+        }
+        mCodec = null;
+        LogUtils.w(TAG, "feeder thread end tid=" + android.os.Process.myTid() + ", converted frames "
+                + mConvertedFrames + ", avg " + (mConvertedFrames > 0 ? mConvertTotalNs / mConvertedFrames / 1000 : 0)
+                + "us, dropped frames " + mDroppedFrames);
+    }
+
+    /**
+     * @return 是否已送入编码器，没有空闲输入 buffer 时返回 false，下次重试
+     */
+    private boolean feed(int index) {
+        int inputIndex = mCodec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+        if (inputIndex < 0) {
+            return false;
+        }
+        ByteBuffer inputBuffer = mCodec.getInputBuffers()[inputIndex];
+        inputBuffer.clear();
+
+        long startNs = System.nanoTime();
+        int size = -1;
+        if (inputBuffer.capacity() >= WeYuvConverter.getYuv420Size(mStride, mSliceHeight)) {
+            size = WeYuvConverter.rgbaToYuv420(mRgbaBuffers[index], mWidth, mHeight, true,
+                    inputBuffer, 0, mStride, mSliceHeight, mYuvFormat);
+        } else {
+            LogUtils.e(TAG, "input buffer too small: " + inputBuffer.capacity());
+        }
+        mConvertTotalNs += System.nanoTime() - startNs;
+        mConvertedFrames++;
+
+        // 转换失败也要把输入 buffer 还给编码器
+        mCodec.queueInputBuffer(inputIndex, 0, Math.max(size, 0), mPtsUs[index], 0);
+        return true;
+    }
+
+    /**
+     * 通知线程退出并等待其结束，已读回的帧会先送入编码器；需在编码渲染线程退出之后、编码器停止之前调用
+     */
+    public void quit() {
+        synchronized (mLock) {
+            isShouldExit = true;
+            mLock.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+}
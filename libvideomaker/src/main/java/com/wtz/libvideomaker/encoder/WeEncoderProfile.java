@@ -0,0 +1,634 @@
+package com.wtz.libvideomaker.encoder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Range;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.util.Objects;
+
+/**
+ * 音视频编码参数配置：编码格式、码率模式、码率、帧率、关键帧间隔、B 帧、Profile 等。
+ * <p>
+ * 使用前需调用 {@link #resolveVideo(int, int)} / {@link #resolveAudio(int, int)}，
+ * 根据 MediaCodecList 查询到的设备编码能力校验各参数，不支持的配置会自动降级：
+ * HEVC -> AVC，High -> Main -> Baseline，CQ/CBR -> VBR -> 编码器默认，码率和帧率截断到支持的范围内。
+ */
+public class WeEncoderProfile {
+    private static final String TAG = "WeEncoderProfile";
+
+    public enum VideoCodec {
+        AVC(MediaFormat.MIMETYPE_VIDEO_AVC), HEVC(MediaFormat.MIMETYPE_VIDEO_HEVC);
+
+        private String mimeType;
+
+        VideoCodec(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public static VideoCodec fromMimeType(String mimeType) {
+            return HEVC.mimeType.equals(mimeType) ? HEVC : AVC;
+        }
+    }
+
+    public enum BitrateMode {
+        CQ(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CQ),
+        VBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_VBR),
+        CBR(MediaCodecInfo.EncoderCapabilities.BITRATE_MODE_CBR);
+
+        private int codecValue;
+
+        BitrateMode(int codecValue) {
+            this.codecValue = codecValue;
+        }
+
+        public int getCodecValue() {
+            return codecValue;
+        }
+    }
+
+    public enum AvcProfile {
+        BASELINE(MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline),
+        MAIN(MediaCodecInfo.CodecProfileLevel.AVCProfileMain),
+        HIGH(MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
+
+        private int codecValue;
+
+        AvcProfile(int codecValue) {
+            this.codecValue = codecValue;
+        }
+
+        public int getCodecValue() {
+            return codecValue;
+        }
+    }
+
+    /**
+     * H.264 附录 A 表 A-1 中各 Level 的限制：每秒宏块数、每帧宏块数、Baseline/Main 的最大码率（kbps），
+     * High Profile 的最大码率为其 1.25 倍
+     */
+    private static final int[][] AVC_LEVEL_LIMITS = new int[][]{
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel1, 1485, 99, 64},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel11, 3000, 396, 192},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel12, 6000, 396, 384},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel13, 11880, 396, 768},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel2, 11880, 396, 2000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel21, 19800, 792, 4000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel22, 20250, 1620, 4000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel3, 40500, 1620, 10000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel31, 108000, 3600, 14000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel32, 216000, 5120, 20000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel4, 245760, 8192, 20000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel41, 245760, 8192, 50000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel42, 522240, 8704, 50000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel5, 589824, 22080, 135000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel51, 983040, 36864, 240000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel52, 2073600, 36864, 240000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel6, 4177920, 139264, 240000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel61, 8355840, 139264, 480000},
+            {MediaCodecInfo.CodecProfileLevel.AVCLevel62, 16711680, 139264, 800000},
+    };
+
+    // MediaFormat.KEY_LATENCY，API 30 才加入，当前 compileSdkVersion 为 29，直接使用字符串
+    private static final String KEY_LATENCY = "latency";
+    private static final int SDK_VERSION_R = 30;
+
+    public static final int DEFAULT_FRAME_RATE = 30;// 一般摄像头预览最大 30 帧每秒
+    public static final int DEFAULT_I_FRAME_INTERVAL = 1;// 关键帧间隔 1 秒
+    public static final int DEFAULT_AUDIO_BITRATE = 96000;
+
+    private VideoCodec mVideoCodec = VideoCodec.AVC;
+    private BitrateMode mBitrateMode;// 为空时使用编码器默认值
+    private int mVideoBitrate;// 小于等于 0 时按分辨率自动计算
+    private int mFrameRate = DEFAULT_FRAME_RATE;
+    private int mIFrameInterval = DEFAULT_I_FRAME_INTERVAL;
+    private int mMaxBFrames;
+    private AvcProfile mAvcProfile;// 为空时使用编码器默认值
+    private int mAvcLevel;// 校验时按分辨率、帧率和码率选定，0 表示不设置，使用编码器默认值
+    private int mQuality = -1;// CQ 模式下的质量，小于 0 时使用编码器默认值
+
+    // 低延时：用帧内刷新代替周期性 IDR，避免关键帧带来的码率尖峰
+    private int mIntraRefreshPeriod;// 帧内刷新周期，单位：帧，0 表示不使用
+    private int mIntraRefreshIFrameInterval;// 使用帧内刷新时的 IDR 间隔，单位：秒
+    private boolean isRealtime;// 实时优先级，编码器尽量不缓存帧
+
+    private int mAudioBitrate = DEFAULT_AUDIO_BITRATE;
+    private int mAacProfile = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+
+    // 校验后选定的编码器名称
+    private String mVideoCodecName;
+    private String mAudioCodecName;
+
+    public WeEncoderProfile() {
+    }
+
+    public WeEncoderProfile(WeEncoderProfile other) {
+        this.mVideoCodec = other.mVideoCodec;
+        this.mBitrateMode = other.mBitrateMode;
+        this.mVideoBitrate = other.mVideoBitrate;
+        this.mFrameRate = other.mFrameRate;
+        this.mIFrameInterval = other.mIFrameInterval;
+        this.mMaxBFrames = other.mMaxBFrames;
+        this.mAvcProfile = other.mAvcProfile;
+        this.mAvcLevel = other.mAvcLevel;
+        this.mQuality = other.mQuality;
+        this.mIntraRefreshPeriod = other.mIntraRefreshPeriod;
+        this.mIntraRefreshIFrameInterval = other.mIntraRefreshIFrameInterval;
+        this.isRealtime = other.isRealtime;
+        this.mAudioBitrate = other.mAudioBitrate;
+        this.mAacProfile = other.mAacProfile;
+        this.mVideoCodecName = other.mVideoCodecName;
+        this.mAudioCodecName = other.mAudioCodecName;
+    }
+
+    public void setVideoCodec(VideoCodec codec) {
+        this.mVideoCodec = codec != null ? codec : VideoCodec.AVC;
+    }
+
+    public VideoCodec getVideoCodec() {
+        return mVideoCodec;
+    }
+
+    public void setBitrateMode(BitrateMode mode) {
+        this.mBitrateMode = mode;
+    }
+
+    public BitrateMode getBitrateMode() {
+        return mBitrateMode;
+    }
+
+    /**
+     * @param bitrate 单位：bps，小于等于 0 时按分辨率自动计算
+     */
+    public void setVideoBitrate(int bitrate) {
+        this.mVideoBitrate = bitrate;
+    }
+
+    public int getVideoBitrate() {
+        return mVideoBitrate;
+    }
+
+    public void setFrameRate(int fps) {
+        this.mFrameRate = fps > 0 ? fps : DEFAULT_FRAME_RATE;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * @param seconds 关键帧间隔，单位：秒
+     */
+    public void setIFrameInterval(int seconds) {
+        this.mIFrameInterval = seconds;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    public void setMaxBFrames(int count) {
+        this.mMaxBFrames = Math.max(0, count);
+    }
+
+    public int getMaxBFrames() {
+        return mMaxBFrames;
+    }
+
+    public void setAvcProfile(AvcProfile profile) {
+        this.mAvcProfile = profile;
+    }
+
+    public AvcProfile getAvcProfile() {
+        return mAvcProfile;
+    }
+
+    /**
+     * 校验后选定的 AVC Level，0 表示不设置
+     */
+    public int getAvcLevel() {
+        return mAvcLevel;
+    }
+
+    /**
+     * CQ 码率模式下的编码质量，取值范围由编码器决定；Android 9 以下不支持 CQ，会降级为 VBR
+     */
+    public void setQuality(int quality) {
+        this.mQuality = quality;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * 设置帧内刷新（Gradual Decoder Refresh）：每 periodFrames 帧内逐步刷新完整画面，
+     * 不再每个 GOP 输出一个大的 IDR 帧，码率更平稳。设备不支持时回退到 {@link #setIFrameInterval(int)} 的周期性 IDR。
+     *
+     * @param periodFrames          刷新周期，单位：帧，小于等于 0 表示不使用
+     * @param idrIntervalSeconds    帧内刷新生效时的 IDR 间隔，单位：秒，供新加入的观众解码
+     */
+    public void setIntraRefresh(int periodFrames, int idrIntervalSeconds) {
+        this.mIntraRefreshPeriod = Math.max(0, periodFrames);
+        this.mIntraRefreshIFrameInterval = idrIntervalSeconds;
+    }
+
+    public int getIntraRefreshPeriod() {
+        return mIntraRefreshPeriod;
+    }
+
+    /**
+     * 设置实时编码：KEY_PRIORITY 为实时（Android 6.0 起），KEY_LATENCY 为 1 帧（Android 11 起）
+     */
+    public void setRealtime(boolean realtime) {
+        this.isRealtime = realtime;
+    }
+
+    public boolean isRealtime() {
+        return isRealtime;
+    }
+
+    /**
+     * @param bitrate 单位：bps
+     */
+    public void setAudioBitrate(int bitrate) {
+        this.mAudioBitrate = bitrate > 0 ? bitrate : DEFAULT_AUDIO_BITRATE;
+    }
+
+    public int getAudioBitrate() {
+        return mAudioBitrate;
+    }
+
+    /**
+     * @param aacProfile MediaCodecInfo.CodecProfileLevel.AACObjectXXX
+     */
+    public void setAacProfile(int aacProfile) {
+        this.mAacProfile = aacProfile;
+    }
+
+    public int getAacProfile() {
+        return mAacProfile;
+    }
+
+    public String getVideoCodecName() {
+        return mVideoCodecName;
+    }
+
+    public String getAudioCodecName() {
+        return mAudioCodecName;
+    }
+
+    public String getVideoMimeType() {
+        return mVideoCodec.getMimeType();
+    }
+
+    /**
+     * 未设置码率时按分辨率自动计算，并按帧率与 {@value #DEFAULT_FRAME_RATE} 帧的比例缩放，保持每帧的码率不变
+     */
+    public int getVideoBitrate(int width, int height) {
+        if (mVideoBitrate > 0) {
+            return mVideoBitrate;
+        }
+        return (int) ((long) width * height * 4 * mFrameRate / DEFAULT_FRAME_RATE);
+    }
+
+    /**
+     * 按设备视频编码能力校验参数，返回降级后的新配置，原配置不变
+     */
+    public WeEncoderProfile resolveVideo(int width, int height) {
+        WeEncoderProfile resolved = new WeEncoderProfile(this);
+
+        MediaCodecInfo info = findEncoder(resolved.getVideoMimeType());
+        if (info == null && resolved.mVideoCodec == VideoCodec.HEVC) {
+            LogUtils.w(TAG, "HEVC encoder not found, fall back to AVC");
+            resolved.mVideoCodec = VideoCodec.AVC;
+            info = findEncoder(resolved.getVideoMimeType());
+        }
+        if (info == null) {
+            LogUtils.e(TAG, "No encoder found for " + resolved.getVideoMimeType());
+            resolved.mVideoCodecName = null;
+            return resolved;
+        }
+
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(resolved.getVideoMimeType());
+        if (resolved.mVideoCodec == VideoCodec.HEVC && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && !caps.getVideoCapabilities().isSizeSupported(width, height)) {
+            LogUtils.w(TAG, "HEVC encoder not support " + width + "x" + height + ", fall back to AVC");
+            resolved.mVideoCodec = VideoCodec.AVC;
+            info = findEncoder(resolved.getVideoMimeType());
+            if (info == null) {
+                resolved.mVideoCodecName = null;
+                return resolved;
+            }
+            caps = info.getCapabilitiesForType(resolved.getVideoMimeType());
+        }
+        resolved.mVideoCodecName = info.getName();
+
+        // Profile 只对 AVC 生效，HEVC 使用编码器默认的 Main Profile
+        if (resolved.mVideoCodec == VideoCodec.AVC) {
+            while (resolved.mAvcProfile != null && !isProfileSupported(caps, resolved.mAvcProfile.getCodecValue())) {
+                AvcProfile fallback = resolved.mAvcProfile == AvcProfile.HIGH ? AvcProfile.MAIN
+                        : resolved.mAvcProfile == AvcProfile.MAIN ? AvcProfile.BASELINE : null;
+                LogUtils.w(TAG, "AVC profile " + resolved.mAvcProfile + " not supported, fall back to " + fallback);
+                resolved.mAvcProfile = fallback;
+            }
+        } else {
+            resolved.mAvcProfile = null;
+        }
+
+        // B 帧需要 API 29 的 KEY_MAX_B_FRAMES，且 Baseline 不支持 B 帧
+        if (resolved.mMaxBFrames > 0 && (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q
+                || resolved.mAvcProfile == AvcProfile.BASELINE
+                || (resolved.mVideoCodec == VideoCodec.AVC && resolved.mAvcProfile == null))) {
+            LogUtils.w(TAG, "B-frames not available, disable it");
+            resolved.mMaxBFrames = 0;
+        }
+
+        if (resolved.mIntraRefreshPeriod > 0 && (Build.VERSION.SDK_INT < Build.VERSION_CODES.N
+                || !caps.isFeatureSupported(MediaCodecInfo.CodecCapabilities.FEATURE_IntraRefresh))) {
+            LogUtils.w(TAG, "intra refresh not supported, fall back to periodic IDR");
+            resolved.mIntraRefreshPeriod = 0;
+        }
+        if (resolved.isRealtime && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            resolved.isRealtime = false;
+        }
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // 低版本无法查询和设置码率模式
+            resolved.mBitrateMode = null;
+            resolved.mQuality = -1;
+            return resolved;
+        }
+
+        if (resolved.mBitrateMode == BitrateMode.CQ && Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+            // KEY_QUALITY 在 Android 9 才加入，低版本 CQ 模式无法控制质量
+            LogUtils.w(TAG, "bitrate mode CQ needs KEY_QUALITY, fall back to " + BitrateMode.VBR);
+            resolved.mBitrateMode = BitrateMode.VBR;
+        }
+        MediaCodecInfo.EncoderCapabilities encoderCaps = caps.getEncoderCapabilities();
+        while (resolved.mBitrateMode != null && !encoderCaps.isBitrateModeSupported(resolved.mBitrateMode.getCodecValue())) {
+            BitrateMode fallback = resolved.mBitrateMode == BitrateMode.VBR ? null : BitrateMode.VBR;
+            LogUtils.w(TAG, "bitrate mode " + resolved.mBitrateMode + " not supported, fall back to " + fallback);
+            resolved.mBitrateMode = fallback;
+        }
+        if (resolved.mBitrateMode != BitrateMode.CQ) {
+            resolved.mQuality = -1;
+        } else if (resolved.mQuality >= 0) {
+            Range<Integer> qualityRange = encoderCaps.getQualityRange();
+            resolved.mQuality = qualityRange.clamp(resolved.mQuality);
+        }
+
+        MediaCodecInfo.VideoCapabilities videoCaps = caps.getVideoCapabilities();
+        // 先确定帧率，自动计算的码率随帧率缩放
+        Range<Integer> fpsRange = videoCaps.getSupportedFrameRates();
+        resolved.mFrameRate = fpsRange.clamp(resolved.mFrameRate);
+        if (videoCaps.isSizeSupported(width, height)
+                && !videoCaps.areSizeAndRateSupported(width, height, resolved.mFrameRate)) {
+            int maxFps = videoCaps.getSupportedFrameRatesFor(width, height).getUpper().intValue();
+            LogUtils.w(TAG, "frame rate " + resolved.mFrameRate + " not supported at " + width + "x" + height
+                    + ", fall back to " + maxFps);
+            resolved.mFrameRate = Math.max(1, maxFps);
+        }
+        Range<Integer> bitrateRange = videoCaps.getBitrateRange();
+        resolved.mVideoBitrate = bitrateRange.clamp(resolved.getVideoBitrate(width, height));
+        resolved.mAvcLevel = resolved.resolveAvcLevel(caps, width, height);
+
+        LogUtils.w(TAG, "resolveVideo " + width + "x" + height + " -> " + resolved);
+        return resolved;
+    }
+
+    /**
+     * 按设备 AAC 编码能力校验参数，返回降级后的新配置，原配置不变
+     */
+    public WeEncoderProfile resolveAudio(int sampleRate, int channelNums) {
+        WeEncoderProfile resolved = new WeEncoderProfile(this);
+        MediaCodecInfo info = findEncoder(MediaFormat.MIMETYPE_AUDIO_AAC);
+        if (info == null) {
+            LogUtils.e(TAG, "No AAC encoder found");
+            resolved.mAudioCodecName = null;
+            return resolved;
+        }
+        resolved.mAudioCodecName = info.getName();
+
+        MediaCodecInfo.CodecCapabilities caps = info.getCapabilitiesForType(MediaFormat.MIMETYPE_AUDIO_AAC);
+        if (!isProfileSupported(caps, resolved.mAacProfile)) {
+            LogUtils.w(TAG, "AAC profile " + resolved.mAacProfile + " not supported, fall back to LC");
+            resolved.mAacProfile = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            Range<Integer> bitrateRange = caps.getAudioCapabilities().getBitrateRange();
+            resolved.mAudioBitrate = bitrateRange.clamp(resolved.mAudioBitrate);
+        }
+        return resolved;
+    }
+
+    /**
+     * 选择能容纳分辨率、帧率和码率的最低 AVC Level，编码器声明的该 Profile 最高 Level 不够时不设置，交给编码器决定
+     *
+     * @return 0 表示不设置
+     */
+    private int resolveAvcLevel(MediaCodecInfo.CodecCapabilities caps, int width, int height) {
+        if (mVideoCodec != VideoCodec.AVC || mAvcProfile == null) {
+            return 0;
+        }
+        int required = getMinAvcLevel(width, height, mFrameRate, getVideoBitrate(width, height),
+                mAvcProfile == AvcProfile.HIGH);
+        int supported = 0;
+        if (caps.profileLevels != null) {
+            for (MediaCodecInfo.CodecProfileLevel pl : caps.profileLevels) {
+                if (pl.profile == mAvcProfile.getCodecValue()) {
+                    supported = Math.max(supported, pl.level);
+                }
+            }
+        }
+        // Level 常量按等级从低到高依次增大，可以直接比较
+        if (required == 0 || required > supported) {
+            LogUtils.w(TAG, "AVC level for " + width + "x" + height + "@" + mFrameRate + " needs "
+                    + required + ", encoder max " + supported + ", leave it unset");
+            return 0;
+        }
+        return required;
+    }
+
+    /**
+     * 按 H.264 表 A-1 计算能容纳指定参数的最低 Level
+     *
+     * @return 超出所有 Level 时返回 0
+     */
+    static int getMinAvcLevel(int width, int height, int fps, int bitrate, boolean isHighProfile) {
+        long widthMbs = (width + 15) / 16;
+        long heightMbs = (height + 15) / 16;
+        long frameMbs = widthMbs * heightMbs;
+        long mbsPerSecond = frameMbs * fps;
+        for (int[] limits : AVC_LEVEL_LIMITS) {
+            long maxBitrate = (long) limits[3] * (isHighProfile ? 1250 : 1000);
+            // 每帧宏块数的限制同时约束宽高都不能超过 sqrt(8 * MaxFS) 个宏块
+            long maxDimensionMbs = (long) Math.sqrt(limits[2] * 8.0);
+            if (mbsPerSecond <= limits[1] && frameMbs <= limits[2] && bitrate <= maxBitrate
+                    && widthMbs <= maxDimensionMbs && heightMbs <= maxDimensionMbs) {
+                return limits[0];
+            }
+        }
+        return 0;
+    }
+
+    public MediaFormat createVideoFormat(int width, int height) {
+        return createVideoFormat(width, height, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+    }
+
+    /**
+     * @param colorFormat 编码器输入的颜色格式，Surface 输入时为 COLOR_FormatSurface，
+     *                    ByteBuffer 输入时为 YUV420 系列格式
+     */
+    public MediaFormat createVideoFormat(int width, int height, int colorFormat) {
+        MediaFormat format = MediaFormat.createVideoFormat(getVideoMimeType(), width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, getVideoBitrate(width, height));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL,
+                mIntraRefreshPeriod > 0 ? mIntraRefreshIFrameInterval : mIFrameInterval);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (mBitrateMode != null) {
+                format.setInteger(MediaFormat.KEY_BITRATE_MODE, mBitrateMode.getCodecValue());
+            }
+            if (mQuality >= 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                format.setInteger(MediaFormat.KEY_QUALITY, mQuality);
+            }
+            if (mAvcProfile != null) {
+                format.setInteger(MediaFormat.KEY_PROFILE, mAvcProfile.getCodecValue());
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && mAvcLevel > 0) {
+                    // 部分编码器设置 profile 时必须同时设置 level，level 过低时编码器会拒绝配置或者截断参数
+                    format.setInteger(MediaFormat.KEY_LEVEL, mAvcLevel);
+                }
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && isRealtime) {
+            format.setInteger(MediaFormat.KEY_PRIORITY, 0);// 0 为实时
+            if (Build.VERSION.SDK_INT >= SDK_VERSION_R) {
+                // 低版本不认识该 key，部分编码器会拒绝配置
+                format.setInteger(KEY_LATENCY, 1);
+            }
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && mIntraRefreshPeriod > 0) {
+            format.setInteger(MediaFormat.KEY_INTRA_REFRESH_PERIOD, mIntraRefreshPeriod);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            format.setInteger(MediaFormat.KEY_MAX_B_FRAMES, mMaxBFrames);
+        }
+        return format;
+    }
+
+    public MediaFormat createAudioFormat(int sampleRate, int channelNums, int maxInputSize) {
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, channelNums);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mAudioBitrate);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, mAacProfile);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, maxInputSize);
+        return format;
+    }
+
+    private static boolean isProfileSupported(MediaCodecInfo.CodecCapabilities caps, int profile) {
+        if (caps.profileLevels == null) {
+            return false;
+        }
+        for (MediaCodecInfo.CodecProfileLevel pl : caps.profileLevels) {
+            if (pl.profile == profile) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 查找支持指定格式的编码器，优先选择硬件编码器
+     */
+    public static MediaCodecInfo findEncoder(String mimeType) {
+        MediaCodecInfo softwareInfo = null;
+        int count = MediaCodecList.getCodecCount();
+        for (int i = 0; i < count; i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                if (!type.equalsIgnoreCase(mimeType)) {
+                    continue;
+                }
+                if (isSoftwareCodec(info.getName())) {
+                    if (softwareInfo == null) {
+                        softwareInfo = info;
+                    }
+                } else {
+                    return info;
+                }
+            }
+        }
+        return softwareInfo;
+    }
+
+    private static boolean isSoftwareCodec(String name) {
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        WeEncoderProfile other = (WeEncoderProfile) o;
+        return mVideoCodec == other.mVideoCodec
+                && mBitrateMode == other.mBitrateMode
+                && mVideoBitrate == other.mVideoBitrate
+                && mFrameRate == other.mFrameRate
+                && mIFrameInterval == other.mIFrameInterval
+                && mMaxBFrames == other.mMaxBFrames
+                && mAvcProfile == other.mAvcProfile
+                && mAvcLevel == other.mAvcLevel
+                && mQuality == other.mQuality
+                && mIntraRefreshPeriod == other.mIntraRefreshPeriod
+                && mIntraRefreshIFrameInterval == other.mIntraRefreshIFrameInterval
+                && isRealtime == other.isRealtime
+                && mAudioBitrate == other.mAudioBitrate
+                && mAacProfile == other.mAacProfile
+                && Objects.equals(mVideoCodecName, other.mVideoCodecName)
+                && Objects.equals(mAudioCodecName, other.mAudioCodecName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mVideoCodec, mBitrateMode, mVideoBitrate, mFrameRate, mIFrameInterval,
+                mMaxBFrames, mAvcProfile, mAvcLevel, mQuality, mIntraRefreshPeriod,
+                mIntraRefreshIFrameInterval, isRealtime, mAudioBitrate, mAacProfile,
+                mVideoCodecName, mAudioCodecName);
+    }
+
+    @Override
+    public String toString() {
+        return "WeEncoderProfile{" +
+                "codec=" + mVideoCodec +
+                ", codecName=" + mVideoCodecName +
+                ", bitrateMode=" + mBitrateMode +
+                ", videoBitrate=" + mVideoBitrate +
+                ", frameRate=" + mFrameRate +
+                ", iFrameInterval=" + mIFrameInterval +
+                ", maxBFrames=" + mMaxBFrames +
+                ", avcProfile=" + mAvcProfile +
+                ", avcLevel=" + mAvcLevel +
+                ", quality=" + mQuality +
+                ", intraRefreshPeriod=" + mIntraRefreshPeriod +
+                ", realtime=" + isRealtime +
+                ", audioBitrate=" + mAudioBitrate +
+                ", aacProfile=" + mAacProfile +
+                '}';
+    }
+
+}
@@ -0,0 +1,61 @@
+package com.wtz.libvideomaker.encoder;
+
+/**
+ * 编码帧大小统计：按固定帧数的窗口统计平均值、标准差、最大帧与平均值之比，
+ * 用于对比普通模式和低延时模式下码率的平稳程度。
+ */
+public class WeFrameSizeStats {
+
+    private int mWindowFrames;
+
+    private int mFrames;
+    private int mKeyFrames;
+    private long mSum;
+    private double mSquareSum;
+    private int mMax;
+
+    // 上一个完整窗口的结果
+    private String mLastSummary;
+
+    public WeFrameSizeStats(int windowFrames) {
+        this.mWindowFrames = Math.max(1, windowFrames);
+    }
+
+    /**
+     * @return 是否刚好统计完一个窗口，此时可通过 {@link #getLastSummary()} 获取结果
+     */
+    public synchronized boolean record(int size, boolean isKeyframe) {
+        mFrames++;
+        if (isKeyframe) {
+            mKeyFrames++;
+        }
+        mSum += size;
+        mSquareSum += (double) size * size;
+        if (size > mMax) {
+            mMax = size;
+        }
+
+        if (mFrames < mWindowFrames) {
+            return false;
+        }
+        double mean = (double) mSum / mFrames;
+        double stdDev = Math.sqrt(Math.max(0, mSquareSum / mFrames - mean * mean));
+        mLastSummary = String.format("frames=%d key=%d mean=%.0fB stddev=%.0fB cv=%.2f peak/mean=%.2f",
+                mFrames, mKeyFrames, mean, stdDev, mean > 0 ? stdDev / mean : 0, mean > 0 ? mMax / mean : 0);
+        reset();
+        return true;
+    }
+
+    public synchronized String getLastSummary() {
+        return mLastSummary;
+    }
+
+    public synchronized void reset() {
+        mFrames = 0;
+        mKeyFrames = 0;
+        mSum = 0;
+        mSquareSum = 0;
+        mMax = 0;
+    }
+
+}
@@ -0,0 +1,386 @@
+package com.wtz.libvideomaker.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 已编码音视频样本的预录环形缓冲区，用于“保存最近 N 秒”之类的即时回放功能。
+ * <p>
+ * 所有样本数据存放在一块创建时一次性分配的 Direct ByteBuffer 中，样本元信息存放在定长数组中，
+ * 因此内存占用有硬上限，写入样本时不会产生任何对象分配；
+ * 缓冲区头部始终保持为视频关键帧，空间或时长不足时按 GOP 整组淘汰最旧的样本。
+ * <p>
+ * 调用 {@link #saveTo(String, OnSaveListener)} 后在后台线程导出为 mp4，期间编码线程可以继续写入：
+ * 正在导出的样本会被锁定不被淘汰，若此时空间不足则新样本被丢弃，并等待下一个关键帧再继续缓存。
+ */
+public class WePreRollBuffer {
+    private static final String TAG = "WePreRollBuffer";
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    // 每秒最多缓存的样本数：覆盖 120fps 视频 + 96kHz AAC(约 94 帧每秒)
+    private static final int MAX_SAMPLES_PER_SECOND = 256;
+
+    private final ByteBuffer mSlab;
+    private final int mCapacityBytes;
+    private final long mMaxDurationUs;
+    private final int mMaxSamples;
+
+    // 样本元信息，下标为 seq % mMaxSamples
+    private final int[] mTracks;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private final long[] mPtsUs;
+
+    private long mHeadSeq;// 最旧样本的序号
+    private long mTailSeq;// 下一个写入样本的序号
+    private int mWritePos;
+    private int mMaxSampleSize;
+    private boolean isWaitingKeyframe = true;
+    private long[] mTrackStartPts = new long[]{-1, -1};
+
+    // 导出中被锁定的最旧样本序号，-1 表示未锁定
+    private long mPinnedSeq = -1;
+    private boolean isSaving;
+    private boolean isClearPending;
+    private ByteBuffer mSaveStaging;
+    private MediaCodec.BufferInfo mSaveBufInfo = new MediaCodec.BufferInfo();
+
+    private MediaFormat mVideoFormat;
+    private MediaFormat mAudioFormat;
+
+    private long mDroppedSamples;
+
+    public interface OnSaveListener {
+        void onPreRollSaved(String savePath, boolean success, long durationMills);
+    }
+
+    /**
+     * @param maxDurationMills 最多缓存的时长，单位：毫秒
+     * @param maxBytes         样本数据占用内存的硬上限，单位：字节
+     */
+    public WePreRollBuffer(int maxDurationMills, int maxBytes) {
+        if (maxDurationMills <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("WePreRollBuffer arguments is illegal: duration="
+                    + maxDurationMills + ", bytes=" + maxBytes);
+        }
+        mCapacityBytes = maxBytes;
+        mMaxDurationUs = maxDurationMills * 1000L;
+        mMaxSamples = (maxDurationMills / 1000 + 1) * MAX_SAMPLES_PER_SECOND;
+        mSlab = ByteBuffer.allocateDirect(mCapacityBytes);
+        mTracks = new int[mMaxSamples];
+        mOffsets = new int[mMaxSamples];
+        mSizes = new int[mMaxSamples];
+        mFlags = new int[mMaxSamples];
+        mPtsUs = new long[mMaxSamples];
+        LogUtils.w(TAG, "WePreRollBuffer created duration=" + maxDurationMills
+                + "ms, bytes=" + maxBytes + ", maxSamples=" + mMaxSamples);
+    }
+
+    public synchronized void setTrackFormat(int track, MediaFormat format) {
+        if (track == TRACK_VIDEO) {
+            mVideoFormat = format;
+        } else {
+            mAudioFormat = format;
+        }
+    }
+
+    /**
+     * 写入一个编码输出样本，data 的 position 到 limit 为样本内容，调用后 data 的 position 保持不变
+     *
+     * @return 是否已缓存
+     */
+    public synchronized boolean append(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        int size = info.size;
+        if (size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return false;
+        }
+        if (isClearPending) {
+            mDroppedSamples++;
+            return false;
+        }
+        if (mTrackStartPts[track] < 0) {
+            // 与 MediaMuxer 写入时一致，每个 track 的时间戳各自从 0 开始
+            mTrackStartPts[track] = info.presentationTimeUs;
+        }
+        long ptsUs = info.presentationTimeUs - mTrackStartPts[track];
+        boolean isKeyframe = track == TRACK_VIDEO
+                && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+
+        if (size > mCapacityBytes) {
+            LogUtils.e(TAG, "append sample size " + size + " is over capacity " + mCapacityBytes);
+            dropAndWaitKeyframe();
+            return false;
+        }
+        if (isWaitingKeyframe) {
+            if (!isKeyframe) {
+                mDroppedSamples++;
+                return false;
+            }
+            isWaitingKeyframe = false;
+        }
+
+        trimByDuration(ptsUs);
+
+        int offset;
+        while ((offset = allocate(size)) < 0 || mTailSeq - mHeadSeq >= mMaxSamples) {
+            if (!evictHeadGop()) {
+                dropAndWaitKeyframe();
+                return false;
+            }
+        }
+
+        int oldPosition = data.position();
+        mSlab.clear();
+        mSlab.position(offset);
+        mSlab.put(data);
+        data.position(oldPosition);
+
+        int i = index(mTailSeq);
+        mTracks[i] = track;
+        mOffsets[i] = offset;
+        mSizes[i] = size;
+        mFlags[i] = info.flags;
+        mPtsUs[i] = ptsUs;
+        mTailSeq++;
+        mWritePos = offset + size;
+        if (size > mMaxSampleSize) {
+            mMaxSampleSize = size;
+        }
+        return true;
+    }
+
+    private void dropAndWaitKeyframe() {
+        mDroppedSamples++;
+        // 丢弃后剩余内容依然完整可解码，新内容需从下一个关键帧开始
+        isWaitingKeyframe = true;
+    }
+
+    private int index(long seq) {
+        return (int) (seq % mMaxSamples);
+    }
+
+    /**
+     * 在数据区中为 size 字节找一段连续空间，找不到返回 -1
+     */
+    private int allocate(int size) {
+        if (mTailSeq == mHeadSeq) {
+            mWritePos = 0;
+            return size <= mCapacityBytes ? 0 : -1;
+        }
+        int headOffset = mOffsets[index(mHeadSeq)];
+        if (mWritePos > headOffset) {
+            // 未回绕：有效数据在 [headOffset, mWritePos)
+            if (mWritePos + size <= mCapacityBytes) {
+                return mWritePos;
+            }
+            return size <= headOffset ? 0 : -1;
+        }
+        // 已回绕：有效数据在 [headOffset, 末尾) 和 [0, mWritePos)
+        return mWritePos + size <= headOffset ? mWritePos : -1;
+    }
+
+    private boolean canEvictHead() {
+        return mHeadSeq < mTailSeq && (mPinnedSeq < 0 || mHeadSeq < mPinnedSeq);
+    }
+
+    private boolean isHeadKeyframe() {
+        int i = index(mHeadSeq);
+        return mTracks[i] == TRACK_VIDEO && (mFlags[i] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    }
+
+    /**
+     * 淘汰头部整个 GOP，使头部重新落在关键帧上
+     */
+    private boolean evictHeadGop() {
+        if (!canEvictHead()) {
+            return false;
+        }
+        mHeadSeq++;
+        trimHeadToKeyframe();
+        return true;
+    }
+
+    private void trimHeadToKeyframe() {
+        while (canEvictHead() && !isHeadKeyframe()) {
+            mHeadSeq++;
+        }
+    }
+
+    /**
+     * 当下一个 GOP 起点到最新样本仍不短于最大时长时，淘汰头部 GOP
+     */
+    private void trimByDuration(long newestPtsUs) {
+        while (mHeadSeq < mTailSeq) {
+            long nextKeySeq = -1;
+            for (long seq = mHeadSeq + 1; seq < mTailSeq; seq++) {
+                int i = index(seq);
+                if (mTracks[i] == TRACK_VIDEO && (mFlags[i] & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    nextKeySeq = seq;
+                    break;
+                }
+            }
+            if (nextKeySeq < 0 || newestPtsUs - mPtsUs[index(nextKeySeq)] < mMaxDurationUs) {
+                return;
+            }
+            if (!evictHeadGop()) {
+                return;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        if (isSaving) {
+            // 导出中的样本不能被覆盖，等导出结束再清空
+            isClearPending = true;
+            return;
+        }
+        resetLocked();
+    }
+
+    private void resetLocked() {
+        isClearPending = false;
+        mHeadSeq = mTailSeq = 0;
+        mWritePos = 0;
+        mTrackStartPts[TRACK_VIDEO] = -1;
+        mTrackStartPts[TRACK_AUDIO] = -1;
+        isWaitingKeyframe = true;
+        mVideoFormat = null;
+        mAudioFormat = null;
+    }
+
+    /**
+     * 获取当前缓存的时长，单位：毫秒
+     */
+    public synchronized long getBufferedDurationMills() {
+        if (mHeadSeq == mTailSeq) {
+            return 0;
+        }
+        return (mPtsUs[index(mTailSeq - 1)] - mPtsUs[index(mHeadSeq)]) / 1000;
+    }
+
+    public synchronized long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    public int getCapacityBytes() {
+        return mCapacityBytes;
+    }
+
+    public synchronized boolean isSaving() {
+        return isSaving;
+    }
+
+    /**
+     * 在后台线程把当前缓存内容导出为 mp4，不影响编码线程继续写入
+     *
+     * @return 是否已开始导出
+     */
+    public boolean saveTo(final String savePath, final OnSaveListener listener) {
+        final long startSeq;
+        final long endSeq;
+        final MediaFormat videoFormat;
+        final MediaFormat audioFormat;
+        synchronized (this) {
+            if (isSaving) {
+                LogUtils.e(TAG, "saveTo but it's already saving!");
+                return false;
+            }
+            if (mVideoFormat == null || mHeadSeq == mTailSeq) {
+                LogUtils.e(TAG, "saveTo but there is nothing buffered!");
+                return false;
+            }
+            isSaving = true;
+            startSeq = mHeadSeq;
+            endSeq = mTailSeq;
+            mPinnedSeq = startSeq;
+            videoFormat = mVideoFormat;
+            audioFormat = mAudioFormat;
+            if (mSaveStaging == null || mSaveStaging.capacity() < mMaxSampleSize) {
+                mSaveStaging = ByteBuffer.allocateDirect(mMaxSampleSize);
+            }
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long durationMills = 0;
+                boolean success = false;
+                try {
+                    durationMills = writeToFile(savePath, startSeq, endSeq, videoFormat, audioFormat);
+                    success = true;
+                } catch (Exception e) {
+                    LogUtils.e(TAG, "saveTo " + savePath + " exception: " + e.toString());
+                    e.printStackTrace();
+                } finally {
+                    synchronized (WePreRollBuffer.this) {
+                        mPinnedSeq = -1;
+                        isSaving = false;
+                        if (isClearPending) {
+                            resetLocked();
+                        } else {
+                            trimHeadToKeyframe();
+                        }
+                    }
+                }
+                LogUtils.w(TAG, "saveTo " + savePath + " success=" + success + ", duration=" + durationMills);
+                if (listener != null) {
+                    listener.onPreRollSaved(savePath, success, durationMills);
+                }
+            }
+        }, "PreRollSaveThread").start();
+        return true;
+    }
+
+    private long writeToFile(String savePath, long startSeq, long endSeq,
+                             MediaFormat videoFormat, MediaFormat audioFormat) throws Exception {
+        MediaMuxer muxer = new MediaMuxer(savePath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        long basePts = -1;
+        long lastPts = 0;
+        try {
+            int videoTrack = muxer.addTrack(videoFormat);
+            int audioTrack = audioFormat != null ? muxer.addTrack(audioFormat) : -1;
+            muxer.start();
+
+            int track;
+            for (long seq = startSeq; seq < endSeq; seq++) {
+                synchronized (this) {
+                    int i = index(seq);
+                    track = mTracks[i];
+                    long ptsUs = mPtsUs[i];
+                    if (basePts < 0) {
+                        basePts = ptsUs;
+                    }
+                    mSlab.clear();
+                    mSlab.position(mOffsets[i]);
+                    mSlab.limit(mOffsets[i] + mSizes[i]);
+                    mSaveStaging.clear();
+                    mSaveStaging.put(mSlab);
+                    mSaveStaging.flip();
+                    // 音频编码输出可能略早于首个关键帧，不允许出现负时间戳
+                    mSaveBufInfo.set(0, mSizes[i], Math.max(0, ptsUs - basePts), mFlags[i]);
+                    // 已复制出的样本解除锁定，允许编码线程淘汰
+                    mPinnedSeq = seq + 1;
+                }
+                if (track == TRACK_VIDEO) {
+                    muxer.writeSampleData(videoTrack, mSaveStaging, mSaveBufInfo);
+                    lastPts = mSaveBufInfo.presentationTimeUs;
+                } else if (audioTrack >= 0) {
+                    muxer.writeSampleData(audioTrack, mSaveStaging, mSaveBufInfo);
+                }
+            }
+            muxer.stop();
+        } finally {
+            muxer.release();
+        }
+        return lastPts / 1000;
+    }
+
+}
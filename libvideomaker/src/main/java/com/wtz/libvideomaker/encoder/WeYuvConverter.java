@@ -0,0 +1,122 @@
+package com.wtz.libvideomaker.encoder;
+
+import android.media.MediaCodecInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RGBA 转 YUV420 的 native 实现封装，ARM 上使用 NEON 加速，其它情况使用纯 C 实现，两者结果逐字节一致。
+ * 颜色转换按 BT.601 limited range，与硬件编码器 Surface 输入的默认转换一致。
+ */
+public class WeYuvConverter {
+
+    static {
+        System.loadLibrary("wevideomaker");
+    }
+
+    public enum YuvFormat {
+        I420(0),// 对应 COLOR_FormatYUV420Planar
+        NV12(1);// 对应 COLOR_FormatYUV420SemiPlanar
+
+        private int nativeValue;
+
+        YuvFormat(int nativeValue) {
+            this.nativeValue = nativeValue;
+        }
+
+        public int getNativeValue() {
+            return nativeValue;
+        }
+
+        /**
+         * @return 编码器颜色格式对应的 YUV 格式，不支持时返回 null
+         */
+        public static YuvFormat fromColorFormat(int colorFormat) {
+            switch (colorFormat) {
+                case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar:
+                    return NV12;
+                case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+                    return I420;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static native boolean nativeIsNeonSupported();
+
+    private static native void nativeSetNeonEnabled(boolean enabled);
+
+    private static native int nativeRgbaToYuv420(ByteBuffer src, int width, int height, int srcStride,
+                                                 boolean flipVertical, ByteBuffer dst, int dstOffset,
+                                                 int dstStride, int dstSliceHeight, int format);
+
+    private WeYuvConverter() {
+    }
+
+    /**
+     * 当前设备加载的库是否带 NEON 实现
+     */
+    public static boolean isNeonSupported() {
+        return nativeIsNeonSupported();
+    }
+
+    /**
+     * 是否使用 NEON 实现，默认开启，可关闭后对比纯 C 实现的结果和耗时
+     */
+    public static void setNeonEnabled(boolean enabled) {
+        nativeSetNeonEnabled(enabled);
+    }
+
+    /**
+     * 从编码器支持的颜色格式中选择 ByteBuffer 输入使用的格式，优先 NV12
+     *
+     * @return 颜色格式，都不支持时返回 -1
+     */
+    public static int selectColorFormat(MediaCodecInfo codecInfo, String mimeType) {
+        int[] colorFormats;
+        try {
+            colorFormats = codecInfo.getCapabilitiesForType(mimeType).colorFormats;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return -1;
+        }
+        int selected = -1;
+        for (int colorFormat : colorFormats) {
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+                return colorFormat;
+            }
+            if (colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+                selected = colorFormat;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * 与 native 实现一致：色度平面 I420 每行 (stride + 1) / 2、NV12 每行 (stride + 1) & ~1 字节，
+     * 共 (sliceHeight + 1) / 2 行，偶数时即 stride * sliceHeight * 3 / 2
+     */
+    public static int getYuv420Size(int stride, int sliceHeight) {
+        return stride * sliceHeight + ((stride + 1) & ~1) * ((sliceHeight + 1) / 2);
+    }
+
+    /**
+     * RGBA 转 YUV420，src 和 dst 都必须是 direct ByteBuffer
+     *
+     * @param flipVertical   是否上下翻转，glReadPixels 读出的数据第一行是画面底部，需要翻转
+     * @param dstOffset      写入 dst 的起始位置
+     * @param width          图像宽，可以为奇数
+     * @param height         图像高，可以为奇数
+     * @param dstStride      Y 平面每行字节数，I420 的 U、V 平面每行为其一半（向上取整）
+     * @param dstSliceHeight Y 平面行数，U 平面紧跟在 dstStride * dstSliceHeight 之后
+     * @return 写入的字节数，参数错误返回 -1
+     */
+    public static int rgbaToYuv420(ByteBuffer src, int width, int height, boolean flipVertical,
+                                   ByteBuffer dst, int dstOffset, int dstStride, int dstSliceHeight,
+                                   YuvFormat format) {
+        return nativeRgbaToYuv420(src, width, height, width * 4, flipVertical, dst, dstOffset,
+                dstStride, dstSliceHeight, format.getNativeValue());
+    }
+
+}
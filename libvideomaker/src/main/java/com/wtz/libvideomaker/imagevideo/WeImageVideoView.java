@@ -8,20 +8,21 @@ import com.wtz.libvideomaker.egl.WeGLRenderer;
 import com.wtz.libvideomaker.egl.WeGLSurfaceView;
 import com.wtz.libvideomaker.renderer.OnScreenRenderer;
 import com.wtz.libvideomaker.renderer.filters.WatermarkRenderer;
+import com.wtz.libvideomaker.renderer.graph.WeRenderGraph;
+import com.wtz.libvideomaker.renderer.graph.WeRenderNode;
 import com.wtz.libvideomaker.renderer.origins.ImgRenderer;
 import com.wtz.libvideomaker.renderer.origins.SingleImgRenderer;
 import com.wtz.libvideomaker.utils.LogUtils;
 
 
-public class WeImageVideoView extends WeGLSurfaceView implements WeGLRenderer,
-        ImgRenderer.OnSharedTextureChangedListener,
-        WatermarkRenderer.OnMarkTextureChangedListener {
+public class WeImageVideoView extends WeGLSurfaceView implements WeGLRenderer {
 
     private static final String TAG = WeImageVideoView.class.getSimpleName();
 
     private SingleImgRenderer mImgOffScreenRenderer;
     private WatermarkRenderer mWatermarkRenderer;
     private OnScreenRenderer mOnScreenRenderer;
+    private WeRenderGraph mRenderGraph;
 
     public void setScreenTextureChangeListener(OnScreenRenderer.ScreenTextureChangeListener listener) {
         mOnScreenRenderer.setScreenTextureChangeListener(listener);
@@ -44,14 +45,27 @@ public class WeImageVideoView extends WeGLSurfaceView implements WeGLRenderer,
         setRenderMode(RENDERMODE_WHEN_DIRTY);
 
         mImgOffScreenRenderer = new SingleImgRenderer(context);
-        mImgOffScreenRenderer.setSharedTextureChangedListener(this);
-
+        // 换图时在后台解码上传，不阻塞渲染和录制，图片就绪后再请求绘制
+        mImgOffScreenRenderer.setAsyncLoadEnabled(true);
+        mImgOffScreenRenderer.setOnImageReadyListener(new ImgRenderer.OnImageReadyListener() {
+            @Override
+            public void onImageReady() {
+                requestRender();
+            }
+        });
         mWatermarkRenderer = new WatermarkRenderer(context);
-        mWatermarkRenderer.setMarkTextureChangedListener(this);
-        mWatermarkRenderer.setExternalTextureId(mImgOffScreenRenderer.getSharedTextureId());
-
         mOnScreenRenderer = new OnScreenRenderer(context, TAG);
-        mOnScreenRenderer.setExternalTextureId(mWatermarkRenderer.getMarkTextureId());
+
+        // 图片 -> 水印 -> 上屏，图片和水印没有变化时只重新上屏；
+        // 水印的输出会共享给录制线程，独占一份纹理
+        mRenderGraph = new WeRenderGraph(TAG);
+        mRenderGraph.addNode(new WeRenderNode("image", WeRenderNode.Type.SOURCE, mImgOffScreenRenderer));
+        WeRenderNode watermarkNode = new WeRenderNode("watermark", WeRenderNode.Type.OVERLAY,
+                mWatermarkRenderer, "image");
+        watermarkNode.setOutputShared(true);
+        mRenderGraph.addNode(watermarkNode);
+        mRenderGraph.addNode(new WeRenderNode("screen", WeRenderNode.Type.SINK,
+                mOnScreenRenderer, "watermark"));
     }
 
     @Override
@@ -74,6 +88,13 @@ public class WeImageVideoView extends WeGLSurfaceView implements WeGLRenderer,
         requestRender();
     }
 
+    /**
+     * 提前加载接下来要展示的图片，之后切换到这些图片时不需要等待解码
+     */
+    public void prefetchImagePaths(String... paths) {
+        mImgOffScreenRenderer.prefetchImagePaths(paths);
+    }
+
     public void setImageMark(Bitmap bitmap, int showWidth, int showHeight,
                              int corner, int marginX, int marginY) {
         mWatermarkRenderer.setImageMark(bitmap, showWidth, showHeight, corner, marginX, marginY);
@@ -94,30 +115,16 @@ public class WeImageVideoView extends WeGLSurfaceView implements WeGLRenderer,
         mWatermarkRenderer.changeTextMarkPosition(corner, marginX, marginY);
     }
 
-    @Override
-    public void onSharedTextureChanged(int textureID) {
-        mWatermarkRenderer.setExternalTextureId(textureID);
-    }
-
-    @Override
-    public void onMarkTextureChanged(int textureID) {
-        mOnScreenRenderer.setExternalTextureId(textureID);
-    }
-
     @Override
     public void onEGLContextCreated() {
         LogUtils.d(TAG, "onEGLContextCreated");
-        mImgOffScreenRenderer.onEGLContextCreated();
-        mWatermarkRenderer.onEGLContextCreated();
-        mOnScreenRenderer.onEGLContextCreated();
+        mRenderGraph.onEGLContextCreated();
     }
 
     @Override
     public void onSurfaceChanged(int width, int height) {
         LogUtils.d(TAG, "onSurfaceChanged " + width + "x" + height);
-        mImgOffScreenRenderer.onSurfaceChanged(width, height);
-        mWatermarkRenderer.onSurfaceChanged(width, height);
-        mOnScreenRenderer.onSurfaceChanged(width, height);
+        mRenderGraph.onSurfaceChanged(width, height);
     }
 
     public void onActivityResume() {
@@ -127,17 +134,13 @@ public class WeImageVideoView extends WeGLSurfaceView implements WeGLRenderer,
     @Override
     public void onDrawFrame() {
         LogUtils.d(TAG, "onDrawFrame");
-        mImgOffScreenRenderer.onDrawFrame();
-        mWatermarkRenderer.onDrawFrame();
-        mOnScreenRenderer.onDrawFrame();
+        mRenderGraph.onDrawFrame();
     }
 
     @Override
     public void onEGLContextToDestroy() {
         LogUtils.d(TAG, "onEGLContextToDestroy");
-        mImgOffScreenRenderer.onEGLContextToDestroy();
-        mWatermarkRenderer.onEGLContextToDestroy();
-        mOnScreenRenderer.onEGLContextToDestroy();
+        mRenderGraph.onEGLContextToDestroy();
     }
 
     public void release() {
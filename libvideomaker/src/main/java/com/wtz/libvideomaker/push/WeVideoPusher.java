@@ -10,8 +10,12 @@ import android.widget.Toast;
 import com.wtz.libpushflow.WePushFlow;
 import com.wtz.libvideomaker.egl.WeGLRenderer;
 import com.wtz.libvideomaker.egl.WeGLVideoPushEncoder;
+import com.wtz.libvideomaker.encoder.WeEncoderProfile;
+import com.wtz.libvideomaker.quality.WeQualityGovernor;
 import com.wtz.libvideomaker.renderer.OnScreenRenderer;
 import com.wtz.libvideomaker.utils.ExponentialWaitStrategy;
+import com.wtz.libvideomaker.utils.FrameCounterOverlay;
+import com.wtz.libvideomaker.utils.LatencyTracer;
 import com.wtz.libvideomaker.utils.LogUtils;
 
 import java.lang.ref.WeakReference;
@@ -22,7 +26,7 @@ import java.util.concurrent.TimeUnit;
 import javax.microedition.khronos.egl.EGLContext;
 
 public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
-        WePushFlow.PushStateListener, WeGLVideoPushEncoder.OnEncodeDataListener {
+        WePushFlow.PushStateListener, WeGLVideoPushEncoder.OnEncodeDataListener, WeQualityGovernor.Target {
     private static final String TAG = WeVideoPusher.class.getSimpleName();
 
     private boolean isUserPushing;
@@ -34,9 +38,26 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
     private int mVideoWidth;
     private int mVideoHeight;
 
+    // 质量调节：发热时降低编码分辨率、帧率和码率，分辨率改变时重建编码器
+    private WeQualityGovernor mQualityGovernor;
+    private int mEncodeWidth;
+    private int mEncodeHeight;
+    private static final int SIZE_ALIGNMENT = 16;
+
     private OnScreenRenderer mOnScreenRenderer;
     private static final int RENDER_FPS = 30;//大部分摄像头最高30fps，FPS过高会导致部分低端机型渲染闪屏
 
+    // 低延时模式下帧内刷新生效时的 IDR 间隔，新加入的观众最多等待这么久才能看到画面
+    private static final int LOW_LATENCY_IDR_INTERVAL_SECONDS = 10;
+
+    // 延时统计：推流线程记录的发送延时定期取回汇入 LatencyTracer
+    private static final int SEND_LATENCY_DRAIN_FRAMES = 30;
+    private int[] mSendLatencies = new int[1024];
+    private int mFramesSinceDrain;
+    private volatile boolean isLatencyOverlayEnabled;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+
     private WePushFlow mWePushFlow;
     private byte[] sps;
     private byte[] pps;
@@ -46,6 +67,7 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
     private long mRetryNumber;
     private WeakHandler mUIHandler = new WeakHandler(this);
     private static final int MSG_RETRY_START_PUSH = 1;
+    private static final int MSG_QUALITY_LEVEL_CHANGED = 2;
 
     static class WeakHandler extends Handler {
         private final WeakReference<WeVideoPusher> weakReference;
@@ -71,6 +93,10 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
                     removeMessages(MSG_RETRY_START_PUSH);
                     host.startInnerPush();
                     break;
+
+                case MSG_QUALITY_LEVEL_CHANGED:
+                    host.applyQualityLevel((WeQualityGovernor.Level) msg.obj);
+                    break;
             }
         }
     }
@@ -135,6 +161,123 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
         mWePushFlow.setAudioChannels(audioChannels);
     }
 
+    /**
+     * 设置低延时模式，下次开始推流时生效：
+     * 设备支持时用帧内刷新代替每秒一个的 IDR 帧，并使用 CBR 和实时编码优先级，减少码率尖峰在上行链路中造成的排队延时。
+     * 不支持的项自动回退到普通模式，可通过 {@link #getFrameSizeSummary()} 对比开启前后的帧大小波动。
+     */
+    public void setLowLatencyMode(boolean lowLatency) {
+        WeEncoderProfile profile = new WeEncoderProfile();
+        profile.setFrameRate(RENDER_FPS);
+        if (lowLatency) {
+            profile.setBitrateMode(WeEncoderProfile.BitrateMode.CBR);
+            profile.setIntraRefresh(RENDER_FPS, LOW_LATENCY_IDR_INTERVAL_SECONDS);
+            profile.setRealtime(true);
+        }
+        profile.setMaxBFrames(0);
+        setEncoderProfile(profile);
+    }
+
+    /**
+     * 开启或关闭全链路延时统计：采集、渲染、编码提交、编码输出、推流入队、发送完成
+     */
+    public void setLatencyTracing(boolean enable) {
+        LatencyTracer.getInstance().setEnabled(enable);
+    }
+
+    /**
+     * 在推流画面左上角叠加采集时间（毫秒数低 24 位）的二进制方块，
+     * 接收端解码后与本机时钟比较即可测得端到端延时，格式见 {@link FrameCounterOverlay}
+     */
+    public void setLatencyOverlayEnabled(boolean enable) {
+        this.isLatencyOverlayEnabled = enable;
+    }
+
+    /**
+     * 设置质量调节器，推流开始后由它根据设备温度和编码负载依次降低分辨率、帧率和码率，
+     * 传 null 关闭。调节器由调用方创建和释放。
+     */
+    public void setQualityGovernor(WeQualityGovernor governor) {
+        if (mQualityGovernor != null && mQualityGovernor != governor) {
+            mQualityGovernor.stop();
+        }
+        this.mQualityGovernor = governor;
+        if (governor != null && isPushStarted) {
+            governor.start(this);
+        }
+    }
+
+    @Override
+    public boolean canChangeResolution() {
+        return true;
+    }
+
+    @Override
+    public void onQualityLevelChanged(WeQualityGovernor.Level level) {
+        // 在调节器线程中回调，切到主线程与开始、停止推流串行执行
+        mUIHandler.obtainMessage(MSG_QUALITY_LEVEL_CHANGED, level).sendToTarget();
+    }
+
+    private void applyQualityLevel(WeQualityGovernor.Level level) {
+        if (!isPushStarted) {
+            return;
+        }
+        LogUtils.w(TAG, "applyQualityLevel " + level);
+        setRenderFps(Math.max(1, Math.round(RENDER_FPS * level.getFpsScale())));
+        setVideoBitrateScale(level.getBitrateScale());
+
+        int width = alignSize(mVideoWidth, level.getResolutionScale());
+        int height = alignSize(mVideoHeight, level.getResolutionScale());
+        if (width != mEncodeWidth || height != mEncodeHeight) {
+            // 推流连接保持不变，只重建编码器，新的 SPS/PPS 随下一个关键帧发出
+            mEncodeWidth = width;
+            mEncodeHeight = height;
+            super.stopEncode();
+            super.startEncode(mSharedEGLContext, MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        }
+    }
+
+    private static int alignSize(int size, float scale) {
+        if (scale >= 1f) {
+            return size;
+        }
+        return Math.max(SIZE_ALIGNMENT, (int) (size * scale) / SIZE_ALIGNMENT * SIZE_ALIGNMENT);
+    }
+
+    private void resetQualityLevel() {
+        mUIHandler.removeMessages(MSG_QUALITY_LEVEL_CHANGED);
+        mEncodeWidth = mVideoWidth;
+        mEncodeHeight = mVideoHeight;
+        setRenderFps(RENDER_FPS);
+        setVideoBitrateScale(1f);
+    }
+
+    public String getLatencyReport() {
+        drainSendLatencies();
+        return LatencyTracer.getInstance().getReport(LatencyTracer.Pipeline.PUSH);
+    }
+
+    public boolean dumpLatencyReport(String path) {
+        drainSendLatencies();
+        return LatencyTracer.getInstance().dumpToFile(LatencyTracer.Pipeline.PUSH, path);
+    }
+
+    private synchronized void drainSendLatencies() {
+        WePushFlow pushFlow = mWePushFlow;
+        if (pushFlow == null) {
+            return;
+        }
+        LatencyTracer tracer = LatencyTracer.getInstance();
+        int count;
+        do {
+            count = pushFlow.drainSendLatencies(mSendLatencies);
+            for (int i = 0; i < count; i++) {
+                tracer.recordMills(LatencyTracer.Pipeline.PUSH, LatencyTracer.Stage.ENQUEUE_TO_SENT,
+                        mSendLatencies[i]);
+            }
+        } while (count == mSendLatencies.length);
+    }
+
     public void startPush(EGLContext context, int videoWidth, int videoHeight) {
         if (isReleased) {
             LogUtils.e(TAG, "startPush but it's already released! Please new one instance.");
@@ -165,7 +308,11 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
         isPushStarted = success;
         if (success) {
             stopRetryStartPush();
+            resetQualityLevel();
             super.startEncode(mSharedEGLContext, MediaFormat.MIMETYPE_VIDEO_AVC, mVideoWidth, mVideoHeight);
+            if (mQualityGovernor != null) {
+                mQualityGovernor.start(this);
+            }
         } else {
             if (isUserPushing) {
                 retryStartPush();
@@ -224,12 +371,18 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
 
     @Override
     public void onSurfaceChanged(int width, int height) {
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
         mOnScreenRenderer.onSurfaceChanged(width, height);
     }
 
     @Override
     public void onDrawFrame() {
         mOnScreenRenderer.onDrawFrame();
+        if (isLatencyOverlayEnabled) {
+            long captureMills = LatencyTracer.getInstance().getLatestCaptureNs() / 1000000;
+            FrameCounterOverlay.draw(mSurfaceWidth, mSurfaceHeight, captureMills);
+        }
     }
 
     @Override
@@ -249,6 +402,15 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
         }
 
         mWePushFlow.pushVideoData(data, size, isKeyframe);
+
+        LatencyTracer tracer = LatencyTracer.getInstance();
+        if (tracer.isEnabled()) {
+            tracer.onFrameEnqueued(LatencyTracer.Pipeline.PUSH);
+            if (++mFramesSinceDrain >= SEND_LATENCY_DRAIN_FRAMES) {
+                mFramesSinceDrain = 0;
+                drainSendLatencies();
+            }
+        }
     }
 
     public void enqueueAudioData(byte[] data, int size) {
@@ -271,6 +433,10 @@ public class WeVideoPusher extends WeGLVideoPushEncoder implements WeGLRenderer,
 
     private void stopInnerPush() {
         isPushStarted = false;
+        if (mQualityGovernor != null) {
+            mQualityGovernor.stop();
+        }
+        mUIHandler.removeMessages(MSG_QUALITY_LEVEL_CHANGED);
         super.stopEncode();
         if (mWePushFlow != null) {
             mWePushFlow.stopPush();
@@ -0,0 +1,111 @@
+package com.wtz.libvideomaker.quality;
+
+/**
+ * 默认调节策略，带迟滞：
+ * <p>
+ * 每次采样分为过热、偏热、正常、冷却四种状态，降档的门限高于升档的门限，两者之间的正常状态保持当前档位。
+ * 过热连续出现 {@value #HOT_SAMPLES_TO_STEP_DOWN} 次降一档，偏热连续出现 {@value #WARM_SAMPLES_TO_STEP_DOWN} 次降一档，
+ * 冷却连续出现 {@value #COOL_SAMPLES_TO_STEP_UP} 次才升一档；每次调档后至少保持 {@value #MIN_HOLD_SAMPLES} 个采样周期，
+ * 让上一次调整的效果体现出来。温控状态达到 CRITICAL 时直接降到最低档。
+ */
+public class WeDefaultQualityPolicy implements WeQualityPolicy {
+
+    private static final int HOT_SAMPLES_TO_STEP_DOWN = 2;
+    private static final int WARM_SAMPLES_TO_STEP_DOWN = 8;
+    private static final int COOL_SAMPLES_TO_STEP_UP = 15;
+    private static final int MIN_HOLD_SAMPLES = 3;
+
+    // 电池温度门限，单位：0.1 摄氏度
+    private static final int BATTERY_TEMP_HOT = 450;
+    private static final int BATTERY_TEMP_WARM = 420;
+    private static final int BATTERY_TEMP_COOL = 400;
+
+    // 编码滞后门限，单位：毫秒
+    private static final long ENCODE_LAG_HOT = 300;
+    private static final long ENCODE_LAG_WARM = 150;
+    private static final long ENCODE_LAG_COOL = 80;
+
+    // 渲染超时比例门限
+    private static final float DEADLINE_MISS_HOT = 0.25f;
+    private static final float DEADLINE_MISS_WARM = 0.1f;
+    private static final float DEADLINE_MISS_COOL = 0.03f;
+
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private static final int STATE_COOL = 0;
+    private static final int STATE_NORMAL = 1;
+    private static final int STATE_WARM = 2;
+    private static final int STATE_HOT = 3;
+
+    private int mHotCount;
+    private int mWarmCount;
+    private int mCoolCount;
+    private int mHoldCount;
+
+    @Override
+    public int decideLevel(WeQualitySignals signals, int currentLevel, int maxLevel) {
+        if (signals.getThermalStatus() >= WeQualitySignals.THERMAL_STATUS_CRITICAL) {
+            clearCounts();
+            return maxLevel;
+        }
+
+        int state = classify(signals);
+        mHotCount = state == STATE_HOT ? mHotCount + 1 : 0;
+        mWarmCount = state >= STATE_WARM ? mWarmCount + 1 : 0;
+        mCoolCount = state == STATE_COOL ? mCoolCount + 1 : 0;
+        if (mHoldCount > 0) {
+            mHoldCount--;
+            return currentLevel;
+        }
+
+        if (currentLevel < maxLevel
+                && (mHotCount >= HOT_SAMPLES_TO_STEP_DOWN || mWarmCount >= WARM_SAMPLES_TO_STEP_DOWN)) {
+            clearCounts();
+            return currentLevel + 1;
+        }
+        if (currentLevel > 0 && mCoolCount >= COOL_SAMPLES_TO_STEP_UP) {
+            clearCounts();
+            return currentLevel - 1;
+        }
+        return currentLevel;
+    }
+
+    private int classify(WeQualitySignals signals) {
+        int thermal = signals.getThermalStatus();
+        int temperature = signals.getBatteryTemperature();
+        long lag = signals.getEncodeLagMills();
+        float miss = signals.getDeadlineMissRatio();
+        boolean isLowBattery = !signals.isCharging() && signals.getBatteryPercent() >= 0
+                && signals.getBatteryPercent() <= LOW_BATTERY_PERCENT;
+
+        if (thermal >= WeQualitySignals.THERMAL_STATUS_SEVERE || temperature >= BATTERY_TEMP_HOT
+                || lag >= ENCODE_LAG_HOT || miss >= DEADLINE_MISS_HOT) {
+            return STATE_HOT;
+        }
+        if (thermal >= WeQualitySignals.THERMAL_STATUS_MODERATE || temperature >= BATTERY_TEMP_WARM
+                || lag >= ENCODE_LAG_WARM || miss >= DEADLINE_MISS_WARM || isLowBattery) {
+            return STATE_WARM;
+        }
+        if (thermal <= WeQualitySignals.THERMAL_STATUS_LIGHT && temperature < BATTERY_TEMP_COOL
+                && lag < ENCODE_LAG_COOL && miss < DEADLINE_MISS_COOL) {
+            return STATE_COOL;
+        }
+        return STATE_NORMAL;
+    }
+
+    private void clearCounts() {
+        mHotCount = 0;
+        mWarmCount = 0;
+        mCoolCount = 0;
+        mHoldCount = MIN_HOLD_SAMPLES;
+    }
+
+    @Override
+    public void reset() {
+        mHotCount = 0;
+        mWarmCount = 0;
+        mCoolCount = 0;
+        mHoldCount = 0;
+    }
+
+}
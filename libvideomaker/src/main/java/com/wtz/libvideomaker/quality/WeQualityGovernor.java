@@ -0,0 +1,265 @@
+package com.wtz.libvideomaker.quality;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 长时间录制和推流的质量调节器：
+ * <p>
+ * 在独立线程中周期采样设备温控状态、电池状态、编码滞后和渲染超时比例，交给 {@link WeQualityPolicy} 决定档位，
+ * 随着设备发热依次降低分辨率、帧率和码率，冷却后再逐档恢复。具体怎么调整由 {@link Target} 实现，
+ * 目前 WeVideoPusher 和 WeVideoRecorder 都已实现，通过各自的 setQualityGovernor 接入。
+ */
+public class WeQualityGovernor {
+    private static final String TAG = "WeQualityGovernor";
+
+    private static final int DEFAULT_SAMPLE_INTERVAL_MILLS = 2000;
+
+    private WeQualitySignalSource mSignalSource;
+    private WeQualityPolicy mPolicy;
+    private int mSampleIntervalMills = DEFAULT_SAMPLE_INTERVAL_MILLS;
+
+    // 以下只在调节线程中访问
+    private Target mTarget;
+    private List<Level> mLadder = new ArrayList<>();
+    private int mLevelIndex;
+    private WeQualitySignals mSignals = new WeQualitySignals();
+    private long mLastRenderTicks;
+    private long mLastDeadlineMisses;
+
+    private volatile Level mCurrentLevel = Level.FULL;
+
+    private Handler mWorkHandler;
+    private HandlerThread mWorkThread;
+    private boolean isReleased;
+
+    private static final int HANDLE_START = 0;
+    private static final int HANDLE_SAMPLE = 1;
+    private static final int HANDLE_STOP = 2;
+    private static final int HANDLE_RELEASE = 3;
+
+    /**
+     * 质量档位，依次降低分辨率、帧率、码率，各项为相对正常值的比例
+     */
+    public enum Level {
+        FULL(0, 1f, 1f, 1f),
+        REDUCED_RESOLUTION(1, 0.75f, 1f, 1f),
+        REDUCED_FPS(2, 0.75f, 0.67f, 1f),
+        REDUCED_BITRATE(3, 0.75f, 0.67f, 0.6f),
+        MINIMUM(4, 0.5f, 0.5f, 0.4f);
+
+        private int value;
+        private float resolutionScale;
+        private float fpsScale;
+        private float bitrateScale;
+
+        Level(int value, float resolutionScale, float fpsScale, float bitrateScale) {
+            this.value = value;
+            this.resolutionScale = resolutionScale;
+            this.fpsScale = fpsScale;
+            this.bitrateScale = bitrateScale;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public float getResolutionScale() {
+            return resolutionScale;
+        }
+
+        public float getFpsScale() {
+            return fpsScale;
+        }
+
+        public float getBitrateScale() {
+            return bitrateScale;
+        }
+    }
+
+    /**
+     * 被调节的录制或推流，各方法都在调节线程中调用
+     */
+    public interface Target {
+
+        /**
+         * 运行中能否改变分辨率，不能时跳过只调整分辨率的档位
+         */
+        boolean canChangeResolution();
+
+        long getEncodeLagMills();
+
+        /**
+         * 渲染线程累计的渲染周期数，重建渲染线程后可以从 0 重新开始
+         */
+        long getRenderTicks();
+
+        long getRenderDeadlineMisses();
+
+        void onQualityLevelChanged(Level level);
+    }
+
+    public WeQualityGovernor(Context context) {
+        this(new WeSystemSignalSource(context), new WeDefaultQualityPolicy());
+    }
+
+    public WeQualityGovernor(WeQualitySignalSource signalSource, WeQualityPolicy policy) {
+        if (signalSource == null || policy == null) {
+            throw new IllegalArgumentException("signalSource and policy can't be null!");
+        }
+        this.mSignalSource = signalSource;
+        this.mPolicy = policy;
+        mWorkThread = new HandlerThread("WeQualityGovernor");
+        mWorkThread.start();
+        mWorkHandler = new Handler(mWorkThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case HANDLE_START:
+                        handleStart((Target) msg.obj);
+                        break;
+
+                    case HANDLE_SAMPLE:
+                        handleSample();
+                        break;
+
+                    case HANDLE_STOP:
+                        handleStop();
+                        break;
+
+                    case HANDLE_RELEASE:
+                        handleRelease();
+                        break;
+                }
+            }
+        };
+    }
+
+    /**
+     * 设置采样间隔，下次开始时生效
+     */
+    public void setSampleInterval(int mills) {
+        this.mSampleIntervalMills = Math.max(100, mills);
+    }
+
+    /**
+     * 开始调节，从最高档开始；同一时间只调节一个 target，新的 target 会替换旧的
+     */
+    public void start(Target target) {
+        if (isReleased || target == null) {
+            return;
+        }
+        mWorkHandler.removeMessages(HANDLE_SAMPLE);
+        mWorkHandler.obtainMessage(HANDLE_START, target).sendToTarget();
+    }
+
+    /**
+     * 停止调节，不会再回调 target，target 需要自行恢复正常参数
+     */
+    public void stop() {
+        if (isReleased) {
+            return;
+        }
+        mWorkHandler.removeMessages(HANDLE_SAMPLE);
+        mWorkHandler.sendEmptyMessage(HANDLE_STOP);
+    }
+
+    public Level getCurrentLevel() {
+        return mCurrentLevel;
+    }
+
+    private void handleStart(Target target) {
+        mTarget = target;
+        mLadder.clear();
+        boolean canChangeResolution = target.canChangeResolution();
+        for (Level level : Level.values()) {
+            if (!mLadder.isEmpty() && !canChangeResolution) {
+                Level last = mLadder.get(mLadder.size() - 1);
+                if (last.getFpsScale() == level.getFpsScale() && last.getBitrateScale() == level.getBitrateScale()) {
+                    continue;
+                }
+            }
+            mLadder.add(level);
+        }
+        mLevelIndex = 0;
+        mCurrentLevel = mLadder.get(0);
+        mLastRenderTicks = target.getRenderTicks();
+        mLastDeadlineMisses = target.getRenderDeadlineMisses();
+        mPolicy.reset();
+        LogUtils.w(TAG, "start, levels " + mLadder);
+        mWorkHandler.sendEmptyMessageDelayed(HANDLE_SAMPLE, mSampleIntervalMills);
+    }
+
+    private void handleSample() {
+        Target target = mTarget;
+        if (target == null) {
+            return;
+        }
+
+        mSignals.reset();
+        try {
+            mSignalSource.sample(mSignals);
+        } catch (Exception e) {
+            LogUtils.e(TAG, "sample signals exception: " + e.toString());
+        }
+        mSignals.setEncodeLagMills(target.getEncodeLagMills());
+
+        long ticks = target.getRenderTicks();
+        long misses = target.getRenderDeadlineMisses();
+        if (ticks < mLastRenderTicks || misses < mLastDeadlineMisses) {
+            // 渲染线程已重建，计数从头开始
+            mLastRenderTicks = 0;
+            mLastDeadlineMisses = 0;
+        }
+        long tickDelta = ticks - mLastRenderTicks;
+        mSignals.setDeadlineMissRatio(tickDelta > 0 ? (float) (misses - mLastDeadlineMisses) / tickDelta : 0);
+        mLastRenderTicks = ticks;
+        mLastDeadlineMisses = misses;
+
+        int maxIndex = mLadder.size() - 1;
+        int index = mPolicy.decideLevel(mSignals, mLevelIndex, maxIndex);
+        index = Math.max(0, Math.min(maxIndex, index));
+        if (index != mLevelIndex) {
+            Level level = mLadder.get(index);
+            LogUtils.w(TAG, "quality level " + mCurrentLevel + " -> " + level + ", " + mSignals);
+            mLevelIndex = index;
+            mCurrentLevel = level;
+            target.onQualityLevelChanged(level);
+        } else {
+            LogUtils.d(TAG, "quality level " + mCurrentLevel + ", " + mSignals);
+        }
+
+        mWorkHandler.sendEmptyMessageDelayed(HANDLE_SAMPLE, mSampleIntervalMills);
+    }
+
+    private void handleStop() {
+        LogUtils.w(TAG, "stop at level " + mCurrentLevel);
+        mWorkHandler.removeMessages(HANDLE_SAMPLE);
+        mTarget = null;
+        mLevelIndex = 0;
+        mCurrentLevel = Level.FULL;
+    }
+
+    public void release() {
+        if (isReleased) {
+            return;
+        }
+        isReleased = true;
+        mWorkHandler.removeCallbacksAndMessages(null);
+        mWorkHandler.sendEmptyMessage(HANDLE_RELEASE);
+    }
+
+    private void handleRelease() {
+        handleStop();
+        mWorkHandler.removeCallbacksAndMessages(null);
+        mWorkThread.quit();
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.wtz.libvideomaker.quality;
+
+/**
+ * 质量调节策略：根据采样结果决定下一个质量档位，默认实现为 {@link WeDefaultQualityPolicy}
+ */
+public interface WeQualityPolicy {
+
+    /**
+     * 在调节器线程中每个采样周期调用一次
+     *
+     * @param signals      本次采样结果
+     * @param currentLevel 当前档位，0 为最高质量
+     * @param maxLevel     最低质量档位
+     * @return 期望的档位，超出 [0, maxLevel] 时会被修正
+     */
+    int decideLevel(WeQualitySignals signals, int currentLevel, int maxLevel);
+
+    /**
+     * 开始新的一次调节时调用，清除之前累积的状态
+     */
+    void reset();
+
+}
@@ -0,0 +1,14 @@
+package com.wtz.libvideomaker.quality;
+
+/**
+ * 设备温度和电量的来源，默认实现为 {@link WeSystemSignalSource}，
+ * 可替换为模拟实现来验证调节策略
+ */
+public interface WeQualitySignalSource {
+
+    /**
+     * 在调节器线程中周期调用，把当前的温控状态、电池温度和电量写入 signals
+     */
+    void sample(WeQualitySignals signals);
+
+}
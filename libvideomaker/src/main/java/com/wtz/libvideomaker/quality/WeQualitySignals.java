@@ -0,0 +1,99 @@
+package com.wtz.libvideomaker.quality;
+
+/**
+ * 质量调节器每次采样得到的设备状态和编码负载
+ */
+public class WeQualitySignals {
+
+    // 与 PowerManager.THERMAL_STATUS_* 取值一致
+    public static final int THERMAL_STATUS_NONE = 0;
+    public static final int THERMAL_STATUS_LIGHT = 1;
+    public static final int THERMAL_STATUS_MODERATE = 2;
+    public static final int THERMAL_STATUS_SEVERE = 3;
+    public static final int THERMAL_STATUS_CRITICAL = 4;
+    public static final int THERMAL_STATUS_EMERGENCY = 5;
+    public static final int THERMAL_STATUS_SHUTDOWN = 6;
+
+    public static final int UNKNOWN = -1;
+
+    // 由 WeQualitySignalSource 填写
+    private int thermalStatus = THERMAL_STATUS_NONE;
+    private int batteryTemperature = UNKNOWN;// 单位：0.1 摄氏度
+    private int batteryPercent = UNKNOWN;
+    private boolean isCharging;
+
+    // 由调节器根据编码器统计填写
+    private long encodeLagMills;
+    private float deadlineMissRatio;
+
+    public int getThermalStatus() {
+        return thermalStatus;
+    }
+
+    public void setThermalStatus(int thermalStatus) {
+        this.thermalStatus = thermalStatus;
+    }
+
+    public int getBatteryTemperature() {
+        return batteryTemperature;
+    }
+
+    public void setBatteryTemperature(int batteryTemperature) {
+        this.batteryTemperature = batteryTemperature;
+    }
+
+    public int getBatteryPercent() {
+        return batteryPercent;
+    }
+
+    public void setBatteryPercent(int batteryPercent) {
+        this.batteryPercent = batteryPercent;
+    }
+
+    public boolean isCharging() {
+        return isCharging;
+    }
+
+    public void setCharging(boolean charging) {
+        isCharging = charging;
+    }
+
+    /**
+     * 视频帧从提交到编码输出的平滑耗时，编码器跟不上时持续增大
+     */
+    public long getEncodeLagMills() {
+        return encodeLagMills;
+    }
+
+    public void setEncodeLagMills(long encodeLagMills) {
+        this.encodeLagMills = encodeLagMills;
+    }
+
+    /**
+     * 上一个采样周期内绘制耗时超出帧间隔的比例
+     */
+    public float getDeadlineMissRatio() {
+        return deadlineMissRatio;
+    }
+
+    public void setDeadlineMissRatio(float deadlineMissRatio) {
+        this.deadlineMissRatio = deadlineMissRatio;
+    }
+
+    void reset() {
+        thermalStatus = THERMAL_STATUS_NONE;
+        batteryTemperature = UNKNOWN;
+        batteryPercent = UNKNOWN;
+        isCharging = false;
+        encodeLagMills = 0;
+        deadlineMissRatio = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "thermal=" + thermalStatus + " batteryTemp=" + batteryTemperature
+                + " battery=" + batteryPercent + "%" + (isCharging ? "(charging)" : "")
+                + " encodeLag=" + encodeLagMills + "ms deadlineMiss=" + String.format("%.2f", deadlineMissRatio);
+    }
+
+}
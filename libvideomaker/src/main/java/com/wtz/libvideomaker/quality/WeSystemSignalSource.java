@@ -0,0 +1,57 @@
+package com.wtz.libvideomaker.quality;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+/**
+ * 从系统读取温控状态和电池信息：
+ * Android 10 及以上使用 PowerManager 的温控状态，更低版本只能依据电池温度判断发热程度。
+ */
+public class WeSystemSignalSource implements WeQualitySignalSource {
+    private static final String TAG = "WeSystemSignalSource";
+
+    private Context mContext;
+    private PowerManager mPowerManager;
+    private IntentFilter mBatteryFilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+
+    public WeSystemSignalSource(Context context) {
+        this.mContext = context.getApplicationContext();
+        this.mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+    }
+
+    @Override
+    public void sample(WeQualitySignals signals) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && mPowerManager != null) {
+            signals.setThermalStatus(mPowerManager.getCurrentThermalStatus());
+        }
+
+        // ACTION_BATTERY_CHANGED 是粘性广播，传空接收者即可直接取得最近一次的电池状态
+        Intent battery;
+        try {
+            battery = mContext.registerReceiver(null, mBatteryFilter);
+        } catch (Exception e) {
+            LogUtils.e(TAG, "read battery status exception: " + e.toString());
+            return;
+        }
+        if (battery == null) {
+            return;
+        }
+        signals.setBatteryTemperature(battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE,
+                WeQualitySignals.UNKNOWN));
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        if (level >= 0 && scale > 0) {
+            signals.setBatteryPercent(level * 100 / scale);
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, BatteryManager.BATTERY_STATUS_UNKNOWN);
+        signals.setCharging(status == BatteryManager.BATTERY_STATUS_CHARGING
+                || status == BatteryManager.BATTERY_STATUS_FULL);
+    }
+
+}
@@ -8,8 +8,10 @@ import android.os.HandlerThread;
 import android.os.Message;
 
 import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.WeLifecycle;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * 对 Java 层的 AudioRecord 的封装
@@ -22,7 +24,6 @@ public class WeJAudioRecorder {
     private WeakReference<WeJAudioRecorder> mWeakReference;
 
     private RecordThread mRecordThread;
-    private boolean isRecordThreadExiting;
 
     private int mAudioSource;
     private int mSampleRate;
@@ -40,7 +41,7 @@ public class WeJAudioRecorder {
     private Handler mWorkHandler;
     private HandlerThread mWorkThread;
     private boolean isInitSuccess;
-    private boolean isRecording;
+    private WeLifecycle mLifecycle = new WeLifecycle(TAG);
     private boolean isReleased;
 
     private static final int HANDLE_INIT = 0;
@@ -239,16 +240,17 @@ public class WeJAudioRecorder {
             LogUtils.e(TAG, "Can't start recorder: it's init failed!");
             return;
         }
-        if (isRecording) {
+        if (mLifecycle.isActive()) {
             LogUtils.e(TAG, "Can't start recorder again: it's already recording!");
             return;
         }
-        isRecording = true;
+        mLifecycle.moveTo(WeLifecycle.State.STARTING);
         mRecordTimeMills = 0;
 
         mWeakReference = new WeakReference<>(this);
         mRecordThread = new RecordThread(mWeakReference);
         mRecordThread.start();
+        mLifecycle.moveTo(WeLifecycle.State.RUNNING);
     }
 
     /**
@@ -277,35 +279,41 @@ public class WeJAudioRecorder {
 
     private void handleStopRecord() {
         LogUtils.w(TAG, "handleStopRecord");
-        if (!isRecording) {
+        if (!mLifecycle.isActive()) {
             LogUtils.w(TAG, "No need to stop recorder again: it's already stopped!");
             return;
         }
-        isRecording = false;
+        mLifecycle.moveTo(WeLifecycle.State.STOPPING);
         mRecordTimeMills = 0;
 
-        isRecordThreadExiting = false;
+        final CountDownLatch exitLatch = new CountDownLatch(mRecordThread != null ? 1 : 0);
         if (mRecordThread != null) {
-            isRecordThreadExiting = true;
             mRecordThread.requestExit(new OnThreadExitedListener() {
                 @Override
                 public void onExited(Thread thread) {
                     LogUtils.w(TAG, "mRecordThread onExited: " + thread.hashCode());
-                    isRecordThreadExiting = false;
+                    exitLatch.countDown();
                 }
             });
         }
 
-        while (isRecordThreadExiting) {
-            try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        WeLifecycle.awaitExit(exitLatch, TAG);
+        mRecordThread = null;
         if (mRecorder != null) {
             mRecorder.stop();
         }
+        mLifecycle.moveTo(WeLifecycle.State.IDLE);
+    }
+
+    public WeLifecycle.State getState() {
+        return mLifecycle.getState();
+    }
+
+    /**
+     * 最近一次停止录音的耗时（等待录音线程退出并停止 AudioRecord），单位：毫秒
+     */
+    public long getLastStopLatencyMills() {
+        return mLifecycle.getLastStopLatencyMills();
     }
 
     public void release() {
@@ -327,6 +335,7 @@ public class WeJAudioRecorder {
             mRecorder.release();
             mRecorder = null;
         }
+        mLifecycle.moveTo(WeLifecycle.State.RELEASED);
 
         if (mWeakReference != null) {
             mWeakReference.clear();
@@ -391,8 +400,8 @@ public class WeJAudioRecorder {
         private int mAudioBytesPerSecond;
         private OnAudioRecordDataListener mOnAudioRecordDataListener;
 
-        private boolean isShouldExit;
-        private boolean isExited;
+        private volatile boolean isShouldExit;
+        private boolean isExited;// 与 mOnExitedListener 一起由 this 锁保护，保证退出回调只执行一次
 
         private long mAudioPts = 0;
 
@@ -491,13 +500,15 @@ public class WeJAudioRecorder {
         }
 
         public void requestExit(OnThreadExitedListener listener) {
-            this.mOnExitedListener = listener;
-            if (isExited) {
-                if (mOnExitedListener != null) {
-                    mOnExitedListener.onExited(this);
+            synchronized (this) {
+                this.mOnExitedListener = listener;
+                if (!isExited) {
+                    isShouldExit = true;
+                    return;
                 }
-            } else {
-                isShouldExit = true;
+            }
+            if (listener != null) {
+                listener.onExited(this);
             }
         }
 
@@ -506,9 +517,13 @@ public class WeJAudioRecorder {
             mRecorder = null;
             mWeakReference = null;
 
-            isExited = true;
-            if (mOnExitedListener != null) {
-                mOnExitedListener.onExited(this);
+            OnThreadExitedListener listener;
+            synchronized (this) {
+                isExited = true;
+                listener = mOnExitedListener;
+            }
+            if (listener != null) {
+                listener.onExited(this);
             }
         }
 
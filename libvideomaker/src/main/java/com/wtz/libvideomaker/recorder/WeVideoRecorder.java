@@ -7,6 +7,7 @@ import android.net.Uri;
 
 import com.wtz.libvideomaker.egl.WeGLRenderer;
 import com.wtz.libvideomaker.egl.WeGLVideoEncoder;
+import com.wtz.libvideomaker.quality.WeQualityGovernor;
 import com.wtz.libvideomaker.renderer.OnScreenRenderer;
 import com.wtz.libvideomaker.utils.LogUtils;
 
@@ -16,7 +17,7 @@ import java.util.Date;
 
 import javax.microedition.khronos.egl.EGLContext;
 
-public class WeVideoRecorder extends WeGLVideoEncoder implements WeGLRenderer {
+public class WeVideoRecorder extends WeGLVideoEncoder implements WeGLRenderer, WeQualityGovernor.Target {
     private static final String TAG = WeVideoRecorder.class.getSimpleName();
 
     private Context mContext;
@@ -24,6 +25,7 @@ public class WeVideoRecorder extends WeGLVideoEncoder implements WeGLRenderer {
 
     private OnScreenRenderer mOnScreenRenderer;
     private static final int RENDER_FPS = 30;//大部分摄像头最高30fps，FPS过高会导致部分低端机型渲染闪屏
+    // 高帧率录制时先通过 WeCameraView.setTargetPreviewFps 切换相机帧率，再按 getPreviewMaxFps 调用 setCaptureFps
 
     private String mSaveVideoDir;
     private String mVideoPathName;
@@ -31,6 +33,9 @@ public class WeVideoRecorder extends WeGLVideoEncoder implements WeGLRenderer {
     private static final String VIDEO_SUFFIX = ".mp4";
     private final SimpleDateFormat mSimpleDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmss");
 
+    // 质量调节：录制中的文件不能改变分辨率，只调整帧率和码率
+    private WeQualityGovernor mQualityGovernor;
+
     public WeVideoRecorder(Context context) {
         super();
         this.mContext = context;
@@ -60,9 +65,52 @@ public class WeVideoRecorder extends WeGLVideoEncoder implements WeGLRenderer {
         return TAG;
     }
 
+    /**
+     * 预览期间提前预热编码器，之后以相同参数 startEncode 可快速开始录制
+     */
+    public void warmUp(EGLContext context, int videoWidth, int videoHeight) {
+        super.warmUp(context, MediaFormat.MIMETYPE_VIDEO_AVC, videoWidth, videoHeight);
+    }
+
     public void startEncode(EGLContext context, int videoWidth, int videoHeight) {
         mVideoPathName = getVideoPathName();
+        resetQualityLevel();
         super.startEncode(context, mVideoPathName, MediaFormat.MIMETYPE_VIDEO_AVC, videoWidth, videoHeight);
+        if (mQualityGovernor != null) {
+            mQualityGovernor.start(this);
+        }
+    }
+
+    /**
+     * 设置质量调节器，下次开始录制时生效，录制中根据设备温度和编码负载降低帧率和码率，
+     * 传 null 关闭。调节器由调用方创建和释放。
+     */
+    public void setQualityGovernor(WeQualityGovernor governor) {
+        if (mQualityGovernor != null && mQualityGovernor != governor) {
+            mQualityGovernor.stop();
+        }
+        this.mQualityGovernor = governor;
+    }
+
+    @Override
+    public boolean canChangeResolution() {
+        return false;
+    }
+
+    @Override
+    public void onQualityLevelChanged(WeQualityGovernor.Level level) {
+        LogUtils.w(TAG, "onQualityLevelChanged " + level);
+        setRenderFps(Math.max(1, Math.round(getBaseFps() * level.getFpsScale())));
+        setVideoBitrateScale(level.getBitrateScale());
+    }
+
+    private int getBaseFps() {
+        return getCaptureFps() > 0 ? getCaptureFps() : RENDER_FPS;
+    }
+
+    private void resetQualityLevel() {
+        setRenderFps(getBaseFps());
+        setVideoBitrateScale(1f);
     }
 
     private String getVideoPathName() {
@@ -87,7 +135,11 @@ public class WeVideoRecorder extends WeGLVideoEncoder implements WeGLRenderer {
 
     @Override
     public void stopEncode() {
+        if (mQualityGovernor != null) {
+            mQualityGovernor.stop();
+        }
         super.stopEncode();
+        resetQualityLevel();
 
         if (mContext != null && mVideoPathName != null) {
             // 注意：以 Environment.getExternalStorageDirectory() 为开头的路径才会通知图库扫描有效
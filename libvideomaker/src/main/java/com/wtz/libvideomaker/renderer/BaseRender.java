@@ -9,10 +9,83 @@ public abstract class BaseRender implements WeGLRenderer {
     protected boolean canClearScreenOnDraw = true;
     protected boolean forceClearScreenOnce = false;
 
+    // 离屏渲染目标来源，未设置时使用自己的池，即独占一个目标
+    private WeRenderTargetPool mRenderTargetPool;
+    private int mRenderTargetSlot = WeRenderTargetPool.SLOT_EXCLUSIVE;
+    private WeRenderTargetPool mOwnTargetPool;
+
     public void setClearScreenOnDraw(boolean clearScreen) {
         canClearScreenOnDraw = clearScreen;
     }
 
+    /**
+     * 设置共用的离屏渲染目标池和使用的槽位，链路中相邻的两级不能使用同一个乒乓槽位，
+     * 输出要跨帧保留或共享出去的使用 SLOT_EXCLUSIVE。已取得渲染目标后再改变的，下次 onSurfaceChanged 时换用新的目标
+     */
+    public void setRenderTargetPool(WeRenderTargetPool pool, int slot) {
+        this.mRenderTargetPool = pool;
+        this.mRenderTargetSlot = slot;
+    }
+
+    /**
+     * 在 onSurfaceChanged 中调用，第一次时从池中取得离屏渲染目标，之后只调整尺寸
+     */
+    protected WeRenderTarget prepareRenderTarget(WeRenderTarget current, int width, int height) {
+        if (current != null && (current.getPool() != mRenderTargetPool
+                || current.getSlot() != mRenderTargetSlot)) {
+            // 池或槽位已改变，归还原来的目标
+            recycleRenderTarget(current);
+            current = null;
+        }
+        if (mRenderTargetPool == null) {
+            mOwnTargetPool = new WeRenderTargetPool(getClass().getSimpleName());
+            mRenderTargetPool = mOwnTargetPool;
+        }
+        if (current == null) {
+            return mRenderTargetPool.obtain(mRenderTargetSlot, width, height);
+        }
+        mRenderTargetPool.resize(current, width, height);
+        return current;
+    }
+
+    /**
+     * 在 onEGLContextToDestroy 中调用，归还离屏渲染目标
+     */
+    protected void recycleRenderTarget(WeRenderTarget target) {
+        if (target != null) {
+            target.getPool().recycle(target);
+        }
+        if (mOwnTargetPool != null) {
+            // 自己的池只有自己在用，归还后直接销毁
+            mOwnTargetPool.release();
+            if (mRenderTargetPool == mOwnTargetPool) {
+                mRenderTargetPool = null;
+            }
+            mOwnTargetPool = null;
+        }
+    }
+
+    /**
+     * 渲染图中设置输入纹理，不需要输入的渲染器忽略
+     */
+    public void setInputTextureId(int textureId) {
+    }
+
+    /**
+     * 渲染图中获取输出纹理，直接渲染到屏幕的返回 0
+     */
+    public int getOutputTextureId() {
+        return 0;
+    }
+
+    /**
+     * 渲染图调度用：自上次绘制后自身内容是否有变化，如源有了新的一帧、水印有更新，
+     * 输入和自身都没有变化时本帧可以跳过绘制。默认总是需要绘制
+     */
+    public boolean isContentChanged() {
+        return true;
+    }
+
     protected float[] getDefaultVertexCoordData() {
         return new float[]{
                 // 整个视口区域
@@ -0,0 +1,163 @@
+package com.wtz.libvideomaker.renderer;
+
+import android.content.Context;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 画面分接：作为渲染图的终点节点接在链路中，按设定的帧率把输入画面缩小后异步读回，交给分析（如人脸、场景检测）使用：
+ * <p>
+ * 1.输出按比例缩放到不超过设定的最大宽高，缩放在 GPU 绘制时完成，读回的数据量很小；
+ * 2.读回通过 {@link WeFrameReader} 异步进行，数据放在复用的 direct 缓冲区中，在工作线程回调；
+ * 3.上一帧的读回还没完成或回调还没处理完时直接丢掉本帧，不阻塞 GL 线程。
+ */
+public class FrameTapRenderer extends BaseRender {
+
+    private static final String TAG = FrameTapRenderer.class.getSimpleName();
+
+    public interface OnFrameTapListener {
+        /**
+         * 在工作线程中回调，处理完之前不会再回调新的帧
+         *
+         * @param rgba        自上而下排列的 RGBA 数据，只在回调期间有效，返回后缓冲区会被复用
+         * @param timestampNs 发起读回时的 System.nanoTime()
+         */
+        void onFrameTap(ByteBuffer rgba, int width, int height, long timestampNs);
+    }
+
+    private String mTag;
+    private WeFrameReader mFrameReader;
+
+    private volatile OnFrameTapListener mListener;
+    private volatile int mMaxWidth;
+    private volatile int mMaxHeight;
+    private volatile long mIntervalNs;
+
+    // 以下只在 GL 线程中访问
+    private int mInputTextureId;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+    private long mNextTapTimeNs;
+
+    private volatile long mTapCount;
+    private volatile long mDropCount;
+
+    /**
+     * @param maxWidth  输出的最大宽
+     * @param maxHeight 输出的最大高
+     * @param fps       每秒读回的最大帧数
+     */
+    public FrameTapRenderer(Context context, String tag, int maxWidth, int maxHeight, int fps) {
+        this.mTag = tag;
+        mFrameReader = new WeFrameReader(context, tag + " " + TAG);
+        setOutputSize(maxWidth, maxHeight);
+        setFps(fps);
+    }
+
+    public void setOnFrameTapListener(OnFrameTapListener listener) {
+        this.mListener = listener;
+    }
+
+    /**
+     * 设置输出的最大宽高，画面按比例缩放到此范围内
+     */
+    public void setOutputSize(int maxWidth, int maxHeight) {
+        if (maxWidth <= 0 || maxHeight <= 0) {
+            throw new IllegalArgumentException("illegal output size " + maxWidth + "x" + maxHeight);
+        }
+        LogUtils.d(TAG, mTag + " setOutputSize " + maxWidth + "x" + maxHeight);
+        this.mMaxWidth = maxWidth;
+        this.mMaxHeight = maxHeight;
+    }
+
+    /**
+     * 设置每秒读回的最大帧数，超过渲染帧率时按渲染帧率读回
+     */
+    public void setFps(int fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("illegal fps " + fps);
+        }
+        LogUtils.d(TAG, mTag + " setFps " + fps);
+        this.mIntervalNs = 1000000000L / fps;
+    }
+
+    /**
+     * 累计交给回调的帧数
+     */
+    public long getTapCount() {
+        return mTapCount;
+    }
+
+    /**
+     * 累计因读回或回调忙而丢掉的帧数
+     */
+    public long getDropCount() {
+        return mDropCount;
+    }
+
+    @Override
+    public void setInputTextureId(int textureId) {
+        this.mInputTextureId = textureId;
+    }
+
+    @Override
+    public void onEGLContextCreated() {
+        LogUtils.d(TAG, mTag + " onEGLContextCreated");
+        mFrameReader.onEGLContextCreated();
+        mNextTapTimeNs = 0;
+    }
+
+    @Override
+    public void onSurfaceChanged(int width, int height) {
+        // 不绘制到屏幕，不需要设置视口
+        LogUtils.d(TAG, mTag + " onSurfaceChanged " + width + "x" + height);
+        this.mSurfaceWidth = width;
+        this.mSurfaceHeight = height;
+    }
+
+    @Override
+    public void onDrawFrame() {
+        // 收取之前帧发起的读回
+        mFrameReader.onDrawFrame();
+
+        final OnFrameTapListener listener = mListener;
+        if (listener == null || mInputTextureId <= 0 || mSurfaceWidth <= 0 || mSurfaceHeight <= 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (now < mNextTapTimeNs) {
+            return;
+        }
+        // 按固定间隔排下一次，渲染帧率不是整数倍时平均帧率也不会偏低；落后太多时从现在重新开始
+        long intervalNs = mIntervalNs;
+        mNextTapTimeNs += intervalNs;
+        if (mNextTapTimeNs < now - intervalNs) {
+            mNextTapTimeNs = now;
+        }
+
+        if (mFrameReader.isBusy()) {
+            mDropCount++;
+            return;
+        }
+        float scale = Math.min(1f, Math.min(mMaxWidth * 1.0f / mSurfaceWidth,
+                mMaxHeight * 1.0f / mSurfaceHeight));
+        int width = Math.max(1, Math.round(mSurfaceWidth * scale));
+        int height = Math.max(1, Math.round(mSurfaceHeight * scale));
+        mFrameReader.readTexture(mInputTextureId, width, height, new WeFrameReader.OnFrameReadListener() {
+            @Override
+            public void onFrameRead(ByteBuffer rgba, int width, int height) {
+                mTapCount++;
+                listener.onFrameTap(rgba, width, height, now);
+            }
+        });
+    }
+
+    @Override
+    public void onEGLContextToDestroy() {
+        LogUtils.d(TAG, mTag + " onEGLContextToDestroy, tap " + mTapCount + ", drop " + mDropCount);
+        mFrameReader.onEGLContextToDestroy();
+    }
+
+}
@@ -9,7 +9,7 @@ import android.opengl.GLES20;
 import com.wtz.libvideomaker.R;
 import com.wtz.libvideomaker.utils.GLBitmapUtils;
 import com.wtz.libvideomaker.utils.LogUtils;
-import com.wtz.libvideomaker.utils.ShaderUtil;
+import com.wtz.libvideomaker.utils.WeShaderRegistry;
 
 import java.io.File;
 import java.nio.ByteBuffer;
@@ -26,8 +26,6 @@ public class OnScreenRenderer extends BaseRender {
     private int mSurfaceWidth;
     private int mSurfaceHeight;
 
-    private int mVertexShaderHandle;
-    private int mFragmentShaderHandle;
     private int mProgramHandle;
 
     private static final int BYTES_PER_FLOAT = 4;
@@ -76,6 +74,9 @@ public class OnScreenRenderer extends BaseRender {
     // 外部传入的纹理内容句柄
     private int mExternalTextureId;
 
+    // 拍照时异步读回画面
+    private WeFrameReader mFrameReader;
+
     public interface ScreenTextureChangeListener {
         void onScreenTextureChanged(int textureId);
     }
@@ -89,6 +90,7 @@ public class OnScreenRenderer extends BaseRender {
     public OnScreenRenderer(Context mContext, String tag) {
         this.mContext = mContext;
         this.mTag = tag;
+        mFrameReader = new WeFrameReader(mContext, tag);
     }
 
     public void setExternalTextureId(int id) {
@@ -103,21 +105,23 @@ public class OnScreenRenderer extends BaseRender {
         return mExternalTextureId;
     }
 
+    @Override
+    public void setInputTextureId(int textureId) {
+        setExternalTextureId(textureId);
+    }
+
     @Override
     public void onEGLContextCreated() {
         LogUtils.d(TAG, mTag + " onEGLContextCreated");
         initShaderProgram();
         initCoordinatesData();
+        mFrameReader.onEGLContextCreated();
     }
 
     private void initShaderProgram() {
-        // 创建着色器程序
-        String vertexSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_vertex_onscreen_shader);
-        String fragmentSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_fragment_normal_texture2d_shader);
-        int[] shaderIDs = ShaderUtil.createAndLinkProgram(vertexSource, fragmentSource);
-        mVertexShaderHandle = shaderIDs[0];
-        mFragmentShaderHandle = shaderIDs[1];
-        mProgramHandle = shaderIDs[2];
+        // 取得着色器程序，同一共享组内已编译过的直接复用
+        mProgramHandle = WeShaderRegistry.getInstance().obtainProgram(mContext,
+                R.raw.we_vidmk_vertex_onscreen_shader, R.raw.we_vidmk_fragment_normal_texture2d_shader);
         if (mProgramHandle <= 0) {
             throw new RuntimeException("initShaderProgram Error: createAndLinkProgram failed.");
         }
@@ -206,6 +210,9 @@ public class OnScreenRenderer extends BaseRender {
 
     @Override
     public void onDrawFrame() {
+        // 收取之前帧发起的读回
+        mFrameReader.onDrawFrame();
+
         // 清屏
         if (canClearScreenOnDraw || forceClearScreenOnce) {
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
@@ -253,19 +260,33 @@ public class OnScreenRenderer extends BaseRender {
         GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     }
 
-    public void takePhoto(String pathName) {
-        Bitmap bitmap = GLBitmapUtils.saveGLPixels(0, 0, mSurfaceWidth, mSurfaceHeight);
-        GLBitmapUtils.saveBitmap(bitmap, pathName);
-
-        // 注意：以 Environment.getExternalStorageDirectory() 为开头的路径才会通知图库扫描有效
-        Uri contentUri = Uri.fromFile(new File(pathName));
-        Intent i = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, contentUri);
-        mContext.sendBroadcast(i);
+    /**
+     * 在 GL 线程中调用，读回当前上屏的画面保存为图片；读回是异步的，压缩保存在工作线程中完成
+     */
+    public void takePhoto(final String pathName) {
+        mFrameReader.readTexture(mExternalTextureId, mSurfaceWidth, mSurfaceHeight,
+                new WeFrameReader.OnFrameReadListener() {
+                    @Override
+                    public void onFrameRead(ByteBuffer rgba, int width, int height) {
+                        // glReadPixels 的 RGBA 字节序与 ARGB_8888 的内存布局一致，可以直接拷贝
+                        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                        bitmap.copyPixelsFromBuffer(rgba);
+                        GLBitmapUtils.saveBitmap(bitmap, pathName);
+                        bitmap.recycle();
+                        LogUtils.d(TAG, mTag + " takePhoto saved " + pathName);
+
+                        // 注意：以 Environment.getExternalStorageDirectory() 为开头的路径才会通知图库扫描有效
+                        Uri contentUri = Uri.fromFile(new File(pathName));
+                        Intent i = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, contentUri);
+                        mContext.sendBroadcast(i);
+                    }
+                });
     }
 
     @Override
     public void onEGLContextToDestroy() {
         LogUtils.d(TAG, mTag + " onEGLContextToDestroy");
+        mFrameReader.onEGLContextToDestroy();
         if (mVertexCoordBuffer != null) {
             mVertexCoordBuffer.clear();
             mVertexCoordBuffer = null;
@@ -275,15 +296,7 @@ public class OnScreenRenderer extends BaseRender {
             mTextureCoordBuffer = null;
         }
         if (mProgramHandle > 0) {
-            GLES20.glDetachShader(mProgramHandle, mVertexShaderHandle);
-            GLES20.glDeleteShader(mVertexShaderHandle);
-            mVertexShaderHandle = 0;
-
-            GLES20.glDetachShader(mProgramHandle, mFragmentShaderHandle);
-            GLES20.glDeleteShader(mFragmentShaderHandle);
-            mFragmentShaderHandle = 0;
-
-            GLES20.glDeleteProgram(mProgramHandle);
+            WeShaderRegistry.getInstance().releaseProgram(mProgramHandle);
             mProgramHandle = 0;
         }
         if (mVBOIds != null) {
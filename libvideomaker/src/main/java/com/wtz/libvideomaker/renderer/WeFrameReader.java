@@ -0,0 +1,320 @@
+package com.wtz.libvideomaker.renderer;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.wtz.libvideomaker.R;
+import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.WePboReader;
+import com.wtz.libvideomaker.utils.WeShaderRegistry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 纹理内容异步读回，用于拍照等需要在 CPU 上拿到画面的场景，代替在 GL 线程中 glReadPixels 后逐像素翻转、转换：
+ * <p>
+ * 1.先把纹理画到自己的离屏目标上，行序在这一步调整为自上而下，读回的 RGBA 字节可以直接
+ * copyPixelsFromBuffer 到 ARGB_8888 的 Bitmap，不再需要逐像素交换 R、B；
+ * 2.GLES 3.0 上通过 {@link WePboReader} 的两个 PBO 轮流异步读回，发起读回的一帧不等待，之后的帧里 GPU 完成后再映射拷出；
+ * GLES 2.0 上直接读到复用的 direct 缓冲区；
+ * 3.读回的数据交给工作线程回调，压缩保存等耗时操作都在工作线程中完成。
+ * <p>
+ * 除 OnFrameReadListener 外各方法需在 GL 线程中调用，并在每帧开始时调用 {@link #onDrawFrame()} 收取已完成的读回。
+ */
+public class WeFrameReader {
+    private static final String TAG = "WeFrameReader";
+
+    private static final int PBO_COUNT = 2;
+    private static final int MAX_POOLED_BUFFERS = 3;
+    private static final int BYTES_PER_FLOAT = 4;
+
+    public interface OnFrameReadListener {
+        /**
+         * 在工作线程中回调
+         *
+         * @param rgba 自上而下排列的 RGBA 数据，只在回调期间有效
+         */
+        void onFrameRead(ByteBuffer rgba, int width, int height);
+    }
+
+    private Context mContext;
+    private String mTag;
+
+    private int mProgramHandle;
+    private int mVertexCoordHandle;
+    private int mTextureCoordHandle;
+    private int mTextureUniformHandle;
+    private int[] mVBOIds;
+    private int mVertexCoordBytes;
+
+    private WeRenderTargetPool mTargetPool;
+    private WeRenderTarget mRenderTarget;
+
+    private WePboReader mPboReader;
+    private boolean isPboSupported;
+
+    private final ArrayDeque<ByteBuffer> mBufferPool = new ArrayDeque<>();
+    // 已交给工作线程、回调还没处理完的帧数，由 mBufferPool 加锁保护
+    private int mDispatchingCount;
+    private HandlerThread mWorkThread;
+    private Handler mWorkHandler;
+
+    private long mReadCount;
+    private long mWaitCount;
+
+    public WeFrameReader(Context context, String tag) {
+        this.mContext = context;
+        this.mTag = tag + " " + TAG;
+        mTargetPool = new WeRenderTargetPool(mTag);
+    }
+
+    public void onEGLContextCreated() {
+        mProgramHandle = WeShaderRegistry.getInstance().obtainProgram(mContext,
+                R.raw.we_vidmk_vertex_onscreen_shader, R.raw.we_vidmk_fragment_normal_texture2d_shader);
+        if (mProgramHandle <= 0) {
+            throw new RuntimeException("WeFrameReader createAndLinkProgram failed.");
+        }
+        mVertexCoordHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_Position");
+        mTextureCoordHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_TexCoordinate");
+        mTextureUniformHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_Texture");
+
+        // 离屏纹理的第 0 行（纹理坐标 v=0）是画面顶部，这里按原样拷贝到目标的第 0 行，
+        // glReadPixels 从第 0 行开始读，得到的就是自上而下的行序
+        float[] coords = new float[]{
+                -1f, -1f,
+                1f, -1f,
+                -1f, 1f,
+                1f, 1f,
+                // 纹理坐标
+                0f, 0f,
+                1f, 0f,
+                0f, 1f,
+                1f, 1f
+        };
+        FloatBuffer buffer = ByteBuffer.allocateDirect(coords.length * BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder()).asFloatBuffer().put(coords);
+        buffer.position(0);
+        mVertexCoordBytes = 8 * BYTES_PER_FLOAT;
+        mVBOIds = new int[1];
+        GLES20.glGenBuffers(1, mVBOIds, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVBOIds[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, coords.length * BYTES_PER_FLOAT, buffer,
+                GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        mPboReader = new WePboReader(mTag, PBO_COUNT);
+        isPboSupported = mPboReader.prepare();
+        LogUtils.d(TAG, mTag + " onEGLContextCreated pbo=" + isPboSupported);
+    }
+
+    /**
+     * 读回纹理内容，GLES 3.0 上本帧只发起读回，数据在之后的 {@link #onDrawFrame()} 中收取；
+     * 两个 PBO 都在等待时先等最早的一个完成
+     *
+     * @param width  输出宽，与纹理尺寸不同时在绘制时缩放
+     * @param height 输出高
+     */
+    public void readTexture(int textureId, int width, int height, OnFrameReadListener listener) {
+        if (mProgramHandle <= 0 || width <= 0 || height <= 0) {
+            LogUtils.e(TAG, mTag + " readTexture illegal state or size " + width + "x" + height);
+            return;
+        }
+        long startNs = System.nanoTime();
+        int[] viewport = new int[4];
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, viewport, 0);
+
+        drawToTarget(textureId, width, height);
+        if (isPboSupported) {
+            if (mPboReader.isFull()) {
+                mWaitCount++;
+                mPboReader.pollOldest(true);
+                completeOldest();
+            }
+            mPboReader.issueRead(width, height, 0, listener);
+        } else {
+            ByteBuffer buffer = obtainBuffer(width * height * 4);
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+            dispatch(buffer, width, height, listener);
+        }
+        mRenderTarget.unbind();
+        GLES20.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+        LogUtils.d(TAG, mTag + " readTexture " + width + "x" + height + " cost "
+                + (System.nanoTime() - startNs) / 1000 + "us");
+    }
+
+    private void drawToTarget(int textureId, int width, int height) {
+        if (mRenderTarget == null) {
+            mRenderTarget = mTargetPool.obtain(WeRenderTargetPool.SLOT_EXCLUSIVE, width, height);
+        } else {
+            mTargetPool.resize(mRenderTarget, width, height);
+        }
+        mRenderTarget.bind();
+        GLES20.glViewport(0, 0, width, height);
+        GLES20.glUseProgram(mProgramHandle);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVBOIds[0]);
+        GLES20.glEnableVertexAttribArray(mVertexCoordHandle);
+        GLES20.glVertexAttribPointer(mVertexCoordHandle, 2, GLES20.GL_FLOAT, false, 8, 0);
+        GLES20.glEnableVertexAttribArray(mTextureCoordHandle);
+        GLES20.glVertexAttribPointer(mTextureCoordHandle, 2, GLES20.GL_FLOAT, false, 8, mVertexCoordBytes);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(mTextureUniformHandle, 0);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        // 保持绑定，接着从目标读回
+    }
+
+    /**
+     * 每帧开始时在 GL 线程中调用，收取 GPU 已完成的读回，未完成的留到下一帧
+     */
+    public void onDrawFrame() {
+        if (!isPboSupported) {
+            return;
+        }
+        while (mPboReader.pollOldest(false)) {
+            completeOldest();
+        }
+    }
+
+    /**
+     * 把 GPU 已完成的最早一个读回拷出，交给工作线程
+     */
+    private void completeOldest() {
+        int width = mPboReader.getOldestWidth();
+        int height = mPboReader.getOldestHeight();
+        OnFrameReadListener listener = (OnFrameReadListener) mPboReader.getOldestTag();
+        ByteBuffer buffer = obtainBuffer(width * height * 4);
+        ByteBuffer mapped = mPboReader.mapOldest();
+        if (mapped != null) {
+            buffer.put(mapped);
+            buffer.position(0);
+        }
+        mPboReader.finishOldest();
+        if (mapped != null) {
+            dispatch(buffer, width, height, listener);
+        } else {
+            recycleBuffer(buffer);
+        }
+    }
+
+    private void dispatch(final ByteBuffer buffer, final int width, final int height,
+                          final OnFrameReadListener listener) {
+        mReadCount++;
+        buffer.position(0);
+        synchronized (mBufferPool) {
+            mDispatchingCount++;
+        }
+        if (mWorkHandler == null) {
+            // 第一次读回时才启动工作线程
+            mWorkThread = new HandlerThread(mTag);
+            mWorkThread.start();
+            mWorkHandler = new Handler(mWorkThread.getLooper());
+        }
+        mWorkHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onFrameRead(buffer, width, height);
+                } finally {
+                    synchronized (mBufferPool) {
+                        mDispatchingCount--;
+                    }
+                    recycleBuffer(buffer);
+                }
+            }
+        });
+    }
+
+    /**
+     * 在 GL 线程中调用，现在发起读回是否需要等待：下一个 PBO 的 GPU 读回还没完成，或者回调还没处理完之前的帧。
+     * 持续读回时先检查，忙时丢掉本帧，不阻塞 GL 线程，也不让待处理的帧越积越多
+     */
+    public boolean isBusy() {
+        if (isPboSupported && mPboReader.isFull()) {
+            if (!mPboReader.pollOldest(false)) {
+                return true;
+            }
+            completeOldest();
+        }
+        synchronized (mBufferPool) {
+            return mDispatchingCount > 0;
+        }
+    }
+
+    private ByteBuffer obtainBuffer(int bytes) {
+        synchronized (mBufferPool) {
+            ByteBuffer buffer = mBufferPool.poll();
+            while (buffer != null && buffer.capacity() != bytes) {
+                // 尺寸变了，旧的不再使用
+                buffer = mBufferPool.poll();
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            }
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        synchronized (mBufferPool) {
+            if (mBufferPool.size() < MAX_POOLED_BUFFERS) {
+                mBufferPool.offer(buffer);
+            }
+        }
+    }
+
+    /**
+     * 累计读回的帧数
+     */
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * 因两个 PBO 都在等待而阻塞等待的次数
+     */
+    public long getWaitCount() {
+        return mWaitCount;
+    }
+
+    /**
+     * 未收取的读回在这里等待完成并交给工作线程，工作线程处理完已有的任务后退出
+     */
+    public void onEGLContextToDestroy() {
+        LogUtils.d(TAG, mTag + " onEGLContextToDestroy, read " + mReadCount + ", wait " + mWaitCount);
+        if (mPboReader != null) {
+            while (mPboReader.pollOldest(true)) {
+                completeOldest();
+            }
+            mPboReader.release();
+            mPboReader = null;
+            isPboSupported = false;
+        }
+        if (mWorkThread != null) {
+            mWorkThread.quitSafely();
+            mWorkThread = null;
+            mWorkHandler = null;
+        }
+        if (mRenderTarget != null) {
+            mTargetPool.recycle(mRenderTarget);
+            mRenderTarget = null;
+        }
+        mTargetPool.release();
+        if (mProgramHandle > 0) {
+            WeShaderRegistry.getInstance().releaseProgram(mProgramHandle);
+            mProgramHandle = 0;
+        }
+        if (mVBOIds != null) {
+            GLES20.glDeleteBuffers(mVBOIds.length, mVBOIds, 0);
+            mVBOIds = null;
+        }
+    }
+
+}
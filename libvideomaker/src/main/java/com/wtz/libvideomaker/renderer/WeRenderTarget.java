@@ -0,0 +1,133 @@
+package com.wtz.libvideomaker.renderer;
+
+import android.opengl.GLES20;
+
+import com.wtz.libvideomaker.utils.TextureUtils;
+
+/**
+ * 离屏渲染目标：一个 FBO 加上附加在它上面的 RGBA 纹理，纹理作为渲染结果供下一级使用。
+ * <p>
+ * 由 {@link WeRenderTargetPool} 创建和回收，只能在创建它的 GL 线程中使用。
+ * 尺寸变化时在原纹理上重新分配存储，纹理 ID 保持不变，下一级不需要重新绑定。
+ */
+public class WeRenderTarget {
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private int mFramebufferId;
+    private int mTextureId;
+    private int mWidth;
+    private int mHeight;
+
+    // 以下由 WeRenderTargetPool 维护
+    WeRenderTargetPool mPool;
+    int mSlot;
+    int mRefCount;
+
+    WeRenderTarget(WeRenderTargetPool pool, int slot) {
+        this.mPool = pool;
+        this.mSlot = slot;
+        int[] fboIds = new int[1];
+        GLES20.glGenFramebuffers(1, fboIds, 0);
+        if (fboIds[0] == 0) {
+            throw new RuntimeException("WeRenderTarget glGenFramebuffers failed!");
+        }
+        mFramebufferId = fboIds[0];
+        mTextureId = TextureUtils.genTexture2D(1)[0];
+    }
+
+    /**
+     * 调整尺寸，尺寸未变时不做任何事，返回是否重新分配了纹理存储
+     */
+    boolean resize(int width, int height) {
+        if (width == mWidth && height == mHeight) {
+            return false;
+        }
+        // 为纹理分配内存，原有存储由驱动释放
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width,
+                height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+        // 把纹理附加到 FBO，重新分配存储后需要重新检查完整性
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+        int ret = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (ret != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            throw new RuntimeException("Attach texture to FBO failed! FramebufferStatus:" + ret);
+        }
+
+        mWidth = width;
+        mHeight = height;
+        return true;
+    }
+
+    /**
+     * 绑定到此目标从而离屏渲染
+     */
+    public void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebufferId);
+    }
+
+    /**
+     * 解绑，恢复到屏上渲染
+     */
+    public void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    public int getFramebufferId() {
+        return mFramebufferId;
+    }
+
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getSlot() {
+        return mSlot;
+    }
+
+    public WeRenderTargetPool getPool() {
+        return mPool;
+    }
+
+    long getBytes() {
+        return (long) mWidth * mHeight * BYTES_PER_PIXEL;
+    }
+
+    void destroy() {
+        if (mTextureId != 0) {
+            GLES20.glDeleteTextures(1, new int[]{mTextureId}, 0);
+            mTextureId = 0;
+        }
+        if (mFramebufferId != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[]{mFramebufferId}, 0);
+            mFramebufferId = 0;
+        }
+        mWidth = 0;
+        mHeight = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "WeRenderTarget{" +
+                "fbo=" + mFramebufferId +
+                ", texture=" + mTextureId +
+                ", size=" + mWidth + "x" + mHeight +
+                ", slot=" + mSlot +
+                ", refs=" + mRefCount +
+                '}';
+    }
+
+}
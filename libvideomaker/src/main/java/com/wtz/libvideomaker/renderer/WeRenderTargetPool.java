@@ -0,0 +1,149 @@
+package com.wtz.libvideomaker.renderer;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 离屏渲染目标池，同一个 EGL 上下文中的渲染链共用，只能在 GL 线程中使用：
+ * <p>
+ * 1.乒乓目标：{@link #SLOT_PING} 和 {@link #SLOT_PONG} 各只有一个，链路中相邻的两级交替使用，
+ * 中间结果只在本帧内有效，所以任意长的链路只需要两份中间纹理，同一槽位上不同时启用的渲染器（如可切换的滤镜）共用一份；
+ * 2.独占目标：{@link #SLOT_EXCLUSIVE}，用于结果需要跨帧保留或者要共享给其他线程、其他上下文的渲染器，
+ * 如链路最后一级的输出。回收后按尺寸缓存起来，再次取用时优先复用尺寸相同的。
+ * <p>
+ * 尺寸变化时各目标在原纹理上重新分配存储，纹理 ID 不变；EGL 上下文销毁前需调用 {@link #release()}。
+ */
+public class WeRenderTargetPool {
+    private static final String TAG = "WeRenderTargetPool";
+
+    public static final int SLOT_EXCLUSIVE = -1;
+    public static final int SLOT_PING = 0;
+    public static final int SLOT_PONG = 1;
+
+    private String mTag;
+    private WeRenderTarget[] mPingPongTargets = new WeRenderTarget[2];
+    private List<WeRenderTarget> mExclusiveTargets = new ArrayList<>();
+    private List<WeRenderTarget> mFreeTargets = new ArrayList<>();
+
+    public WeRenderTargetPool(String tag) {
+        this.mTag = tag;
+    }
+
+    /**
+     * 取得指定槽位的渲染目标并调整到指定尺寸
+     *
+     * @param slot {@link #SLOT_PING}、{@link #SLOT_PONG} 或 {@link #SLOT_EXCLUSIVE}
+     */
+    public WeRenderTarget obtain(int slot, int width, int height) {
+        WeRenderTarget target;
+        if (slot == SLOT_PING || slot == SLOT_PONG) {
+            target = mPingPongTargets[slot];
+            if (target == null) {
+                target = new WeRenderTarget(this, slot);
+                mPingPongTargets[slot] = target;
+            }
+        } else if (slot == SLOT_EXCLUSIVE) {
+            target = takeFreeTarget(width, height);
+            if (target == null) {
+                target = new WeRenderTarget(this, SLOT_EXCLUSIVE);
+            }
+            mExclusiveTargets.add(target);
+        } else {
+            throw new IllegalArgumentException("illegal render target slot " + slot);
+        }
+        target.mRefCount++;
+        target.resize(width, height);
+        LogUtils.d(TAG, mTag + " obtain " + target + ", total " + getAllocatedBytes() / 1024 + "KB");
+        return target;
+    }
+
+    private WeRenderTarget takeFreeTarget(int width, int height) {
+        if (mFreeTargets.isEmpty()) {
+            return null;
+        }
+        Iterator<WeRenderTarget> iterator = mFreeTargets.iterator();
+        while (iterator.hasNext()) {
+            WeRenderTarget target = iterator.next();
+            if (target.getWidth() == width && target.getHeight() == height) {
+                iterator.remove();
+                return target;
+            }
+        }
+        // 没有尺寸相同的就拿一个重新分配存储，省去创建 FBO
+        return mFreeTargets.remove(mFreeTargets.size() - 1);
+    }
+
+    /**
+     * 调整渲染目标尺寸，乒乓目标由多个渲染器共用，相同尺寸重复调整不会重新分配
+     */
+    public void resize(WeRenderTarget target, int width, int height) {
+        if (target.resize(width, height)) {
+            LogUtils.d(TAG, mTag + " resize " + target + ", total " + getAllocatedBytes() / 1024 + "KB");
+        }
+    }
+
+    /**
+     * 归还渲染目标，乒乓目标在池释放前一直保留，独占目标放回空闲列表等待复用
+     */
+    public void recycle(WeRenderTarget target) {
+        if (target == null || target.mRefCount <= 0) {
+            return;
+        }
+        target.mRefCount--;
+        if (target.mRefCount == 0 && target.getSlot() == SLOT_EXCLUSIVE
+                && mExclusiveTargets.remove(target)) {
+            mFreeTargets.add(target);
+        }
+    }
+
+    /**
+     * 销毁空闲的独占目标
+     */
+    public void trim() {
+        for (WeRenderTarget target : mFreeTargets) {
+            target.destroy();
+        }
+        mFreeTargets.clear();
+    }
+
+    /**
+     * 当前持有的纹理存储总字节数，包括空闲的
+     */
+    public long getAllocatedBytes() {
+        long bytes = 0;
+        for (WeRenderTarget target : mPingPongTargets) {
+            if (target != null) {
+                bytes += target.getBytes();
+            }
+        }
+        for (WeRenderTarget target : mExclusiveTargets) {
+            bytes += target.getBytes();
+        }
+        for (WeRenderTarget target : mFreeTargets) {
+            bytes += target.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * 销毁所有渲染目标，需在 EGL 上下文销毁前调用，之后池仍可继续使用
+     */
+    public void release() {
+        LogUtils.d(TAG, mTag + " release, total " + getAllocatedBytes() / 1024 + "KB");
+        for (int i = 0; i < mPingPongTargets.length; i++) {
+            if (mPingPongTargets[i] != null) {
+                mPingPongTargets[i].destroy();
+                mPingPongTargets[i] = null;
+            }
+        }
+        for (WeRenderTarget target : mExclusiveTargets) {
+            target.destroy();
+        }
+        mExclusiveTargets.clear();
+        trim();
+    }
+
+}
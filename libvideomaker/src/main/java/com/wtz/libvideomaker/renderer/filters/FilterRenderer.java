@@ -4,10 +4,11 @@ import android.content.Context;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
 
+import com.wtz.libvideomaker.R;
 import com.wtz.libvideomaker.renderer.BaseRender;
+import com.wtz.libvideomaker.renderer.WeRenderTarget;
 import com.wtz.libvideomaker.utils.LogUtils;
-import com.wtz.libvideomaker.utils.ShaderUtil;
-import com.wtz.libvideomaker.utils.TextureUtils;
+import com.wtz.libvideomaker.utils.WeShaderRegistry;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -18,8 +19,6 @@ public abstract class FilterRenderer extends BaseRender {
     private Context mContext;
     private String mTag;
 
-    private int mVertexShaderHandle;
-    private int mFragmentShaderHandle;
     private int mProgramHandle;
 
     private static final int BYTES_PER_FLOAT = 4;
@@ -35,9 +34,9 @@ public abstract class FilterRenderer extends BaseRender {
     private int mTextureCoordBytes;
 
     /**
-     * 使用 FBO 离屏渲染
+     * 使用 FBO 离屏渲染，FBO 和输出纹理由渲染目标池提供
      */
-    private int mFBOId;
+    private WeRenderTarget mRenderTarget;
 
     /* ---------- 顶点坐标配置：start ---------- */
     // java 层顶点坐标
@@ -76,21 +75,29 @@ public abstract class FilterRenderer extends BaseRender {
     // 外部传入的纹理内容句柄
     private int mExternalTextureId;
 
-    // 准备输出的纹理内容句柄
-    private int[] mOutputTextureIds;
-    private int[] mOldOutputTextureIds;
-
     public interface OnFilterTextureChangedListener {
         void onFilterTextureChanged(FilterRenderer renderer, int textureID);
     }
 
     private OnFilterTextureChangedListener mFilterTextureChangedListener;
 
+    /**
+     * 逐像素的简单颜色滤镜返回自己的颜色运算，以便和相邻的滤镜合并成一次绘制，见 {@link FusedFilterRenderer}；
+     * 与邻近像素有关或者有自己的坐标、矩阵的滤镜返回 null
+     */
+    public WeColorOp getColorOp() {
+        return null;
+    }
+
     public FilterRenderer(Context mContext, String tag) {
         this.mContext = mContext;
         this.mTag = tag;
     }
 
+    protected Context getContext() {
+        return mContext;
+    }
+
     public void setExternalTextureId(int id) {
         LogUtils.d(mTag, "setExternalTextureId " + id);
         this.mExternalTextureId = id;
@@ -101,7 +108,23 @@ public abstract class FilterRenderer extends BaseRender {
     }
 
     public int getFilterTextureId() {
-        return mOutputTextureIds != null ? mOutputTextureIds[0] : 0;
+        return mRenderTarget != null ? mRenderTarget.getTextureId() : 0;
+    }
+
+    @Override
+    public void setInputTextureId(int textureId) {
+        setExternalTextureId(textureId);
+    }
+
+    @Override
+    public int getOutputTextureId() {
+        return getFilterTextureId();
+    }
+
+    @Override
+    public boolean isContentChanged() {
+        // 滤镜效果固定，只随输入变化
+        return false;
     }
 
     @Override
@@ -109,32 +132,67 @@ public abstract class FilterRenderer extends BaseRender {
         LogUtils.d(mTag, "onEGLContextCreated");
         initShaderProgram();
         initCoordinatesData();
-        initFBO();
     }
 
     protected abstract int getVertexShaderResId();
 
-    protected abstract int getFragmentShaderResId();
+    /**
+     * 默认原样输出；有颜色运算（{@link #getColorOp()}）的滤镜由运算生成片元着色器，不使用该资源
+     */
+    protected int getFragmentShaderResId() {
+        return R.raw.we_vidmk_fragment_normal_texture2d_shader;
+    }
 
     private void initShaderProgram() {
-        // 创建着色器程序
-        String vertexSource = ShaderUtil.readRawText(mContext, getVertexShaderResId());
-        String fragmentSource = ShaderUtil.readRawText(mContext, getFragmentShaderResId());
-        int[] shaderIDs = ShaderUtil.createAndLinkProgram(vertexSource, fragmentSource);
-        mVertexShaderHandle = shaderIDs[0];
-        mFragmentShaderHandle = shaderIDs[1];
-        mProgramHandle = shaderIDs[2];
-        if (mProgramHandle <= 0) {
+        int program = createShaderProgram();
+        if (program <= 0) {
             throw new RuntimeException("initShaderProgram Error: createAndLinkProgram failed.");
         }
+        setShaderProgram(program);
+    }
+
+    /**
+     * 取得着色器程序，默认由 {@link #getVertexShaderResId()} 和 {@link #getFragmentShaderResId()} 组成，
+     * 有颜色运算的滤镜由运算生成片元着色器，与合并绘制共用同一份源码；
+     * 同一共享组内已编译过的直接复用；需要动态生成着色器的子类重写
+     *
+     * @return 程序句柄，失败时返回 0，用完后调用 {@link #releaseShaderProgram(int)}
+     */
+    protected int createShaderProgram() {
+        WeColorOp op = getColorOp();
+        if (op != null) {
+            return WeShaderRegistry.getInstance().obtainProgram(mContext, getVertexShaderResId(),
+                    "fused:" + op.getName(), WeColorOp.buildFragmentShader(op));
+        }
+        return WeShaderRegistry.getInstance().obtainProgram(mContext,
+                getVertexShaderResId(), getFragmentShaderResId());
+    }
+
+    /**
+     * 切换绘制使用的着色器程序，并获取顶点着色器和片元着色器中的变量句柄
+     */
+    protected void setShaderProgram(int program) {
+        mProgramHandle = program;
 
-        // 获取顶点着色器和片元着色器中的变量句柄
         mVertexCoordHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_Position");
         mTextureCoordHandle = GLES20.glGetAttribLocation(mProgramHandle, "a_TexCoordinate");
         mPosMatrixUnifHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_PositionMatrix");
         mTextureUniformHandle = GLES20.glGetUniformLocation(mProgramHandle, "u_Texture");
     }
 
+    protected static void releaseShaderProgram(int program) {
+        WeShaderRegistry.getInstance().releaseProgram(program);
+    }
+
+    /**
+     * 在 onEGLContextToDestroy 中释放着色器程序，持有多个程序的子类重写以全部释放
+     */
+    protected void releaseShaderPrograms() {
+        if (mProgramHandle > 0) {
+            releaseShaderProgram(mProgramHandle);
+        }
+    }
+
     /**
      * 获取顶点坐标数组
      */
@@ -207,20 +265,6 @@ public abstract class FilterRenderer extends BaseRender {
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
     }
 
-    private void initFBO() {
-        // 创建 FBO
-        int[] fboIds = new int[1];
-        GLES20.glGenBuffers(1, fboIds, 0);
-        if (fboIds[0] == 0) {
-            throw new RuntimeException("initFBO glGenBuffers failed!");
-        }
-        mFBOId = fboIds[0];
-
-        // 初始化要绑定的纹理
-        mOutputTextureIds = new int[]{0};
-        mOldOutputTextureIds = new int[]{0};
-    }
-
     @Override
     public void onSurfaceChanged(int width, int height) {
         LogUtils.d(mTag, "onSurfaceChanged " + width + "x" + height);
@@ -251,51 +295,25 @@ public abstract class FilterRenderer extends BaseRender {
     }
 
     private void bindTextureToFBO(int width, int height) {
-        mOldOutputTextureIds[0] = mOutputTextureIds[0];
-
-        /* ------ 1.创建要附加到 FBO 的纹理对象，此纹理将最终作为输出供外部使用 ------ */
-        int[] textureIds = TextureUtils.genTexture2D(1);
-        mOutputTextureIds[0] = textureIds[0];
-        LogUtils.d(mTag, "bindTextureToFBO texture current=" + textureIds[0] + ",old=" + mOldOutputTextureIds[0]);
-        // 绑定刚创建的附加纹理对象
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOutputTextureIds[0]);
-        // 为此纹理分配内存
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width,
-                height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-        // 解绑纹理
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-        /* ------ 2.把纹理附加到 FBO ------ */
-        // 绑定 FBO
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFBOId);
-        // 把刚创建的纹理对象附加到 FBO
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, mOutputTextureIds[0], 0);
-        int ret = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-        if (ret != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-            throw new RuntimeException("Attach texture to FBO failed! FramebufferStatus:" + ret);
-        }
-        // 解绑 FBO
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-
-        /* ------ 3.释放旧的纹理 ------ */
-        if (mOldOutputTextureIds[0] != 0) {
-            GLES20.glDeleteTextures(1, mOldOutputTextureIds, 0);
-        }
-
-        if (mFilterTextureChangedListener != null) {
-            mFilterTextureChangedListener.onFilterTextureChanged(this, mOutputTextureIds[0]);
+        int oldTextureId = mRenderTarget != null ? mRenderTarget.getTextureId() : 0;
+        // 尺寸变化时在原纹理上重新分配存储，纹理 ID 不变
+        mRenderTarget = prepareRenderTarget(mRenderTarget, width, height);
+        int textureId = mRenderTarget.getTextureId();
+        LogUtils.d(mTag, "bindTextureToFBO texture current=" + textureId + ",old=" + oldTextureId);
+
+        if (textureId != oldTextureId && mFilterTextureChangedListener != null) {
+            mFilterTextureChangedListener.onFilterTextureChanged(this, textureId);
         }
     }
 
     @Override
     public void onDrawFrame() {
-        if (mExternalTextureId == 0) {
+        if (mExternalTextureId == 0 || mRenderTarget == null) {
             return;
         }
 
         // 绑定到 FBO 从而离屏渲染
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFBOId);
+        mRenderTarget.bind();
 
         // 清屏
         if (canClearScreenOnDraw || forceClearScreenOnce) {
@@ -348,7 +366,7 @@ public abstract class FilterRenderer extends BaseRender {
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
         // 解绑 FBO，从而可以恢复到屏上渲染
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        mRenderTarget.unbind();
     }
 
     @Override
@@ -362,26 +380,10 @@ public abstract class FilterRenderer extends BaseRender {
             mTextureCoordBuffer.clear();
             mTextureCoordBuffer = null;
         }
-        if (mProgramHandle > 0) {
-            GLES20.glDetachShader(mProgramHandle, mVertexShaderHandle);
-            GLES20.glDeleteShader(mVertexShaderHandle);
-            mVertexShaderHandle = 0;
-
-            GLES20.glDetachShader(mProgramHandle, mFragmentShaderHandle);
-            GLES20.glDeleteShader(mFragmentShaderHandle);
-            mFragmentShaderHandle = 0;
-
-            GLES20.glDeleteProgram(mProgramHandle);
-            mProgramHandle = 0;
-        }
-        if (mOutputTextureIds != null) {
-            GLES20.glDeleteTextures(1, mOutputTextureIds, 0);
-            mOutputTextureIds = null;
-        }
-        if (mOldOutputTextureIds != null) {
-            GLES20.glDeleteTextures(1, mOldOutputTextureIds, 0);
-            mOldOutputTextureIds = null;
-        }
+        releaseShaderPrograms();
+        mProgramHandle = 0;
+        recycleRenderTarget(mRenderTarget);
+        mRenderTarget = null;
         if (mVBOIds != null) {
             GLES20.glDeleteBuffers(mVBOIds.length, mVBOIds, 0);
             mVBOIds = null;
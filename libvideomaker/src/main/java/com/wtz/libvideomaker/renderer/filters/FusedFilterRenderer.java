@@ -0,0 +1,204 @@
+package com.wtz.libvideomaker.renderer.filters;
+
+import android.content.Context;
+
+import com.wtz.libvideomaker.R;
+import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.WeShaderRegistry;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 合并滤镜：把多个逐像素的颜色运算（{@link WeColorOp}）拼接成一个片元着色器，一次绘制完成，
+ * 叠加多个滤镜时只需读写一遍整帧，代替每个滤镜各自一次离屏绘制。
+ * <p>
+ * 运算组合可以在任意线程改变，下次绘制时生效；每种组合生成的着色器程序按组合缓存，切换回来不需要重新编译。
+ * 单独绘制时每一级的结果都会被截断到 [0, 1] 再写入纹理，合并后在每个运算之后同样截断，保证效果与逐级绘制一致。
+ */
+public class FusedFilterRenderer extends FilterRenderer {
+
+    private static final String TAG = FusedFilterRenderer.class.getSimpleName();
+
+    // 最多缓存的程序数量，超过时删除最久未用的
+    private static final int MAX_CACHED_PROGRAMS = 8;
+
+    private float[] mPositionMatrix;// 用来保存位置变换矩阵数值的数组
+
+    private volatile WeColorOp[] mColorOps = new WeColorOp[0];
+
+    // 以下只在 GL 线程中访问
+    private WeColorOp[] mDrawnOps;
+    private WeColorOp[] mBuildOps;
+    private String mCurrentKey;
+    private String mFailedKey;
+    private int mCurrentProgram;
+    private Map<String, Integer> mPrograms = new LinkedHashMap<>(MAX_CACHED_PROGRAMS, 0.75f, true);
+
+    public FusedFilterRenderer(Context mContext) {
+        super(mContext, TAG);
+    }
+
+    /**
+     * 设置要合并的颜色运算，按顺序依次作用，不设置时原样输出
+     */
+    public void setColorOps(WeColorOp... ops) {
+        WeColorOp[] copy = ops != null ? ops.clone() : new WeColorOp[0];
+        LogUtils.d(TAG, "setColorOps " + WeColorOp.makeKey(copy));
+        mColorOps = copy;
+    }
+
+    /**
+     * 按顺序取出各滤镜的颜色运算进行合并
+     *
+     * @return 有滤镜不能合并时返回 false，此时不做任何改变
+     */
+    public boolean setFilters(FilterRenderer... filters) {
+        List<WeColorOp> ops = new ArrayList<>();
+        if (filters != null) {
+            for (FilterRenderer filter : filters) {
+                WeColorOp op = filter.getColorOp();
+                if (op == null) {
+                    LogUtils.e(TAG, "setFilters " + filter.getClass().getSimpleName() + " can't be fused");
+                    return false;
+                }
+                ops.add(op);
+            }
+        }
+        setColorOps(ops.toArray(new WeColorOp[0]));
+        return true;
+    }
+
+    public WeColorOp[] getColorOps() {
+        return mColorOps.clone();
+    }
+
+    @Override
+    public boolean isContentChanged() {
+        return mColorOps != mDrawnOps;
+    }
+
+    @Override
+    public void onEGLContextCreated() {
+        // 创建位置转换矩阵(4x4)返回值存储的数组
+        mPositionMatrix = new float[16];
+
+        mBuildOps = mColorOps;
+        super.onEGLContextCreated();
+        mDrawnOps = mBuildOps;
+        mCurrentKey = WeColorOp.makeKey(mBuildOps);
+        mPrograms.put(mCurrentKey, mCurrentProgram);
+    }
+
+    @Override
+    protected int getVertexShaderResId() {
+        return R.raw.we_vidmk_vertex_offscreen_shader;
+    }
+
+    @Override
+    protected int createShaderProgram() {
+        WeColorOp[] ops = mBuildOps;
+        if (ops == null || ops.length == 0) {
+            return super.createShaderProgram();
+        }
+        // 生成的源码由组合唯一确定，同一共享组内的其他实例也可以复用
+        return WeShaderRegistry.getInstance().obtainProgram(getContext(), getVertexShaderResId(),
+                "fused:" + WeColorOp.makeKey(ops), WeColorOp.buildFragmentShader(ops));
+    }
+
+    @Override
+    protected void setShaderProgram(int program) {
+        super.setShaderProgram(program);
+        mCurrentProgram = program;
+    }
+
+    @Override
+    protected float[] getVertexCoordData() {
+        return getDefaultVertexCoordData();
+    }
+
+    @Override
+    protected float[] getTextureCoordData() {
+        return getDefaultTextureCoordData();
+    }
+
+    @Override
+    protected int getVertexDrawCount() {
+        return 4;
+    }
+
+    @Override
+    protected void changePositionMatrix(int width, int height) {
+        defaultPositionMatrixChange(mPositionMatrix);
+    }
+
+    @Override
+    protected float[] getPositionMatrix() {
+        return mPositionMatrix;
+    }
+
+    @Override
+    public void onDrawFrame() {
+        WeColorOp[] ops = mColorOps;
+        if (ops != mDrawnOps) {
+            switchProgram(ops);
+            mDrawnOps = ops;
+        }
+        super.onDrawFrame();
+    }
+
+    private void switchProgram(WeColorOp[] ops) {
+        String key = WeColorOp.makeKey(ops);
+        if (key.equals(mCurrentKey) || key.equals(mFailedKey)) {
+            return;
+        }
+        Integer program = mPrograms.get(key);
+        if (program == null) {
+            mBuildOps = ops;
+            program = createShaderProgram();
+            if (program <= 0) {
+                // 编译失败继续使用原来的程序，同一组合不再重试
+                LogUtils.e(TAG, "create fused program failed: " + key);
+                mFailedKey = key;
+                return;
+            }
+            mPrograms.put(key, program);
+            trimPrograms(key);
+        }
+        setShaderProgram(program);
+        mCurrentKey = key;
+    }
+
+    private void trimPrograms(String keepKey) {
+        Iterator<Map.Entry<String, Integer>> iterator = mPrograms.entrySet().iterator();
+        while (mPrograms.size() > MAX_CACHED_PROGRAMS && iterator.hasNext()) {
+            Map.Entry<String, Integer> entry = iterator.next();
+            if (!entry.getKey().equals(keepKey) && !entry.getKey().equals(mCurrentKey)) {
+                releaseShaderProgram(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    protected void releaseShaderPrograms() {
+        for (int program : mPrograms.values()) {
+            releaseShaderProgram(program);
+        }
+        mPrograms.clear();
+        mCurrentProgram = 0;
+        mCurrentKey = null;
+        mFailedKey = null;
+        mDrawnOps = null;
+    }
+
+    @Override
+    public void onEGLContextToDestroy() {
+        super.onEGLContextToDestroy();
+        mPositionMatrix = null;
+    }
+
+}
@@ -23,13 +23,13 @@ public class GrayFilterRenderer extends FilterRenderer {
     }
 
     @Override
-    protected int getVertexShaderResId() {
-        return R.raw.we_vidmk_vertex_offscreen_shader;
+    public WeColorOp getColorOp() {
+        return WeColorOp.GRAY;
     }
 
     @Override
-    protected int getFragmentShaderResId() {
-        return R.raw.we_vidmk_fragment_gray_texture2d_shader;
+    protected int getVertexShaderResId() {
+        return R.raw.we_vidmk_vertex_offscreen_shader;
     }
 
     @Override
@@ -23,13 +23,13 @@ public class LuminanceFilterRenderer extends FilterRenderer {
     }
 
     @Override
-    protected int getVertexShaderResId() {
-        return R.raw.we_vidmk_vertex_offscreen_shader;
+    public WeColorOp getColorOp() {
+        return WeColorOp.LUMINANCE;
     }
 
     @Override
-    protected int getFragmentShaderResId() {
-        return R.raw.we_vidmk_fragment_luminance_texture2d_shader;
+    protected int getVertexShaderResId() {
+        return R.raw.we_vidmk_vertex_offscreen_shader;
     }
 
     @Override
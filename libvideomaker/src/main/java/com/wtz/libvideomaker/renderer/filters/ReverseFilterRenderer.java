@@ -23,13 +23,13 @@ public class ReverseFilterRenderer extends FilterRenderer {
     }
 
     @Override
-    protected int getVertexShaderResId() {
-        return R.raw.we_vidmk_vertex_offscreen_shader;
+    public WeColorOp getColorOp() {
+        return WeColorOp.REVERSE;
     }
 
     @Override
-    protected int getFragmentShaderResId() {
-        return R.raw.we_vidmk_fragment_reverse_texture2d_shader;
+    protected int getVertexShaderResId() {
+        return R.raw.we_vidmk_vertex_offscreen_shader;
     }
 
     @Override
@@ -8,10 +8,11 @@ import android.opengl.Matrix;
 
 import com.wtz.libvideomaker.R;
 import com.wtz.libvideomaker.renderer.BaseRender;
+import com.wtz.libvideomaker.renderer.WeRenderTarget;
 import com.wtz.libvideomaker.utils.LogUtils;
-import com.wtz.libvideomaker.utils.ShaderUtil;
 import com.wtz.libvideomaker.utils.TextUtils;
 import com.wtz.libvideomaker.utils.TextureUtils;
+import com.wtz.libvideomaker.utils.WeShaderRegistry;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -30,8 +31,6 @@ public class WatermarkRenderer extends BaseRender {
     private int mSurfaceWidth;
     private int mSurfaceHeight;
 
-    private int mVertexShaderHandle;
-    private int mFragmentShaderHandle;
     private int mProgramHandle;
 
     private static final int BYTES_PER_FLOAT = 4;
@@ -47,9 +46,9 @@ public class WatermarkRenderer extends BaseRender {
     private int mTextureCoordBytes;
 
     /**
-     * 使用 FBO 离屏渲染
+     * 使用 FBO 离屏渲染，FBO 和输出纹理由渲染目标池提供
      */
-    private int mFBOId;
+    private WeRenderTarget mRenderTarget;
 
     /* ---------- 顶点坐标配置：start ---------- */
     boolean needUpdateVertex;
@@ -134,10 +133,6 @@ public class WatermarkRenderer extends BaseRender {
     private int mTextMarkMarginY;
     private boolean isTextMarkChanged;
 
-    // 准备输出的纹理内容句柄
-    private int[] mOutputTextureIds;
-    private int[] mOldOutputTextureIds;
-
     public interface OnMarkTextureChangedListener {
         void onMarkTextureChanged(int textureID);
     }
@@ -158,7 +153,22 @@ public class WatermarkRenderer extends BaseRender {
     }
 
     public int getMarkTextureId() {
-        return mOutputTextureIds != null ? mOutputTextureIds[0] : 0;
+        return mRenderTarget != null ? mRenderTarget.getTextureId() : 0;
+    }
+
+    @Override
+    public void setInputTextureId(int textureId) {
+        setExternalTextureId(textureId);
+    }
+
+    @Override
+    public int getOutputTextureId() {
+        return getMarkTextureId();
+    }
+
+    @Override
+    public boolean isContentChanged() {
+        return needUpdateVertex || isImageMarkChanged || isTextMarkChanged;
     }
 
     @Override
@@ -170,7 +180,6 @@ public class WatermarkRenderer extends BaseRender {
 
         initShaderProgram();
         initCoordinatesData();
-        initFBO();
 
         if (mImageMarkBitmap != null) {
             isImageMarkChanged = true;
@@ -181,13 +190,9 @@ public class WatermarkRenderer extends BaseRender {
     }
 
     private void initShaderProgram() {
-        // 创建着色器程序
-        String vertexSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_vertex_offscreen_shader);
-        String fragmentSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_fragment_normal_texture2d_shader);
-        int[] shaderIDs = ShaderUtil.createAndLinkProgram(vertexSource, fragmentSource);
-        mVertexShaderHandle = shaderIDs[0];
-        mFragmentShaderHandle = shaderIDs[1];
-        mProgramHandle = shaderIDs[2];
+        // 取得着色器程序，同一共享组内已编译过的直接复用
+        mProgramHandle = WeShaderRegistry.getInstance().obtainProgram(mContext,
+                R.raw.we_vidmk_vertex_offscreen_shader, R.raw.we_vidmk_fragment_normal_texture2d_shader);
         if (mProgramHandle <= 0) {
             throw new RuntimeException("initShaderProgram Error: createAndLinkProgram failed.");
         }
@@ -298,20 +303,6 @@ public class WatermarkRenderer extends BaseRender {
         mVertexCoordData = null;
     }
 
-    private void initFBO() {
-        // 创建 FBO
-        int[] fboIds = new int[1];
-        GLES20.glGenBuffers(1, fboIds, 0);
-        if (fboIds[0] == 0) {
-            throw new RuntimeException("initFBO glGenBuffers failed!");
-        }
-        mFBOId = fboIds[0];
-
-        // 初始化要绑定的纹理
-        mOutputTextureIds = new int[]{0};
-        mOldOutputTextureIds = new int[]{0};
-    }
-
     @Override
     public void onSurfaceChanged(int width, int height) {
         LogUtils.d(TAG, "onSurfaceChanged " + width + "x" + height);
@@ -340,40 +331,14 @@ public class WatermarkRenderer extends BaseRender {
     }
 
     private void bindTextureToFBO(int width, int height) {
-        mOldOutputTextureIds[0] = mOutputTextureIds[0];
-
-        /* ------ 1.创建要附加到 FBO 的纹理对象，此纹理将最终作为输出供外部使用 ------ */
-        int[] textureIds = TextureUtils.genTexture2D(1);
-        mOutputTextureIds[0] = textureIds[0];
-        LogUtils.d(TAG, "bindTextureToFBO texture current=" + textureIds[0] + ",old=" + mOldOutputTextureIds[0]);
-        // 绑定刚创建的附加纹理对象
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOutputTextureIds[0]);
-        // 为此纹理分配内存
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width,
-                height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-        // 解绑纹理
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-        /* ------ 2.把纹理附加到 FBO ------ */
-        // 绑定 FBO
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFBOId);
-        // 把刚创建的纹理对象附加到 FBO
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, mOutputTextureIds[0], 0);
-        int ret = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-        if (ret != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-            throw new RuntimeException("Attach texture to FBO failed! FramebufferStatus:" + ret);
-        }
-        // 解绑 FBO
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        int oldTextureId = mRenderTarget != null ? mRenderTarget.getTextureId() : 0;
+        // 尺寸变化时在原纹理上重新分配存储，纹理 ID 不变
+        mRenderTarget = prepareRenderTarget(mRenderTarget, width, height);
+        int textureId = mRenderTarget.getTextureId();
+        LogUtils.d(TAG, "bindTextureToFBO texture current=" + textureId + ",old=" + oldTextureId);
 
-        /* ------ 3.释放旧的纹理 ------ */
-        if (mOldOutputTextureIds[0] != 0) {
-            GLES20.glDeleteTextures(1, mOldOutputTextureIds, 0);
-        }
-
-        if (mMarkTextureChangedListener != null) {
-            mMarkTextureChangedListener.onMarkTextureChanged(mOutputTextureIds[0]);
+        if (textureId != oldTextureId && mMarkTextureChangedListener != null) {
+            mMarkTextureChangedListener.onMarkTextureChanged(textureId);
         }
     }
 
@@ -567,7 +532,7 @@ public class WatermarkRenderer extends BaseRender {
 
     @Override
     public void onDrawFrame() {
-        if (mExternalTextureId == 0) {
+        if (mExternalTextureId == 0 || mRenderTarget == null) {
             return;
         }
 
@@ -587,7 +552,7 @@ public class WatermarkRenderer extends BaseRender {
         }
 
         // 绑定到 FBO 从而离屏渲染
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFBOId);
+        mRenderTarget.bind();
 
         // 清屏
         if (canClearScreenOnDraw || forceClearScreenOnce) {
@@ -620,7 +585,7 @@ public class WatermarkRenderer extends BaseRender {
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
         // 解绑 FBO，从而可以恢复到屏上渲染
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        mRenderTarget.unbind();
     }
 
     private void drawTexture(int VertexOffsetBytes, int textureId, float[] positionMatrix) {
@@ -670,25 +635,11 @@ public class WatermarkRenderer extends BaseRender {
             mTextureCoordBuffer = null;
         }
         if (mProgramHandle > 0) {
-            GLES20.glDetachShader(mProgramHandle, mVertexShaderHandle);
-            GLES20.glDeleteShader(mVertexShaderHandle);
-            mVertexShaderHandle = 0;
-
-            GLES20.glDetachShader(mProgramHandle, mFragmentShaderHandle);
-            GLES20.glDeleteShader(mFragmentShaderHandle);
-            mFragmentShaderHandle = 0;
-
-            GLES20.glDeleteProgram(mProgramHandle);
+            WeShaderRegistry.getInstance().releaseProgram(mProgramHandle);
             mProgramHandle = 0;
         }
-        if (mOutputTextureIds != null) {
-            GLES20.glDeleteTextures(1, mOutputTextureIds, 0);
-            mOutputTextureIds = null;
-        }
-        if (mOldOutputTextureIds != null) {
-            GLES20.glDeleteTextures(1, mOldOutputTextureIds, 0);
-            mOldOutputTextureIds = null;
-        }
+        recycleRenderTarget(mRenderTarget);
+        mRenderTarget = null;
         if (mImageMarkTextureId != 0) {
             GLES20.glDeleteTextures(1, new int[]{mImageMarkTextureId}, 0);
             mImageMarkTextureId = 0;
@@ -0,0 +1,96 @@
+package com.wtz.libvideomaker.renderer.filters;
+
+/**
+ * 逐像素的颜色运算，用一段 GLSL 语句就地修改 vec4 类型的变量 color，
+ * 只依赖当前像素本身，因此多个运算可以依次拼接到同一个片元着色器中，见 {@link FusedFilterRenderer}。
+ * <p>
+ * 单独使用的颜色滤镜也由 {@link #buildFragmentShader(WeColorOp...)} 生成片元着色器，颜色运算只在这里写一份。
+ */
+public class WeColorOp {
+
+    // 灰度
+    public static final WeColorOp GRAY = new WeColorOp("gray",
+            "float gray = color.r * 0.2125 + color.g * 0.7154 + color.b * 0.0721;\n"
+                    + "color = vec4(gray, gray, gray, color.w);");
+
+    // 把 RGB 三个分量都降低 0.5
+    public static final WeColorOp LUMINANCE = new WeColorOp("luminance",
+            "color = vec4(color.rgb + vec3(-0.5), color.w);");
+
+    // 用 1.0 减去当前颜色值得到反色
+    public static final WeColorOp REVERSE = new WeColorOp("reverse",
+            "color = vec4(vec3(1.0) - color.rgb, 1.0);");
+
+    private String mName;
+    private String mSnippet;
+
+    /**
+     * @param name    运算名称，用来区分不同的组合，不同的运算不能重名
+     * @param snippet GLSL 语句，可以定义局部变量，会被放在单独的语句块中
+     */
+    public WeColorOp(String name, String snippet) {
+        if (name == null || snippet == null) {
+            throw new IllegalArgumentException("name and snippet can't be null!");
+        }
+        this.mName = name;
+        this.mSnippet = snippet;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public String getSnippet() {
+        return mSnippet;
+    }
+
+    /**
+     * 按顺序依次作用的运算组合的名称，同一组合生成的着色器相同，可用作程序缓存的键
+     */
+    public static String makeKey(WeColorOp... ops) {
+        if (ops == null || ops.length == 0) {
+            return "normal";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ops.length; i++) {
+            if (i > 0) {
+                sb.append('+');
+            }
+            sb.append(ops[i].getName());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 把运算按顺序拼接成采样 u_Texture 的片元着色器，与 we_vidmk_vertex_offscreen_shader 搭配使用
+     */
+    public static String buildFragmentShader(WeColorOp... ops) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("precision mediump float;\n");
+        sb.append("varying vec2 v_TexCoordinate;\n");
+        sb.append("uniform sampler2D u_Texture;\n");
+        sb.append("void main(){\n");
+        sb.append("    vec4 color = texture2D(u_Texture, v_TexCoordinate);\n");
+        for (int i = 0; i < ops.length; i++) {
+            if (i > 0) {
+                // 与逐级绘制写入纹理时一样截断
+                sb.append("    color = clamp(color, 0.0, 1.0);\n");
+            }
+            sb.append("    // ").append(ops[i].getName()).append("\n");
+            sb.append("    {\n");
+            for (String line : ops[i].getSnippet().split("\n")) {
+                sb.append("        ").append(line).append("\n");
+            }
+            sb.append("    }\n");
+        }
+        sb.append("    gl_FragColor = color;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+
+}
@@ -0,0 +1,365 @@
+package com.wtz.libvideomaker.renderer.graph;
+
+import com.wtz.libvideomaker.egl.WeGLRenderer;
+import com.wtz.libvideomaker.renderer.WeRenderTargetPool;
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 声明式渲染图，替代各 View 中手工用纹理变化监听串联渲染器的做法：
+ * <p>
+ * 1.各节点声明自己的输入，渲染图按输入关系确定执行顺序，并把上一级的输出纹理设置为下一级的输入；
+ * 2.中间结果从本图的 {@link WeRenderTargetPool} 中分配，同一层级的第一个节点使用乒乓目标，
+ * 其余节点和输出共享出去的节点独占目标；
+ * 3.自身内容和输入都没有变化的节点本帧跳过绘制，终点节点每帧都绘制；
+ * 4.可以在任意线程增删节点（如动态切换滤镜），在下一次 GL 回调时生效，不需要重新串联监听。
+ * <p>
+ * 作为 {@link WeGLRenderer} 由所在 View 在 GL 线程中回调。
+ */
+public class WeRenderGraph implements WeGLRenderer {
+    private static final String TAG = "WeRenderGraph";
+
+    private String mTag;
+
+    // 期望的图结构，可在任意线程修改，下次 GL 回调时生效
+    private final Object mLock = new Object();
+    private Map<String, WeRenderNode> mNodes = new LinkedHashMap<>();
+    private boolean isStructureChanged;
+
+    // 以下只在 GL 线程中访问
+    private WeRenderTargetPool mTargetPool;
+    private List<WeRenderNode> mOrderedNodes = new ArrayList<>();
+    // 乒乓槽位上最后一次绘制的节点，用来判断跳过的节点输出是否还在
+    private WeRenderNode[] mSlotWriters = new WeRenderNode[2];
+    private boolean isContextCreated;
+    private int mWidth;
+    private int mHeight;
+    private boolean isAllDirty = true;
+
+    private volatile long mDrawnCount;
+    private volatile long mSkippedCount;
+
+    public WeRenderGraph(String tag) {
+        this.mTag = tag;
+        mTargetPool = new WeRenderTargetPool(tag);
+    }
+
+    /**
+     * 加入节点，非源节点的输入节点可以稍后加入
+     */
+    public void addNode(WeRenderNode node) {
+        if (node.getType() != WeRenderNode.Type.SOURCE && node.mInputName == null) {
+            throw new IllegalArgumentException("node " + node.getName() + " has no input!");
+        }
+        synchronized (mLock) {
+            checkNotExists(node);
+            mNodes.put(node.getName(), node);
+            isStructureChanged = true;
+        }
+    }
+
+    /**
+     * 在指定节点之后插入节点：新节点以它为输入，原来以它为输入的节点改为以新节点为输入
+     */
+    public void insertNode(WeRenderNode node, String afterName) {
+        if (node.getType() == WeRenderNode.Type.SOURCE) {
+            throw new IllegalArgumentException("can't insert source node " + node.getName());
+        }
+        synchronized (mLock) {
+            checkNotExists(node);
+            if (!mNodes.containsKey(afterName)) {
+                throw new IllegalArgumentException("node " + afterName + " not exists!");
+            }
+            for (WeRenderNode consumer : mNodes.values()) {
+                if (afterName.equals(consumer.mInputName)) {
+                    consumer.mInputName = node.getName();
+                }
+            }
+            node.mInputName = afterName;
+            mNodes.put(node.getName(), node);
+            isStructureChanged = true;
+        }
+    }
+
+    /**
+     * 移除节点，以它为输入的节点改为以它的输入为输入；节点的 GL 资源在下次 GL 回调时销毁
+     *
+     * @return 被移除的节点，不存在时返回 null
+     */
+    public WeRenderNode removeNode(String name) {
+        synchronized (mLock) {
+            WeRenderNode node = mNodes.remove(name);
+            if (node == null) {
+                return null;
+            }
+            for (WeRenderNode consumer : mNodes.values()) {
+                if (name.equals(consumer.mInputName)) {
+                    consumer.mInputName = node.mInputName;
+                }
+            }
+            isStructureChanged = true;
+            return node;
+        }
+    }
+
+    public WeRenderNode getNode(String name) {
+        synchronized (mLock) {
+            return mNodes.get(name);
+        }
+    }
+
+    public boolean hasNode(String name) {
+        synchronized (mLock) {
+            return mNodes.containsKey(name);
+        }
+    }
+
+    private void checkNotExists(WeRenderNode node) {
+        if (mNodes.containsKey(node.getName())) {
+            throw new IllegalArgumentException("node " + node.getName() + " already exists!");
+        }
+    }
+
+    /**
+     * 累计绘制的节点次数
+     */
+    public long getDrawnCount() {
+        return mDrawnCount;
+    }
+
+    /**
+     * 累计因内容和输入都没有变化而跳过绘制的节点次数
+     */
+    public long getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    @Override
+    public void onEGLContextCreated() {
+        LogUtils.d(TAG, mTag + " onEGLContextCreated");
+        isContextCreated = true;
+        applyStructureChanges();
+        for (WeRenderNode node : mOrderedNodes) {
+            createNode(node);
+        }
+        isAllDirty = true;
+    }
+
+    @Override
+    public void onSurfaceChanged(int width, int height) {
+        LogUtils.d(TAG, mTag + " onSurfaceChanged " + width + "x" + height);
+        mWidth = width;
+        mHeight = height;
+        applyStructureChanges();
+        for (WeRenderNode node : mOrderedNodes) {
+            node.getRenderer().onSurfaceChanged(width, height);
+        }
+        clearSlotWriters();
+        isAllDirty = true;
+    }
+
+    @Override
+    public void onDrawFrame() {
+        applyStructureChanges();
+        List<WeRenderNode> nodes = mOrderedNodes;
+        int size = nodes.size();
+
+        // 1.传递输入纹理，确定自身内容或输入有变化的节点
+        for (int i = 0; i < size; i++) {
+            WeRenderNode node = nodes.get(i);
+            boolean isInputChanged = false;
+            if (node.mInput != null) {
+                int textureId = node.mInput.getRenderer().getOutputTextureId();
+                if (textureId != node.mLastInputTextureId) {
+                    node.getRenderer().setInputTextureId(textureId);
+                    node.mLastInputTextureId = textureId;
+                    isInputChanged = true;
+                }
+            }
+            node.needDraw = isAllDirty || node.getType() == WeRenderNode.Type.SINK
+                    || isInputChanged || node.getRenderer().isContentChanged()
+                    || (node.mInput != null && node.mInput.needDraw);
+        }
+
+        // 2.要绘制的节点如果读取乒乓目标，而上一级本帧跳过且结果已被覆盖，上一级也要重新绘制
+        boolean isChanged = true;
+        while (isChanged) {
+            isChanged = false;
+            for (int i = 0; i < size; i++) {
+                WeRenderNode node = nodes.get(i);
+                WeRenderNode input = node.mInput;
+                if (!node.needDraw || input == null || input.needDraw
+                        || input.mSlot == WeRenderTargetPool.SLOT_EXCLUSIVE) {
+                    continue;
+                }
+                if (mSlotWriters[input.mSlot] != input || isSlotDrawnBefore(input)) {
+                    input.needDraw = true;
+                    isChanged = true;
+                }
+            }
+        }
+
+        // 3.按顺序绘制
+        long drawn = 0;
+        for (int i = 0; i < size; i++) {
+            WeRenderNode node = nodes.get(i);
+            if (!node.needDraw) {
+                continue;
+            }
+            node.getRenderer().onDrawFrame();
+            if (node.mSlot != WeRenderTargetPool.SLOT_EXCLUSIVE) {
+                mSlotWriters[node.mSlot] = node;
+            }
+            drawn++;
+        }
+        mDrawnCount += drawn;
+        mSkippedCount += size - drawn;
+        isAllDirty = false;
+    }
+
+    /**
+     * 本帧在指定节点之前是否有要绘制的节点写同一个乒乓目标
+     */
+    private boolean isSlotDrawnBefore(WeRenderNode target) {
+        for (WeRenderNode node : mOrderedNodes) {
+            if (node == target) {
+                return false;
+            }
+            if (node.needDraw && node.mSlot == target.mSlot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void onEGLContextToDestroy() {
+        LogUtils.d(TAG, mTag + " onEGLContextToDestroy, drawn " + mDrawnCount + ", skipped " + mSkippedCount);
+        for (WeRenderNode node : mOrderedNodes) {
+            destroyNode(node);
+        }
+        mTargetPool.release();
+        clearSlotWriters();
+        isContextCreated = false;
+        mWidth = 0;
+        mHeight = 0;
+    }
+
+    /**
+     * 把其他线程中的结构修改应用到执行列表：销毁移除的节点，重新排序、分配离屏渲染目标，创建新节点
+     */
+    private void applyStructureChanges() {
+        List<WeRenderNode> nodes;
+        synchronized (mLock) {
+            if (!isStructureChanged) {
+                return;
+            }
+            isStructureChanged = false;
+            nodes = new ArrayList<>(mNodes.values());
+            for (WeRenderNode node : nodes) {
+                node.mInput = node.mInputName != null ? mNodes.get(node.mInputName) : null;
+            }
+        }
+
+        List<WeRenderNode> ordered = resolveOrder(nodes);
+        for (WeRenderNode node : mOrderedNodes) {
+            if (!ordered.contains(node)) {
+                destroyNode(node);
+            }
+        }
+
+        // 同一层级只有第一个节点使用乒乓目标，相邻两层交替，这样读写的总是不同的纹理
+        int lastPingPongLevel = -1;
+        for (WeRenderNode node : ordered) {
+            int slot = WeRenderTargetPool.SLOT_EXCLUSIVE;
+            if (node.getType() != WeRenderNode.Type.SINK && !node.isOutputShared()
+                    && node.mLevel != lastPingPongLevel) {
+                slot = node.mLevel % 2 == 0 ? WeRenderTargetPool.SLOT_PING : WeRenderTargetPool.SLOT_PONG;
+                lastPingPongLevel = node.mLevel;
+            }
+            boolean isSlotChanged = node.mSlot != slot;
+            node.mSlot = slot;
+            node.getRenderer().setRenderTargetPool(mTargetPool, slot);
+            node.mLastInputTextureId = -1;
+            if (!node.isCreated) {
+                createNode(node);
+            } else if (isSlotChanged && mWidth > 0 && mHeight > 0) {
+                // 换用新槽位的渲染目标
+                node.getRenderer().onSurfaceChanged(mWidth, mHeight);
+            }
+        }
+
+        mOrderedNodes = ordered;
+        clearSlotWriters();
+        isAllDirty = true;
+        LogUtils.d(TAG, mTag + " structure changed: " + ordered);
+    }
+
+    /**
+     * 按输入关系计算层级并排序，缺少输入或者成环的节点不参与渲染
+     */
+    private List<WeRenderNode> resolveOrder(List<WeRenderNode> nodes) {
+        for (WeRenderNode node : nodes) {
+            node.mLevel = node.getType() == WeRenderNode.Type.SOURCE ? 0 : -1;
+        }
+        boolean isChanged = true;
+        while (isChanged) {
+            isChanged = false;
+            for (WeRenderNode node : nodes) {
+                if (node.mLevel < 0 && node.mInput != null && node.mInput.mLevel >= 0) {
+                    node.mLevel = node.mInput.mLevel + 1;
+                    isChanged = true;
+                }
+            }
+        }
+
+        List<WeRenderNode> ordered = new ArrayList<>();
+        for (WeRenderNode node : nodes) {
+            if (node.mLevel >= 0) {
+                ordered.add(node);
+            } else {
+                LogUtils.e(TAG, mTag + " node " + node.getName() + " input "
+                        + node.mInputName + " missing or cyclic, skip it");
+            }
+        }
+        Collections.sort(ordered, new Comparator<WeRenderNode>() {
+            @Override
+            public int compare(WeRenderNode o1, WeRenderNode o2) {
+                return o1.mLevel - o2.mLevel;
+            }
+        });
+        return ordered;
+    }
+
+    private void createNode(WeRenderNode node) {
+        if (node.isCreated || !isContextCreated) {
+            return;
+        }
+        node.getRenderer().onEGLContextCreated();
+        node.isCreated = true;
+        if (mWidth > 0 && mHeight > 0) {
+            node.getRenderer().onSurfaceChanged(mWidth, mHeight);
+        }
+    }
+
+    private void destroyNode(WeRenderNode node) {
+        if (!node.isCreated) {
+            return;
+        }
+        node.getRenderer().onEGLContextToDestroy();
+        node.isCreated = false;
+        node.mLastInputTextureId = -1;
+    }
+
+    private void clearSlotWriters() {
+        mSlotWriters[0] = null;
+        mSlotWriters[1] = null;
+    }
+
+}
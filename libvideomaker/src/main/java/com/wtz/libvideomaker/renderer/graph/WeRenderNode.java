@@ -0,0 +1,101 @@
+package com.wtz.libvideomaker.renderer.graph;
+
+import com.wtz.libvideomaker.renderer.BaseRender;
+import com.wtz.libvideomaker.renderer.WeRenderTargetPool;
+
+/**
+ * 渲染图中的一个节点：包装一个渲染器，并声明它的输入来自哪个节点。
+ * <p>
+ * 源节点没有输入，其他节点都只有一个输入；输入纹理、执行顺序和离屏渲染目标都由 {@link WeRenderGraph} 安排。
+ */
+public class WeRenderNode {
+
+    public enum Type {
+        SOURCE(0),// 源，如相机、图片，没有输入
+        FILTER(1),// 滤镜，对输入做变换
+        OVERLAY(2),// 叠加，在输入上叠加内容，如水印
+        SINK(3);// 终点，如上屏，每帧都要绘制
+
+        private int value;
+
+        Type(int value) {
+            this.value = value;
+        }
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    private String mName;
+    private Type mType;
+    private BaseRender mRenderer;
+    private boolean isOutputShared;
+
+    // 输入节点名称，由 WeRenderGraph 在锁内修改
+    String mInputName;
+
+    // 以下只在 GL 线程中由 WeRenderGraph 维护
+    WeRenderNode mInput;
+    int mLevel;
+    int mSlot = WeRenderTargetPool.SLOT_EXCLUSIVE;
+    int mLastInputTextureId = -1;
+    boolean isCreated;
+    boolean needDraw;
+
+    public WeRenderNode(String name, Type type, BaseRender renderer) {
+        this(name, type, renderer, null);
+    }
+
+    /**
+     * @param inputName 输入节点名称，源节点传 null；通过 {@link WeRenderGraph#insertNode} 插入的节点也可以传 null
+     */
+    public WeRenderNode(String name, Type type, BaseRender renderer, String inputName) {
+        if (name == null || type == null || renderer == null) {
+            throw new IllegalArgumentException("name, type and renderer can't be null!");
+        }
+        if (type == Type.SOURCE && inputName != null) {
+            throw new IllegalArgumentException("source node " + name + " can't have input!");
+        }
+        this.mName = name;
+        this.mType = type;
+        this.mRenderer = renderer;
+        this.mInputName = inputName;
+    }
+
+    /**
+     * 设置输出是否会共享出去（如给录制、推流线程使用），共享的输出需要跨帧保留，独占一份离屏渲染目标。
+     * 加入渲染图之前设置
+     */
+    public void setOutputShared(boolean shared) {
+        this.isOutputShared = shared;
+    }
+
+    public boolean isOutputShared() {
+        return isOutputShared;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public BaseRender getRenderer() {
+        return mRenderer;
+    }
+
+    @Override
+    public String toString() {
+        return "WeRenderNode{" +
+                "name=" + mName +
+                ", type=" + mType +
+                ", input=" + mInputName +
+                ", level=" + mLevel +
+                ", slot=" + mSlot +
+                '}';
+    }
+
+}
@@ -12,9 +12,11 @@ import android.view.WindowManager;
 
 import com.wtz.libvideomaker.R;
 import com.wtz.libvideomaker.renderer.BaseRender;
+import com.wtz.libvideomaker.renderer.WeRenderTarget;
+import com.wtz.libvideomaker.utils.LatencyTracer;
 import com.wtz.libvideomaker.utils.LogUtils;
-import com.wtz.libvideomaker.utils.ShaderUtil;
 import com.wtz.libvideomaker.utils.TextureUtils;
+import com.wtz.libvideomaker.utils.WeShaderRegistry;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -34,8 +36,6 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
     private int mSourceRotatedWidth;
     private int mSourceRotatedHeight;
 
-    private int mVertexShaderHandle;
-    private int mFragmentShaderHandle;
     private int mProgramHandle;
 
     private static final int BYTES_PER_FLOAT = 4;
@@ -51,9 +51,9 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
     private int mTextureCoordBytes;
 
     /**
-     * 使用 FBO 离屏渲染
+     * 使用 FBO 离屏渲染，FBO 和输出纹理由渲染目标池提供
      */
-    private int mFBOId;
+    private WeRenderTarget mRenderTarget;
 
     /* ---------- 顶点坐标配置：start ---------- */
     // java 层顶点坐标
@@ -98,10 +98,8 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
     private int mCameraTextureID;
     private SurfaceTexture mCameraSurfaceTexture;
     private int mCameraId;
-
-    // 准备输出的纹理内容句柄
-    private int[] mOutputTextureIds;
-    private int[] mOldOutputTextureIds;
+    // 自上次绘制后是否有新的预览帧或位置变化，预览帧在其他线程通知
+    private volatile boolean hasNewContent = true;
 
     public interface OnSharedTextureChangedListener {
         void onSharedTextureChanged(int textureID);
@@ -126,7 +124,17 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
     }
 
     public int getSharedTextureId() {
-        return mOutputTextureIds != null ? mOutputTextureIds[0] : 0;
+        return mRenderTarget != null ? mRenderTarget.getTextureId() : 0;
+    }
+
+    @Override
+    public int getOutputTextureId() {
+        return getSharedTextureId();
+    }
+
+    @Override
+    public boolean isContentChanged() {
+        return hasNewContent;
     }
 
     @Override
@@ -134,18 +142,13 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
         LogUtils.d(TAG, "onEGLContextCreated");
         initShaderProgram();
         initCoordinatesData();
-        initFBO();
         initCameraSurface();
     }
 
     private void initShaderProgram() {
-        // 创建着色器程序
-        String vertexSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_vertex_offscreen_shader);
-        String fragmentSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_fragment_camera_oes_shader);
-        int[] shaderIDs = ShaderUtil.createAndLinkProgram(vertexSource, fragmentSource);
-        mVertexShaderHandle = shaderIDs[0];
-        mFragmentShaderHandle = shaderIDs[1];
-        mProgramHandle = shaderIDs[2];
+        // 取得着色器程序，同一共享组内已编译过的直接复用
+        mProgramHandle = WeShaderRegistry.getInstance().obtainProgram(mContext,
+                R.raw.we_vidmk_vertex_offscreen_shader, R.raw.we_vidmk_fragment_camera_oes_shader);
         if (mProgramHandle <= 0) {
             throw new RuntimeException("initShaderProgram Error: createAndLinkProgram failed.");
         }
@@ -220,20 +223,6 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
     }
 
-    private void initFBO() {
-        // 创建 FBO
-        int[] fboIds = new int[1];
-        GLES20.glGenBuffers(1, fboIds, 0);
-        if (fboIds[0] == 0) {
-            throw new RuntimeException("initFBO glGenBuffers failed!");
-        }
-        mFBOId = fboIds[0];
-
-        // 初始化要绑定的纹理
-        mOutputTextureIds = new int[]{0};
-        mOldOutputTextureIds = new int[]{0};
-    }
-
     private void initCameraSurface() {
         int[] ids = TextureUtils.genTextureOES(1);
         mCameraTextureID = ids[0];
@@ -287,6 +276,7 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
         if (mPositionMatrix == null ||mProjectionMatrix == null) {
             return;
         }
+        hasNewContent = true;
         // 初始化单位矩阵
         Matrix.setIdentityM(mPositionMatrix, 0);
         Matrix.setIdentityM(mProjectionMatrix, 0);
@@ -379,52 +369,31 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
     }
 
     private void bindTextureToFBO(int width, int height) {
-        mOldOutputTextureIds[0] = mOutputTextureIds[0];
-
-        /* ------ 1.创建要附加到 FBO 的纹理对象，此纹理将最终作为输出供外部使用 ------ */
-        int[] textureIds = TextureUtils.genTexture2D(1);
-        mOutputTextureIds[0] = textureIds[0];
-        LogUtils.d(TAG, "bindTextureToFBO texture current=" + textureIds[0] + ",old=" + mOldOutputTextureIds[0]);
-        // 绑定刚创建的附加纹理对象
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOutputTextureIds[0]);
-        // 为此纹理分配内存
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width,
-                height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-        // 解绑纹理
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-        /* ------ 2.把纹理附加到 FBO ------ */
-        // 绑定 FBO
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFBOId);
-        // 把刚创建的纹理对象附加到 FBO
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, mOutputTextureIds[0], 0);
-        int ret = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-        if (ret != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-            throw new RuntimeException("Attach texture to FBO failed! FramebufferStatus:" + ret);
-        }
-        // 解绑 FBO
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-
-        /* ------ 3.释放旧的纹理 ------ */
-        if (mOldOutputTextureIds[0] != 0) {
-            GLES20.glDeleteTextures(1, mOldOutputTextureIds, 0);
-        }
-
-        if (mSharedTextureChangedListener != null) {
-            mSharedTextureChangedListener.onSharedTextureChanged(mOutputTextureIds[0]);
+        int oldTextureId = mRenderTarget != null ? mRenderTarget.getTextureId() : 0;
+        // 尺寸变化时在原纹理上重新分配存储，纹理 ID 不变
+        mRenderTarget = prepareRenderTarget(mRenderTarget, width, height);
+        int textureId = mRenderTarget.getTextureId();
+        LogUtils.d(TAG, "bindTextureToFBO texture current=" + textureId + ",old=" + oldTextureId);
+
+        if (textureId != oldTextureId && mSharedTextureChangedListener != null) {
+            mSharedTextureChangedListener.onSharedTextureChanged(textureId);
         }
     }
 
     @Override
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        hasNewContent = true;
         mSurfaceTextureListener.onFrameAvailable();
     }
 
     @Override
     public void onDrawFrame() {
+        if (mRenderTarget == null) {
+            return;
+        }
+
         // 绑定到 FBO 从而离屏渲染
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFBOId);
+        mRenderTarget.bind();
 
         // 清屏
         if (canClearScreenOnDraw || forceClearScreenOnce) {
@@ -463,7 +432,10 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
         // 将纹理单元激活，并绑定到指定纹理对象数据
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mCameraTextureID);
+        // 先清标记再取帧，取帧期间到达的新帧留到下次绘制
+        hasNewContent = false;
         mCameraSurfaceTexture.updateTexImage();
+        LatencyTracer.getInstance().onFrameRendered(mCameraSurfaceTexture.getTimestamp());
         // 将纹理数据传入到片元着色器 Uniform 变量中
         GLES20.glUniform1i(mTextureUniformHandle, 0);// 诉纹理标准采样器在着色器中使用纹理单元 0
 
@@ -478,7 +450,7 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
         // 解绑 FBO，从而可以恢复到屏上渲染
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        mRenderTarget.unbind();
     }
 
     @Override
@@ -493,25 +465,11 @@ public class CameraRenderer extends BaseRender implements SurfaceTexture.OnFrame
             mTextureCoordBuffer = null;
         }
         if (mProgramHandle > 0) {
-            GLES20.glDetachShader(mProgramHandle, mVertexShaderHandle);
-            GLES20.glDeleteShader(mVertexShaderHandle);
-            mVertexShaderHandle = 0;
-
-            GLES20.glDetachShader(mProgramHandle, mFragmentShaderHandle);
-            GLES20.glDeleteShader(mFragmentShaderHandle);
-            mFragmentShaderHandle = 0;
-
-            GLES20.glDeleteProgram(mProgramHandle);
+            WeShaderRegistry.getInstance().releaseProgram(mProgramHandle);
             mProgramHandle = 0;
         }
-        if (mOutputTextureIds != null) {
-            GLES20.glDeleteTextures(1, mOutputTextureIds, 0);
-            mOutputTextureIds = null;
-        }
-        if (mOldOutputTextureIds != null) {
-            GLES20.glDeleteTextures(1, mOldOutputTextureIds, 0);
-            mOldOutputTextureIds = null;
-        }
+        recycleRenderTarget(mRenderTarget);
+        mRenderTarget = null;
         if (mCameraSurfaceTexture != null) {
             mCameraSurfaceTexture.release();
             mCameraSurfaceTexture = null;
@@ -7,14 +7,22 @@ import android.opengl.GLUtils;
 
 import com.wtz.libvideomaker.R;
 import com.wtz.libvideomaker.renderer.BaseRender;
+import com.wtz.libvideomaker.renderer.WeRenderTarget;
 import com.wtz.libvideomaker.utils.GLBitmapUtils;
 import com.wtz.libvideomaker.utils.LogUtils;
-import com.wtz.libvideomaker.utils.ShaderUtil;
 import com.wtz.libvideomaker.utils.TextureUtils;
+import com.wtz.libvideomaker.utils.WeBitmapDecoder;
+import com.wtz.libvideomaker.utils.WeShaderRegistry;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
 
 public abstract class ImgRenderer extends BaseRender {
 
@@ -24,8 +32,6 @@ public abstract class ImgRenderer extends BaseRender {
     private int mSurfaceWidth;
     private int mSurfaceHeight;
 
-    private int mVertexShaderHandle;
-    private int mFragmentShaderHandle;
     private int mProgramHandle;
 
     private static final int BYTES_PER_FLOAT = 4;
@@ -41,9 +47,9 @@ public abstract class ImgRenderer extends BaseRender {
     private int mTextureCoordBytes;
 
     /**
-     * 使用 FBO 离屏渲染
+     * 使用 FBO 离屏渲染，FBO 和输出纹理由渲染目标池提供
      */
-    private int mFBOId;
+    private WeRenderTarget mRenderTarget;
 
     /* ---------- 顶点坐标配置：start ---------- */
     // java 层顶点坐标
@@ -91,10 +97,16 @@ public abstract class ImgRenderer extends BaseRender {
     private int[] mSourceTextureIds;
     // 图片资源是否发生变化
     private boolean sourceImgChanged;
+    // 上下文或尺寸变化后还没有成功绘制过
+    private boolean needRedraw;
 
-    // 准备输出的纹理内容句柄
-    private int[] mOutputTextureIds;
-    private int[] mOldOutputTextureIds;
+    // 异步加载时使用，纹理归加载器所有，见 setAsyncLoadEnabled
+    private ImgTextureLoader mTextureLoader;
+    // 正在等待加载完成的图片，就绪后一起换上
+    private String[] mPendingKeys;
+    private String[] mCurrentKeys;
+    private volatile String[] mPrefetchKeys = new String[0];
+    private volatile boolean hasReadyTexture;
 
     public interface OnSharedTextureChangedListener {
         void onSharedTextureChanged(int textureID);
@@ -108,6 +120,15 @@ public abstract class ImgRenderer extends BaseRender {
 
     private OnNewImageDrawnListener mOnNewImageDrawnListener;
 
+    public interface OnImageReadyListener {
+        /**
+         * 异步加载时在加载线程中回调，有图片加载完成，需要请求一次绘制
+         */
+        void onImageReady();
+    }
+
+    private OnImageReadyListener mOnImageReadyListener;
+
     public ImgRenderer(Context mContext, String tag) {
         this.mContext = mContext;
         this.mTag = tag;
@@ -121,8 +142,85 @@ public abstract class ImgRenderer extends BaseRender {
         this.mOnNewImageDrawnListener = listener;
     }
 
+    public void setOnImageReadyListener(OnImageReadyListener listener) {
+        this.mOnImageReadyListener = listener;
+    }
+
+    /**
+     * 开启后换图时在后台线程中解码和上传，渲染线程继续绘制原来的图片，新图片就绪后再换上，
+     * 并可以通过 prefetchImagePaths/prefetchImageResources 提前加载后面的图片；需在上下文创建前设置
+     */
+    public void setAsyncLoadEnabled(boolean enabled) {
+        if (enabled && mTextureLoader == null) {
+            mTextureLoader = new ImgTextureLoader(mContext, mTag);
+            mTextureLoader.setOnTextureReadyListener(new ImgTextureLoader.OnTextureReadyListener() {
+                @Override
+                public void onTextureReady(String key) {
+                    hasReadyTexture = true;
+                    if (mOnImageReadyListener != null) {
+                        mOnImageReadyListener.onImageReady();
+                    }
+                }
+            });
+        } else if (!enabled) {
+            mTextureLoader = null;
+        }
+    }
+
+    /**
+     * 异步加载时提前加载后面要展示的图片文件，替换上一次预取的图片
+     */
+    public void prefetchImagePaths(String... paths) {
+        String[] keys = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            keys[i] = ImgTextureLoader.makeKey(paths[i]);
+        }
+        mPrefetchKeys = keys;
+        ImgTextureLoader loader = mTextureLoader;
+        if (loader != null) {
+            for (String path : paths) {
+                loader.requestFile(path);
+            }
+        }
+    }
+
+    /**
+     * 异步加载时提前加载后面要展示的资源图片，替换上一次预取的图片
+     */
+    public void prefetchImageResources(int... resIds) {
+        String[] keys = new String[resIds.length];
+        for (int i = 0; i < resIds.length; i++) {
+            keys[i] = ImgTextureLoader.makeKey(resIds[i]);
+        }
+        mPrefetchKeys = keys;
+        ImgTextureLoader loader = mTextureLoader;
+        if (loader != null) {
+            for (int resId : resIds) {
+                loader.requestResource(resId);
+            }
+        }
+    }
+
+    /**
+     * 异步加载时返回纹理加载器，可以查询缓存命中情况，没有开启时返回 null
+     */
+    public ImgTextureLoader getTextureLoader() {
+        return mTextureLoader;
+    }
+
     public int getSharedTextureId() {
-        return mOutputTextureIds != null ? mOutputTextureIds[0] : 0;
+        return mRenderTarget != null ? mRenderTarget.getTextureId() : 0;
+    }
+
+    @Override
+    public int getOutputTextureId() {
+        return getSharedTextureId();
+    }
+
+    @Override
+    public boolean isContentChanged() {
+        // 图片是静态的，只有换图或者重新布局后才需要重绘
+        return needRedraw || sourceImgChanged || (mPendingKeys != null && hasReadyTexture);
     }
 
     @Override
@@ -130,18 +228,18 @@ public abstract class ImgRenderer extends BaseRender {
         LogUtils.d(mTag, "onEGLContextCreated");
         initShaderProgram();
         initCoordinatesData();
-        initFBO();
+        if (mTextureLoader != null) {
+            EGL10 egl = (EGL10) EGLContext.getEGL();
+            mTextureLoader.start(egl.eglGetCurrentContext());
+        }
         sourceImgChanged = true;
+        needRedraw = true;
     }
 
     private void initShaderProgram() {
-        // 创建着色器程序
-        String vertexSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_vertex_offscreen_shader);
-        String fragmentSource = ShaderUtil.readRawText(mContext, R.raw.we_vidmk_fragment_normal_texture2d_shader);
-        int[] shaderIDs = ShaderUtil.createAndLinkProgram(vertexSource, fragmentSource);
-        mVertexShaderHandle = shaderIDs[0];
-        mFragmentShaderHandle = shaderIDs[1];
-        mProgramHandle = shaderIDs[2];
+        // 取得着色器程序，同一共享组内已编译过的直接复用
+        mProgramHandle = WeShaderRegistry.getInstance().obtainProgram(mContext,
+                R.raw.we_vidmk_vertex_offscreen_shader, R.raw.we_vidmk_fragment_normal_texture2d_shader);
         if (mProgramHandle <= 0) {
             throw new RuntimeException("initShaderProgram Error: createAndLinkProgram failed.");
         }
@@ -226,20 +324,6 @@ public abstract class ImgRenderer extends BaseRender {
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
     }
 
-    private void initFBO() {
-        // 创建 FBO
-        int[] fboIds = new int[1];
-        GLES20.glGenBuffers(1, fboIds, 0);
-        if (fboIds[0] == 0) {
-            throw new RuntimeException("initFBO glGenBuffers failed!");
-        }
-        mFBOId = fboIds[0];
-
-        // 初始化要绑定的纹理
-        mOutputTextureIds = new int[]{0};
-        mOldOutputTextureIds = new int[]{0};
-    }
-
     @Override
     public void onSurfaceChanged(int width, int height) {
         LogUtils.d(mTag, "onSurfaceChanged " + width + "x" + height);
@@ -248,6 +332,13 @@ public abstract class ImgRenderer extends BaseRender {
         super.onSurfaceChanged(width, height);
         changePositionMatrix(width, height);
         bindTextureToFBO(width, height);
+        if (mTextureLoader != null && mTextureLoader.setShowSize(width, height)) {
+            // 加载器按新尺寸重新加载，就绪前继续画原尺寸的纹理
+            if (mCurrentKeys != null && mPendingKeys == null) {
+                mPendingKeys = mCurrentKeys;
+            }
+        }
+        needRedraw = true;
     }
 
     /**
@@ -261,40 +352,14 @@ public abstract class ImgRenderer extends BaseRender {
     protected abstract float[] getPositionMatrix(int sourceImgIndex);
 
     private void bindTextureToFBO(int width, int height) {
-        mOldOutputTextureIds[0] = mOutputTextureIds[0];
-
-        /* ------ 1.创建要附加到 FBO 的纹理对象，此纹理将最终作为输出供外部使用 ------ */
-        int[] textureIds = TextureUtils.genTexture2D(1);
-        mOutputTextureIds[0] = textureIds[0];
-        LogUtils.d(mTag, "bindTextureToFBO texture current=" + textureIds[0] + ",old=" + mOldOutputTextureIds[0]);
-        // 绑定刚创建的附加纹理对象
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mOutputTextureIds[0]);
-        // 为此纹理分配内存
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width,
-                height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-        // 解绑纹理
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-        /* ------ 2.把纹理附加到 FBO ------ */
-        // 绑定 FBO
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFBOId);
-        // 把刚创建的纹理对象附加到 FBO
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                GLES20.GL_TEXTURE_2D, mOutputTextureIds[0], 0);
-        int ret = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-        if (ret != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-            throw new RuntimeException("Attach texture to FBO failed! FramebufferStatus:" + ret);
-        }
-        // 解绑 FBO
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-
-        /* ------ 3.释放旧的纹理 ------ */
-        if (mOldOutputTextureIds[0] != 0) {
-            GLES20.glDeleteTextures(1, mOldOutputTextureIds, 0);
-        }
-
-        if (mSharedTextureChangedListener != null) {
-            mSharedTextureChangedListener.onSharedTextureChanged(mOutputTextureIds[0]);
+        int oldTextureId = mRenderTarget != null ? mRenderTarget.getTextureId() : 0;
+        // 尺寸变化时在原纹理上重新分配存储，纹理 ID 不变
+        mRenderTarget = prepareRenderTarget(mRenderTarget, width, height);
+        int textureId = mRenderTarget.getTextureId();
+        LogUtils.d(mTag, "bindTextureToFBO texture current=" + textureId + ",old=" + oldTextureId);
+
+        if (textureId != oldTextureId && mSharedTextureChangedListener != null) {
+            mSharedTextureChangedListener.onSharedTextureChanged(textureId);
         }
     }
 
@@ -324,12 +389,12 @@ public abstract class ImgRenderer extends BaseRender {
     public void onDrawFrame() {
         boolean changed = checkSourceImgChanged();
 
-        if (mSourceTextureIds == null || mSourceTextureIds.length == 0) {
+        if (mSourceTextureIds == null || mSourceTextureIds.length == 0 || mRenderTarget == null) {
             return;
         }
 
         // 绑定到 FBO 从而离屏渲染
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFBOId);
+        mRenderTarget.bind();
 
         // 清屏
         if (canClearScreenOnDraw || forceClearScreenOnce) {
@@ -384,7 +449,8 @@ public abstract class ImgRenderer extends BaseRender {
         GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
         // 解绑 FBO，从而可以恢复到屏上渲染
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        mRenderTarget.unbind();
+        needRedraw = false;
 
         if (changed && mOnNewImageDrawnListener != null) {
             mOnNewImageDrawnListener.onNewImageDrawn();
@@ -392,6 +458,9 @@ public abstract class ImgRenderer extends BaseRender {
     }
 
     private boolean checkSourceImgChanged() {
+        if (mTextureLoader != null) {
+            return checkSourceImgLoaded();
+        }
         if (!sourceImgChanged) {
             return false;
         }
@@ -423,6 +492,7 @@ public abstract class ImgRenderer extends BaseRender {
                     mSourceTextureInfos[i][1] = bitmap.getHeight();
                     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mSourceTextureIds[i]);
                     GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+                    WeBitmapDecoder.getInstance(mContext).release(bitmap);
                 } else {
                     LogUtils.e(mTag, "onDrawFrame load bitmap failed!");
                 }
@@ -434,6 +504,79 @@ public abstract class ImgRenderer extends BaseRender {
         return true;
     }
 
+    /**
+     * 异步加载时使用：换图时发起加载，等所有图片都就绪后再换上，之前继续绘制原来的图片
+     */
+    private boolean checkSourceImgLoaded() {
+        if (sourceImgChanged) {
+            synchronized (this) {
+                sourceImgChanged = false;
+                if (mSourceCount <= 0 || mSourceType == SOURCE_TYPE_INVALID) {
+                    mPendingKeys = null;
+                    mSourceTextureIds = null;
+                    mCurrentKeys = null;
+                    retainTextures();
+                    return false;
+                }
+                String[] keys = new String[mSourceCount];
+                for (int i = 0; i < mSourceCount; i++) {
+                    if (mSourceType == SOURCE_TYPE_RESOURCE) {
+                        keys[i] = ImgTextureLoader.makeKey(mSourceImgResIds[i]);
+                        mTextureLoader.requestResource(mSourceImgResIds[i]);
+                    } else {
+                        keys[i] = ImgTextureLoader.makeKey(mSourceImgPaths[i]);
+                        mTextureLoader.requestFile(mSourceImgPaths[i]);
+                    }
+                }
+                mPendingKeys = keys;
+            }
+            retainTextures();
+        }
+        if (mPendingKeys == null) {
+            return false;
+        }
+
+        hasReadyTexture = false;
+        int count = mPendingKeys.length;
+        int[] textureIds = new int[count];
+        int[][] infos = new int[count][2];
+        for (int i = 0; i < count; i++) {
+            int[] texture = mTextureLoader.getTexture(mPendingKeys[i]);
+            if (texture == null) {
+                // 还有没就绪的，继续绘制原来的图片
+                return false;
+            }
+            if (texture[0] <= 0) {
+                LogUtils.e(mTag, "onDrawFrame load bitmap failed: " + mPendingKeys[i]);
+            }
+            textureIds[i] = texture[0];
+            infos[i][0] = texture[1];
+            infos[i][1] = texture[2];
+        }
+
+        mSourceTextureIds = textureIds;
+        mCurrentKeys = mPendingKeys;
+        mPendingKeys = null;
+        retainTextures();
+        onSourceImageLoaded(infos);
+        return true;
+    }
+
+    /**
+     * 保留当前展示、等待换上和预取的图片纹理，其余的交给加载器按缓存预算淘汰
+     */
+    private void retainTextures() {
+        Set<String> keys = new HashSet<>();
+        if (mCurrentKeys != null) {
+            Collections.addAll(keys, mCurrentKeys);
+        }
+        if (mPendingKeys != null) {
+            Collections.addAll(keys, mPendingKeys);
+        }
+        Collections.addAll(keys, mPrefetchKeys);
+        mTextureLoader.retain(keys);
+    }
+
     @Override
     public void onEGLContextToDestroy() {
         LogUtils.d(mTag, "onEGLContextToDestroy");
@@ -446,26 +589,18 @@ public abstract class ImgRenderer extends BaseRender {
             mTextureCoordBuffer = null;
         }
         if (mProgramHandle > 0) {
-            GLES20.glDetachShader(mProgramHandle, mVertexShaderHandle);
-            GLES20.glDeleteShader(mVertexShaderHandle);
-            mVertexShaderHandle = 0;
-
-            GLES20.glDetachShader(mProgramHandle, mFragmentShaderHandle);
-            GLES20.glDeleteShader(mFragmentShaderHandle);
-            mFragmentShaderHandle = 0;
-
-            GLES20.glDeleteProgram(mProgramHandle);
+            WeShaderRegistry.getInstance().releaseProgram(mProgramHandle);
             mProgramHandle = 0;
         }
-        if (mOutputTextureIds != null) {
-            GLES20.glDeleteTextures(1, mOutputTextureIds, 0);
-            mOutputTextureIds = null;
-        }
-        if (mOldOutputTextureIds != null) {
-            GLES20.glDeleteTextures(1, mOldOutputTextureIds, 0);
-            mOldOutputTextureIds = null;
-        }
-        if (mSourceTextureIds != null) {
+        recycleRenderTarget(mRenderTarget);
+        mRenderTarget = null;
+        if (mTextureLoader != null) {
+            // 纹理归加载器所有，由它删除
+            mTextureLoader.stop();
+            mSourceTextureIds = null;
+            mPendingKeys = null;
+            mCurrentKeys = null;
+        } else if (mSourceTextureIds != null) {
             GLES20.glDeleteTextures(1, mSourceTextureIds, 0);
             mSourceTextureIds = null;
         }
@@ -0,0 +1,584 @@
+package com.wtz.libvideomaker.renderer.origins;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.wtz.libvideomaker.egl.WeEGLHelper;
+import com.wtz.libvideomaker.utils.LogUtils;
+import com.wtz.libvideomaker.utils.TextureUtils;
+import com.wtz.libvideomaker.utils.WeBitmapDecoder;
+import com.wtz.libvideomaker.utils.WeLifecycle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * 图片纹理异步加载器，换图时不再在 GL 线程中解码和上传：
+ * <p>
+ * 1.解码在两个后台线程中轮流进行，由 {@link WeBitmapDecoder} 按显示尺寸采样，图片上传后放回它的复用池；
+ * 2.上传在单独的加载线程中进行，该线程持有与渲染线程共享的 pbuffer 上下文，上传后 glFinish 保证纹理数据可用；
+ * 共享上下文创建失败时退回到分段上传：解码好的图片交给渲染线程，取用时再上传，渲染线程仍然不做解码；
+ * 3.可以提前预取后面要展示的图片，渲染线程只取用已经就绪的纹理；
+ * 4.纹理按（图片、显示尺寸）做 LRU 缓存，调用方指定保留的图片不会被淘汰，
+ * 其余的在预算内保留，超出预算时删除最久未用的，来回切换图片时不需要重新解码。
+ * <p>
+ * start、setShowSize、getTexture、retain、stop 需在渲染线程中调用，其余方法可在任意线程调用。
+ */
+public class ImgTextureLoader {
+
+    private static final String TAG = ImgTextureLoader.class.getSimpleName();
+
+    private static final int DECODE_THREAD_COUNT = 2;
+
+    // 缓存预算占应用内存等级的比例，以及最小预算
+    private static final float CACHE_BYTES_IN_APP_RATIO = 0.25f;
+    private static final long MIN_CACHE_BYTES = 16 * 1024 * 1024;
+
+    public static final int STATE_NONE = 0;// 没有请求过
+    public static final int STATE_WAITING = 1;// 等待显示尺寸确定或加载线程启动
+    public static final int STATE_LOADING = 2;// 正在解码或上传
+    public static final int STATE_DECODED = 3;// 已解码，等待渲染线程上传
+    public static final int STATE_READY = 4;// 纹理已就绪
+    public static final int STATE_FAILED = 5;// 解码失败
+
+    public interface OnTextureReadyListener {
+        /**
+         * 在加载线程中回调，纹理已就绪或者加载失败
+         */
+        void onTextureReady(String key);
+    }
+
+    private static class Entry {
+        String key;
+        String cacheKey;
+        int resId;
+        String path;
+        int showWidth;
+        int showHeight;
+        int state;
+        Bitmap bitmap;
+        int textureId;
+        int width;
+        int height;
+        long bytes;
+        // 已从缓存中移除，进行中的加载结果要丢弃
+        boolean isRemoved;
+
+        Entry(String key, int resId, String path, int showWidth, int showHeight) {
+            this.key = key;
+            this.resId = resId;
+            this.path = path;
+            this.showWidth = showWidth;
+            this.showHeight = showHeight;
+            this.cacheKey = makeCacheKey(key, showWidth, showHeight);
+        }
+    }
+
+    private Context mContext;
+    private String mTag;
+    private WeBitmapDecoder mBitmapDecoder;
+    private OnTextureReadyListener mListener;
+
+    private final Object mLock = new Object();
+    // 按访问顺序排列，最久未用的在前
+    private Map<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private Set<String> mRetainedKeys = new HashSet<>();
+    private int mShowWidth;
+    private int mShowHeight;
+    private long mMaxCacheBytes;
+    private long mCachedBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictCount;
+
+    private HandlerThread[] mDecodeThreads;
+    private Handler[] mDecodeHandlers;
+    private int mNextDecodeIndex;
+    private HandlerThread mUploadThread;
+    private Handler mUploadHandler;
+    private WeEGLHelper mEglHelper;// 只在加载线程中访问
+
+    public ImgTextureLoader(Context context, String tag) {
+        this.mContext = context.getApplicationContext();
+        this.mTag = tag + "-" + TAG;
+        mBitmapDecoder = WeBitmapDecoder.getInstance(mContext);
+        ActivityManager activityManager =
+                (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClassBytes = (long) activityManager.getMemoryClass() * 1024 * 1024;
+        mMaxCacheBytes = Math.max(MIN_CACHE_BYTES, (long) (memoryClassBytes * CACHE_BYTES_IN_APP_RATIO));
+        LogUtils.d(mTag, "max cache bytes " + mMaxCacheBytes);
+    }
+
+    public void setOnTextureReadyListener(OnTextureReadyListener listener) {
+        this.mListener = listener;
+    }
+
+    /**
+     * 修改缓存预算，下次 retain 时按新预算淘汰
+     */
+    public void setMaxCacheBytes(long maxBytes) {
+        synchronized (mLock) {
+            mMaxCacheBytes = maxBytes;
+        }
+    }
+
+    public static String makeKey(int resId) {
+        return "res:" + resId;
+    }
+
+    public static String makeKey(String path) {
+        return "file:" + path;
+    }
+
+    private static String makeCacheKey(String key, int showWidth, int showHeight) {
+        return key + "@" + showWidth + "x" + showHeight;
+    }
+
+    /**
+     * 在渲染线程中调用，启动解码线程和共享当前上下文的加载线程
+     */
+    public void start(final EGLContext shareContext) {
+        synchronized (mLock) {
+            if (mUploadHandler != null) {
+                return;
+            }
+            LogUtils.d(mTag, "start share " + shareContext);
+            mDecodeThreads = new HandlerThread[DECODE_THREAD_COUNT];
+            mDecodeHandlers = new Handler[DECODE_THREAD_COUNT];
+            for (int i = 0; i < DECODE_THREAD_COUNT; i++) {
+                mDecodeThreads[i] = new HandlerThread(mTag + "-decode" + i);
+                mDecodeThreads[i].start();
+                mDecodeHandlers[i] = new Handler(mDecodeThreads[i].getLooper());
+            }
+            mUploadThread = new HandlerThread(mTag + "-upload");
+            mUploadThread.start();
+            mUploadHandler = new Handler(mUploadThread.getLooper());
+            mUploadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // 只用来上传纹理，pbuffer 大小不重要
+                    WeEGLHelper helper = new WeEGLHelper(mTag);
+                    try {
+                        helper.initEGL(1, 1, shareContext);
+                        mEglHelper = helper;
+                    } catch (RuntimeException e) {
+                        LogUtils.e(mTag, "init shared context failed, upload on render thread: " + e.toString());
+                        helper.destroyEGL();
+                    }
+                }
+            });
+            postWaitingEntries();
+        }
+    }
+
+    /**
+     * 在渲染线程中调用，设置解码的目标尺寸；原尺寸的纹理留在缓存中，保留的图片按新尺寸重新加载
+     *
+     * @return 尺寸是否有变化
+     */
+    public boolean setShowSize(int width, int height) {
+        synchronized (mLock) {
+            if (width == mShowWidth && height == mShowHeight) {
+                return false;
+            }
+            LogUtils.d(mTag, "setShowSize " + width + "x" + height);
+            mShowWidth = width;
+            mShowHeight = height;
+
+            List<Entry> requests = new ArrayList<>();
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.state == STATE_WAITING) {
+                    // 还没开始加载的直接改为新尺寸
+                    iterator.remove();
+                    entry.isRemoved = true;
+                    requests.add(entry);
+                } else if (mRetainedKeys.contains(entry.key)) {
+                    requests.add(entry);
+                }
+            }
+            for (Entry entry : requests) {
+                request(new Entry(entry.key, entry.resId, entry.path, width, height), false);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 请求加载资源图片，已请求过时不做任何事
+     */
+    public void requestResource(int resId) {
+        synchronized (mLock) {
+            request(new Entry(makeKey(resId), resId, null, mShowWidth, mShowHeight), true);
+        }
+    }
+
+    /**
+     * 请求加载图片文件，已请求过时不做任何事
+     */
+    public void requestFile(String path) {
+        synchronized (mLock) {
+            request(new Entry(makeKey(path), 0, path, mShowWidth, mShowHeight), true);
+        }
+    }
+
+    private void request(Entry entry, boolean isCount) {
+        // get 同时更新访问顺序
+        if (mEntries.get(entry.cacheKey) != null) {
+            if (isCount) {
+                mHitCount++;
+            }
+            return;
+        }
+        if (isCount) {
+            mMissCount++;
+        }
+        mEntries.put(entry.cacheKey, entry);
+        postLoad(entry);
+    }
+
+    public int getState(String key) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(makeCacheKey(key, mShowWidth, mShowHeight));
+            return entry != null ? entry.state : STATE_NONE;
+        }
+    }
+
+    /**
+     * 在渲染线程中调用，取得当前尺寸下已就绪的纹理信息，已解码还未上传的在这里上传
+     *
+     * @return 数组内容为：纹理 ID、图像宽、图像高；未就绪时返回 null，加载失败时纹理 ID 为 0
+     */
+    public int[] getTexture(String key) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(makeCacheKey(key, mShowWidth, mShowHeight));
+            if (entry == null) {
+                return null;
+            }
+            if (entry.state == STATE_DECODED) {
+                entry.textureId = uploadTexture(entry.bitmap);
+                entry.bitmap = null;
+                entry.state = STATE_READY;
+            }
+            if (entry.state != STATE_READY && entry.state != STATE_FAILED) {
+                return null;
+            }
+            return new int[]{entry.textureId, entry.width, entry.height};
+        }
+    }
+
+    /**
+     * 在渲染线程中调用，指定要保留的图片（正在展示、等待换上和预取的），
+     * 其余图片的纹理留在缓存中，超出预算时从最久未用的开始删除
+     */
+    public void retain(Collection<String> keys) {
+        synchronized (mLock) {
+            mRetainedKeys.clear();
+            mRetainedKeys.addAll(keys);
+            trimToBudget();
+        }
+    }
+
+    private void trimToBudget() {
+        List<Entry> removed = new ArrayList<>();
+        long cachedBytes = mCachedBytes;
+        for (Entry entry : mEntries.values()) {
+            if (isRetained(entry)) {
+                continue;
+            }
+            if (entry.state == STATE_FAILED) {
+                removed.add(entry);
+            } else if (entry.bytes > 0 && cachedBytes > mMaxCacheBytes) {
+                removed.add(entry);
+                cachedBytes -= entry.bytes;
+                mEvictCount++;
+                LogUtils.d(mTag, "evict " + entry.cacheKey + ", cached " + cachedBytes + "B");
+            }
+        }
+        for (Entry entry : removed) {
+            removeEntry(entry);
+        }
+    }
+
+    /**
+     * 保留的图片只保留当前尺寸的；当前尺寸的还没就绪时，正在展示的旧尺寸纹理也要保留
+     */
+    private boolean isRetained(Entry entry) {
+        if (!mRetainedKeys.contains(entry.key)) {
+            return false;
+        }
+        if (entry.showWidth == mShowWidth && entry.showHeight == mShowHeight) {
+            return true;
+        }
+        // 不用 get，避免改变访问顺序
+        String currentKey = makeCacheKey(entry.key, mShowWidth, mShowHeight);
+        for (Entry current : mEntries.values()) {
+            if (current.cacheKey.equals(currentKey)) {
+                return current.bytes == 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在渲染线程中调用，退出各线程并删除所有纹理，之后可以重新 start，保留的图片会重新加载
+     */
+    public void stop() {
+        final CountDownLatch exitLatch;
+        synchronized (mLock) {
+            if (mUploadHandler == null) {
+                return;
+            }
+            LogUtils.d(mTag, "stop, hit " + mHitCount + ", miss " + mMissCount + ", evict " + mEvictCount);
+            for (HandlerThread thread : mDecodeThreads) {
+                thread.quit();
+            }
+            mDecodeThreads = null;
+            mDecodeHandlers = null;
+
+            exitLatch = new CountDownLatch(1);
+            mUploadHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mEglHelper != null) {
+                        mEglHelper.destroyEGL();
+                        mEglHelper = null;
+                    }
+                    exitLatch.countDown();
+                }
+            });
+            mUploadThread.quitSafely();
+            mUploadThread = null;
+            mUploadHandler = null;
+        }
+
+        // 加载线程可能正在上传，等它退出后再删除纹理
+        WeLifecycle.awaitExit(exitLatch, mTag);
+        synchronized (mLock) {
+            List<Entry> entries = new ArrayList<>(mEntries.values());
+            for (Entry entry : entries) {
+                removeEntry(entry);
+            }
+            for (Entry old : entries) {
+                if (mRetainedKeys.contains(old.key)
+                        && old.showWidth == mShowWidth && old.showHeight == mShowHeight) {
+                    Entry entry = new Entry(old.key, old.resId, old.path, mShowWidth, mShowHeight);
+                    entry.state = STATE_WAITING;
+                    mEntries.put(entry.cacheKey, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * 请求时已在缓存中（已就绪或正在加载）的次数
+     */
+    public long getHitCount() {
+        synchronized (mLock) {
+            return mHitCount;
+        }
+    }
+
+    /**
+     * 请求时需要重新解码的次数
+     */
+    public long getMissCount() {
+        synchronized (mLock) {
+            return mMissCount;
+        }
+    }
+
+    /**
+     * 因超出预算被删除的纹理数
+     */
+    public long getEvictCount() {
+        synchronized (mLock) {
+            return mEvictCount;
+        }
+    }
+
+    /**
+     * 缓存中纹理（以及等待上传的图片）占用的字节数
+     */
+    public long getCachedBytes() {
+        synchronized (mLock) {
+            return mCachedBytes;
+        }
+    }
+
+    private void postWaitingEntries() {
+        for (Entry entry : mEntries.values()) {
+            if (entry.state == STATE_WAITING) {
+                postLoad(entry);
+            }
+        }
+    }
+
+    private void postLoad(final Entry entry) {
+        if (mDecodeHandlers == null || entry.showWidth <= 0 || entry.showHeight <= 0) {
+            entry.state = STATE_WAITING;
+            return;
+        }
+        entry.state = STATE_LOADING;
+        Handler handler = mDecodeHandlers[mNextDecodeIndex];
+        mNextDecodeIndex = (mNextDecodeIndex + 1) % mDecodeHandlers.length;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                decode(entry);
+            }
+        });
+    }
+
+    private void decode(final Entry entry) {
+        if (!isCurrent(entry)) {
+            return;
+        }
+        long startNs = System.nanoTime();
+        final Bitmap bitmap;
+        if (entry.path != null) {
+            bitmap = mBitmapDecoder.decodeFile(entry.path, entry.showWidth, entry.showHeight);
+        } else {
+            bitmap = mBitmapDecoder.decodeResource(mContext, entry.resId, entry.showWidth, entry.showHeight);
+        }
+        LogUtils.d(mTag, "decode " + entry.cacheKey + " cost " + (System.nanoTime() - startNs) / 1000 + "us");
+
+        if (bitmap == null) {
+            LogUtils.e(mTag, "decode " + entry.cacheKey + " failed!");
+            synchronized (mLock) {
+                entry.state = STATE_FAILED;
+            }
+            notifyReady(entry);
+            return;
+        }
+
+        boolean posted = false;
+        synchronized (mLock) {
+            if (mUploadHandler != null && isCurrent(entry)) {
+                posted = mUploadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        upload(entry, bitmap);
+                    }
+                });
+            }
+        }
+        if (!posted) {
+            mBitmapDecoder.release(bitmap);
+        }
+    }
+
+    private void upload(Entry entry, Bitmap bitmap) {
+        if (!isCurrent(entry)) {
+            mBitmapDecoder.release(bitmap);
+            return;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (mEglHelper == null) {
+            boolean isCurrent;
+            synchronized (mLock) {
+                isCurrent = isCurrent(entry);
+                if (isCurrent) {
+                    entry.bitmap = bitmap;
+                    setLoaded(entry, width, height, bitmap.getByteCount(), STATE_DECODED);
+                }
+            }
+            if (isCurrent) {
+                notifyReady(entry);
+            } else {
+                mBitmapDecoder.release(bitmap);
+            }
+            return;
+        }
+
+        long startNs = System.nanoTime();
+        // 纹理与图片的像素格式相同，RGB_565 的图片上传后也只占一半
+        long bytes = bitmap.getByteCount();
+        int textureId = uploadTexture(bitmap);
+        // 等上传完成，渲染线程中取用时数据一定可用
+        GLES20.glFinish();
+
+        boolean isCurrent;
+        synchronized (mLock) {
+            isCurrent = isCurrent(entry);
+            if (isCurrent) {
+                entry.textureId = textureId;
+                setLoaded(entry, width, height, bytes, STATE_READY);
+            }
+        }
+        if (!isCurrent) {
+            // 等待期间已被移除，纹理归共享组，在这里删除即可
+            GLES20.glDeleteTextures(1, new int[]{textureId}, 0);
+            return;
+        }
+        LogUtils.d(mTag, "upload " + entry.cacheKey + " " + width + "x" + height
+                + " cost " + (System.nanoTime() - startNs) / 1000 + "us");
+        notifyReady(entry);
+    }
+
+    private void setLoaded(Entry entry, int width, int height, long bytes, int state) {
+        entry.width = width;
+        entry.height = height;
+        entry.bytes = bytes;
+        entry.state = state;
+        mCachedBytes += entry.bytes;
+    }
+
+    private int uploadTexture(Bitmap bitmap) {
+        int textureId = TextureUtils.genTexture2D(1)[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mBitmapDecoder.release(bitmap);
+        return textureId;
+    }
+
+    private boolean isCurrent(Entry entry) {
+        synchronized (mLock) {
+            return !entry.isRemoved;
+        }
+    }
+
+    private void notifyReady(Entry entry) {
+        OnTextureReadyListener listener = mListener;
+        if (listener != null) {
+            listener.onTextureReady(entry.key);
+        }
+    }
+
+    /**
+     * 从缓存中移除并删除纹理和等待上传的图片，进行中的加载结果会被丢弃
+     */
+    private void removeEntry(Entry entry) {
+        mEntries.remove(entry.cacheKey);
+        entry.isRemoved = true;
+        if (entry.textureId > 0) {
+            GLES20.glDeleteTextures(1, new int[]{entry.textureId}, 0);
+            entry.textureId = 0;
+        }
+        if (entry.bitmap != null) {
+            mBitmapDecoder.release(entry.bitmap);
+            entry.bitmap = null;
+        }
+        mCachedBytes -= entry.bytes;
+        entry.bytes = 0;
+        entry.state = STATE_NONE;
+    }
+
+}
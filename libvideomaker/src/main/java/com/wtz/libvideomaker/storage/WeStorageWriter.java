@@ -0,0 +1,547 @@
+package com.wtz.libvideomaker.storage;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.StatFs;
+import android.system.Os;
+
+import com.wtz.libvideomaker.utils.LogUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 录制文件的写入层，封装 MediaMuxer：
+ * <p>
+ * 1. 开始前检查剩余空间，并在同目录预分配一个预留文件占住 {@value #RESERVE_BYTES} 字节，
+ * 空间不足时删除预留文件，保证 MediaMuxer.stop() 写入文件头时仍有空间，文件不会损坏；<br>
+ * 2. 编码线程只把样本拷贝进有界队列，由本线程调用 writeSampleData，慢速存储卡不会阻塞编码；
+ * 队列满时短暂等待，仍满则丢弃该样本，视频丢帧后一直丢到下一个关键帧；<br>
+ * 3. 写入过程中定期检查剩余空间，低于 {@value #LOW_SPACE_BYTES} 字节时通知外部停止录制；<br>
+ * 4. 每写入一定数据量在维护线程中 fsync，减少异常退出时丢失的数据，也避免停止时集中刷盘；<br>
+ * 5. 统计写入耗时、慢写次数、队列峰值和丢弃样本数；<br>
+ * 6. 音视频交织：各 track 的样本分别排队，每次写入队首时间戳最小的样本，
+ * 某个 track 暂时没有样本时最多等待 {@value #INTERLEAVE_WINDOW_MILLS} 毫秒，
+ * 文件中音视频按时间交错存放，边下边播时不需要来回跳读。
+ */
+public class WeStorageWriter extends Thread {
+    private static final String TAG = "WeStorageWriter";
+
+    private static final int MAX_QUEUE_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_QUEUE_SAMPLES = 300;
+    private static final long ENQUEUE_TIMEOUT_MILLS = 50;
+    private static final int MIN_SAMPLE_CAPACITY = 64 * 1024;
+    private static final int MAX_TRACKS = 4;
+    private static final long INTERLEAVE_WINDOW_MILLS = 500;
+
+    private static final long RESERVE_BYTES = 32 * 1024 * 1024;
+    private static final long LOW_SPACE_BYTES = 16 * 1024 * 1024;
+    private static final long MIN_START_FREE_BYTES = RESERVE_BYTES + LOW_SPACE_BYTES * 2;
+    private static final long SPACE_CHECK_INTERVAL_BYTES = 2 * 1024 * 1024;
+    private static final long SPACE_CHECK_INTERVAL_MILLS = 1000;
+    private static final long SYNC_INTERVAL_BYTES = 4 * 1024 * 1024;
+    private static final long SLOW_WRITE_MILLS = 50;
+    private static final int ZERO_FILL_CHUNK = 256 * 1024;
+    private static final String RESERVE_FILE_NAME = ".we_storage_reserve";
+
+    private String mPath;
+    private File mReserveFile;
+    private MediaMuxer mMuxer;
+    private boolean isMuxerStarted;
+    private final boolean[] mIsVideoTrack = new boolean[MAX_TRACKS];
+    private final boolean[] mDropUntilKeyframe = new boolean[MAX_TRACKS];// 只在调用 writeSampleData 的线程中访问
+    private volatile int mTrackCount;
+
+    // 每个 track 一个队列，同一 track 内保持编码输出顺序（即解码顺序）
+    private final Object mLock = new Object();
+    private final ArrayDeque<Sample>[] mTrackQueues = new ArrayDeque[MAX_TRACKS];
+    private final ArrayDeque<Sample> mFreeSamples = new ArrayDeque<>();
+    private int mQueuedSamples;
+    private long mQueuedBytes;
+    private long mInterleaveWaitMills;
+    private boolean isShouldExit;
+
+    // 写入统计
+    private volatile long mWrittenSamples;
+    private volatile long mWrittenBytes;
+    private volatile long mDroppedSamples;
+    private volatile long mSlowWrites;
+    private volatile long mMaxWriteNs;
+    private volatile long mTotalWriteNs;
+    private volatile long mMaxQueuedBytes;
+    private volatile long mLastSyncMills;
+
+    private long mBytesSinceSpaceCheck;
+    private long mLastSpaceCheckMills;
+    private long mBytesSinceSync;
+    private volatile boolean isStorageLow;
+    private OnStorageLowListener mOnStorageLowListener;
+
+    // 维护线程：预分配、fsync、释放预留空间
+    private HandlerThread mMaintainThread;
+    private Handler mMaintainHandler;
+    private FileInputStream mSyncStream;
+    private static final int MSG_RESERVE = 0;
+    private static final int MSG_SYNC = 1;
+
+    public interface OnStorageLowListener {
+        /**
+         * 剩余空间不足时在写入线程中回调一次，此时预留空间已释放，应尽快停止录制
+         */
+        void onStorageLow(String path, long availableBytes);
+    }
+
+    private static class Sample {
+        int track;
+        ByteBuffer data;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long enqueueTimeMills;
+    }
+
+    public WeStorageWriter(String path) {
+        super("WeStorageWriter");
+        this.mPath = path;
+        File parent = new File(path).getAbsoluteFile().getParentFile();
+        this.mReserveFile = new File(parent, RESERVE_FILE_NAME);
+        for (int i = 0; i < MAX_TRACKS; i++) {
+            mTrackQueues[i] = new ArrayDeque<>();
+        }
+    }
+
+    public void setOnStorageLowListener(OnStorageLowListener listener) {
+        this.mOnStorageLowListener = listener;
+    }
+
+    /**
+     * 获取 path 所在分区的可用空间，获取失败时返回 -1
+     */
+    public static long getAvailableBytes(String path) {
+        File dir = new File(path).getAbsoluteFile();
+        if (!dir.isDirectory()) {
+            dir = dir.getParentFile();
+        }
+        if (dir == null) {
+            return -1;
+        }
+        try {
+            StatFs statFs = new StatFs(dir.getPath());
+            return statFs.getAvailableBytes();
+        } catch (Exception e) {
+            LogUtils.e(TAG, "getAvailableBytes exception: " + e.toString());
+            return -1;
+        }
+    }
+
+    /**
+     * 检查空间并创建 MediaMuxer，成功后启动写入线程和维护线程
+     */
+    public boolean prepare() {
+        long available = getAvailableBytes(mPath);
+        if (mReserveFile.exists()) {
+            // 上次异常退出遗留的预留文件也算可用空间
+            available += mReserveFile.length();
+        }
+        if (available >= 0 && available < MIN_START_FREE_BYTES) {
+            LogUtils.e(TAG, "prepare failed, not enough space: " + available + " < " + MIN_START_FREE_BYTES);
+            return false;
+        }
+
+        try {
+            mMuxer = new MediaMuxer(mPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        mMaintainThread = new HandlerThread("WeStorageMaintain");
+        mMaintainThread.start();
+        mMaintainHandler = new Handler(mMaintainThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_RESERVE:
+                        reserveSpace();
+                        break;
+
+                    case MSG_SYNC:
+                        syncFile();
+                        break;
+                }
+            }
+        };
+        mMaintainHandler.sendEmptyMessage(MSG_RESERVE);
+        mLastSpaceCheckMills = System.currentTimeMillis();
+        start();
+        LogUtils.w(TAG, "prepared " + mPath + ", available " + available);
+        return true;
+    }
+
+    public synchronized int addTrack(MediaFormat format) {
+        int track = mMuxer.addTrack(format);
+        if (track >= 0 && track < MAX_TRACKS) {
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            mIsVideoTrack[track] = mime != null && mime.startsWith("video/");
+            mTrackCount = Math.max(mTrackCount, track + 1);
+        }
+        return track;
+    }
+
+    public synchronized void startMuxer() {
+        mMuxer.start();
+        isMuxerStarted = true;
+    }
+
+    /**
+     * 把样本拷贝进写入队列，在编码线程中调用，返回后即可释放编码器的输出 buffer
+     *
+     * @return 是否已入队，队列持续满或空间不足时丢弃并返回 false
+     */
+    public boolean writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        if (track < 0 || track >= MAX_TRACKS) {
+            return false;
+        }
+        if (mDropUntilKeyframe[track]) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0) {
+                mDroppedSamples++;
+                return false;
+            }
+            mDropUntilKeyframe[track] = false;
+        }
+
+        int size = info.size;
+        Sample sample;
+        synchronized (mLock) {
+            long deadline = System.currentTimeMillis() + ENQUEUE_TIMEOUT_MILLS;
+            while (!isShouldExit && (mQueuedSamples >= MAX_QUEUE_SAMPLES || mQueuedBytes + size > MAX_QUEUE_BYTES)
+                    && mQueuedSamples > 0) {
+                long waitMills = deadline - System.currentTimeMillis();
+                if (waitMills <= 0) {
+                    break;
+                }
+                try {
+                    mLock.wait(waitMills);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (isShouldExit || mQueuedSamples >= MAX_QUEUE_SAMPLES
+                    || (mQueuedBytes + size > MAX_QUEUE_BYTES && mQueuedSamples > 0)) {
+                mDroppedSamples++;
+                if (mIsVideoTrack[track]) {
+                    // 丢掉的帧被后续帧参考，后续帧直到下一个关键帧都无法正确解码
+                    mDropUntilKeyframe[track] = true;
+                }
+                return false;
+            }
+            sample = mFreeSamples.poll();
+        }
+
+        if (sample == null) {
+            sample = new Sample();
+        }
+        if (sample.data == null || sample.data.capacity() < size) {
+            sample.data = ByteBuffer.allocateDirect(Math.max(MIN_SAMPLE_CAPACITY, size));
+        }
+        sample.data.clear();
+        buffer.position(info.offset);
+        buffer.limit(info.offset + size);
+        sample.data.put(buffer);
+        sample.data.flip();
+        sample.track = track;
+        sample.info.set(0, size, info.presentationTimeUs, info.flags);
+        sample.enqueueTimeMills = System.currentTimeMillis();
+
+        synchronized (mLock) {
+            mTrackQueues[track].offer(sample);
+            mQueuedSamples++;
+            mQueuedBytes += size;
+            if (mQueuedBytes > mMaxQueuedBytes) {
+                mMaxQueuedBytes = mQueuedBytes;
+            }
+            mLock.notifyAll();
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        LogUtils.w(TAG, "writer thread starting tid=" + android.os.Process.myTid());
+        while (true) {
+            Sample sample;
+            synchronized (mLock) {
+                while ((sample = pickNextLocked()) == null && !(isShouldExit && mQueuedSamples == 0)) {
+                    try {
+                        // 为 0 时所有队列都空，等待新样本
+                        mLock.wait(mInterleaveWaitMills);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            if (sample == null) {
+                // 退出前已把队列中的样本全部写完
+                break;
+            }
+
+            write(sample);
+
+            synchronized (mLock) {
+                mTrackQueues[sample.track].poll();
+                mQueuedSamples--;
+                mQueuedBytes -= sample.info.size;
+                mFreeSamples.offer(sample);
+                mLock.notifyAll();
+            }
+        }
+        LogUtils.w(TAG, "writer thread end tid=" + android.os.Process.myTid() + ", " + getStatsSummary());
+    }
+
+    /**
+     * 选出下一个要写入的样本：各 track 队首中时间戳最小的一个。
+     * 有 track 没有待写样本时，它的下一个样本可能更早，先等待，除非队首样本已等待超过交织窗口、
+     * 队列已用掉一半或正在退出；需要等待时返回 null，等待时长记在 mInterleaveWaitMills
+     */
+    private Sample pickNextLocked() {
+        Sample best = null;
+        boolean isAnyTrackEmpty = false;
+        int trackCount = Math.min(mTrackCount, MAX_TRACKS);
+        for (int i = 0; i < trackCount; i++) {
+            Sample head = mTrackQueues[i].peek();
+            if (head == null) {
+                isAnyTrackEmpty = true;
+            } else if (best == null || head.info.presentationTimeUs < best.info.presentationTimeUs) {
+                best = head;
+            }
+        }
+        mInterleaveWaitMills = 0;
+        if (best == null) {
+            return null;
+        }
+        if (!isAnyTrackEmpty || isShouldExit || mQueuedSamples >= MAX_QUEUE_SAMPLES / 2
+                || mQueuedBytes >= MAX_QUEUE_BYTES / 2) {
+            return best;
+        }
+        long waited = System.currentTimeMillis() - best.enqueueTimeMills;
+        if (waited >= INTERLEAVE_WINDOW_MILLS) {
+            return best;
+        }
+        mInterleaveWaitMills = INTERLEAVE_WINDOW_MILLS - waited;
+        return null;
+    }
+
+    private void write(Sample sample) {
+        long startNs = System.nanoTime();
+        try {
+            mMuxer.writeSampleData(sample.track, sample.data, sample.info);
+        } catch (Exception e) {
+            LogUtils.e(TAG, "writeSampleData exception: " + e.toString());
+            mDroppedSamples++;
+            // 多数是空间已满导致的写失败
+            onStorageLow(getAvailableBytes(mPath));
+            return;
+        }
+        long costNs = System.nanoTime() - startNs;
+        mTotalWriteNs += costNs;
+        if (costNs > mMaxWriteNs) {
+            mMaxWriteNs = costNs;
+        }
+        if (costNs >= SLOW_WRITE_MILLS * 1000000) {
+            mSlowWrites++;
+        }
+        mWrittenSamples++;
+        mWrittenBytes += sample.info.size;
+
+        mBytesSinceSync += sample.info.size;
+        if (mBytesSinceSync >= SYNC_INTERVAL_BYTES) {
+            mBytesSinceSync = 0;
+            if (!mMaintainHandler.hasMessages(MSG_SYNC)) {
+                mMaintainHandler.sendEmptyMessage(MSG_SYNC);
+            }
+        }
+
+        mBytesSinceSpaceCheck += sample.info.size;
+        long now = System.currentTimeMillis();
+        if (!isStorageLow && (mBytesSinceSpaceCheck >= SPACE_CHECK_INTERVAL_BYTES
+                || now - mLastSpaceCheckMills >= SPACE_CHECK_INTERVAL_MILLS)) {
+            mBytesSinceSpaceCheck = 0;
+            mLastSpaceCheckMills = now;
+            long available = getAvailableBytes(mPath);
+            if (available >= 0 && available < LOW_SPACE_BYTES) {
+                onStorageLow(available);
+            }
+        }
+    }
+
+    private void onStorageLow(long available) {
+        if (isStorageLow) {
+            return;
+        }
+        isStorageLow = true;
+        LogUtils.e(TAG, "storage low, available " + available + ", release reserved space");
+        // 直接在本线程删除，保证后续写入和 stop 时有空间可用
+        deleteReserveFile();
+        OnStorageLowListener listener = mOnStorageLowListener;
+        if (listener != null) {
+            listener.onStorageLow(mPath, available);
+        }
+    }
+
+    private void reserveSpace() {
+        if (isStorageLow) {
+            return;
+        }
+        long startMills = System.currentTimeMillis();
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mReserveFile, "rw");
+            if (file.length() >= RESERVE_BYTES) {
+                return;
+            }
+            boolean allocated = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                try {
+                    // 真正分配磁盘块，setLength 只会生成稀疏文件，占不住空间
+                    Os.posix_fallocate(file.getFD(), 0, RESERVE_BYTES);
+                    allocated = true;
+                } catch (Exception e) {
+                    LogUtils.w(TAG, "posix_fallocate failed: " + e.toString());
+                }
+            }
+            if (!allocated) {
+                byte[] zeros = new byte[ZERO_FILL_CHUNK];
+                file.seek(file.length());
+                for (long written = file.length(); written < RESERVE_BYTES && !isStorageLow; written += ZERO_FILL_CHUNK) {
+                    file.write(zeros);
+                }
+            }
+            file.getFD().sync();
+        } catch (IOException e) {
+            LogUtils.e(TAG, "reserveSpace exception: " + e.toString());
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        LogUtils.w(TAG, "reserved " + mReserveFile.length() + " bytes in "
+                + (System.currentTimeMillis() - startMills) + "ms");
+    }
+
+    private void deleteReserveFile() {
+        if (mReserveFile.exists() && !mReserveFile.delete()) {
+            LogUtils.e(TAG, "delete reserve file failed: " + mReserveFile);
+        }
+    }
+
+    private void syncFile() {
+        long startMills = System.currentTimeMillis();
+        try {
+            if (mSyncStream == null) {
+                // fsync 作用于文件本身，用另外打开的只读描述符即可刷写 MediaMuxer 写入的数据
+                mSyncStream = new FileInputStream(mPath);
+            }
+            mSyncStream.getFD().sync();
+        } catch (IOException e) {
+            LogUtils.e(TAG, "sync exception: " + e.toString());
+        }
+        mLastSyncMills = System.currentTimeMillis() - startMills;
+    }
+
+    /**
+     * 写完队列中剩余的样本后停止 MediaMuxer 并释放所有资源，在编码线程都退出后调用
+     */
+    public void stopAndRelease() {
+        synchronized (mLock) {
+            isShouldExit = true;
+            mLock.notifyAll();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        if (mMaintainThread != null) {
+            mMaintainHandler.removeCallbacksAndMessages(null);
+            mMaintainThread.quitSafely();
+            try {
+                mMaintainThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mMaintainThread = null;
+        }
+
+        if (mMuxer != null) {
+            try {
+                if (isMuxerStarted) {
+                    mMuxer.stop();// 在停止时才会写入视频头信息
+                }
+                mMuxer.release();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mMuxer = null;
+        }
+        syncFile();
+        if (mSyncStream != null) {
+            try {
+                mSyncStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mSyncStream = null;
+        }
+        deleteReserveFile();
+        synchronized (mLock) {
+            mFreeSamples.clear();
+        }
+    }
+
+    public boolean isStorageLow() {
+        return isStorageLow;
+    }
+
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    public long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    /**
+     * 平均写入耗时，单位：微秒
+     */
+    public long getAvgWriteMicros() {
+        long samples = mWrittenSamples;
+        return samples > 0 ? mTotalWriteNs / samples / 1000 : 0;
+    }
+
+    public long getMaxWriteMicros() {
+        return mMaxWriteNs / 1000;
+    }
+
+    public long getSlowWrites() {
+        return mSlowWrites;
+    }
+
+    public String getStatsSummary() {
+        return "samples=" + mWrittenSamples + " bytes=" + mWrittenBytes + " avgWrite=" + getAvgWriteMicros()
+                + "us maxWrite=" + getMaxWriteMicros() + "us slow(>=" + SLOW_WRITE_MILLS + "ms)=" + mSlowWrites
+                + " maxQueued=" + mMaxQueuedBytes + "B dropped=" + mDroppedSamples + " lastSync=" + mLastSyncMills + "ms";
+    }
+
+}
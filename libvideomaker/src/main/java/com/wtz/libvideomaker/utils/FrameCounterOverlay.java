@@ -0,0 +1,48 @@
+package com.wtz.libvideomaker.utils;
+
+import android.opengl.GLES20;
+
+/**
+ * 在画面左上角画一行黑白方块，以二进制编码一个 24 位数值（如采集时间毫秒数的低 24 位），
+ * 接收端解码画面后读出该值，与本地同一时钟比较即可得到端到端延时。
+ * <p>
+ * 方块格式：1 个白块 + 1 个黑块作为起始标记，随后 24 个数据块，高位在前，白为 1、黑为 0。
+ * 只用裁剪区域清屏实现，不需要额外的着色器和纹理，需在 GL 线程中、画面绘制完成后调用。
+ */
+public class FrameCounterOverlay {
+
+    public static final int VALUE_BITS = 24;
+    private static final int MARKER_BLOCKS = 2;
+    private static final int MIN_BLOCK_SIZE = 4;
+
+    private FrameCounterOverlay() {
+    }
+
+    public static void draw(int surfaceWidth, int surfaceHeight, long value) {
+        int blocks = MARKER_BLOCKS + VALUE_BITS;
+        int blockSize = Math.max(MIN_BLOCK_SIZE, surfaceWidth / (blocks * 2));
+        if (blockSize * blocks > surfaceWidth || blockSize > surfaceHeight) {
+            return;
+        }
+        int y = surfaceHeight - blockSize;// GL 坐标原点在左下角
+
+        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        for (int i = 0; i < blocks; i++) {
+            boolean white;
+            if (i < MARKER_BLOCKS) {
+                white = i == 0;
+            } else {
+                int bit = VALUE_BITS - 1 - (i - MARKER_BLOCKS);
+                white = ((value >> bit) & 1) == 1;
+            }
+            float color = white ? 1f : 0f;
+            GLES20.glScissor(i * blockSize, y, blockSize, blockSize);
+            GLES20.glClearColor(color, color, color, 1f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        }
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        // 恢复渲染器默认使用的黑色清屏色
+        GLES20.glClearColor(0f, 0f, 0f, 1f);
+    }
+
+}
@@ -1,11 +1,8 @@
 package com.wtz.libvideomaker.utils;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.text.TextUtils;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -17,10 +14,11 @@ public class GLBitmapUtils {
     private static String TAG = GLBitmapUtils.class.getSimpleName();
 
     public static int UNCONSTRAINED = -1;
-    private static int APP_HEAP_GROWTH_LIMIT;
-    private static float MAX_BITMAP_BYTES_IN_APP_RATIO = 0.0625f;
-    private static float MIN_IMAGE_SIDE_LENGTH_RATIO = 0.95f;
 
+    /**
+     * 同步读回当前帧缓冲，会阻塞 GL 线程，并在 Java 中逐像素转换；
+     * 拍照等较大的画面请使用 {@link com.wtz.libvideomaker.renderer.WeFrameReader} 异步读回
+     */
     public static Bitmap saveGLPixels(int x, int y, int width, int height) {
         int originArray[] = new int[width * (y + height)];
         int resultArray[] = new int[width * height];
@@ -55,78 +53,27 @@ public class GLBitmapUtils {
     }
 
     /**
+     * 解码交给 {@link WeBitmapDecoder}，用完后可以通过它的 release 放回复用池
+     *
      * @param resId      资源ID
      * @param showWidth  实际需要展示的宽
      * @param showHeight 实际需要展示的高
      * @return
      */
     public static Bitmap decodeResource(Context context, int resId, int showWidth, int showHeight) {
-        if (showWidth <= 0 || showHeight <= 0) {
-            LogUtils.e(TAG, "decodeResource params is error: showWidth=" + showWidth + " showHeight=" + showHeight);
-            return null;
-        }
-        try {
-            // Get image size
-            BitmapFactory.Options opts = new BitmapFactory.Options();
-            opts.inJustDecodeBounds = true;
-            BitmapFactory.decodeResource(context.getResources(), resId, opts);
-
-            setBitmapOptions(context, showWidth, showHeight, opts);
-
-            return BitmapFactory.decodeResource(context.getResources(), resId, opts);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
+        return WeBitmapDecoder.getInstance(context).decodeResource(context, resId, showWidth, showHeight);
     }
 
     /**
+     * 解码交给 {@link WeBitmapDecoder}，用完后可以通过它的 release 放回复用池
+     *
      * @param filePath   文件路径
      * @param showWidth  实际需要展示的宽
      * @param showHeight 实际需要展示的高
      * @return
      */
     public static Bitmap decodeFile(Context context, String filePath, int showWidth, int showHeight) {
-        if (TextUtils.isEmpty(filePath) || showWidth <= 0 || showHeight <= 0) {
-            LogUtils.e(TAG, "decodeFile params is error: filePath=" + filePath
-                    + " showWidth=" + showWidth + " showHeight=" + showHeight);
-            return null;
-        }
-        try {
-            // Get image size
-            BitmapFactory.Options opts = new BitmapFactory.Options();
-            opts.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(filePath, opts);
-
-            setBitmapOptions(context, showWidth, showHeight, opts);
-
-            return BitmapFactory.decodeFile(filePath, opts);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    /**
-     * @param opts 必须是已经设置了图像实际宽高的 Options
-     */
-    private static void setBitmapOptions(Context context, int showWidth, int showHeight, BitmapFactory.Options opts) {
-        // Get inSampleSize
-        int minSideLength = (int) (Math.min(showWidth, showHeight) * MIN_IMAGE_SIDE_LENGTH_RATIO);
-        if (APP_HEAP_GROWTH_LIMIT <= 0) {
-            ActivityManager activityManager =
-                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-            APP_HEAP_GROWTH_LIMIT = activityManager.getMemoryClass();
-        }
-        int maxBytes = (int) (MAX_BITMAP_BYTES_IN_APP_RATIO * APP_HEAP_GROWTH_LIMIT * 1024 * 1024);
-        int maxPixels = Math.min(maxBytes / 4, showWidth * showHeight);
-        opts.inSampleSize = computeSampleSize(opts.outWidth, opts.outHeight, minSideLength, maxPixels);
-
-        // Decode image
-        opts.inJustDecodeBounds = false;
-        opts.inInputShareable = true;
-        opts.inPurgeable = true;
-        opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return WeBitmapDecoder.getInstance(context).decodeFile(filePath, showWidth, showHeight);
     }
 
     public static int computeSampleSize(int bmpWidth, int bmpHeight, int minSideLength,
@@ -145,8 +92,7 @@ public class GLBitmapUtils {
         float finalBytes = 4.0f * bmpWidth / roundedSize * bmpHeight / roundedSize / 1024 / 1024;
         builder.append("Image=").append(bmpWidth).append("x").append(bmpHeight).append(" Sample=")
                 .append(roundedSize).append(" FinalBytes=").append(finalBytes).append("MB")
-                .append(" MinSide=").append(minSideLength).append(" MaxPixels=").append(maxNumOfPixels)
-                .append(" APP_HEAP_GROWTH_LIMIT=").append(APP_HEAP_GROWTH_LIMIT).append("MB");
+                .append(" MinSide=").append(minSideLength).append(" MaxPixels=").append(maxNumOfPixels);
         LogUtils.w(TAG, builder.toString());
         return roundedSize;
     }
@@ -0,0 +1,363 @@
+package com.wtz.libvideomaker.utils;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * 采集到推流发送的全链路延时统计，进程内单例，默认关闭。
+ * <p>
+ * 以相机 SurfaceTexture 的时间戳（与 System.nanoTime() 同一时钟）作为每帧的起点，
+ * 在预览渲染、编码 Surface 提交（eglSwapBuffers）、编码器输出、推流入队时分别打点，
+ * 推流线程中从入队到 RTMP_SendPacket 完成的耗时由推流模块记录后汇入。
+ * 编码 Surface 提交的帧时间戳即编码器输出的 pts，据此把编码输出对应回采集时间。
+ * <p>
+ * 录制和推流可以同时进行，各自的编码提交、编码输出和推流记录按 {@link Pipeline} 分开保存和统计，
+ * 只在同一条链路内匹配，不会把一条链路的编码输出对应到另一条链路提交的帧；
+ * 相机帧的采集和预览渲染是各链路共用的。
+ */
+public class LatencyTracer {
+    private static final String TAG = "LatencyTracer";
+
+    public enum Stage {
+        CAPTURE_TO_RENDER("capture->render"),
+        CAPTURE_TO_SWAP("capture->encoder swap"),
+        CAPTURE_TO_ENCODED("capture->codec output"),
+        CAPTURE_TO_ENQUEUE("capture->rtmp enqueue"),
+        ENQUEUE_TO_SENT("rtmp enqueue->sent");
+
+        private String desc;
+
+        Stage(String desc) {
+            this.desc = desc;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+    }
+
+    public enum Pipeline {
+        RECORD("record"),
+        PUSH("push");
+
+        private String desc;
+
+        Pipeline(String desc) {
+            this.desc = desc;
+        }
+
+        public String getDesc() {
+            return desc;
+        }
+    }
+
+    // 直方图各桶的上限，单位：毫秒，最后一个桶收集超过 1000 毫秒的
+    private static final int[] BUCKET_BOUNDS_MILLS = {2, 5, 10, 20, 33, 50, 66, 100, 150, 200, 300, 500, 1000};
+
+    // 超出此范围的时间戳认为来自不同时钟，不统计
+    private static final long MAX_VALID_LATENCY_NS = 5000L * 1000 * 1000;
+
+    // 编码 Surface 提交时刻与 pts 匹配的容差
+    private static final long SWAP_MATCH_TOLERANCE_NS = 20L * 1000 * 1000;
+    private static final int SWAP_RECORDS = 64;
+
+    private static volatile LatencyTracer sInstance;
+
+    private volatile boolean isEnabled;
+    private final Histogram mRenderHistogram = new Histogram();
+    private volatile long mLatestCaptureNs;
+    private final PipelineRecords[] mPipelines;
+
+    public static LatencyTracer getInstance() {
+        if (sInstance == null) {
+            synchronized (LatencyTracer.class) {
+                if (sInstance == null) {
+                    sInstance = new LatencyTracer();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private LatencyTracer() {
+        mPipelines = new PipelineRecords[Pipeline.values().length];
+        for (int i = 0; i < mPipelines.length; i++) {
+            mPipelines[i] = new PipelineRecords();
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        LogUtils.w(TAG, "setEnabled " + enabled);
+        this.isEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * 最近一次渲染的相机帧采集时间，单位：纳秒，0 表示还没有
+     */
+    public long getLatestCaptureNs() {
+        return mLatestCaptureNs;
+    }
+
+    /**
+     * 相机帧更新到纹理后调用
+     */
+    public void onFrameRendered(long captureNs) {
+        if (!isEnabled || captureNs <= 0 || captureNs == mLatestCaptureNs) {
+            return;
+        }
+        mLatestCaptureNs = captureNs;
+        record(mRenderHistogram, captureNs, System.nanoTime());
+    }
+
+    /**
+     * 编码 Surface eglSwapBuffers 成功后调用，此时编码画面取自最近一次渲染的相机帧
+     *
+     * @param swapNs 调用 eglSwapBuffers 的时刻
+     */
+    public void onEncoderFrameSwapped(Pipeline pipeline, long swapNs) {
+        long captureNs = mLatestCaptureNs;
+        if (!isEnabled || captureNs <= 0) {
+            return;
+        }
+        PipelineRecords records = mPipelines[pipeline.ordinal()];
+        synchronized (records) {
+            records.swapNs[records.swapWritePos] = swapNs;
+            records.swapCaptureNs[records.swapWritePos] = captureNs;
+            records.swapWritePos = (records.swapWritePos + 1) % SWAP_RECORDS;
+        }
+        record(records.getHistogram(Stage.CAPTURE_TO_SWAP), captureNs, System.nanoTime());
+    }
+
+    /**
+     * 编码器输出一帧视频时调用，只与同一链路提交的帧匹配
+     *
+     * @param ptsUs 编码器输出的原始时间戳
+     * @return 对应的采集时间，找不到时返回 0
+     */
+    public long onFrameEncoded(Pipeline pipeline, long ptsUs) {
+        if (!isEnabled) {
+            return 0;
+        }
+        PipelineRecords records = mPipelines[pipeline.ordinal()];
+        long ptsNs = ptsUs * 1000;
+        long captureNs = 0;
+        long minDiff = SWAP_MATCH_TOLERANCE_NS;
+        synchronized (records) {
+            for (int i = 0; i < SWAP_RECORDS; i++) {
+                long diff = Math.abs(records.swapNs[i] - ptsNs);
+                if (records.swapNs[i] > 0 && diff <= minDiff) {
+                    minDiff = diff;
+                    captureNs = records.swapCaptureNs[i];
+                }
+            }
+        }
+        records.lastEncodedCaptureNs = captureNs;
+        if (captureNs > 0) {
+            record(records.getHistogram(Stage.CAPTURE_TO_ENCODED), captureNs, System.nanoTime());
+        }
+        return captureNs;
+    }
+
+    /**
+     * 最近一次编码输出的视频帧送入推流队列后调用，与 {@link #onFrameEncoded(Pipeline, long)} 在同一线程
+     */
+    public void onFrameEnqueued(Pipeline pipeline) {
+        PipelineRecords records = mPipelines[pipeline.ordinal()];
+        long captureNs = records.lastEncodedCaptureNs;
+        if (!isEnabled || captureNs <= 0) {
+            return;
+        }
+        record(records.getHistogram(Stage.CAPTURE_TO_ENQUEUE), captureNs, System.nanoTime());
+    }
+
+    /**
+     * 直接记录某阶段的耗时，用于汇入其它模块测得的数据
+     */
+    public void recordMills(Pipeline pipeline, Stage stage, int latencyMills) {
+        if (!isEnabled) {
+            return;
+        }
+        getHistogram(pipeline, stage).record(latencyMills);
+    }
+
+    private void record(Histogram histogram, long startNs, long endNs) {
+        long latencyNs = endNs - startNs;
+        if (latencyNs < 0 || latencyNs > MAX_VALID_LATENCY_NS) {
+            return;
+        }
+        histogram.record((int) (latencyNs / 1000000));
+    }
+
+    private Histogram getHistogram(Pipeline pipeline, Stage stage) {
+        if (stage == Stage.CAPTURE_TO_RENDER) {
+            return mRenderHistogram;
+        }
+        return mPipelines[pipeline.ordinal()].getHistogram(stage);
+    }
+
+    /**
+     * 获取某链路某阶段各桶的计数，桶上限见 {@link #getBucketBoundsMills()}，最后一个桶为超出上限的部分；
+     * 采集到预览渲染各链路共用
+     */
+    public long[] getCounts(Pipeline pipeline, Stage stage) {
+        return getHistogram(pipeline, stage).getCounts();
+    }
+
+    public static int[] getBucketBoundsMills() {
+        return BUCKET_BOUNDS_MILLS.clone();
+    }
+
+    public void reset() {
+        mRenderHistogram.reset();
+        for (PipelineRecords records : mPipelines) {
+            records.reset();
+        }
+        mLatestCaptureNs = 0;
+    }
+
+    public String getReport(Pipeline pipeline) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(pipeline.getDesc()).append(" latency report ").append(new Date()).append('\n');
+        for (Stage stage : Stage.values()) {
+            builder.append(stage.getDesc()).append(": ")
+                    .append(getHistogram(pipeline, stage).getSummary()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 把某链路的统计结果追加写入文件
+     */
+    public boolean dumpToFile(Pipeline pipeline, String path) {
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(path, true);
+            writer.write(getReport(pipeline));
+            writer.write('\n');
+            return true;
+        } catch (IOException e) {
+            LogUtils.e(TAG, "dumpToFile " + path + " exception: " + e.toString());
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 一条链路的编码提交记录和统计，提交记录由本对象加锁保护
+     */
+    private static class PipelineRecords {
+        final long[] swapNs = new long[SWAP_RECORDS];
+        final long[] swapCaptureNs = new long[SWAP_RECORDS];
+        int swapWritePos;
+        volatile long lastEncodedCaptureNs;
+        final Histogram[] histograms;
+
+        PipelineRecords() {
+            histograms = new Histogram[Stage.values().length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+
+        Histogram getHistogram(Stage stage) {
+            return histograms[stage.ordinal()];
+        }
+
+        void reset() {
+            for (Histogram histogram : histograms) {
+                histogram.reset();
+            }
+            synchronized (this) {
+                for (int i = 0; i < SWAP_RECORDS; i++) {
+                    swapNs[i] = 0;
+                    swapCaptureNs[i] = 0;
+                }
+            }
+            lastEncodedCaptureNs = 0;
+        }
+    }
+
+    static class Histogram {
+        private final long[] mCounts = new long[BUCKET_BOUNDS_MILLS.length + 1];
+        private long mTotal;
+        private long mSumMills;
+        private int mMaxMills;
+
+        synchronized void record(int mills) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLS.length && mills > BUCKET_BOUNDS_MILLS[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mTotal++;
+            mSumMills += mills;
+            if (mills > mMaxMills) {
+                mMaxMills = mills;
+            }
+        }
+
+        synchronized long[] getCounts() {
+            return mCounts.clone();
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = 0;
+            }
+            mTotal = 0;
+            mSumMills = 0;
+            mMaxMills = 0;
+        }
+
+        /**
+         * 百分位取所在桶的上限，超出最后上限的返回最大值
+         */
+        private int percentile(int percent) {
+            long target = (mTotal * percent + 99) / 100;
+            long accumulated = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                accumulated += mCounts[i];
+                if (accumulated >= target) {
+                    return i < BUCKET_BOUNDS_MILLS.length ? BUCKET_BOUNDS_MILLS[i] : mMaxMills;
+                }
+            }
+            return mMaxMills;
+        }
+
+        synchronized String getSummary() {
+            if (mTotal == 0) {
+                return "no data";
+            }
+            StringBuilder builder = new StringBuilder();
+            builder.append("n=").append(mTotal)
+                    .append(" avg=").append(mSumMills / mTotal).append("ms")
+                    .append(" p50<=").append(percentile(50)).append("ms")
+                    .append(" p90<=").append(percentile(90)).append("ms")
+                    .append(" p99<=").append(percentile(99)).append("ms")
+                    .append(" max=").append(mMaxMills).append("ms [");
+            for (int i = 0; i < mCounts.length; i++) {
+                if (i > 0) {
+                    builder.append(' ');
+                }
+                builder.append(i < BUCKET_BOUNDS_MILLS.length ? "<=" + BUCKET_BOUNDS_MILLS[i] : ">"
+                        + BUCKET_BOUNDS_MILLS[BUCKET_BOUNDS_MILLS.length - 1]).append(':').append(mCounts[i]);
+            }
+            builder.append(']');
+            return builder.toString();
+        }
+    }
+
+}
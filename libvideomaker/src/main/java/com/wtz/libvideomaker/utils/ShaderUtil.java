@@ -38,6 +38,22 @@ public class ShaderUtil {
     }
 
     public static int[] createAndLinkProgram(String vertexSource, String fragmentSource) {
+        return createAndLinkProgram(null, vertexSource, fragmentSource);
+    }
+
+    /**
+     * 创建并链接程序，传入 context 时先尝试从磁盘缓存加载程序二进制，
+     * 加载成功时不创建着色器对象，返回的着色器句柄为 0；从源码链接成功后保存二进制供下次启动使用
+     */
+    public static int[] createAndLinkProgram(Context context, String vertexSource, String fragmentSource) {
+        WeProgramBinaryCache binaryCache = context != null ? WeProgramBinaryCache.getInstance(context) : null;
+        if (binaryCache != null) {
+            int program = binaryCache.load(vertexSource, fragmentSource);
+            if (program > 0) {
+                return new int[]{0, 0, program};
+            }
+        }
+
         int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return new int[]{0, 0, 0};
@@ -50,6 +66,9 @@ public class ShaderUtil {
         if (program != 0) {
             GLES20.glAttachShader(program, vertexShader);
             GLES20.glAttachShader(program, fragmentShader);
+            if (binaryCache != null) {
+                binaryCache.prepareForLink(program);
+            }
             GLES20.glLinkProgram(program);
             LogUtils.d(TAG, "Shader Program " + program + " info:\n" + GLES20.glGetProgramInfoLog(program));
 
@@ -59,6 +78,8 @@ public class ShaderUtil {
                 Log.d(TAG, "link program error");
                 GLES20.glDeleteProgram(program);
                 program = 0;
+            } else if (binaryCache != null) {
+                binaryCache.save(program, vertexSource, fragmentSource);
             }
         }
         return new int[]{vertexShader, fragmentShader, program};
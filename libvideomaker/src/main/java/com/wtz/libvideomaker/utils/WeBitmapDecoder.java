@@ -0,0 +1,273 @@
+package com.wtz.libvideomaker.utils;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.text.TextUtils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 用来上传纹理的图片解码服务：
+ * <p>
+ * 1.采样率取不会使图像小于展示大小的最大 2 的幂，剩下的缩放交给 GPU 绘制时完成，不会因为采样率取整解得过小；
+ * 2.JPEG 没有透明通道，解码为 RGB_565，内存和上传的数据量减半；
+ * 3.解码出的图片上传后通过 {@link #release(Bitmap)} 放回复用池，下次解码时通过 inBitmap 复用，不再每次重新分配。
+ * <p>
+ * 各方法可在多个线程中同时调用。
+ */
+public class WeBitmapDecoder {
+    private static final String TAG = "WeBitmapDecoder";
+
+    // 单张图片占应用内存等级的最大比例，与原来的解码限制一致
+    private static final float MAX_BITMAP_BYTES_IN_APP_RATIO = 0.0625f;
+    // 复用池占应用内存等级的最大比例
+    private static final float MAX_POOL_BYTES_IN_APP_RATIO = 0.125f;
+
+    private static volatile WeBitmapDecoder sInstance;
+
+    private long mMaxBitmapBytes;
+    private long mMaxPoolBytes;
+    private final List<Bitmap> mPool = new ArrayList<>();
+    private long mPoolBytes;
+
+    private long mDecodeCount;
+    private long mReuseCount;
+
+    private WeBitmapDecoder(Context context) {
+        ActivityManager activityManager =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        long memoryClassBytes = (long) activityManager.getMemoryClass() * 1024 * 1024;
+        mMaxBitmapBytes = (long) (memoryClassBytes * MAX_BITMAP_BYTES_IN_APP_RATIO);
+        mMaxPoolBytes = (long) (memoryClassBytes * MAX_POOL_BYTES_IN_APP_RATIO);
+        LogUtils.d(TAG, "max bitmap bytes " + mMaxBitmapBytes + ", max pool bytes " + mMaxPoolBytes);
+    }
+
+    public static WeBitmapDecoder getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (WeBitmapDecoder.class) {
+                if (sInstance == null) {
+                    sInstance = new WeBitmapDecoder(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param showWidth  实际需要展示的宽
+     * @param showHeight 实际需要展示的高
+     * @return 失败返回 null
+     */
+    public Bitmap decodeResource(Context context, int resId, int showWidth, int showHeight) {
+        if (showWidth <= 0 || showHeight <= 0) {
+            LogUtils.e(TAG, "decodeResource params is error: showWidth=" + showWidth + " showHeight=" + showHeight);
+            return null;
+        }
+        try {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeResource(context.getResources(), resId, opts);
+            if (!prepareOptions(opts, opts.outWidth, opts.outHeight, showWidth, showHeight)) {
+                return null;
+            }
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeResource(context.getResources(), resId, opts);
+            } catch (IllegalArgumentException e) {
+                // 复用的图片不满足要求时重新分配
+                opts.inBitmap = null;
+                bitmap = BitmapFactory.decodeResource(context.getResources(), resId, opts);
+            }
+            return onDecoded(bitmap, opts);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param showWidth  实际需要展示的宽
+     * @param showHeight 实际需要展示的高
+     * @return 失败返回 null
+     */
+    public Bitmap decodeFile(String filePath, int showWidth, int showHeight) {
+        if (TextUtils.isEmpty(filePath) || showWidth <= 0 || showHeight <= 0) {
+            LogUtils.e(TAG, "decodeFile params is error: filePath=" + filePath
+                    + " showWidth=" + showWidth + " showHeight=" + showHeight);
+            return null;
+        }
+        try {
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(filePath, opts);
+            if (!prepareOptions(opts, opts.outWidth, opts.outHeight, showWidth, showHeight)) {
+                return null;
+            }
+            Bitmap bitmap;
+            try {
+                bitmap = decodeStream(filePath, opts);
+            } catch (IllegalArgumentException e) {
+                opts.inBitmap = null;
+                bitmap = decodeStream(filePath, opts);
+            }
+            return onDecoded(bitmap, opts);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * BitmapFactory.decodeFile 内部捕获所有异常后返回 null，复用的图片不满足要求时无法重试，
+     * 所以自己打开文件流解码，让 IllegalArgumentException 抛给调用方
+     */
+    private static Bitmap decodeStream(String filePath, BitmapFactory.Options opts) throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(filePath);
+            return BitmapFactory.decodeStream(in, null, opts);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * 根据原图尺寸设置采样率、像素格式和要复用的图片
+     *
+     * @param opts 需已设置 outMimeType
+     * @return 原图尺寸无效时返回 false
+     */
+    private boolean prepareOptions(BitmapFactory.Options opts, int srcWidth, int srcHeight,
+                                   int showWidth, int showHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0) {
+            LogUtils.e(TAG, "prepareOptions illegal image size " + srcWidth + "x" + srcHeight);
+            return false;
+        }
+        // 按比例完整放入展示区域后的大小，解码结果不能比它小
+        float scale = Math.min(showWidth * 1.0f / srcWidth, showHeight * 1.0f / srcHeight);
+        int fitWidth = Math.max(1, Math.round(srcWidth * scale));
+        int fitHeight = Math.max(1, Math.round(srcHeight * scale));
+
+        Bitmap.Config config = "image/jpeg".equals(opts.outMimeType)
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        int bytesPerPixel = config == Bitmap.Config.RGB_565 ? 2 : 4;
+
+        int sampleSize = 1;
+        while (srcWidth / (sampleSize * 2) >= fitWidth && srcHeight / (sampleSize * 2) >= fitHeight) {
+            sampleSize *= 2;
+        }
+        // 超出内存限制时只能继续降采样
+        while ((long) (srcWidth / sampleSize) * (srcHeight / sampleSize) * bytesPerPixel > mMaxBitmapBytes) {
+            sampleSize *= 2;
+        }
+        int width = divideCeil(srcWidth, sampleSize);
+        int height = divideCeil(srcHeight, sampleSize);
+        LogUtils.d(TAG, "Image=" + srcWidth + "x" + srcHeight + " " + opts.outMimeType
+                + " Show=" + fitWidth + "x" + fitHeight + " Sample=" + sampleSize + " Config=" + config);
+
+        opts.inJustDecodeBounds = false;
+        opts.inSampleSize = sampleSize;
+        opts.inPreferredConfig = config;
+        // 解码结果可变才能放回池中复用
+        opts.inMutable = true;
+        opts.inBitmap = obtain((long) width * height * bytesPerPixel);
+        return true;
+    }
+
+    private static int divideCeil(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private Bitmap onDecoded(Bitmap bitmap, BitmapFactory.Options opts) {
+        synchronized (this) {
+            mDecodeCount++;
+            if (bitmap != null && bitmap == opts.inBitmap) {
+                mReuseCount++;
+            }
+        }
+        if (bitmap == null && opts.inBitmap != null) {
+            // 解码失败时复用的图片还可以继续放回池中
+            release(opts.inBitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 从池中取出分配空间足够的最小图片
+     */
+    private synchronized Bitmap obtain(long bytes) {
+        Bitmap best = null;
+        for (Bitmap bitmap : mPool) {
+            if (bitmap.getAllocationByteCount() >= bytes
+                    && (best == null || bitmap.getAllocationByteCount() < best.getAllocationByteCount())) {
+                best = bitmap;
+            }
+        }
+        if (best != null) {
+            mPool.remove(best);
+            mPoolBytes -= best.getAllocationByteCount();
+        }
+        return best;
+    }
+
+    /**
+     * 图片用完后（如已上传为纹理）放回池中复用，调用后不能再使用该图片；池满时回收最旧的
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || bitmap.getAllocationByteCount() > mMaxPoolBytes) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            if (mPool.contains(bitmap)) {
+                return;
+            }
+            mPool.add(bitmap);
+            mPoolBytes += bitmap.getAllocationByteCount();
+            while (mPoolBytes > mMaxPoolBytes && !mPool.isEmpty()) {
+                Bitmap oldest = mPool.remove(0);
+                mPoolBytes -= oldest.getAllocationByteCount();
+                oldest.recycle();
+            }
+        }
+    }
+
+    /**
+     * 回收池中所有图片，如内存紧张时
+     */
+    public synchronized void clearPool() {
+        for (Bitmap bitmap : mPool) {
+            bitmap.recycle();
+        }
+        LogUtils.d(TAG, "clearPool " + mPool.size() + " bitmaps, " + mPoolBytes + "B");
+        mPool.clear();
+        mPoolBytes = 0;
+    }
+
+    public synchronized long getDecodeCount() {
+        return mDecodeCount;
+    }
+
+    /**
+     * 复用池中图片完成解码的次数
+     */
+    public synchronized long getReuseCount() {
+        return mReuseCount;
+    }
+
+}
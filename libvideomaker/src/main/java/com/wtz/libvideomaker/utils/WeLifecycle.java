@@ -0,0 +1,158 @@
+package com.wtz.libvideomaker.utils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编码器、录音器的生命周期状态机：
+ * <p>
+ * IDLE -> STARTING -> RUNNING -> STOPPING -> IDLE，任意停止状态都可以进入 RELEASED；
+ * 启动失败时 STARTING 可以直接回到 IDLE 或进入 STOPPING 清理。
+ * 状态可在任意线程读取，只应在各自的接口调度线程中切换；同时记录最近一次启动和停止的耗时。
+ */
+public class WeLifecycle {
+    private static final String TAG = "WeLifecycle";
+
+    // 等待线程退出时每隔这么久打印一次仍在等待的日志
+    private static final long AWAIT_LOG_INTERVAL_MILLS = 1000;
+
+    public enum State {
+        IDLE(0),
+        STARTING(1),
+        RUNNING(2),
+        STOPPING(3),
+        RELEASED(4);
+
+        private int value;
+
+        State(int value) {
+            this.value = value;
+        }
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    private String mTag;
+    private volatile State mState = State.IDLE;
+    private long mStartingTimeNs;
+    private long mStoppingTimeNs;
+    private volatile long mLastStartLatencyMills = -1;
+    private volatile long mLastStopLatencyMills = -1;
+
+    public WeLifecycle(String tag) {
+        this.mTag = tag;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * 正在启动或运行中
+     */
+    public boolean isActive() {
+        State state = mState;
+        return state == State.STARTING || state == State.RUNNING;
+    }
+
+    public boolean isReleased() {
+        return mState == State.RELEASED;
+    }
+
+    /**
+     * 切换到目标状态，不允许的切换不生效并返回 false
+     */
+    public synchronized boolean moveTo(State target) {
+        State current = mState;
+        if (!canMove(current, target)) {
+            LogUtils.e(TAG, mTag + " illegal state change " + current + " -> " + target);
+            return false;
+        }
+        long now = System.nanoTime();
+        switch (target) {
+            case STARTING:
+                mStartingTimeNs = now;
+                break;
+
+            case RUNNING:
+                mLastStartLatencyMills = (now - mStartingTimeNs) / 1000000;
+                break;
+
+            case STOPPING:
+                mStoppingTimeNs = now;
+                break;
+
+            case IDLE:
+                if (current == State.STOPPING) {
+                    mLastStopLatencyMills = (now - mStoppingTimeNs) / 1000000;
+                }
+                break;
+        }
+        mState = target;
+        LogUtils.w(TAG, mTag + " " + current + " -> " + target
+                + (target == State.RUNNING ? ", start cost " + mLastStartLatencyMills + "ms" : "")
+                + (target == State.IDLE && current == State.STOPPING ? ", stop cost " + mLastStopLatencyMills + "ms" : ""));
+        return true;
+    }
+
+    private static boolean canMove(State from, State to) {
+        switch (from) {
+            case IDLE:
+                return to == State.STARTING || to == State.RELEASED;
+
+            case STARTING:
+                return to == State.RUNNING || to == State.STOPPING || to == State.IDLE;
+
+            case RUNNING:
+                return to == State.STOPPING;
+
+            case STOPPING:
+                return to == State.IDLE || to == State.RELEASED;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 最近一次从 STARTING 到 RUNNING 的耗时，单位：毫秒，还没有完成过启动时返回 -1
+     */
+    public long getLastStartLatencyMills() {
+        return mLastStartLatencyMills;
+    }
+
+    /**
+     * 最近一次从 STOPPING 到 IDLE 的耗时，单位：毫秒，还没有完成过停止时返回 -1
+     */
+    public long getLastStopLatencyMills() {
+        return mLastStopLatencyMills;
+    }
+
+    /**
+     * 等待各工作线程通过 latch 报告退出，全部退出后立即返回。
+     * latch 的 countDown 与 await 之间有 happens-before 关系，返回后可以安全读取线程退出前写入的数据。
+     */
+    public static void awaitExit(CountDownLatch latch, String tag) {
+        long startNs = System.nanoTime();
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                if (latch.await(AWAIT_LOG_INTERVAL_MILLS, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+                LogUtils.w(TAG, tag + " still waiting for " + latch.getCount() + " thread(s) to exit, "
+                        + (System.nanoTime() - startNs) / 1000000 + "ms");
+            } catch (InterruptedException e) {
+                // 必须等到线程退出才能释放它们使用的资源，记下中断稍后恢复
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        LogUtils.d(TAG, tag + " threads exited in " + (System.nanoTime() - startNs) / 1000 + "us");
+    }
+
+}
@@ -0,0 +1,209 @@
+package com.wtz.libvideomaker.utils;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 基于 PBO 的异步像素读回，只负责 PBO 和 fence 的管理，数据拷到哪里、交给谁处理由调用方决定：
+ * <p>
+ * 1.GLES 3.0 上若干个 PBO 轮流使用，发起读回时 glReadPixels 立即返回，随后插入 fence；
+ * 2.读回按发起顺序收取，先用 fence 检查 GPU 是否完成，完成后映射给调用方拷出；
+ * 3.GLES 2.0 上 {@link #prepare()} 返回 false，调用方自行同步 glReadPixels。
+ * <p>
+ * 收取最早的读回：{@link #pollOldest(boolean)} 返回 true 后 {@link #mapOldest()}，拷完后 {@link #finishOldest()}。
+ * 各方法需在持有 EGL 上下文的 GL 线程中调用。
+ */
+public class WePboReader {
+    private static final String TAG = "WePboReader";
+
+    private static class Slot {
+        int bufferId;
+        int capacity;
+        long fence;
+        int width;
+        int height;
+        long timestamp;
+        Object tag;
+    }
+
+    private String mTag;
+    private int mSlotCount;
+    private Slot[] mSlots;
+    private boolean isSupported;
+    private int mOldestIndex;
+    private int mPendingCount;
+    private boolean isMapped;
+
+    public WePboReader(String tag, int slotCount) {
+        this.mTag = tag + " " + TAG;
+        this.mSlotCount = slotCount;
+    }
+
+    /**
+     * 按 GLES 版本决定是否使用 PBO，支持时创建 PBO
+     *
+     * @return 是否支持 PBO
+     */
+    public boolean prepare() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        isSupported = version != null && version.startsWith("OpenGL ES 3");
+        if (isSupported) {
+            int[] ids = new int[mSlotCount];
+            GLES20.glGenBuffers(mSlotCount, ids, 0);
+            mSlots = new Slot[mSlotCount];
+            for (int i = 0; i < mSlotCount; i++) {
+                mSlots[i] = new Slot();
+                mSlots[i].bufferId = ids[i];
+            }
+        }
+        mOldestIndex = 0;
+        mPendingCount = 0;
+        LogUtils.d(TAG, mTag + " prepare version=" + version + ", pbo=" + isSupported);
+        return isSupported;
+    }
+
+    public boolean isSupported() {
+        return isSupported;
+    }
+
+    /**
+     * 所有 PBO 都在等待收取，此时不能发起新的读回
+     */
+    public boolean isFull() {
+        return mPendingCount >= mSlotCount;
+    }
+
+    public boolean hasPending() {
+        return mPendingCount > 0;
+    }
+
+    /**
+     * 从当前绑定的读帧缓冲左下角读回 width x height 的 RGBA，立即返回；调用前需确认 {@link #isFull()} 为 false
+     *
+     * @param timestamp 随读回保存，收取时通过 {@link #getOldestTimestamp()} 取回
+     * @param tag       随读回保存，收取时通过 {@link #getOldestTag()} 取回
+     */
+    public void issueRead(int width, int height, long timestamp, Object tag) {
+        Slot slot = mSlots[(mOldestIndex + mPendingCount) % mSlotCount];
+        int bytes = width * height * 4;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.bufferId);
+        if (slot.capacity < bytes) {
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, bytes, null, GLES30.GL_STREAM_READ);
+            slot.capacity = bytes;
+        }
+        // 绑定了 PBO 时最后一个参数是 PBO 中的偏移，调用立即返回
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        slot.fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        GLES20.glFlush();
+        slot.width = width;
+        slot.height = height;
+        slot.timestamp = timestamp;
+        slot.tag = tag;
+        mPendingCount++;
+    }
+
+    /**
+     * 最早发起的读回 GPU 是否已完成，后发起的不会比它先完成
+     *
+     * @param isWait 为 true 时等待 GPU 完成，为 false 时未完成就直接返回
+     * @return 没有等待收取的读回，或 GPU 还没完成时返回 false
+     */
+    public boolean pollOldest(boolean isWait) {
+        if (mPendingCount == 0) {
+            return false;
+        }
+        Slot slot = mSlots[mOldestIndex];
+        if (slot.fence != 0) {
+            int ret = GLES30.glClientWaitSync(slot.fence, isWait ? GLES30.GL_SYNC_FLUSH_COMMANDS_BIT : 0,
+                    isWait ? GLES30.GL_TIMEOUT_IGNORED : 0);
+            if (ret == GLES30.GL_TIMEOUT_EXPIRED) {
+                return false;
+            }
+            if (ret == GLES30.GL_WAIT_FAILED) {
+                // 等待失败时映射会同步等待 GPU，结果仍然正确
+                LogUtils.e(TAG, mTag + " glClientWaitSync failed: " + GLES20.glGetError());
+            }
+            GLES30.glDeleteSync(slot.fence);
+            slot.fence = 0;
+        }
+        return true;
+    }
+
+    /**
+     * 映射最早的读回，需在 {@link #pollOldest(boolean)} 返回 true 后调用，之后无论成功与否都要调用 {@link #finishOldest()}
+     *
+     * @return 按 glReadPixels 行序（第 0 行在前）排列的 RGBA 数据，只在 finishOldest 之前有效；映射失败返回 null
+     */
+    public ByteBuffer mapOldest() {
+        Slot slot = mSlots[mOldestIndex];
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, slot.bufferId);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                slot.width * slot.height * 4, GLES30.GL_MAP_READ_BIT);
+        if (mapped == null) {
+            LogUtils.e(TAG, mTag + " glMapBufferRange failed: " + GLES20.glGetError());
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            return null;
+        }
+        isMapped = true;
+        return mapped.order(ByteOrder.nativeOrder());
+    }
+
+    public int getOldestWidth() {
+        return mSlots[mOldestIndex].width;
+    }
+
+    public int getOldestHeight() {
+        return mSlots[mOldestIndex].height;
+    }
+
+    public long getOldestTimestamp() {
+        return mSlots[mOldestIndex].timestamp;
+    }
+
+    public Object getOldestTag() {
+        return mSlots[mOldestIndex].tag;
+    }
+
+    /**
+     * 收取完最早的读回，解除映射并空出其 PBO；不映射直接调用即丢弃该读回
+     */
+    public void finishOldest() {
+        Slot slot = mSlots[mOldestIndex];
+        if (isMapped) {
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            isMapped = false;
+        }
+        if (slot.fence != 0) {
+            GLES30.glDeleteSync(slot.fence);
+            slot.fence = 0;
+        }
+        slot.tag = null;
+        mOldestIndex = (mOldestIndex + 1) % mSlotCount;
+        mPendingCount--;
+    }
+
+    /**
+     * 删除 PBO，还没收取的读回直接丢弃；需要的话调用方先等待收取完
+     */
+    public void release() {
+        if (mSlots == null) {
+            return;
+        }
+        while (mPendingCount > 0) {
+            finishOldest();
+        }
+        int[] ids = new int[mSlotCount];
+        for (int i = 0; i < mSlotCount; i++) {
+            ids[i] = mSlots[i].bufferId;
+        }
+        GLES20.glDeleteBuffers(mSlotCount, ids, 0);
+        mSlots = null;
+        isSupported = false;
+    }
+
+}
@@ -0,0 +1,328 @@
+package com.wtz.libvideomaker.utils;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * 着色器程序二进制的磁盘缓存，冷启动时直接加载上次链接好的程序，省去编译链接：
+ * <p>
+ * 1.按 GL_RENDERER、GL_VERSION（含驱动版本）和着色器源码的哈希区分缓存文件，换机、升级驱动或修改着色器后自然失效；
+ * 2.文件头记录以上信息和二进制的 CRC，加载时逐项校验，驱动拒绝二进制时删除缓存，调用方回退到从源码编译；
+ * 3.写文件在单独的线程中进行，不占用 GL 线程。
+ * <p>
+ * Java 层没有 GL_OES_get_program_binary 的接口，这里使用 GLES 3.0 的 glGetProgramBinary/glProgramBinary，
+ * 只有上下文实际为 3.0 及以上且支持至少一种二进制格式时才启用。
+ */
+public class WeProgramBinaryCache {
+    private static final String TAG = "WeProgramBinaryCache";
+
+    private static final String DIR_NAME = "we_program_binary";
+    private static final String FILE_SUFFIX = ".bin";
+    private static final int MAGIC = 0x57455042;// "WEPB"
+    private static final int FILE_VERSION = 1;
+    private static final int MAX_BINARY_BYTES = 4 * 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static volatile WeProgramBinaryCache sInstance;
+
+    private File mDir;
+    private volatile boolean isEnabled = true;
+
+    // 第一次在 GL 线程中使用时检测
+    private boolean isChecked;
+    private boolean isSupported;
+    private String mGLRenderer;
+    private String mGLVersion;
+
+    private HandlerThread mWriteThread;
+    private Handler mWriteHandler;
+
+    private long mLoadCount;
+    private long mRejectCount;
+
+    private WeProgramBinaryCache(Context context) {
+        mDir = new File(context.getApplicationContext().getCacheDir(), DIR_NAME);
+    }
+
+    public static WeProgramBinaryCache getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (WeProgramBinaryCache.class) {
+                if (sInstance == null) {
+                    sInstance = new WeProgramBinaryCache(context);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public void setEnabled(boolean enabled) {
+        LogUtils.w(TAG, "setEnabled " + enabled);
+        this.isEnabled = enabled;
+    }
+
+    /**
+     * 在 GL 线程中调用，当前上下文是否可以使用程序二进制
+     */
+    public synchronized boolean isSupported() {
+        if (!isEnabled) {
+            return false;
+        }
+        if (!isChecked) {
+            isChecked = true;
+            mGLRenderer = GLES20.glGetString(GLES20.GL_RENDERER);
+            mGLVersion = GLES20.glGetString(GLES20.GL_VERSION);
+            if (mGLVersion != null && mGLVersion.startsWith("OpenGL ES 3")) {
+                int[] formats = new int[1];
+                GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, formats, 0);
+                isSupported = formats[0] > 0;
+            }
+            LogUtils.w(TAG, "check renderer=" + mGLRenderer + ", version=" + mGLVersion
+                    + ", supported=" + isSupported);
+        }
+        return isSupported;
+    }
+
+    /**
+     * 链接前调用，提示驱动保留可以取出的二进制
+     */
+    public void prepareForLink(int program) {
+        if (isSupported()) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
+    }
+
+    /**
+     * 从缓存加载程序，没有缓存、校验不通过或驱动拒绝时返回 0
+     */
+    public int load(String vertexSource, String fragmentSource) {
+        if (!isSupported()) {
+            return 0;
+        }
+        String sourceHash = hash(vertexSource, fragmentSource);
+        File file = getFile(sourceHash);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        long startNs = System.nanoTime();
+        int format;
+        byte[] binary;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != MAGIC || in.readInt() != FILE_VERSION
+                    || !in.readUTF().equals(mGLRenderer) || !in.readUTF().equals(mGLVersion)
+                    || !in.readUTF().equals(sourceHash)) {
+                throw new IOException("header mismatch");
+            }
+            format = in.readInt();
+            int length = in.readInt();
+            long crc = in.readLong();
+            if (length <= 0 || length > MAX_BINARY_BYTES) {
+                throw new IOException("illegal length " + length);
+            }
+            binary = new byte[length];
+            in.readFully(binary);
+            CRC32 crc32 = new CRC32();
+            crc32.update(binary);
+            if (crc32.getValue() != crc) {
+                throw new IOException("crc mismatch");
+            }
+        } catch (Exception e) {
+            LogUtils.e(TAG, "load " + file.getName() + " invalid: " + e.toString());
+            reject(file);
+            return 0;
+        } finally {
+            closeQuietly(in);
+        }
+
+        int program = GLES20.glCreateProgram();
+        if (program == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(binary.length).order(ByteOrder.nativeOrder());
+        buffer.put(binary).position(0);
+        GLES30.glProgramBinary(program, format, buffer, binary.length);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            // 驱动内部有变化时会拒绝旧的二进制，回退到从源码编译
+            LogUtils.w(TAG, "load " + file.getName() + " rejected by driver");
+            GLES20.glDeleteProgram(program);
+            reject(file);
+            return 0;
+        }
+        synchronized (this) {
+            mLoadCount++;
+        }
+        LogUtils.d(TAG, "load " + file.getName() + " " + binary.length + "B cost "
+                + (System.nanoTime() - startNs) / 1000 + "us");
+        return program;
+    }
+
+    /**
+     * 保存已链接成功的程序，取出二进制在当前 GL 线程，写文件在后台线程
+     */
+    public void save(int program, String vertexSource, String fragmentSource) {
+        if (program <= 0 || !isSupported()) {
+            return;
+        }
+        int[] values = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, values, 0);
+        int length = values[0];
+        if (length <= 0 || length > MAX_BINARY_BYTES) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        int[] outLength = new int[1];
+        int[] outFormat = new int[1];
+        GLES30.glGetProgramBinary(program, length, outLength, 0, outFormat, 0, buffer);
+        if (outLength[0] <= 0) {
+            LogUtils.e(TAG, "glGetProgramBinary failed");
+            return;
+        }
+        final byte[] binary = new byte[outLength[0]];
+        buffer.position(0);
+        buffer.get(binary);
+        final int format = outFormat[0];
+        final String renderer = mGLRenderer;
+        final String version = mGLVersion;
+        final String sourceHash = hash(vertexSource, fragmentSource);
+        getWriteHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                write(sourceHash, renderer, version, format, binary);
+            }
+        });
+    }
+
+    private void write(String sourceHash, String renderer, String version, int format, byte[] binary) {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            LogUtils.e(TAG, "mkdirs failed: " + mDir);
+            return;
+        }
+        File file = getFile(sourceHash);
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc32 = new CRC32();
+        crc32.update(binary);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(renderer);
+            out.writeUTF(version);
+            out.writeUTF(sourceHash);
+            out.writeInt(format);
+            out.writeInt(binary.length);
+            out.writeLong(crc32.getValue());
+            out.write(binary);
+            out.close();
+            out = null;
+            // 写完再改名，避免进程中途退出留下不完整的文件
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+            LogUtils.d(TAG, "save " + file.getName() + " " + binary.length + "B");
+        } catch (IOException e) {
+            LogUtils.e(TAG, "save " + file.getName() + " failed: " + e.toString());
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void reject(File file) {
+        synchronized (this) {
+            mRejectCount++;
+        }
+        if (!file.delete()) {
+            LogUtils.e(TAG, "delete " + file.getName() + " failed");
+        }
+    }
+
+    /**
+     * 删除所有缓存文件
+     */
+    public void clear() {
+        getWriteHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = mDir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                for (File file : files) {
+                    file.delete();
+                }
+                LogUtils.w(TAG, "clear " + files.length + " files");
+            }
+        });
+    }
+
+    public synchronized long getLoadCount() {
+        return mLoadCount;
+    }
+
+    public synchronized long getRejectCount() {
+        return mRejectCount;
+    }
+
+    private synchronized Handler getWriteHandler() {
+        if (mWriteHandler == null) {
+            mWriteThread = new HandlerThread(TAG);
+            mWriteThread.start();
+            mWriteHandler = new Handler(mWriteThread.getLooper());
+        }
+        return mWriteHandler;
+    }
+
+    private File getFile(String sourceHash) {
+        // 文件名同时包含 GPU 和驱动信息，换驱动后旧文件不会被命中
+        return new File(mDir, hash(mGLRenderer + "|" + mGLVersion, sourceHash) + FILE_SUFFIX);
+    }
+
+    private static String hash(String first, String second) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(String.valueOf(first).getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(second).getBytes(UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            // SHA-1 总是可用的
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.wtz.libvideomaker.utils;
+
+import android.content.Context;
+import android.opengl.GLES20;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * 进程内的着色器程序登记表：
+ * <p>
+ * 1.着色器源码按资源 ID 缓存，只读取一次；
+ * 2.程序按（顶点着色器、片元着色器）和 EGL 共享组缓存，共享组内第一次使用时才编译链接，
+ * 之后同组的其他渲染器、其他共享上下文的线程（如录制、推流的编码线程）直接复用；
+ * 3.程序引用计数，最后一个使用者释放时删除。
+ * <p>
+ * 共享组由 {@link com.wtz.libvideomaker.egl.WeEGLHelper} 创建和销毁上下文时登记，
+ * 未登记的上下文中使用时不做缓存，每次都重新编译。各方法需在持有 EGL 上下文的 GL 线程中调用。
+ */
+public class WeShaderRegistry {
+    private static final String TAG = "WeShaderRegistry";
+
+    private static volatile WeShaderRegistry sInstance;
+
+    private final Map<Integer, String> mSources = new HashMap<>();
+    private final Map<EGLContext, ShareGroup> mGroups = new HashMap<>();
+    private int mGroupCount;
+    private long mCompileCount;
+    private long mHitCount;
+
+    private static class ShareGroup {
+        int id;
+        int contextCount;
+        Map<String, Program> programsByKey = new HashMap<>();
+        Map<Integer, Program> programsByHandle = new HashMap<>();
+
+        ShareGroup(int id) {
+            this.id = id;
+        }
+    }
+
+    private static class Program {
+        String key;
+        int handle;
+        int refCount;
+
+        Program(String key, int handle) {
+            this.key = key;
+            this.handle = handle;
+        }
+    }
+
+    private WeShaderRegistry() {
+    }
+
+    public static WeShaderRegistry getInstance() {
+        if (sInstance == null) {
+            synchronized (WeShaderRegistry.class) {
+                if (sInstance == null) {
+                    sInstance = new WeShaderRegistry();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 登记新创建的上下文，与 shareContext 同属一个共享组，shareContext 为 null 或未登记时新建共享组
+     */
+    public synchronized void onContextCreated(EGLContext context, EGLContext shareContext) {
+        if (context == null) {
+            return;
+        }
+        ShareGroup group = shareContext != null ? mGroups.get(shareContext) : null;
+        if (group == null) {
+            group = new ShareGroup(++mGroupCount);
+        }
+        group.contextCount++;
+        mGroups.put(context, group);
+        LogUtils.d(TAG, "onContextCreated " + context + " in group " + group.id
+                + ", contexts " + group.contextCount);
+    }
+
+    /**
+     * 上下文销毁前调用，共享组的最后一个上下文销毁后组内的程序随之失效
+     */
+    public synchronized void onContextDestroyed(EGLContext context) {
+        ShareGroup group = context != null ? mGroups.remove(context) : null;
+        if (group == null) {
+            return;
+        }
+        group.contextCount--;
+        LogUtils.d(TAG, "onContextDestroyed " + context + " in group " + group.id
+                + ", contexts " + group.contextCount);
+        if (group.contextCount <= 0 && !group.programsByKey.isEmpty()) {
+            LogUtils.w(TAG, "group " + group.id + " destroyed with unreleased programs "
+                    + group.programsByKey.keySet());
+            group.programsByKey.clear();
+            group.programsByHandle.clear();
+        }
+    }
+
+    /**
+     * 读取着色器源码，按资源 ID 缓存
+     */
+    public String getSource(Context context, int rawId) {
+        synchronized (mSources) {
+            String source = mSources.get(rawId);
+            if (source == null) {
+                source = ShaderUtil.readRawText(context, rawId);
+                mSources.put(rawId, source);
+            }
+            return source;
+        }
+    }
+
+    /**
+     * 取得由两个资源着色器组成的程序，用完后调用 {@link #releaseProgram(int)}
+     *
+     * @return 程序句柄，编译或链接失败返回 0
+     */
+    public int obtainProgram(Context context, int vertexResId, int fragmentResId) {
+        return obtainProgram(context, "r" + vertexResId + "|r" + fragmentResId,
+                getSource(context, vertexResId), getSource(context, fragmentResId));
+    }
+
+    /**
+     * 取得片元着色器为动态生成的程序，fragmentKey 需唯一对应 fragmentSource
+     */
+    public int obtainProgram(Context context, int vertexResId, String fragmentKey, String fragmentSource) {
+        return obtainProgram(context, "r" + vertexResId + "|" + fragmentKey,
+                getSource(context, vertexResId), fragmentSource);
+    }
+
+    private synchronized int obtainProgram(Context context, String key,
+                                           String vertexSource, String fragmentSource) {
+        ShareGroup group = getCurrentGroup();
+        if (group != null) {
+            Program program = group.programsByKey.get(key);
+            if (program != null) {
+                program.refCount++;
+                mHitCount++;
+                return program.handle;
+            }
+        }
+
+        long startNs = System.nanoTime();
+        int handle = compile(context, vertexSource, fragmentSource);
+        mCompileCount++;
+        LogUtils.d(TAG, "compile " + key + " in group " + (group != null ? group.id : -1)
+                + " cost " + (System.nanoTime() - startNs) / 1000 + "us, program " + handle);
+        if (handle > 0 && group != null) {
+            Program program = new Program(key, handle);
+            program.refCount = 1;
+            group.programsByKey.put(key, program);
+            group.programsByHandle.put(handle, program);
+        }
+        return handle;
+    }
+
+    /**
+     * 释放程序引用，最后一个引用释放时删除程序
+     */
+    public synchronized void releaseProgram(int handle) {
+        if (handle <= 0) {
+            return;
+        }
+        ShareGroup group = getCurrentGroup();
+        Program program = group != null ? group.programsByHandle.get(handle) : null;
+        if (program == null) {
+            // 未缓存的程序直接删除
+            GLES20.glDeleteProgram(handle);
+            return;
+        }
+        program.refCount--;
+        if (program.refCount <= 0) {
+            group.programsByKey.remove(program.key);
+            group.programsByHandle.remove(handle);
+            GLES20.glDeleteProgram(handle);
+            LogUtils.d(TAG, "delete " + program.key + " in group " + group.id);
+        }
+    }
+
+    /**
+     * 累计编译链接（或从磁盘缓存加载）的次数
+     */
+    public synchronized long getCompileCount() {
+        return mCompileCount;
+    }
+
+    /**
+     * 累计直接复用已有程序的次数
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    private ShareGroup getCurrentGroup() {
+        EGL10 egl = (EGL10) EGLContext.getEGL();
+        EGLContext current = egl.eglGetCurrentContext();
+        if (current == null || current.equals(EGL10.EGL_NO_CONTEXT)) {
+            return null;
+        }
+        return mGroups.get(current);
+    }
+
+    private static int compile(Context context, String vertexSource, String fragmentSource) {
+        // 先尝试磁盘上的程序二进制，失败时从源码编译
+        int[] shaderIDs = ShaderUtil.createAndLinkProgram(context, vertexSource, fragmentSource);
+        // 链接之后程序不再依赖着色器对象，直接删除
+        if (shaderIDs[2] > 0 && shaderIDs[0] > 0) {
+            GLES20.glDetachShader(shaderIDs[2], shaderIDs[0]);
+            GLES20.glDetachShader(shaderIDs[2], shaderIDs[1]);
+        }
+        if (shaderIDs[0] > 0) {
+            GLES20.glDeleteShader(shaderIDs[0]);
+        }
+        if (shaderIDs[1] > 0) {
+            GLES20.glDeleteShader(shaderIDs[1]);
+        }
+        return shaderIDs[2];
+    }
+
+}
@@ -0,0 +1,220 @@
+//
+// YuvConverter 单元测试：纯 C 实现与按公式逐像素计算的参考结果对比，
+// NEON 实现与纯 C 实现逐字节对比；覆盖奇数宽高、NEON 每次 16 像素处理不完的尾部、
+// 输入行跨度、输出行跨度和行数大于图像的情况，输出中图像以外的填充字节不能被改写
+//
+
+#include <gtest/gtest.h>
+
+#include <stdint.h>
+#include <string>
+#include <vector>
+
+#include "YuvConverter.h"
+
+namespace {
+
+const uint8_t FILL_BYTE = 0xA5;
+
+struct Case {
+    int width;
+    int height;
+    int srcPadding;// 输入每行在 width * 4 之外多出的字节数
+    int dstPadding;// 输出 stride 比 width 多出的字节数
+    int slicePadding;// 输出 sliceHeight 比 height 多出的行数
+};
+
+// 宽度覆盖 NEON 的 16 像素整块、尾部和奇数
+const int WIDTHS[] = {1, 2, 3, 15, 16, 17, 30, 31, 32, 33, 47, 64, 100, 641};
+const int HEIGHTS[] = {1, 2, 3, 4, 7, 16, 33};
+
+std::vector<Case> makeCases() {
+    std::vector<Case> cases;
+    for (int width : WIDTHS) {
+        for (int height : HEIGHTS) {
+            cases.push_back({width, height, 0, 0, 0});
+            cases.push_back({width, height, 12, 1, 0});
+            cases.push_back({width, height, 4, 64 - width % 64, 16 - height % 16});
+        }
+    }
+    cases.push_back({1280, 720, 0, 0, 0});
+    cases.push_back({1920, 1080, 0, 0, 8});
+    return cases;
+}
+
+// 固定种子的伪随机数据，穿插全 0 和全 255 的像素以覆盖取值边界
+std::vector<uint8_t> makeRgba(const Case &c, uint32_t seed) {
+    int srcStride = c.width * 4 + c.srcPadding;
+    std::vector<uint8_t> src((size_t) srcStride * c.height);
+    uint32_t state = seed;
+    for (size_t i = 0; i < src.size(); i++) {
+        state = state * 1664525u + 1013904223u;
+        src[i] = (uint8_t) (state >> 24);
+    }
+    for (int y = 0; y < c.height; y++) {
+        for (int x = 0; x < c.width; x += 7) {
+            uint8_t value = (x + y) % 2 == 0 ? 0 : 255;
+            for (int k = 0; k < 4; k++) {
+                src[(size_t) y * srcStride + x * 4 + k] = value;
+            }
+        }
+    }
+    return src;
+}
+
+int getDstStride(const Case &c) {
+    return c.width + c.dstPadding;
+}
+
+int getDstSliceHeight(const Case &c) {
+    return c.height + c.slicePadding;
+}
+
+uint8_t clampToByte(int value) {
+    return (uint8_t) (value < 0 ? 0 : (value > 255 ? 255 : value));
+}
+
+/**
+ * 按注释中的公式逐像素计算，不共享被测代码的任何逻辑
+ */
+void convertReference(const std::vector<uint8_t> &src, const Case &c, bool flipVertical, int format,
+                      std::vector<uint8_t> &dst) {
+    int srcStride = c.width * 4 + c.srcPadding;
+    int dstStride = getDstStride(c);
+    int sliceHeight = getDstSliceHeight(c);
+    struct Pixel {
+        int r, g, b;
+    };
+    auto pixel = [&](int x, int y) -> Pixel {
+        // 越界的按重复边缘像素处理
+        x = x < c.width ? x : c.width - 1;
+        y = y < c.height ? y : c.height - 1;
+        int row = flipVertical ? c.height - 1 - y : y;
+        const uint8_t *p = &src[(size_t) row * srcStride + x * 4];
+        return {p[0], p[1], p[2]};
+    };
+
+    for (int y = 0; y < c.height; y++) {
+        for (int x = 0; x < c.width; x++) {
+            Pixel p = pixel(x, y);
+            dst[(size_t) y * dstStride + x] = (uint8_t) (((66 * p.r + 129 * p.g + 25 * p.b + 128) >> 8) + 16);
+        }
+    }
+
+    size_t uvBase = (size_t) dstStride * sliceHeight;
+    int chromaRows = (sliceHeight + 1) / 2;
+    for (int cy = 0; cy < (c.height + 1) / 2; cy++) {
+        for (int cx = 0; cx < (c.width + 1) / 2; cx++) {
+            Pixel p00 = pixel(cx * 2, cy * 2);
+            Pixel p01 = pixel(cx * 2 + 1, cy * 2);
+            Pixel p10 = pixel(cx * 2, cy * 2 + 1);
+            Pixel p11 = pixel(cx * 2 + 1, cy * 2 + 1);
+            int r = (p00.r + p01.r + p10.r + p11.r + 2) >> 2;
+            int g = (p00.g + p01.g + p10.g + p11.g + 2) >> 2;
+            int b = (p00.b + p01.b + p10.b + p11.b + 2) >> 2;
+            uint8_t u = clampToByte(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+            uint8_t v = clampToByte(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+            if (format == YUV_FORMAT_NV12) {
+                size_t index = uvBase + (size_t) cy * ((dstStride + 1) & ~1) + cx * 2;
+                dst[index] = u;
+                dst[index + 1] = v;
+            } else {
+                int uvStride = (dstStride + 1) / 2;
+                size_t index = uvBase + (size_t) cy * uvStride + cx;
+                dst[index] = u;
+                dst[index + (size_t) uvStride * chromaRows] = v;
+            }
+        }
+    }
+}
+
+std::vector<uint8_t> convert(const std::vector<uint8_t> &src, const Case &c, bool flipVertical, int format,
+                             bool neonEnabled) {
+    int dstStride = getDstStride(c);
+    int sliceHeight = getDstSliceHeight(c);
+    std::vector<uint8_t> dst((size_t) YuvConverter::getYuv420Size(dstStride, sliceHeight), FILL_BYTE);
+    YuvConverter::setNeonEnabled(neonEnabled);
+    int ret = YuvConverter::rgbaToYuv420(src.data(), c.width, c.height, c.width * 4 + c.srcPadding,
+                                         flipVertical, dst.data(), dstStride, sliceHeight, format);
+    YuvConverter::setNeonEnabled(true);
+    EXPECT_EQ((int) dst.size(), ret);
+    return dst;
+}
+
+std::string describe(const Case &c, bool flipVertical, int format) {
+    return std::to_string(c.width) + "x" + std::to_string(c.height)
+           + " srcPadding=" + std::to_string(c.srcPadding)
+           + " stride=" + std::to_string(getDstStride(c))
+           + " sliceHeight=" + std::to_string(getDstSliceHeight(c))
+           + " flip=" + std::to_string(flipVertical)
+           + (format == YUV_FORMAT_NV12 ? " NV12" : " I420");
+}
+
+// 返回第一个不同字节的位置，相同返回 -1
+long firstMismatch(const std::vector<uint8_t> &expected, const std::vector<uint8_t> &actual) {
+    if (expected.size() != actual.size()) {
+        return 0;
+    }
+    for (size_t i = 0; i < expected.size(); i++) {
+        if (expected[i] != actual[i]) {
+            return (long) i;
+        }
+    }
+    return -1;
+}
+
+}
+
+TEST(YuvConverterTest, YuvSizeIsThreeHalvesForEvenSize) {
+    EXPECT_EQ(1920 * 1088 * 3 / 2, YuvConverter::getYuv420Size(1920, 1088));
+    EXPECT_EQ(1280 * 720 * 3 / 2, YuvConverter::getYuv420Size(1280, 720));
+    // 奇数时色度平面向上取整
+    EXPECT_EQ(3 * 3 + 4 * 2, YuvConverter::getYuv420Size(3, 3));
+}
+
+TEST(YuvConverterTest, RejectsIllegalParams) {
+    std::vector<uint8_t> src(16 * 16 * 4);
+    std::vector<uint8_t> dst((size_t) YuvConverter::getYuv420Size(16, 16));
+    EXPECT_EQ(-1, YuvConverter::rgbaToYuv420(NULL, 16, 16, 64, false, dst.data(), 16, 16, YUV_FORMAT_NV12));
+    EXPECT_EQ(-1, YuvConverter::rgbaToYuv420(src.data(), 16, 16, 64, false, NULL, 16, 16, YUV_FORMAT_NV12));
+    EXPECT_EQ(-1, YuvConverter::rgbaToYuv420(src.data(), 0, 16, 64, false, dst.data(), 16, 16, YUV_FORMAT_NV12));
+    EXPECT_EQ(-1, YuvConverter::rgbaToYuv420(src.data(), 16, 16, 60, false, dst.data(), 16, 16, YUV_FORMAT_NV12));
+    EXPECT_EQ(-1, YuvConverter::rgbaToYuv420(src.data(), 16, 16, 64, false, dst.data(), 15, 16, YUV_FORMAT_NV12));
+    EXPECT_EQ(-1, YuvConverter::rgbaToYuv420(src.data(), 16, 16, 64, false, dst.data(), 16, 15, YUV_FORMAT_NV12));
+    EXPECT_EQ(-1, YuvConverter::rgbaToYuv420(src.data(), 16, 16, 64, false, dst.data(), 16, 16, 2));
+}
+
+TEST(YuvConverterTest, ScalarMatchesReference) {
+    const int formats[] = {YUV_FORMAT_I420, YUV_FORMAT_NV12};
+    uint32_t seed = 1;
+    for (const Case &c : makeCases()) {
+        std::vector<uint8_t> src = makeRgba(c, seed++);
+        for (int format : formats) {
+            for (int flip = 0; flip < 2; flip++) {
+                std::vector<uint8_t> expected((size_t) YuvConverter::getYuv420Size(
+                        getDstStride(c), getDstSliceHeight(c)), FILL_BYTE);
+                convertReference(src, c, flip != 0, format, expected);
+                std::vector<uint8_t> actual = convert(src, c, flip != 0, format, false);
+                ASSERT_EQ(-1, firstMismatch(expected, actual)) << describe(c, flip != 0, format);
+            }
+        }
+    }
+}
+
+TEST(YuvConverterTest, NeonMatchesScalar) {
+    if (!YuvConverter::isNeonSupported()) {
+        GTEST_SKIP() << "built without NEON";
+    }
+    const int formats[] = {YUV_FORMAT_I420, YUV_FORMAT_NV12};
+    uint32_t seed = 1000;
+    for (const Case &c : makeCases()) {
+        std::vector<uint8_t> src = makeRgba(c, seed++);
+        for (int format : formats) {
+            for (int flip = 0; flip < 2; flip++) {
+                std::vector<uint8_t> scalar = convert(src, c, flip != 0, format, false);
+                std::vector<uint8_t> neon = convert(src, c, flip != 0, format, true);
+                ASSERT_EQ(-1, firstMismatch(scalar, neon)) << describe(c, flip != 0, format);
+            }
+        }
+    }
+}